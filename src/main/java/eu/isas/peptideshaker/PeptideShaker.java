@@ -42,6 +42,7 @@ import com.compomics.util.preferences.UtilitiesUserPreferences;
 import com.compomics.util.waiting.Duration;
 import eu.isas.peptideshaker.preferences.ProjectDetails;
 import eu.isas.peptideshaker.preferences.SpectrumCountingPreferences;
+import eu.isas.peptideshaker.preferences.UserPreferences;
 import eu.isas.peptideshaker.protein_inference.ProteinInference;
 import eu.isas.peptideshaker.ptm.PtmScorer;
 import eu.isas.peptideshaker.scoring.maps.InputMap;
@@ -49,6 +50,8 @@ import eu.isas.peptideshaker.scoring.psm_scoring.BestMatchSelection;
 import eu.isas.peptideshaker.scoring.psm_scoring.PsmScorer;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.ProcessingCheckpoint;
+import eu.isas.peptideshaker.utils.ProteinAccessionDictionary;
 import eu.isas.peptideshaker.validation.MatchesValidator;
 
 import java.io.File;
@@ -58,6 +61,7 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * This class will be responsible for the identification import and the
@@ -135,6 +139,10 @@ public class PeptideShaker {
      * identification matches and keep some of them in memory.
      */
     private IdentificationFeaturesGenerator identificationFeaturesGenerator;
+    /**
+     * The protein accession dictionary of the project.
+     */
+    private ProteinAccessionDictionary accessionDictionary;
     /**
      * A cache where the objects will be saved.
      */
@@ -151,6 +159,16 @@ public class PeptideShaker {
      * Object used to monitor the duration of the project creation.
      */
     private Duration projectCreationDuration;
+    /**
+     * The checkpoint saved after every processing step, null if checkpoints
+     * are not saved.
+     */
+    private ProcessingCheckpoint processingCheckpoint = null;
+    /**
+     * The last processing step completed in the checkpoint the processing was
+     * resumed from, null if the processing was started from scratch.
+     */
+    private ProcessingCheckpoint.Stage resumeStage = null;
 
     /**
      * Empty constructor for instantiation purposes.
@@ -165,15 +183,18 @@ public class PeptideShaker {
      * @param experiment the experiment conducted
      * @param sample the sample analyzed
      * @param replicateNumber the replicate number
+     * @param accessionDictionary the protein accession dictionary of the
+     * project
      */
-    public PeptideShaker(MsExperiment experiment, Sample sample, int replicateNumber) {
+    public PeptideShaker(MsExperiment experiment, Sample sample, int replicateNumber, ProteinAccessionDictionary accessionDictionary) {
         this.experiment = experiment;
         this.sample = sample;
         this.replicateNumber = replicateNumber;
+        this.accessionDictionary = accessionDictionary;
         PsmSpecificMap psmMap = new PsmSpecificMap();
         PeptideSpecificMap peptideMap = new PeptideSpecificMap();
         ProteinMap proteinMap = new ProteinMap();
-        matchesValidator = new MatchesValidator(psmMap, peptideMap, proteinMap);
+        matchesValidator = new MatchesValidator(psmMap, peptideMap, proteinMap, accessionDictionary);
         PsmPTMMap psmPTMMap = new PsmPTMMap();
         ptmScorer = new PtmScorer(psmPTMMap);
     }
@@ -185,12 +206,15 @@ public class PeptideShaker {
      * @param sample the sample analyzed
      * @param replicateNumber the replicate number
      * @param psMaps the peptide shaker maps
+     * @param accessionDictionary the protein accession dictionary of the
+     * project
      */
-    public PeptideShaker(MsExperiment experiment, Sample sample, int replicateNumber, PSMaps psMaps) {
+    public PeptideShaker(MsExperiment experiment, Sample sample, int replicateNumber, PSMaps psMaps, ProteinAccessionDictionary accessionDictionary) {
         this.experiment = experiment;
         this.sample = sample;
         this.replicateNumber = replicateNumber;
-        matchesValidator = new MatchesValidator(psMaps.getPsmSpecificMap(), psMaps.getPeptideSpecificMap(), psMaps.getProteinMap());
+        this.accessionDictionary = accessionDictionary;
+        matchesValidator = new MatchesValidator(psMaps.getPsmSpecificMap(), psMaps.getPeptideSpecificMap(), psMaps.getProteinMap(), accessionDictionary);
         ptmScorer = new PtmScorer(psMaps.getPsmPTMMap());
     }
 
@@ -205,13 +229,15 @@ public class PeptideShaker {
      * @param projectDetails the project details
      * @param processingPreferences the initial processing preferences
      * @param spectrumCountingPreferences the spectrum counting preferences
+     * @param userPreferences the user preferences
      * @param backgroundThread boolean indicating whether the import should be
      * done in a background thread (GUI mode) or in the current thread (command
      * line mode).
      */
     public void importFiles(WaitingHandler waitingHandler, ArrayList<File> idFiles, ArrayList<File> spectrumFiles,
             IdentificationParameters identificationParameters, ProjectDetails projectDetails,
-            ProcessingPreferences processingPreferences, SpectrumCountingPreferences spectrumCountingPreferences, boolean backgroundThread) {
+            ProcessingPreferences processingPreferences, SpectrumCountingPreferences spectrumCountingPreferences,
+            UserPreferences userPreferences, boolean backgroundThread) {
 
         projectCreationDuration = new Duration();
         projectCreationDuration.start();
@@ -222,11 +248,109 @@ public class PeptideShaker {
         objectsCache = new ObjectsCache();
         objectsCache.setAutomatedMemoryManagement(true);
 
-        ProteomicAnalysis analysis = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber);
-        analysis.addIdentificationResults(IdentificationMethod.MS2_IDENTIFICATION, new Ms2Identification(getIdentificationReference()));
+        // in command line mode, save checkpoints and resume from the last one if the input did not change
+        ProcessingCheckpoint savedCheckpoint = null;
+        if (!backgroundThread) {
+            try {
+                processingCheckpoint = new ProcessingCheckpoint(idFiles, spectrumFiles, identificationParameters);
+                savedCheckpoint = ProcessingCheckpoint.load(getMatchesFolder());
+                if (savedCheckpoint != null && !savedCheckpoint.isCompatible(processingCheckpoint)) {
+                    savedCheckpoint = null;
+                }
+            } catch (Exception e) {
+                waitingHandler.appendReport("An error occurred while loading the processing checkpoint (" + e.getLocalizedMessage()
+                        + "). The processing will start from scratch.", true, true);
+                savedCheckpoint = null;
+            }
+        }
+
+        Sample savedSample = null;
+        if (savedCheckpoint != null) {
+            for (Sample tempSample : savedCheckpoint.getExperiment().getSamples().values()) {
+                if (tempSample.getReference().equals(sample.getReference())) {
+                    savedSample = tempSample;
+                    break;
+                }
+            }
+        }
+
+        ProteomicAnalysis analysis;
+        if (savedSample != null) {
+            experiment = savedCheckpoint.getExperiment();
+            sample = savedSample;
+            metrics = savedCheckpoint.getMetrics();
+            PSMaps psMaps = savedCheckpoint.getPsMaps();
+            matchesValidator = new MatchesValidator(psMaps.getPsmSpecificMap(), psMaps.getPeptideSpecificMap(), psMaps.getProteinMap(), accessionDictionary);
+            ptmScorer = new PtmScorer(psMaps.getPsmPTMMap());
+            resumeStage = savedCheckpoint.getStage();
+            analysis = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber);
+            waitingHandler.appendReport("Resuming the processing after the " + resumeStage.description + ".", true, true);
+        } else {
+            savedCheckpoint = null;
+            analysis = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber);
+            analysis.addIdentificationResults(IdentificationMethod.MS2_IDENTIFICATION, new Ms2Identification(getIdentificationReference()));
+        }
+
+        fileImporter = new FileImporter(this, waitingHandler, analysis, identificationParameters, metrics, userPreferences);
+        fileImporter.importFiles(idFiles, spectrumFiles, processingPreferences, spectrumCountingPreferences, projectDetails, savedCheckpoint, backgroundThread);
+    }
 
-        fileImporter = new FileImporter(this, waitingHandler, analysis, identificationParameters, metrics);
-        fileImporter.importFiles(idFiles, spectrumFiles, processingPreferences, spectrumCountingPreferences, projectDetails, backgroundThread);
+    /**
+     * Saves a processing checkpoint in the matches folder if the given step is
+     * followed by a checkpoint. Errors are reported and disable the following
+     * checkpoints without interrupting the processing.
+     *
+     * @param stage the processing step completed
+     * @param inputMap the input map
+     * @param proteinCount map of proteins found several times with the number
+     * of times they appeared as first hit
+     * @param projectDetails the project details
+     * @param waitingHandler the handler displaying feedback to the user
+     */
+    public void saveCheckpoint(ProcessingCheckpoint.Stage stage, InputMap inputMap, HashMap<String, Integer> proteinCount, ProjectDetails projectDetails, WaitingHandler waitingHandler) {
+
+        if (processingCheckpoint == null || !stage.checkpoint) {
+            return;
+        }
+
+        try {
+            processingCheckpoint.setPsMaps(new PSMaps(matchesValidator.getPsmMap(), matchesValidator.getPeptideMap(), matchesValidator.getProteinMap(), inputMap, ptmScorer.getPsmPTMMap()));
+            processingCheckpoint.setProteinCount(proteinCount);
+            processingCheckpoint.setMetrics(metrics);
+            processingCheckpoint.setProjectDetails(projectDetails);
+            Identification identification = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber).getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
+            processingCheckpoint.save(getMatchesFolder(), stage, experiment, identification, objectsCache, waitingHandler);
+        } catch (Exception e) {
+            waitingHandler.appendReport("An error occurred while saving the processing checkpoint after the " + stage.description
+                    + " (" + e.getLocalizedMessage() + "). No further checkpoint will be saved.", true, true);
+            processingCheckpoint = null;
+        }
+    }
+
+    /**
+     * Indicates whether the given processing step was completed in the
+     * checkpoint the processing was resumed from.
+     *
+     * @param stage the processing step
+     *
+     * @return a boolean indicating whether the given processing step was
+     * completed in the checkpoint the processing was resumed from
+     */
+    private boolean isStageCompleted(ProcessingCheckpoint.Stage stage) {
+        return resumeStage != null && resumeStage.compareTo(stage) >= 0;
+    }
+
+    /**
+     * Increases the primary progress counter by the number of steps of a
+     * processing stage skipped when resuming from a checkpoint.
+     *
+     * @param waitingHandler the handler displaying feedback to the user
+     * @param nSteps the number of steps skipped
+     */
+    private static void skipPrimaryProgress(WaitingHandler waitingHandler, int nSteps) {
+        for (int i = 0; i < nSteps; i++) {
+            waitingHandler.increasePrimaryProgressCounter();
+        }
     }
 
     /**
@@ -260,17 +384,21 @@ public class PeptideShaker {
      * @param processingPreferences the processing preferences
      * @param spectrumCountingPreferences the spectrum counting preferences
      * @param projectDetails the project details
+     * @param userPreferences the user preferences
      *
      * @throws Exception exception thrown whenever an error occurred while
      * loading the identification files
      */
     public void processIdentifications(InputMap inputMap, HashMap<String, Integer> proteinCount, WaitingHandler waitingHandler,
             ExceptionHandler exceptionHandler, IdentificationParameters identificationParameters,
-            ProcessingPreferences processingPreferences, SpectrumCountingPreferences spectrumCountingPreferences, ProjectDetails projectDetails)
-            throws Exception {
+            ProcessingPreferences processingPreferences, SpectrumCountingPreferences spectrumCountingPreferences, ProjectDetails projectDetails,
+            UserPreferences userPreferences) throws Exception {
 
         Identification identification = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber).getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
-        identificationFeaturesGenerator = new IdentificationFeaturesGenerator(identification, identificationParameters, metrics, spectrumCountingPreferences);
+        identificationFeaturesGenerator = new IdentificationFeaturesGenerator(identification, identificationParameters, metrics, spectrumCountingPreferences,
+                accessionDictionary, userPreferences.getFeaturesCacheMemory());
+        identificationFeaturesGenerator.setnThreads(processingPreferences.getnThreads());
+        setOrderedSpectrumKeys(identification);
 
         if (!objectsCache.memoryCheck() && memoryWarning) {
             waitingHandler.appendReport("PeptideShaker is encountering memory issues! See http://compomics.github.io/projects/peptide-shaker.html for help.", true, true);
@@ -282,219 +410,277 @@ public class PeptideShaker {
             return;
         }
 
-        PsmScoringPreferences psmScoringPreferences = identificationParameters.getPsmScoringPreferences();
+        IdMatchValidationPreferences idMatchValidationPreferences = identificationParameters.getIdValidationPreferences();
+
+        if (!isStageCompleted(ProcessingCheckpoint.Stage.PSM_SCORING)) {
 
-        ArrayList<Integer> usedAlgorithms = projectDetails.getIdentificationAlgorithms();
-        if (psmScoringPreferences.isScoringNeeded(usedAlgorithms)) {
+            PsmScoringPreferences psmScoringPreferences = identificationParameters.getPsmScoringPreferences();
 
-            PsmScorer psmScorer = new PsmScorer();
+            ArrayList<Integer> usedAlgorithms = projectDetails.getIdentificationAlgorithms();
+            if (psmScoringPreferences.isScoringNeeded(usedAlgorithms)) {
 
-            waitingHandler.appendReport("Estimating PSM scores.", true, true);
-            psmScorer.estimateIntermediateScores(identification, inputMap, processingPreferences, identificationParameters, waitingHandler, exceptionHandler);
+                PsmScorer psmScorer = new PsmScorer();
 
-            if (psmScoringPreferences.isTargetDecoyNeededForPsmScoring(usedAlgorithms)) {
-                if (sequenceFactory.concatenatedTargetDecoy()) {
-                    waitingHandler.appendReport("Estimating intermediate scores probabilities.", true, true);
-                    psmScorer.estimateIntermediateScoreProbabilities(identification, inputMap, processingPreferences, waitingHandler);
-                } else {
-                    waitingHandler.appendReport("No decoy sequences found. Impossible to estimate intermediate scores probabilities.", true, true);
+                waitingHandler.appendReport("Estimating PSM scores.", true, true);
+                psmScorer.estimateIntermediateScores(identification, inputMap, metrics, processingPreferences, identificationParameters, waitingHandler, exceptionHandler);
+
+                if (psmScoringPreferences.isTargetDecoyNeededForPsmScoring(usedAlgorithms)) {
+                    if (sequenceFactory.concatenatedTargetDecoy()) {
+                        waitingHandler.appendReport("Estimating intermediate scores probabilities.", true, true);
+                        psmScorer.estimateIntermediateScoreProbabilities(identification, inputMap, processingPreferences, waitingHandler);
+                    } else {
+                        waitingHandler.appendReport("No decoy sequences found. Impossible to estimate intermediate scores probabilities.", true, true);
+                    }
                 }
+
+                waitingHandler.appendReport("Scoring PSMs.", true, true);
+                psmScorer.scorePsms(identification, inputMap, metrics, processingPreferences, identificationParameters, waitingHandler, exceptionHandler);
             }
 
-            waitingHandler.appendReport("Scoring PSMs.", true, true);
-            psmScorer.scorePsms(identification, inputMap, processingPreferences, identificationParameters, waitingHandler);
-        }
+            if (sequenceFactory.concatenatedTargetDecoy()) {
+                waitingHandler.appendReport("Computing assumptions probabilities.", true, true);
+            } else {
+                waitingHandler.appendReport("Importing assumptions scores.", true, true);
+            }
+            inputMap.estimateProbabilities(waitingHandler);
+            waitingHandler.increasePrimaryProgressCounter();
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-        if (sequenceFactory.concatenatedTargetDecoy()) {
-            waitingHandler.appendReport("Computing assumptions probabilities.", true, true);
-        } else {
-            waitingHandler.appendReport("Importing assumptions scores.", true, true);
-        }
-        inputMap.estimateProbabilities(waitingHandler);
-        waitingHandler.increasePrimaryProgressCounter();
-        if (waitingHandler.isRunCanceled()) {
-            return;
-        }
+            if (sequenceFactory.concatenatedTargetDecoy()) {
+                waitingHandler.appendReport("Saving assumptions probabilities.", true, true);
+            } else {
+                waitingHandler.appendReport("No decoy sequences found. Impossible to estimate assumptions probabilities.", true, true);
+            }
+            attachAssumptionsProbabilities(inputMap, identificationParameters.getSequenceMatchingPreferences(), waitingHandler);
+            waitingHandler.increasePrimaryProgressCounter();
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-        if (sequenceFactory.concatenatedTargetDecoy()) {
-            waitingHandler.appendReport("Saving assumptions probabilities.", true, true);
+            saveCheckpoint(ProcessingCheckpoint.Stage.PSM_SCORING, inputMap, proteinCount, projectDetails, waitingHandler);
         } else {
-            waitingHandler.appendReport("No decoy sequences found. Impossible to estimate assumptions probabilities.", true, true);
-        }
-        attachAssumptionsProbabilities(inputMap, identificationParameters.getSequenceMatchingPreferences(), waitingHandler);
-        waitingHandler.increasePrimaryProgressCounter();
-        if (waitingHandler.isRunCanceled()) {
-            return;
+            skipPrimaryProgress(waitingHandler, 2);
         }
 
-        waitingHandler.appendReport("Selecting best peptide per spectrum.", true, true);
-        BestMatchSelection bestMatchSelection = new BestMatchSelection(identification, proteinCount, matchesValidator, metrics);
-        bestMatchSelection.selectBestHitAndFillPsmMap(inputMap, waitingHandler, identificationParameters);
-        IdMatchValidationPreferences idMatchValidationPreferences = identificationParameters.getIdValidationPreferences();
-        if (idMatchValidationPreferences.getMergeSmallSubgroups()) {
-            matchesValidator.getPsmMap().clean(idMatchValidationPreferences.getDefaultPsmFDR() / 100);
-        }
-        waitingHandler.increasePrimaryProgressCounter();
-        if (waitingHandler.isRunCanceled()) {
-            return;
-        }
-        if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
-            metrics.clearSpectrumKeys();
-        }
+        if (!isStageCompleted(ProcessingCheckpoint.Stage.BEST_HIT_SELECTION)) {
 
-        if (sequenceFactory.concatenatedTargetDecoy()) {
-            waitingHandler.appendReport("Computing PSM probabilities.", true, true);
+            waitingHandler.appendReport("Selecting best peptide per spectrum.", true, true);
+            BestMatchSelection bestMatchSelection = new BestMatchSelection(identification, proteinCount, matchesValidator, metrics);
+            bestMatchSelection.selectBestHitAndFillPsmMap(inputMap, processingPreferences, waitingHandler, exceptionHandler, identificationParameters);
+            if (idMatchValidationPreferences.getMergeSmallSubgroups()) {
+                matchesValidator.getPsmMap().clean(idMatchValidationPreferences.getDefaultPsmFDR() / 100);
+            }
+            waitingHandler.increasePrimaryProgressCounter();
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+            if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
+                metrics.clearSpectrumKeys();
+            }
+
+            if (sequenceFactory.concatenatedTargetDecoy()) {
+                waitingHandler.appendReport("Computing PSM probabilities.", true, true);
+            } else {
+                waitingHandler.appendReport("No decoy sequences found. Impossible to estimate PSM probabilities.", true, true);
+            }
+            matchesValidator.getPsmMap().estimateProbabilities(waitingHandler);
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+
+            saveCheckpoint(ProcessingCheckpoint.Stage.BEST_HIT_SELECTION, inputMap, proteinCount, projectDetails, waitingHandler);
         } else {
-            waitingHandler.appendReport("No decoy sequences found. Impossible to estimate PSM probabilities.", true, true);
-        }
-        matchesValidator.getPsmMap().estimateProbabilities(waitingHandler);
-        if (waitingHandler.isRunCanceled()) {
-            return;
+            skipPrimaryProgress(waitingHandler, 1);
         }
 
-        String report = "Scoring PTMs in PSMs (D-score";
-        PTMScoringPreferences ptmScoringPreferences = identificationParameters.getPtmScoringPreferences();
-        if (ptmScoringPreferences.isProbabilitsticScoreCalculation()) {
-            report += " and " + ptmScoringPreferences.getSelectedProbabilisticScore().getName();
-        }
-        report += ")";
-        waitingHandler.appendReport(report, true, true);
-        ptmScorer.scorePsmPtms(identification, waitingHandler, exceptionHandler, identificationParameters, metrics, processingPreferences);
-        waitingHandler.increasePrimaryProgressCounter();
-        if (waitingHandler.isRunCanceled()) {
-            return;
-        }
-        if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
-            metrics.clearSpectrumKeys();
-        }
+        if (!isStageCompleted(ProcessingCheckpoint.Stage.PTM_SCORING)) {
 
-        if (ptmScoringPreferences.isEstimateFlr()) {
-            waitingHandler.appendReport("Thresholding PTM localizations.", true, true);
-            PsmPTMMap psmPTMMap = ptmScorer.getPsmPTMMap();
-            if (idMatchValidationPreferences.getMergeSmallSubgroups()) {
-                psmPTMMap.clean(ptmScoringPreferences.getFlrThreshold() / 100);
+            String report = "Scoring PTMs in PSMs (D-score";
+            PTMScoringPreferences ptmScoringPreferences = identificationParameters.getPtmScoringPreferences();
+            if (ptmScoringPreferences.isProbabilitsticScoreCalculation()) {
+                report += " and " + ptmScoringPreferences.getSelectedProbabilisticScore().getName();
+            }
+            report += ")";
+            waitingHandler.appendReport(report, true, true);
+            ptmScorer.scorePsmPtms(identification, waitingHandler, exceptionHandler, identificationParameters, metrics, processingPreferences);
+            waitingHandler.increasePrimaryProgressCounter();
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+            if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
+                metrics.clearSpectrumKeys();
             }
-            psmPTMMap.estimateProbabilities(waitingHandler);
-            ptmScorer.computeLocalizationStatistics(waitingHandler, ptmScoringPreferences.getFlrThreshold());
-        }
-        waitingHandler.increasePrimaryProgressCounter();
-        if (waitingHandler.isRunCanceled()) {
-            return;
-        }
 
-        if (ptmScoringPreferences.getAlignNonConfidentPTMs()) {
-            waitingHandler.appendReport("Resolving peptide inference issues.", true, true);
-            ptmScorer.peptideInference(identification, identificationParameters, waitingHandler);
+            if (ptmScoringPreferences.isEstimateFlr()) {
+                waitingHandler.appendReport("Thresholding PTM localizations.", true, true);
+                PsmPTMMap psmPTMMap = ptmScorer.getPsmPTMMap();
+                if (idMatchValidationPreferences.getMergeSmallSubgroups()) {
+                    psmPTMMap.clean(ptmScoringPreferences.getFlrThreshold() / 100);
+                }
+                psmPTMMap.estimateProbabilities(waitingHandler);
+                ptmScorer.computeLocalizationStatistics(waitingHandler, ptmScoringPreferences.getFlrThreshold());
+            }
             waitingHandler.increasePrimaryProgressCounter();
             if (waitingHandler.isRunCanceled()) {
                 return;
             }
-        }
 
-        if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
-            metrics.clearSpectrumKeys();
-        }
-        waitingHandler.appendReport("Saving probabilities, building peptides and proteins.", true, true);
-        attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identificationParameters.getSequenceMatchingPreferences(), waitingHandler); // @TODO: this is very slow if memory is full!!
-        waitingHandler.increasePrimaryProgressCounter();
-        if (waitingHandler.isRunCanceled()) {
-            return;
+            if (ptmScoringPreferences.getAlignNonConfidentPTMs()) {
+                waitingHandler.appendReport("Resolving peptide inference issues.", true, true);
+                ptmScorer.peptideInference(identification, identificationParameters, processingPreferences, waitingHandler, exceptionHandler);
+                waitingHandler.increasePrimaryProgressCounter();
+                if (waitingHandler.isRunCanceled()) {
+                    return;
+                }
+            }
+
+            saveCheckpoint(ProcessingCheckpoint.Stage.PTM_SCORING, inputMap, proteinCount, projectDetails, waitingHandler);
+        } else {
+            skipPrimaryProgress(waitingHandler, identificationParameters.getPtmScoringPreferences().getAlignNonConfidentPTMs() ? 3 : 2);
         }
 
-        ProteinInference proteinInference = new ProteinInference();
-        if (identificationParameters.getProteinInferencePreferences().getSimplifyGroups()) {
-            waitingHandler.appendReport("Simplifying protein groups.", true, true);
-            proteinInference.removeRedundantGroups(identification, identificationParameters, identificationFeaturesGenerator, waitingHandler);
+        if (!isStageCompleted(ProcessingCheckpoint.Stage.PEPTIDE_PROTEIN_MAPS)) {
+
+            if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
+                metrics.clearSpectrumKeys();
+            }
+            waitingHandler.appendReport("Saving probabilities, building peptides and proteins.", true, true);
+            attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identificationParameters.getSequenceMatchingPreferences(), waitingHandler); // @TODO: this is very slow if memory is full!!
             waitingHandler.increasePrimaryProgressCounter();
             if (waitingHandler.isRunCanceled()) {
                 return;
             }
-        }
 
-        waitingHandler.appendReport("Generating peptide map.", true, true);
-        matchesValidator.fillPeptideMaps(identification, metrics, waitingHandler, identificationParameters);
-        if (idMatchValidationPreferences.getMergeSmallSubgroups()) {
-            matchesValidator.getPeptideMap().clean(identificationParameters.getIdValidationPreferences().getDefaultPeptideFDR() / 100);
-        }
-        if (waitingHandler.isRunCanceled()) {
-            return;
-        }
+            ProteinInference proteinInference = new ProteinInference(accessionDictionary);
+            if (identificationParameters.getProteinInferencePreferences().getSimplifyGroups()) {
+                waitingHandler.appendReport("Simplifying protein groups.", true, true);
+                proteinInference.removeRedundantGroups(identification, identificationParameters, identificationFeaturesGenerator, processingPreferences, waitingHandler, exceptionHandler);
+                waitingHandler.increasePrimaryProgressCounter();
+                if (waitingHandler.isRunCanceled()) {
+                    return;
+                }
+            }
 
-        if (sequenceFactory.concatenatedTargetDecoy()) {
-            waitingHandler.appendReport("Computing peptide probabilities.", true, true);
-        } else {
-            waitingHandler.appendReport("No decoy sequences found. Impossible to estimate peptide probabilities.", true, true);
-        }
-        matchesValidator.getPeptideMap().estimateProbabilities(waitingHandler);
-        if (waitingHandler.isRunCanceled()) {
-            return;
-        }
+            waitingHandler.appendReport("Generating peptide map.", true, true);
+            matchesValidator.fillPeptideMaps(identification, metrics, waitingHandler, exceptionHandler, identificationParameters, processingPreferences);
+            if (idMatchValidationPreferences.getMergeSmallSubgroups()) {
+                matchesValidator.getPeptideMap().clean(identificationParameters.getIdValidationPreferences().getDefaultPeptideFDR() / 100);
+            }
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-        waitingHandler.appendReport("Saving peptide probabilities.", true, true);
-        matchesValidator.attachPeptideProbabilities(identification, waitingHandler);
-        waitingHandler.increasePrimaryProgressCounter();
-        if (waitingHandler.isRunCanceled()) {
-            return;
-        }
+            if (sequenceFactory.concatenatedTargetDecoy()) {
+                waitingHandler.appendReport("Computing peptide probabilities.", true, true);
+            } else {
+                waitingHandler.appendReport("No decoy sequences found. Impossible to estimate peptide probabilities.", true, true);
+            }
+            matchesValidator.getPeptideMap().estimateProbabilities(waitingHandler);
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-        waitingHandler.appendReport("Generating protein map.", true, true);
-        matchesValidator.fillProteinMap(identification, waitingHandler);
-        waitingHandler.increasePrimaryProgressCounter();
-        if (waitingHandler.isRunCanceled()) {
-            return;
-        }
+            waitingHandler.appendReport("Saving peptide probabilities.", true, true);
+            matchesValidator.attachPeptideProbabilities(identification, processingPreferences, waitingHandler, exceptionHandler);
+            waitingHandler.increasePrimaryProgressCounter();
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-        waitingHandler.appendReport("Resolving protein inference issues, inferring peptide and protein PI status.", true, true); // could be slow
-        proteinInference.retainBestScoringGroups(identification, metrics, matchesValidator.getProteinMap(), identificationParameters, identificationFeaturesGenerator, waitingHandler);
-        waitingHandler.increasePrimaryProgressCounter();
-        if (waitingHandler.isRunCanceled()) {
-            return;
-        }
+            waitingHandler.appendReport("Generating protein map.", true, true);
+            matchesValidator.fillProteinMap(identification, processingPreferences, waitingHandler, exceptionHandler);
+            waitingHandler.increasePrimaryProgressCounter();
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+
+            waitingHandler.appendReport("Resolving protein inference issues, inferring peptide and protein PI status.", true, true); // could be slow
+            proteinInference.retainBestScoringGroups(identification, metrics, matchesValidator.getProteinMap(), identificationParameters, identificationFeaturesGenerator, processingPreferences, waitingHandler, exceptionHandler);
+            waitingHandler.increasePrimaryProgressCounter();
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-        if (sequenceFactory.concatenatedTargetDecoy()) {
-            waitingHandler.appendReport("Correcting protein probabilities.", true, true);
+            if (sequenceFactory.concatenatedTargetDecoy()) {
+                waitingHandler.appendReport("Correcting protein probabilities.", true, true);
+            } else {
+                waitingHandler.appendReport("No decoy sequences found. Impossible to estimate protein probabilities.", true, true);
+            }
+            matchesValidator.getProteinMap().estimateProbabilities(waitingHandler);
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+
+            waitingHandler.appendReport("Saving protein probabilities.", true, true);
+            matchesValidator.attachProteinProbabilities(identification, metrics, processingPreferences, waitingHandler, exceptionHandler, identificationParameters.getFractionSettings());
+            waitingHandler.increasePrimaryProgressCounter();
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+
+            saveCheckpoint(ProcessingCheckpoint.Stage.PEPTIDE_PROTEIN_MAPS, inputMap, proteinCount, projectDetails, waitingHandler);
         } else {
-            waitingHandler.appendReport("No decoy sequences found. Impossible to estimate protein probabilities.", true, true);
-        }
-        matchesValidator.getProteinMap().estimateProbabilities(waitingHandler);
-        if (waitingHandler.isRunCanceled()) {
-            return;
+            skipPrimaryProgress(waitingHandler, identificationParameters.getProteinInferencePreferences().getSimplifyGroups() ? 6 : 5);
         }
 
-        waitingHandler.appendReport("Saving protein probabilities.", true, true);
-        matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, identificationParameters.getFractionSettings());
-        waitingHandler.increasePrimaryProgressCounter();
-        if (waitingHandler.isRunCanceled()) {
-            return;
-        }
+        if (!isStageCompleted(ProcessingCheckpoint.Stage.VALIDATION)) {
 
-        if (sequenceFactory.concatenatedTargetDecoy()) {
-            if (idMatchValidationPreferences.getDefaultPsmFDR() == 1
-                    && idMatchValidationPreferences.getDefaultPeptideFDR() == 1
-                    && idMatchValidationPreferences.getDefaultProteinFDR() == 1) {
-                waitingHandler.appendReport("Validating identifications at 1% FDR, quality control of matches.", true, true);
+            if (sequenceFactory.concatenatedTargetDecoy()) {
+                if (idMatchValidationPreferences.getDefaultPsmFDR() == 1
+                        && idMatchValidationPreferences.getDefaultPeptideFDR() == 1
+                        && idMatchValidationPreferences.getDefaultProteinFDR() == 1) {
+                    waitingHandler.appendReport("Validating identifications at 1% FDR, quality control of matches.", true, true);
+                } else {
+                    waitingHandler.appendReport("Validating identifications, quality control of matches.", true, true);
+                }
             } else {
-                waitingHandler.appendReport("Validating identifications, quality control of matches.", true, true);
+                waitingHandler.appendReport("No decoy sequences found. Impossible to estimate FDRs.", true, true);
             }
+            matchesValidator.validateIdentifications(identification, metrics, geneMaps, waitingHandler, exceptionHandler, identificationParameters, identificationFeaturesGenerator, inputMap, spectrumCountingPreferences, processingPreferences);
+            waitingHandler.increasePrimaryProgressCounter();
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+
+            saveCheckpoint(ProcessingCheckpoint.Stage.VALIDATION, inputMap, proteinCount, projectDetails, waitingHandler);
         } else {
-            waitingHandler.appendReport("No decoy sequences found. Impossible to estimate FDRs.", true, true);
+            skipPrimaryProgress(waitingHandler, 1);
         }
-        matchesValidator.validateIdentifications(identification, metrics, geneMaps, waitingHandler, exceptionHandler, identificationParameters, identificationFeaturesGenerator, inputMap, spectrumCountingPreferences, processingPreferences);
-        waitingHandler.increasePrimaryProgressCounter();
         metrics.clearSpectrumKeys();
         if (waitingHandler.isRunCanceled()) {
             return;
         }
 
-        waitingHandler.appendReport("Scoring PTMs in peptides.", true, true);
-        ptmScorer.scorePeptidePtms(identification, waitingHandler, identificationParameters);
-        waitingHandler.increasePrimaryProgressCounter();
-        if (waitingHandler.isRunCanceled()) {
-            return;
+        if (!isStageCompleted(ProcessingCheckpoint.Stage.PEPTIDE_PTM_SCORING)) {
+            waitingHandler.appendReport("Scoring PTMs in peptides.", true, true);
+            ptmScorer.scorePeptidePtms(identification, waitingHandler, exceptionHandler, identificationParameters, processingPreferences);
+            waitingHandler.increasePrimaryProgressCounter();
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+
+            saveCheckpoint(ProcessingCheckpoint.Stage.PEPTIDE_PTM_SCORING, inputMap, proteinCount, projectDetails, waitingHandler);
+        } else {
+            skipPrimaryProgress(waitingHandler, 1);
+        }
+
+        if (!isStageCompleted(ProcessingCheckpoint.Stage.PROTEIN_PTM_SCORING)) {
+            waitingHandler.appendReport("Scoring PTMs in proteins.", true, true);
+            ptmScorer.scoreProteinPtms(identification, metrics, waitingHandler, exceptionHandler, identificationParameters, identificationFeaturesGenerator, processingPreferences);
+            waitingHandler.increasePrimaryProgressCounter();
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+
+            saveCheckpoint(ProcessingCheckpoint.Stage.PROTEIN_PTM_SCORING, inputMap, proteinCount, projectDetails, waitingHandler);
+        } else {
+            skipPrimaryProgress(waitingHandler, 1);
         }
 
-        waitingHandler.appendReport("Scoring PTMs in proteins.", true, true);
-        ptmScorer.scoreProteinPtms(identification, metrics, waitingHandler, identificationParameters, identificationFeaturesGenerator);
+        waitingHandler.appendReport("Computing protein features.", true, true);
+        identificationFeaturesGenerator.computeProteinFeatures(processingPreferences, waitingHandler, exceptionHandler);
         waitingHandler.increasePrimaryProgressCounter();
         if (waitingHandler.isRunCanceled()) {
             return;
@@ -590,6 +776,7 @@ public class PeptideShaker {
      * @param identification the identification object containing the
      * identification matches
      * @param waitingHandler the waiting handler
+     * @param exceptionHandler handler for exceptions
      * @param processingPreferences the processing preferences
      * @param shotgunProtocol information on the protocol
      * @param identificationParameters the identification parameters
@@ -597,22 +784,22 @@ public class PeptideShaker {
      * @throws Exception exception thrown whenever it is attempted to attach
      * more than one identification per search engine per spectrum
      */
-    public void spectrumMapChanged(Identification identification, WaitingHandler waitingHandler, ProcessingPreferences processingPreferences,
+    public void spectrumMapChanged(Identification identification, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, ProcessingPreferences processingPreferences,
             ShotgunProtocol shotgunProtocol, IdentificationParameters identificationParameters) throws Exception {
         PeptideSpecificMap peptideMap = new PeptideSpecificMap();
         ProteinMap proteinMap = new ProteinMap();
         matchesValidator.setPeptideMap(peptideMap);
         matchesValidator.setProteinMap(proteinMap);
         attachSpectrumProbabilitiesAndBuildPeptidesAndProteins(identificationParameters.getSequenceMatchingPreferences(), waitingHandler);
-        matchesValidator.fillPeptideMaps(identification, metrics, waitingHandler, identificationParameters);
+        matchesValidator.fillPeptideMaps(identification, metrics, waitingHandler, exceptionHandler, identificationParameters, processingPreferences);
         peptideMap.clean(identificationParameters.getIdValidationPreferences().getDefaultPeptideFDR() / 100);
         peptideMap.estimateProbabilities(waitingHandler);
-        matchesValidator.attachPeptideProbabilities(identification, waitingHandler);
-        matchesValidator.fillProteinMap(identification, waitingHandler);
+        matchesValidator.attachPeptideProbabilities(identification, processingPreferences, waitingHandler, exceptionHandler);
+        matchesValidator.fillProteinMap(identification, processingPreferences, waitingHandler, exceptionHandler);
         proteinMap.estimateProbabilities(waitingHandler);
-        matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, identificationParameters.getFractionSettings());
-        ProteinInference proteinInference = new ProteinInference();
-        proteinInference.retainBestScoringGroups(identification, metrics, proteinMap, identificationParameters, identificationFeaturesGenerator, waitingHandler);
+        matchesValidator.attachProteinProbabilities(identification, metrics, processingPreferences, waitingHandler, exceptionHandler, identificationParameters.getFractionSettings());
+        ProteinInference proteinInference = new ProteinInference(accessionDictionary);
+        proteinInference.retainBestScoringGroups(identification, metrics, proteinMap, identificationParameters, identificationFeaturesGenerator, processingPreferences, waitingHandler, exceptionHandler);
     }
 
     /**
@@ -621,27 +808,31 @@ public class PeptideShaker {
      * @param identification the identification object containing the
      * identification matches
      * @param waitingHandler the waiting handler
+     * @param exceptionHandler handler for exceptions
+     * @param processingPreferences the processing preferences
      * @param identificationParameters the identification parameters
      *
      * @throws Exception exception thrown whenever it is attempted to attach
      * more than one identification per search engine per spectrum
      */
-    public void peptideMapChanged(Identification identification, WaitingHandler waitingHandler,
-            IdentificationParameters identificationParameters) throws Exception {
+    public void peptideMapChanged(Identification identification, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler,
+            ProcessingPreferences processingPreferences, IdentificationParameters identificationParameters) throws Exception {
         ProteinMap proteinMap = new ProteinMap();
         matchesValidator.setProteinMap(proteinMap);
-        matchesValidator.attachPeptideProbabilities(identification, waitingHandler);
-        matchesValidator.fillProteinMap(identification, waitingHandler);
+        matchesValidator.attachPeptideProbabilities(identification, processingPreferences, waitingHandler, exceptionHandler);
+        matchesValidator.fillProteinMap(identification, processingPreferences, waitingHandler, exceptionHandler);
         proteinMap.estimateProbabilities(waitingHandler);
-        matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, identificationParameters.getFractionSettings());
-        ProteinInference proteinInference = new ProteinInference();
-        proteinInference.retainBestScoringGroups(identification, metrics, proteinMap, identificationParameters, identificationFeaturesGenerator, waitingHandler);
+        matchesValidator.attachProteinProbabilities(identification, metrics, processingPreferences, waitingHandler, exceptionHandler, identificationParameters.getFractionSettings());
+        ProteinInference proteinInference = new ProteinInference(accessionDictionary);
+        proteinInference.retainBestScoringGroups(identification, metrics, proteinMap, identificationParameters, identificationFeaturesGenerator, processingPreferences, waitingHandler, exceptionHandler);
     }
 
     /**
      * Processes the identifications if a change occurred in the protein map.
      *
      * @param waitingHandler the waiting handler
+     * @param exceptionHandler handler for exceptions
+     * @param processingPreferences the processing preferences
      * @param fractionSettings the fraction settings
      *
      * @throws SQLException thrown if an SQLException occurs
@@ -649,9 +840,57 @@ public class PeptideShaker {
      * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
      * @throws InterruptedException thrown if an InterruptedException occurs
      */
-    public void proteinMapChanged(WaitingHandler waitingHandler, FractionSettings fractionSettings) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+    public void proteinMapChanged(WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, ProcessingPreferences processingPreferences, FractionSettings fractionSettings) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
         Identification identification = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber).getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
-        matchesValidator.attachProteinProbabilities(identification, metrics, waitingHandler, fractionSettings);
+        matchesValidator.attachProteinProbabilities(identification, metrics, processingPreferences, waitingHandler, exceptionHandler, fractionSettings);
+    }
+
+    /**
+     * Sets the order in which the PSMs are iterated by the processing steps.
+     * The spectrum keys are sorted in the order of the spectra in the spectrum
+     * files so that every step reads the spectra and the matches in the same
+     * order.
+     * The keys are not stored when more than 80% of the memory is used, or
+     * when 90% is reached while sorting them.
+     *
+     * @param identification the identification containing the PSMs
+     */
+    private void setOrderedSpectrumKeys(Identification identification) {
+
+        // the keys are only kept if there is memory to spare, the matches are otherwise iterated in the database order
+        if (MemoryConsumptionStatus.memoryUsed() >= 0.8) {
+            return;
+        }
+
+        HashMap<String, ArrayList<String>> orderedSpectrumKeys = new HashMap<String, ArrayList<String>>(identification.getSpectrumFiles().size());
+
+        for (String spectrumFileName : identification.getSpectrumFiles()) {
+
+            HashSet<String> identifiedKeys = identification.getSpectrumIdentification(spectrumFileName);
+            ArrayList<String> spectrumTitles = SpectrumFactory.getInstance().getSpectrumTitles(spectrumFileName);
+            ArrayList<String> spectrumKeys = new ArrayList<String>(identifiedKeys.size());
+
+            if (spectrumTitles != null) {
+                for (String spectrumTitle : spectrumTitles) {
+                    String spectrumKey = Spectrum.getSpectrumKey(spectrumFileName, spectrumTitle);
+                    if (identifiedKeys.contains(spectrumKey)) {
+                        spectrumKeys.add(spectrumKey);
+                    }
+                }
+            }
+            if (spectrumKeys.size() < identifiedKeys.size()) {
+                // spectra not found in the spectrum file, iterate them in the database order
+                spectrumKeys = new ArrayList<String>(identifiedKeys);
+            }
+
+            orderedSpectrumKeys.put(spectrumFileName, spectrumKeys);
+
+            if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
+                return;
+            }
+        }
+
+        metrics.setOrderedSpectrumKeys(orderedSpectrumKeys);
     }
 
     /**
@@ -671,9 +910,14 @@ public class PeptideShaker {
             waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
         }
 
+        HashMap<String, ArrayList<String>> spectrumKeysMap = metrics.getOrderedSpectrumKeys();
         for (String spectrumFileName : identification.getSpectrumFiles()) {
 
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, null, true, waitingHandler);
+            ArrayList<String> spectrumKeys = null;
+            if (spectrumKeysMap != null) {
+                spectrumKeys = spectrumKeysMap.get(spectrumFileName);
+            }
+            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, spectrumKeys, null, true, waitingHandler);
             SpectrumMatch spectrumMatch;
 
             while ((spectrumMatch = psmIterator.next()) != null) {
@@ -818,9 +1062,14 @@ public class PeptideShaker {
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
         parameters.add(psParameter);
 
+        HashMap<String, ArrayList<String>> spectrumKeysMap = metrics.getOrderedSpectrumKeys();
         for (String spectrumFileName : identification.getSpectrumFiles()) {
 
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, parameters, false, waitingHandler);
+            ArrayList<String> spectrumKeys = null;
+            if (spectrumKeysMap != null) {
+                spectrumKeys = spectrumKeysMap.get(spectrumFileName);
+            }
+            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, spectrumKeys, parameters, false, waitingHandler);
             SpectrumMatch spectrumMatch;
 
             while ((spectrumMatch = psmIterator.next()) != null) {
@@ -849,6 +1098,26 @@ public class PeptideShaker {
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
     }
 
+    /**
+     * Returns the experiment processed. The experiment is replaced by the one
+     * saved in the checkpoint when the processing is resumed.
+     *
+     * @return the experiment processed
+     */
+    public MsExperiment getExperiment() {
+        return experiment;
+    }
+
+    /**
+     * Returns the sample processed. The sample is replaced by the one saved in
+     * the checkpoint when the processing is resumed.
+     *
+     * @return the sample processed
+     */
+    public Sample getSample() {
+        return sample;
+    }
+
     /**
      * Returns the metrics picked-up while loading the files.
      *
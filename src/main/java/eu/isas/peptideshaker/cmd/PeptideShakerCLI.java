@@ -34,6 +34,7 @@ import eu.isas.peptideshaker.export.ProjectExport;
 import eu.isas.peptideshaker.utils.CpsParent;
 import eu.isas.peptideshaker.preferences.ProjectDetails;
 import eu.isas.peptideshaker.preferences.SpectrumCountingPreferences;
+import eu.isas.peptideshaker.utils.ProcessingCheckpoint;
 import eu.isas.peptideshaker.utils.Properties;
 import eu.isas.peptideshaker.utils.PsZipUtils;
 import eu.isas.peptideshaker.utils.Tips;
@@ -154,6 +155,25 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
 
             // Load user preferences
             utilitiesUserPreferences = UtilitiesUserPreferences.loadUserPreferences();
+            loadUserPreferences();
+
+            // Set the memory allocated to the protein features cache
+            Integer featuresCacheMemory = cliInputBean.getFeaturesCacheMemory();
+            if (featuresCacheMemory != null) {
+                userPreferences.setFeaturesCacheMemory(featuresCacheMemory);
+            }
+
+            // Set the size of the peptide mapping batches
+            Integer mappingBatchSize = cliInputBean.getMappingBatchSize();
+            if (mappingBatchSize != null) {
+                userPreferences.setMappingBatchSize(mappingBatchSize);
+            }
+
+            // Set whether the peptide to protein mappings are cached
+            Boolean mappingCache = cliInputBean.getMappingCache();
+            if (mappingCache != null) {
+                userPreferences.setPeptideMappingCache(mappingCache);
+            }
 
             // Instantiate factories
             PeptideShaker.instantiateFacories(utilitiesUserPreferences);
@@ -188,7 +208,7 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
             // see if the project was created or canceled
             if (waitingHandler.isRunCanceled()) {
                 try {
-                    closePeptideShaker(identification);
+                    closePeptideShaker(identification, true);
                 } catch (Exception e) {
                     waitingHandler.appendReport("An error occurred while closing PeptideShaker. " + getLogFileMessage(), true, true);
                     e.printStackTrace();
@@ -200,10 +220,12 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
             }
 
             // save project
+            boolean projectSaved = false;
             try {
                 cpsFile = cliInputBean.getOutput();
                 waitingHandler.appendReport("Saving results.", true, true);
                 saveProject(waitingHandler, true);
+                projectSaved = true;
                 waitingHandler.appendReport("Results saved to " + cpsFile.getAbsolutePath() + ".", true, true);
                 waitingHandler.appendReportEndLine();
             } catch (Exception e) {
@@ -400,7 +422,8 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
             waitingHandler.appendReportEndLine();
 
             try {
-                closePeptideShaker(identification);
+                // the processing checkpoint is only deleted once the project is saved
+                closePeptideShaker(identification, !projectSaved);
             } catch (Exception e) {
                 waitingHandler.appendReport("An error occurred while closing PeptideShaker. " + getLogFileMessage(), true, true);
                 e.printStackTrace();
@@ -703,7 +726,7 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
         }
 
         // set the processing settings
-        ProcessingPreferences processingPreferences = new ProcessingPreferences();
+        processingPreferences = new ProcessingPreferences();
         Integer nThreads = cliInputBean.getnThreads();
         if (nThreads != null) {
             processingPreferences.setnThreads(nThreads);
@@ -721,12 +744,12 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
         }
 
         // create a shaker which will perform the analysis
-        PeptideShaker peptideShaker = new PeptideShaker(experiment, sample, replicateNumber);
+        PeptideShaker peptideShaker = new PeptideShaker(experiment, sample, replicateNumber, accessionDictionary);
 
         // import the files
         peptideShaker.importFiles(waitingHandler, identificationFiles, spectrumFiles,
                 identificationParameters, projectDetails, processingPreferences,
-                spectrumCountingPreferences, false);
+                spectrumCountingPreferences, userPreferences, false);
 
         // show the warnings
         Iterator<String> iterator = peptideShaker.getWarnings().keySet().iterator();
@@ -739,6 +762,10 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
 
         if (!waitingHandler.isRunCanceled()) {
 
+            // the experiment is restored from the checkpoint when resuming the processing
+            experiment = peptideShaker.getExperiment();
+            sample = peptideShaker.getSample();
+
             // identification as created by PeptideShaker
             ProteomicAnalysis tempProteomicAnalysis = experiment.getAnalysisSet(sample).getProteomicAnalysis(replicateNumber);
             identification = tempProteomicAnalysis.getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
@@ -781,6 +808,21 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
      * @throws SQLException thrown if SQLException occurs
      */
     public static void closePeptideShaker(Identification identification) throws IOException, SQLException {
+        closePeptideShaker(identification, false);
+    }
+
+    /**
+     * Close the PeptideShaker instance. Closes file connections and deletes
+     * temporary files.
+     *
+     * @param identification the identification to close
+     * @param keepCheckpoint if true the processing checkpoint is kept in the
+     * matches folder so that the processing can be resumed
+     *
+     * @throws IOException thrown of IOException occurs
+     * @throws SQLException thrown if SQLException occurs
+     */
+    public static void closePeptideShaker(Identification identification, boolean keepCheckpoint) throws IOException, SQLException {
 
         try {
             if (identification != null) {
@@ -802,6 +844,9 @@ public class PeptideShakerCLI extends CpsParent implements Callable {
 
             if (tempFiles != null) {
                 for (File currentFile : tempFiles) {
+                    if (keepCheckpoint && ProcessingCheckpoint.isCheckpointFile(currentFile)) {
+                        continue;
+                    }
                     boolean deleted = Util.deleteDir(currentFile);
                     if (!deleted) {
                         System.out.println(currentFile.getAbsolutePath() + " could not be deleted!"); // @TODO: better handling of this error?
@@ -81,6 +81,20 @@ public class PeptideShakerCLIInputBean {
      * The number of threads to use.
      */
     private Integer nThreads = null;
+    /**
+     * The memory in MB allocated to the cache of the protein features.
+     */
+    private Integer featuresCacheMemory = null;
+    /**
+     * The maximal number of peptides per batch when mapping peptides to
+     * proteins.
+     */
+    private Integer mappingBatchSize = null;
+    /**
+     * Boolean indicating whether the peptide to protein mappings should be
+     * cached on disk, null if not set.
+     */
+    private Boolean mappingCache = null;
 
     /**
      * Construct a PeptideShakerCLIInputBean from an Apache CLI instance.
@@ -126,6 +140,21 @@ public class PeptideShakerCLIInputBean {
             nThreads = new Integer(aLine.getOptionValue(PeptideShakerCLIParams.THREADS.id));
         }
 
+        // features cache memory
+        if (aLine.hasOption(PeptideShakerCLIParams.FEATURES_CACHE.id)) {
+            featuresCacheMemory = new Integer(aLine.getOptionValue(PeptideShakerCLIParams.FEATURES_CACHE.id));
+        }
+
+        // peptide mapping batch size
+        if (aLine.hasOption(PeptideShakerCLIParams.MAPPING_BATCH_SIZE.id)) {
+            mappingBatchSize = new Integer(aLine.getOptionValue(PeptideShakerCLIParams.MAPPING_BATCH_SIZE.id));
+        }
+
+        // peptide mapping cache
+        if (aLine.hasOption(PeptideShakerCLIParams.MAPPING_CACHE.id)) {
+            mappingCache = aLine.getOptionValue(PeptideShakerCLIParams.MAPPING_CACHE.id).trim().equals("1");
+        }
+
         followUpCLIInputBean = new FollowUpCLIInputBean(aLine);
         reportCLIInputBean = new ReportCLIInputBean(aLine);
         mzidCLIInputBean = new MzidCLIInputBean(aLine);
@@ -385,6 +414,38 @@ public class PeptideShakerCLIInputBean {
         return nThreads;
     }
 
+    /**
+     * Returns the memory in MB allocated to the cache of the protein features,
+     * null if not set.
+     *
+     * @return the memory in MB allocated to the cache of the protein features
+     */
+    public Integer getFeaturesCacheMemory() {
+        return featuresCacheMemory;
+    }
+
+    /**
+     * Returns the maximal number of peptides per batch when mapping peptides
+     * to proteins, null if not set.
+     *
+     * @return the maximal number of peptides per batch when mapping peptides
+     * to proteins
+     */
+    public Integer getMappingBatchSize() {
+        return mappingBatchSize;
+    }
+
+    /**
+     * Returns a boolean indicating whether the peptide to protein mappings
+     * should be cached on disk, null if not set.
+     *
+     * @return a boolean indicating whether the peptide to protein mappings
+     * should be cached on disk
+     */
+    public Boolean getMappingCache() {
+        return mappingCache;
+    }
+
     /**
      * Verifies the command line start parameters.
      *
@@ -2,6 +2,7 @@ package eu.isas.peptideshaker.cmd;
 
 import com.compomics.cli.identification_parameters.IdentificationParametersCLIParams;
 import static eu.isas.peptideshaker.cmd.PathSettingsCLIParams.LOG;
+import eu.isas.peptideshaker.protein_inference.PeptideMapper;
 import org.apache.commons.cli.Options;
 
 /**
@@ -24,7 +25,10 @@ public enum PeptideShakerCLIParams {
     PEPTIDESHAKER_OUTPUT("out", "PeptideShaker output file. Note: if file exists it will be overwritten.", true),
     GUI("gui", "Use a dialog to display the progress (1: true, 0: false, default is '0').", false),
     ZIP("zip", "Exports the entire project as a zip file in the file specified.", false),
-    THREADS("threads", "The number of threads to use. Defaults to the number of available CPUs.", false);
+    THREADS("threads", "The number of threads to use. Defaults to the number of available CPUs.", false),
+    FEATURES_CACHE("features_cache", "The memory in MB allocated to the cache of the protein features. Defaults to the value in the user preferences.", false),
+    MAPPING_BATCH_SIZE("mapping_batch_size", "The maximal number of peptides per batch when mapping peptides to proteins with multiple threads, 0 to map per group of peptides. Defaults to the value in the user preferences ('" + PeptideMapper.DEFAULT_BATCH_SIZE + "' by default).", false),
+    MAPPING_CACHE("mapping_cache", "Cache the peptide to protein mappings on disk (1: true, 0: false). Defaults to the value in the user preferences.", false);
 
     /**
      * Short Id for the CLI parameter.
@@ -105,6 +109,9 @@ public enum PeptideShakerCLIParams {
         output += "\n\nOptional Processing Parameters:\n\n";
         output += "-" + String.format(formatter, GUI.id) + " " + GUI.description + "\n";
         output += "-" + String.format(formatter, THREADS.id) + " " + THREADS.description + "\n";
+        output += "-" + String.format(formatter, FEATURES_CACHE.id) + " " + FEATURES_CACHE.description + "\n";
+        output += "-" + String.format(formatter, MAPPING_BATCH_SIZE.id) + " " + MAPPING_BATCH_SIZE.description + "\n";
+        output += "-" + String.format(formatter, MAPPING_CACHE.id) + " " + MAPPING_CACHE.description + "\n";
 
         output += "\n\nOptional Export Parameters:\n\n";
         output += "-" + String.format(formatter, ZIP.id) + " " + ZIP.description + "\n";
@@ -27,6 +27,7 @@ import com.compomics.util.gui.JOptionEditorPane;
 import eu.isas.peptideshaker.PeptideShaker;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.gui.waiting.waitinghandlers.WaitingDialog;
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
 import com.compomics.util.memory.MemoryConsumptionStatus;
 import com.compomics.util.preferences.GenePreferences;
 import com.compomics.util.preferences.IdentificationParameters;
@@ -36,10 +37,13 @@ import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.preferences.UtilitiesUserPreferences;
 import eu.isas.peptideshaker.preferences.ProjectDetails;
 import eu.isas.peptideshaker.preferences.SpectrumCountingPreferences;
+import eu.isas.peptideshaker.preferences.UserPreferences;
 import eu.isas.peptideshaker.protein_inference.PeptideMapper;
+import eu.isas.peptideshaker.protein_inference.PeptideMappingCache;
 import eu.isas.peptideshaker.protein_inference.TagMapper;
 import eu.isas.peptideshaker.scoring.maps.InputMap;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.ProcessingCheckpoint;
 import org.xml.sax.SAXException;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
@@ -49,6 +53,11 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This class is responsible for the import of identifications.
@@ -98,10 +107,30 @@ public class FileImporter {
      * resolution in X!Tandem result files.
      */
     public static final double PTM_MASS_TOLERANCE = 0.01;
+    /**
+     * If an identification file contains more spectrum matches than this
+     * number, the matches will be mapped and imported in batches of this size
+     * in order to keep the memory footprint bounded. Note that the
+     * identification file readers only return all matches of a file at once,
+     * the matches are therefore removed from the parsed list batch by batch
+     * so that the memory of the imported matches is released as the import
+     * progresses.
+     */
+    public static final int PSM_IMPORT_BATCH_SIZE = 100000;
+    /**
+     * Estimate of the ratio between the memory used by the parsed matches of
+     * an identification file and the size of the file. Used to limit the
+     * number of files parsed concurrently.
+     */
+    public static final long PARSING_MEMORY_FACTOR = 4;
     /**
      * The identification parameters.
      */
     private IdentificationParameters identificationParameters;
+    /**
+     * The user preferences.
+     */
+    private UserPreferences userPreferences;
 
     /**
      * Constructor for the importer.
@@ -112,14 +141,16 @@ public class FileImporter {
      * @param proteomicAnalysis The current proteomic analysis
      * @param identificationParameters the identification parameters
      * @param metrics metrics of the dataset to be saved for the GUI
+     * @param userPreferences the user preferences
      */
     public FileImporter(PeptideShaker identificationShaker, WaitingHandler waitingHandler, ProteomicAnalysis proteomicAnalysis,
-            IdentificationParameters identificationParameters, Metrics metrics) {
+            IdentificationParameters identificationParameters, Metrics metrics, UserPreferences userPreferences) {
         this.peptideShaker = identificationShaker;
         this.waitingHandler = waitingHandler;
         this.proteomicAnalysis = proteomicAnalysis;
         this.identificationParameters = identificationParameters;
         this.metrics = metrics;
+        this.userPreferences = userPreferences;
         if (waitingHandler instanceof WaitingDialog) {
             exceptionHandler = new WaitingDialogExceptionHandler((WaitingDialog) waitingHandler, "https://github.com/compomics/peptide-shaker/issues");
         } else {
@@ -136,14 +167,16 @@ public class FileImporter {
      * @param processingPreferences the processing preferences
      * @param spectrumCountingPreferences the spectrum counting preferences
      * @param projectDetails the project details
+     * @param checkpoint the checkpoint to resume the processing from, null to
+     * import the files from scratch
      * @param backgroundThread boolean indicating whether the import should be
      * done in a background thread (GUI mode) or in the current thread (command
      * line mode).
      */
     public void importFiles(ArrayList<File> idFiles, ArrayList<File> spectrumFiles, ProcessingPreferences processingPreferences,
-            SpectrumCountingPreferences spectrumCountingPreferences, ProjectDetails projectDetails, boolean backgroundThread) {
+            SpectrumCountingPreferences spectrumCountingPreferences, ProjectDetails projectDetails, ProcessingCheckpoint checkpoint, boolean backgroundThread) {
 
-        IdProcessorFromFile idProcessor = new IdProcessorFromFile(idFiles, spectrumFiles, identificationParameters, processingPreferences, spectrumCountingPreferences, projectDetails);
+        IdProcessorFromFile idProcessor = new IdProcessorFromFile(idFiles, spectrumFiles, identificationParameters, processingPreferences, spectrumCountingPreferences, projectDetails, checkpoint);
 
         if (backgroundThread) {
             idProcessor.execute();
@@ -340,6 +373,10 @@ public class FileImporter {
          * A peptide to protein mapper.
          */
         private PeptideMapper peptideMapper;
+        /**
+         * The cache of the peptide to protein mapping, null if not used.
+         */
+        private PeptideMappingCache peptideMappingCache = null;
         /**
          * A tag to protein mapper.
          */
@@ -365,6 +402,11 @@ public class FileImporter {
          * The identification parameters.
          */
         private IdentificationParameters identificationParameters;
+        /**
+         * The checkpoint to resume the processing from, null if the files are
+         * imported from scratch.
+         */
+        private ProcessingCheckpoint checkpoint;
 
         /**
          * Constructor for a worker importing matches from a list of files.
@@ -381,10 +423,12 @@ public class FileImporter {
          * @param spectrumCountingPreferences the spectrum counting preferences
          * @param sequenceMatchingPreferences the sequence matching preferences
          * @param projectDetails the project details
+         * @param checkpoint the checkpoint to resume the processing from, null
+         * to import the files from scratch
          */
         public IdProcessorFromFile(ArrayList<File> idFiles, ArrayList<File> spectrumFiles,
                 IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences,
-                SpectrumCountingPreferences spectrumCountingPreferences, ProjectDetails projectDetails) {
+                SpectrumCountingPreferences spectrumCountingPreferences, ProjectDetails projectDetails, ProcessingCheckpoint checkpoint) {
 
             this.idFiles = new ArrayList<File>();
             HashMap<String, File> filesMap = new HashMap<String, File>();
@@ -414,6 +458,7 @@ public class FileImporter {
             this.processingPreferences = processingPreferences;
             this.spectrumCountingPreferences = spectrumCountingPreferences;
             this.projectDetails = projectDetails;
+            this.checkpoint = checkpoint;
 
             for (File file : spectrumFiles) {
                 this.spectrumFiles.put(file.getName(), file);
@@ -421,7 +466,7 @@ public class FileImporter {
 
             UtilitiesUserPreferences userPreferences = UtilitiesUserPreferences.loadUserPreferences();
             if (userPreferences.getMemoryPreference() > 2000) {
-                peptideMapper = new PeptideMapper(identificationParameters, waitingHandler, exceptionHandler);
+                peptideMapper = new PeptideMapper(identificationParameters, waitingHandler, exceptionHandler, userPreferences.getMappingBatchSize());
             }
         }
 
@@ -464,27 +509,52 @@ public class FileImporter {
 
                 identification = proteomicAnalysis.getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
 
-                connectToIdDb(identification);
+                if (checkpoint != null) {
+                    restoreIdDb(identification);
+                } else {
+                    if (!hasGUI) {
+                        // the checkpoint does not match the input, checkpoints are only used in command line mode
+                        ProcessingCheckpoint.delete(PeptideShaker.getMatchesFolder());
+                    }
+                    connectToIdDb(identification);
+                }
 
                 waitingHandler.increasePrimaryProgressCounter();
 
-                if (!waitingHandler.isRunCanceled()) {
+                if (checkpoint != null) {
 
-                    waitingHandler.appendReport("Reading identification files.", true, true);
+                    restoreImport();
 
-                    for (File idFile : idFiles) {
-                        importPsms(idFile);
+                    if (!waitingHandler.isRunCanceled()) {
+                        peptideShaker.processIdentifications(inputMap, proteinCount, waitingHandler, exceptionHandler, identificationParameters, processingPreferences, spectrumCountingPreferences, projectDetails, userPreferences);
+                    }
 
-                        if (waitingHandler.isRunCanceled()) {
-                            try {
-                                identification.close();
-                            } catch (Exception e) {
-                                e.printStackTrace(); // Let derby crash
+                } else if (!waitingHandler.isRunCanceled()) {
+
+                    loadPeptideMappingCache();
+
+                    waitingHandler.appendReport("Reading identification files.", true, true);
+
+                    if (processingPreferences.getnThreads() > 1 && idFiles.size() > 1) {
+                        importPsmsConcurrently(idFiles);
+                    } else {
+                        for (File idFile : idFiles) {
+                            importPsms(idFile);
+                            if (waitingHandler.isRunCanceled()) {
+                                break;
                             }
-                            return 1;
                         }
                     }
 
+                    if (waitingHandler.isRunCanceled()) {
+                        try {
+                            identification.close();
+                        } catch (Exception e) {
+                            e.printStackTrace(); // Let derby crash
+                        }
+                        return 1;
+                    }
+
                     while (!missingMgfFiles.isEmpty()) {
                         if (hasGUI) {
                             new MgfFilesNotFoundDialog((WaitingDialog) waitingHandler, missingMgfFiles);
@@ -544,7 +614,9 @@ public class FileImporter {
                             + nPSMs + " first hits imported (" + nSecondary + " secondary) from " + nSpectra + " spectra.", true, true);
                     waitingHandler.appendReport("[" + nRetained + " first hits passed the initial filtering]", true, true);
                     waitingHandler.increaseSecondaryProgressCounter(spectrumFiles.size() - mgfUsed.size());
-                    peptideShaker.processIdentifications(inputMap, proteinCount, waitingHandler, exceptionHandler, identificationParameters, processingPreferences, spectrumCountingPreferences, projectDetails);
+                    savePeptideMappingCache();
+                    peptideShaker.saveCheckpoint(ProcessingCheckpoint.Stage.IMPORT, inputMap, proteinCount, projectDetails, waitingHandler);
+                    peptideShaker.processIdentifications(inputMap, proteinCount, waitingHandler, exceptionHandler, identificationParameters, processingPreferences, spectrumCountingPreferences, projectDetails, userPreferences);
                 }
             } catch (OutOfMemoryError error) {
 
@@ -633,6 +705,112 @@ public class FileImporter {
             identification.establishConnection(dbFolder, true, peptideShaker.getCache());
         }
 
+        /**
+         * Loads the cache of the peptide to protein mapping corresponding to
+         * the FASTA file and sequence matching preferences if enabled in the
+         * user preferences. The peptides are mapped without cache if it cannot
+         * be loaded.
+         */
+        private void loadPeptideMappingCache() {
+            if (!userPreferences.usePeptideMappingCache()) {
+                peptideMappingCache = null;
+            } else {
+                try {
+                    File cacheFolder = new File(PeptideShaker.getUserPreferencesFolder(), PeptideMappingCache.CACHE_FOLDER);
+                    peptideMappingCache = PeptideMappingCache.load(cacheFolder, identificationParameters.getProteinInferencePreferences().getProteinSequenceDatabase(),
+                            identificationParameters.getSequenceMatchingPreferences(), waitingHandler);
+                    if (peptideMappingCache.getnLoaded() > 0) {
+                        waitingHandler.appendReport(peptideMappingCache.getnLoaded() + " peptide to protein mappings loaded from cache.", true, true);
+                    }
+                } catch (Exception e) {
+                    waitingHandler.appendReport("The peptide to protein mapping cache could not be loaded (" + e.getLocalizedMessage()
+                            + "). Peptides will be mapped without cache.", true, true);
+                    peptideMappingCache = null;
+                }
+            }
+            if (peptideMapper != null) {
+                peptideMapper.setPeptideMappingCache(peptideMappingCache);
+            }
+        }
+
+        /**
+         * Saves the new peptide to protein mappings in the cache.
+         */
+        private void savePeptideMappingCache() {
+            if (peptideMappingCache != null) {
+                if (peptideMappingCache.getnHits() > 0) {
+                    waitingHandler.appendReport(peptideMappingCache.getnHits() + " peptides mapped using the cache.", true, true);
+                }
+                try {
+                    peptideMappingCache.save();
+                } catch (Exception e) {
+                    waitingHandler.appendReport("The peptide to protein mapping cache could not be saved (" + e.getLocalizedMessage() + ").", true, true);
+                }
+            }
+        }
+
+        /**
+         * Restores the identification database saved in the checkpoint and
+         * connects to it.
+         *
+         * @param identification the identifications
+         *
+         * @throws IOException thrown of IOException occurs exception thrown
+         * whenever an error occurred while reading or writing a file
+         * @throws SQLException thrown of SQLException occurs exception thrown
+         * whenever an error occurred while interacting with the database
+         * @throws java.lang.ClassNotFoundException exception thrown whenever an
+         * error occurred while deserializing an object
+         * @throws java.lang.InterruptedException exception thrown whenever a
+         * threading error occurred while establishing the connection
+         */
+        private void restoreIdDb(Identification identification) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+            File dbFolder = PeptideShaker.getMatchesFolder();
+            checkpoint.restoreDatabase(dbFolder);
+            identification.restoreConnection(dbFolder.getAbsolutePath(), false, peptideShaker.getCache());
+        }
+
+        /**
+         * Restores the result of the import saved in the checkpoint and loads
+         * the spectrum files.
+         */
+        private void restoreImport() {
+
+            inputMap = checkpoint.getPsMaps().getInputMap();
+            proteinCount = checkpoint.getProteinCount();
+
+            // the identification files are not read again
+            for (int i = 0; i < idFiles.size(); i++) {
+                waitingHandler.increasePrimaryProgressCounter();
+            }
+
+            ProjectDetails importedProjectDetails = checkpoint.getProjectDetails();
+            for (File idFile : importedProjectDetails.getIdentificationFiles()) {
+                String idFileName = Util.getFileName(idFile);
+                projectDetails.addIdentificationFiles(idFile);
+                projectDetails.setIdentificationAlgorithmsForFile(idFileName, importedProjectDetails.getIdentificationAlgorithmsForFile(idFileName));
+            }
+
+            for (String spectrumFileName : identification.getSpectrumFiles()) {
+                File spectrumFile = spectrumFiles.get(spectrumFileName);
+                if (spectrumFile == null) {
+                    spectrumFile = importedProjectDetails.getSpectrumFile(spectrumFileName);
+                }
+                if (spectrumFile == null || !spectrumFile.exists()) {
+                    waitingHandler.appendReport("Spectrum file " + spectrumFileName + " not found.", true, true);
+                    waitingHandler.setRunCanceled();
+                    return;
+                }
+                spectrumFiles.put(spectrumFileName, spectrumFile);
+                importSpectra(spectrumFileName);
+                if (waitingHandler.isRunCanceled()) {
+                    return;
+                }
+                mgfUsed.add(spectrumFileName);
+                projectDetails.addSpectrumFile(spectrumFile);
+            }
+        }
+
         /**
          * Imports the PSMs from an identification file.
          *
@@ -650,18 +828,154 @@ public class FileImporter {
          */
         public void importPsms(File idFile) throws FileNotFoundException, IOException, SAXException, MzMLUnmarshallerException, IllegalArgumentException, Exception, OutOfMemoryError {
 
-            identification = proteomicAnalysis.getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
             waitingHandler.setSecondaryProgressCounterIndeterminate(true);
             waitingHandler.appendReport("Parsing " + idFile.getName() + ".", true, true);
+            importPsms(parseIdFile(idFile, waitingHandler));
+        }
+
+        /**
+         * Imports the PSMs from the given identification files. The files are
+         * parsed concurrently by a limited number of threads, the parsed
+         * matches are then processed one file after the other in the order of
+         * the given list.
+         *
+         * @param idFiles the identification files
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * importing the files
+         * @throws OutOfMemoryError thrown if the parser if the id files runs
+         * out of memory
+         */
+        private void importPsmsConcurrently(ArrayList<File> idFiles) throws Exception, OutOfMemoryError {
+
+            int nThreads = processingPreferences.getnThreads();
+
+            // limit the number of files parsed or waiting for import to what the memory can hold
+            long largestFile = 1;
+            for (File idFile : idFiles) {
+                largestFile = Math.max(largestFile, idFile.length());
+            }
+            Runtime runtime = Runtime.getRuntime();
+            long availableMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+            long maxFilesInMemory = availableMemory / (PARSING_MEMORY_FACTOR * largestFile);
+            int maxFilesInFlight = (int) Math.max(1, Math.min(Math.min(nThreads, idFiles.size()), maxFilesInMemory));
+
+            ExecutorService pool = Executors.newFixedThreadPool(maxFilesInFlight);
+            ArrayList<Future<ParsedIdFile>> parsedFiles = new ArrayList<Future<ParsedIdFile>>(idFiles.size());
+            ParserWaitingHandler[] parserWaitingHandlers = new ParserWaitingHandler[idFiles.size()];
 
-            IdfileReader fileReader = null;
             try {
-                fileReader = readerFactory.getFileReader(idFile);
+                for (int i = 0; i < idFiles.size(); i++) {
+                    parsedFiles.add(null);
+                    parserWaitingHandlers[i] = new ParserWaitingHandler(waitingHandler);
+                }
+                for (int i = 0; i < maxFilesInFlight; i++) {
+                    parsedFiles.set(i, pool.submit(new IdFileParserCallable(idFiles.get(i), parserWaitingHandlers[i])));
+                }
+                for (int i = 0; i < idFiles.size(); i++) {
+
+                    waitingHandler.appendReport("Parsing " + idFiles.get(i).getName() + ".", true, true);
+
+                    // display the progress of the parser of this file only
+                    parserWaitingHandlers[i].forwardProgress();
+
+                    ParsedIdFile parsedIdFile;
+                    try {
+                        parsedIdFile = parsedFiles.get(i).get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Error) {
+                            throw (Error) cause;
+                        }
+                        throw (Exception) cause;
+                    }
+                    parsedFiles.set(i, null);
+                    parserWaitingHandlers[i] = null;
+
+                    // start parsing the next file before importing this one
+                    int nextFile = i + maxFilesInFlight;
+                    if (nextFile < idFiles.size()) {
+                        parsedFiles.set(nextFile, pool.submit(new IdFileParserCallable(idFiles.get(nextFile), parserWaitingHandlers[nextFile])));
+                    }
+
+                    importPsms(parsedIdFile);
+
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        /**
+         * Parses an identification file. Issues are stored in the returned
+         * object and reported when the file is imported.
+         *
+         * @param idFile the identification file
+         * @param parserWaitingHandler the waiting handler of the parser
+         *
+         * @return the parsed identification file
+         */
+        private ParsedIdFile parseIdFile(File idFile, WaitingHandler parserWaitingHandler) {
+
+            ParsedIdFile parsedIdFile = new ParsedIdFile(idFile);
+
+            try {
+                parsedIdFile.fileReader = readerFactory.getFileReader(idFile);
             } catch (OutOfMemoryError error) {
+                parsedIdFile.outOfMemory = true;
+                return parsedIdFile;
+            }
+
+            if (parsedIdFile.fileReader == null) {
+                return parsedIdFile;
+            }
+
+            try {
+                if (peptideMapper != null && !peptideMapper.isCanceled()) {
+                    parsedIdFile.spectrumMatches = parsedIdFile.fileReader.getAllSpectrumMatches(parserWaitingHandler, identificationParameters.getSearchParameters(), identificationParameters.getSequenceMatchingPreferences(), true);
+                } else {
+                    parsedIdFile.spectrumMatches = parsedIdFile.fileReader.getAllSpectrumMatches(parserWaitingHandler, identificationParameters.getSearchParameters(), null, true);
+                }
+            } catch (Exception e) {
+                parsedIdFile.parsingException = e;
+            }
+
+            return parsedIdFile;
+        }
+
+        /**
+         * Imports the PSMs from a parsed identification file. The spectra of
+         * all matches are verified first so that a file is imported entirely
+         * or not at all, the matches are then taken out of the parsed list,
+         * mapped and imported batch by batch.
+         *
+         * @param parsedIdFile the parsed identification file
+         * @throws FileNotFoundException exception thrown whenever a file was
+         * not found
+         * @throws IOException exception thrown whenever an error occurred while
+         * reading or writing a file
+         * @throws SAXException exception thrown whenever an error occurred
+         * while parsing an XML file
+         * @throws MzMLUnmarshallerException exception thrown whenever an error
+         * occurred while reading an mzML file
+         * @throws OutOfMemoryError thrown if the parser if the id files runs
+         * out of memory
+         */
+        private void importPsms(ParsedIdFile parsedIdFile) throws FileNotFoundException, IOException, SAXException, MzMLUnmarshallerException, IllegalArgumentException, Exception, OutOfMemoryError {
+
+            File idFile = parsedIdFile.idFile;
+            identification = proteomicAnalysis.getIdentification(IdentificationMethod.MS2_IDENTIFICATION);
+
+            if (parsedIdFile.outOfMemory) {
                 waitingHandler.appendReport("Ran out of memory when parsing \'" + Util.getFileName(idFile) + "\'.", true, true);
                 throw new OutOfMemoryError("Ran out of memory when parsing \'" + Util.getFileName(idFile) + "\'.");
             }
 
+            IdfileReader fileReader = parsedIdFile.fileReader;
+
             if (fileReader == null) {
                 waitingHandler.appendReport("Identification result file \'" + Util.getFileName(idFile) + "\' not recognized.", true, true);
                 waitingHandler.setRunCanceled();
@@ -670,14 +984,10 @@ public class FileImporter {
 
             waitingHandler.setSecondaryProgressCounterIndeterminate(false);
 
-            LinkedList<SpectrumMatch> idFileSpectrumMatches = null;
-            try {
-                if (peptideMapper != null && !peptideMapper.isCanceled()) {
-                    idFileSpectrumMatches = fileReader.getAllSpectrumMatches(waitingHandler, identificationParameters.getSearchParameters(), identificationParameters.getSequenceMatchingPreferences(), true);
-                } else {
-                    idFileSpectrumMatches = fileReader.getAllSpectrumMatches(waitingHandler, identificationParameters.getSearchParameters(), null, true);
-                }
-            } catch (Exception e) {
+            LinkedList<SpectrumMatch> idFileSpectrumMatches = parsedIdFile.spectrumMatches;
+            parsedIdFile.spectrumMatches = null;
+            if (parsedIdFile.parsingException != null) {
+                Exception e = parsedIdFile.parsingException;
                 waitingHandler.appendReport("An error occurred while loading spectrum matches from \'"
                         + Util.getFileName(idFile)
                         + "\'. This file will be ignored. Error: " + e.toString()
@@ -733,48 +1043,42 @@ public class FileImporter {
                             tagMapper.mapTags(fileReader, identification, waitingHandler, processingPreferences.getnThreads());
                         }
 
-                        // Batch map the peptides on protein sequences
-                        if (peptideMapper != null && !peptideMapper.isCanceled()) {
-                            try {
-                                // Get map of peptides likely to need protein mapping
-                                waitingHandler.resetSecondaryProgressCounter();
-                                waitingHandler.setMaxSecondaryProgressCounter(numberOfMatches);
-                                waitingHandler.appendReport("Collecting peptides to map.", true, true);
-                                HashMap<String, LinkedList<Peptide>> peptideMap = PeptideMapper.getPeptideMap(fileReader, idFileSpectrumMatches, identification, identificationParameters, waitingHandler);
-                                if (!peptideMapper.isCanceled()) {
-                                    peptideMapper.mapPeptides(peptideMap, processingPreferences.getnThreads(), waitingHandler);
-                                }
-                                if (peptideMapper.isCanceled()) {
-                                    peptideMap.clear();
-                                }
-                            } catch (OutOfMemoryError e) {
-                                // Skip batch mapping and empty caches
-                                SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-                                if (sequenceMatchingPreferences.getPeptideMapperType() == PeptideMapperType.tree) {
-                                    ProteinTreeComponentsFactory.getInstance().getCache().reduceMemoryConsumption(1, null);
-                                    sequenceFactory.getDefaultPeptideMapper().emptyCache();
-                                }
-                                peptideMapper.setCanceled(true);
-                            }
+                        PsmImporter psmImporter = new PsmImporter(peptideShaker.getCache(), identificationParameters, processingPreferences, fileReader, idFile, identification,
+                                inputMap, proteinCount, singleProteinList, peptideMappingCache, exceptionHandler);
+
+                        // map and import the matches batch by batch to keep the memory footprint bounded
+                        boolean batchImport = numberOfMatches > PSM_IMPORT_BATCH_SIZE;
+                        if (batchImport) {
+                            waitingHandler.appendReport("Importing PSMs from " + idFile.getName() + " in batches of " + PSM_IMPORT_BATCH_SIZE + ".", true, true);
+                            waitingHandler.resetSecondaryProgressCounter();
                         }
-                        // empty protein caches
-                        if (MemoryConsumptionStatus.memoryUsed() > 0.8) {
-                            SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-                            if (sequenceMatchingPreferences.getPeptideMapperType() == PeptideMapperType.tree) {
-                                ProteinTreeComponentsFactory.getInstance().getCache().reduceMemoryConsumption(1, null);
-                                sequenceFactory.emptyCache();
+                        while (!idFileSpectrumMatches.isEmpty()) {
+
+                            LinkedList<SpectrumMatch> batch;
+                            if (batchImport) {
+                                batch = new LinkedList<SpectrumMatch>();
+                                while (batch.size() < PSM_IMPORT_BATCH_SIZE && !idFileSpectrumMatches.isEmpty()) {
+                                    batch.add(idFileSpectrumMatches.pollFirst());
+                                }
+                            } else {
+                                batch = idFileSpectrumMatches;
                             }
-                        }
 
-                        waitingHandler.setMaxSecondaryProgressCounter(numberOfMatches);
-                        waitingHandler.appendReport("Importing PSMs from " + idFile.getName(), true, true);
+                            mapPeptides(fileReader, batch, numberOfMatches, !batchImport);
 
-                        PsmImporter psmImporter = new PsmImporter(peptideShaker.getCache(), identificationParameters, processingPreferences, fileReader, idFile, identification,
-                                inputMap, proteinCount, singleProteinList, exceptionHandler);
-                        psmImporter.importPsms(idFileSpectrumMatches, processingPreferences.getnThreads(), waitingHandler);
+                            waitingHandler.setMaxSecondaryProgressCounter(numberOfMatches);
+                            if (!batchImport) {
+                                waitingHandler.appendReport("Importing PSMs from " + idFile.getName(), true, true);
+                            }
 
-                        if (waitingHandler.isRunCanceled()) {
-                            return;
+                            psmImporter.importPsms(batch, processingPreferences.getnThreads(), waitingHandler);
+
+                            if (waitingHandler.isRunCanceled()) {
+                                return;
+                            }
+                        }
+                        if (batchImport && peptideMapper != null) {
+                            peptideMapper.reportThroughput(waitingHandler);
                         }
 
                         nPSMs += psmImporter.getnPSMs();
@@ -934,6 +1238,67 @@ public class FileImporter {
             waitingHandler.increasePrimaryProgressCounter();
         }
 
+        /**
+         * Maps the peptides of the given spectrum matches to the protein
+         * sequences and empties the protein caches if needed.
+         *
+         * @param fileReader the reader of the identification file
+         * @param spectrumMatches the spectrum matches to map
+         * @param numberOfMatches the number of matches of the identification
+         * file
+         * @param displayProgress boolean indicating whether the progress should
+         * be displayed, false when mapping a batch of a larger file
+         *
+         * @throws SQLException exception thrown whenever an error occurred
+         * while interacting with the database
+         * @throws IOException exception thrown whenever an error occurred while
+         * reading or writing a file
+         * @throws ClassNotFoundException exception thrown whenever an error
+         * occurred while deserializing an object
+         * @throws InterruptedException exception thrown whenever a threading
+         * error occurred
+         */
+        private void mapPeptides(IdfileReader fileReader, LinkedList<SpectrumMatch> spectrumMatches, int numberOfMatches, boolean displayProgress)
+                throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+
+            // Batch map the peptides on protein sequences
+            if (peptideMapper != null && !peptideMapper.isCanceled()) {
+                try {
+                    // Get map of peptides likely to need protein mapping
+                    WaitingHandler collectionWaitingHandler = null;
+                    if (displayProgress) {
+                        waitingHandler.resetSecondaryProgressCounter();
+                        waitingHandler.setMaxSecondaryProgressCounter(numberOfMatches);
+                        waitingHandler.appendReport("Collecting peptides to map.", true, true);
+                        collectionWaitingHandler = waitingHandler;
+                    }
+                    HashMap<String, LinkedList<Peptide>> peptideMap = PeptideMapper.getPeptideMap(fileReader, spectrumMatches, identification, identificationParameters, collectionWaitingHandler);
+                    if (!peptideMapper.isCanceled()) {
+                        peptideMapper.mapPeptides(peptideMap, processingPreferences.getnThreads(), waitingHandler, displayProgress);
+                    }
+                    if (peptideMapper.isCanceled()) {
+                        peptideMap.clear();
+                    }
+                } catch (OutOfMemoryError e) {
+                    // Skip batch mapping and empty caches
+                    SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+                    if (sequenceMatchingPreferences.getPeptideMapperType() == PeptideMapperType.tree) {
+                        ProteinTreeComponentsFactory.getInstance().getCache().reduceMemoryConsumption(1, null);
+                        sequenceFactory.getDefaultPeptideMapper().emptyCache();
+                    }
+                    peptideMapper.setCanceled(true);
+                }
+            }
+            // empty protein caches
+            if (MemoryConsumptionStatus.memoryUsed() > 0.8) {
+                SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+                if (sequenceMatchingPreferences.getPeptideMapperType() == PeptideMapperType.tree) {
+                    ProteinTreeComponentsFactory.getInstance().getCache().reduceMemoryConsumption(1, null);
+                    sequenceFactory.emptyCache();
+                }
+            }
+        }
+
         /**
          * Checks whether the spectrum file needed for the given spectrum match
          * is loaded and if the spectrum is present. Try to load it from the
@@ -1042,6 +1407,191 @@ public class FileImporter {
                 e.printStackTrace();
             }
         }
+
+        /**
+         * Callable parsing an identification file.
+         */
+        private class IdFileParserCallable implements Callable<ParsedIdFile> {
+
+            /**
+             * The identification file to parse.
+             */
+            private File idFile;
+            /**
+             * The waiting handler of the parser.
+             */
+            private WaitingHandler parserWaitingHandler;
+
+            /**
+             * Constructor.
+             *
+             * @param idFile the identification file to parse
+             * @param parserWaitingHandler the waiting handler of the parser
+             */
+            public IdFileParserCallable(File idFile, WaitingHandler parserWaitingHandler) {
+                this.idFile = idFile;
+                this.parserWaitingHandler = parserWaitingHandler;
+            }
+
+            @Override
+            public ParsedIdFile call() throws Exception {
+                return parseIdFile(idFile, parserWaitingHandler);
+            }
+        }
+    }
+
+    /**
+     * Waiting handler given to a parser running concurrently with other
+     * parsers. The progress of the parser is kept here and only displayed by
+     * the main waiting handler once the import waits for this file, so that
+     * the parsers do not reset each other's progress. Reports and
+     * cancellation go to the main waiting handler.
+     */
+    private static class ParserWaitingHandler extends WaitingHandlerCLIImpl {
+
+        /**
+         * The main waiting handler.
+         */
+        private final WaitingHandler mainWaitingHandler;
+        /**
+         * Indicates whether the progress is displayed by the main waiting
+         * handler.
+         */
+        private boolean forward = false;
+        /**
+         * Indicates whether the progress is indeterminate.
+         */
+        private boolean indeterminate = true;
+        /**
+         * The maximal progress value.
+         */
+        private int maxProgress = 0;
+        /**
+         * The current progress value.
+         */
+        private int progress = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param mainWaitingHandler the main waiting handler
+         */
+        public ParserWaitingHandler(WaitingHandler mainWaitingHandler) {
+            this.mainWaitingHandler = mainWaitingHandler;
+        }
+
+        /**
+         * Displays the current and future progress of the parser in the main
+         * waiting handler.
+         */
+        public synchronized void forwardProgress() {
+            forward = true;
+            mainWaitingHandler.setSecondaryProgressCounterIndeterminate(indeterminate);
+            if (!indeterminate) {
+                mainWaitingHandler.setMaxSecondaryProgressCounter(maxProgress);
+                mainWaitingHandler.setSecondaryProgressCounter(progress);
+            }
+        }
+
+        @Override
+        public synchronized void setSecondaryProgressCounterIndeterminate(boolean indeterminate) {
+            this.indeterminate = indeterminate;
+            if (forward) {
+                mainWaitingHandler.setSecondaryProgressCounterIndeterminate(indeterminate);
+            }
+        }
+
+        @Override
+        public synchronized void setMaxSecondaryProgressCounter(int maxProgressValue) {
+            maxProgress = maxProgressValue;
+            if (forward) {
+                mainWaitingHandler.setMaxSecondaryProgressCounter(maxProgressValue);
+            }
+        }
+
+        @Override
+        public synchronized void resetSecondaryProgressCounter() {
+            progress = 0;
+            if (forward) {
+                mainWaitingHandler.resetSecondaryProgressCounter();
+            }
+        }
+
+        @Override
+        public synchronized void increaseSecondaryProgressCounter() {
+            progress++;
+            if (forward) {
+                mainWaitingHandler.increaseSecondaryProgressCounter();
+            }
+        }
+
+        @Override
+        public synchronized void increaseSecondaryProgressCounter(int value) {
+            progress += value;
+            if (forward) {
+                mainWaitingHandler.increaseSecondaryProgressCounter(value);
+            }
+        }
+
+        @Override
+        public synchronized void setSecondaryProgressCounter(int value) {
+            progress = value;
+            if (forward) {
+                mainWaitingHandler.setSecondaryProgressCounter(value);
+            }
+        }
+
+        @Override
+        public void appendReport(String report, boolean includeDate, boolean addNewLine) {
+            mainWaitingHandler.appendReport(report, includeDate, addNewLine);
+        }
+
+        @Override
+        public void setRunCanceled() {
+            mainWaitingHandler.setRunCanceled();
+        }
+
+        @Override
+        public boolean isRunCanceled() {
+            return mainWaitingHandler.isRunCanceled();
+        }
+    }
+
+    /**
+     * The content of a parsed identification file waiting for import.
+     */
+    private static class ParsedIdFile {
+
+        /**
+         * The identification file.
+         */
+        private File idFile;
+        /**
+         * The reader used to parse the file, null if the format was not
+         * recognized.
+         */
+        private IdfileReader fileReader = null;
+        /**
+         * The spectrum matches parsed from the file.
+         */
+        private LinkedList<SpectrumMatch> spectrumMatches = null;
+        /**
+         * Exception thrown while loading the spectrum matches, if any.
+         */
+        private Exception parsingException = null;
+        /**
+         * Indicates whether the parser ran out of memory.
+         */
+        private boolean outOfMemory = false;
+
+        /**
+         * Constructor.
+         *
+         * @param idFile the identification file
+         */
+        public ParsedIdFile(File idFile) {
+            this.idFile = idFile;
+        }
     }
 
     /**
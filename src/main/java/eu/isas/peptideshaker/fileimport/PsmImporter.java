@@ -44,6 +44,7 @@ import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.waiting.WaitingHandler;
 import de.proteinms.omxparser.util.OMSSAIdfileReader;
 import de.proteinms.xtandemparser.parser.XTandemIdfileReader;
+import eu.isas.peptideshaker.protein_inference.PeptideMappingCache;
 import eu.isas.peptideshaker.scoring.maps.InputMap;
 import eu.isas.peptideshaker.scoring.psm_scoring.BestMatchSelection;
 import java.io.File;
@@ -54,8 +55,12 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 import static eu.isas.peptideshaker.fileimport.FileImporter.PTM_MASS_TOLERANCE;
@@ -194,6 +199,18 @@ public class PsmImporter {
      * The identification parameters.
      */
     private IdentificationParameters identificationParameters;
+    /**
+     * The cache of the peptide to protein mapping, null if not used.
+     */
+    private PeptideMappingCache peptideMappingCache;
+    /**
+     * The number of spectrum matches handed over to an import thread at once.
+     */
+    public static final int BATCH_SIZE = 100;
+    /**
+     * The number of batches which can be waiting for import per thread.
+     */
+    public static final int QUEUE_BATCHES_PER_THREAD = 2;
 
     /**
      * Constructor.
@@ -210,11 +227,13 @@ public class PsmImporter {
      * @param inputMap the input map to use for scoring
      * @param proteinCount the protein count of this project
      * @param singleProteinList list of one hit wonders for this project
+     * @param peptideMappingCache the cache of the peptide to protein mapping,
+     * null if not used
      * @param exceptionHandler handler for exceptions
      */
     public PsmImporter(ObjectsCache peptideShakerCache, IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences, IdfileReader fileReader, File idFile,
             Identification identification, InputMap inputMap, HashMap<String, Integer> proteinCount, HashSet<String> singleProteinList,
-            ExceptionHandler exceptionHandler) {
+            PeptideMappingCache peptideMappingCache, ExceptionHandler exceptionHandler) {
         this.peptideShakerCache = peptideShakerCache;
         this.identificationParameters = identificationParameters;
         this.processingPreferences = processingPreferences;
@@ -224,6 +243,7 @@ public class PsmImporter {
         this.inputMap = inputMap;
         this.proteinCount = proteinCount;
         this.singleProteinList = singleProteinList;
+        this.peptideMappingCache = peptideMappingCache;
         this.exceptionHandler = exceptionHandler;
     }
 
@@ -249,26 +269,122 @@ public class PsmImporter {
     public void importPsms(LinkedList<SpectrumMatch> idFileSpectrumMatches, int nThreads, WaitingHandler waitingHandler)
             throws IOException, SQLException, InterruptedException, ClassNotFoundException, MzMLUnmarshallerException {
 
+        ArrayBlockingQueue<ArrayList<SpectrumMatch>> batchQueue = new ArrayBlockingQueue<ArrayList<SpectrumMatch>>(QUEUE_BATCHES_PER_THREAD * nThreads);
         ExecutorService pool = Executors.newFixedThreadPool(nThreads);
-        while (!idFileSpectrumMatches.isEmpty()) {
-            SpectrumMatch match = idFileSpectrumMatches.pollLast();
-            PsmImporterRunnable psmImporterRunnable = new PsmImporterRunnable(match, waitingHandler);
-            pool.submit(psmImporterRunnable);
+        ArrayList<PsmImporterRunnable> runnables = new ArrayList<PsmImporterRunnable>(nThreads);
+        ArrayList<Future<?>> workers = new ArrayList<Future<?>>(nThreads);
+        for (int i = 0; i < nThreads; i++) {
+            PsmImporterRunnable runnable = new PsmImporterRunnable(batchQueue, waitingHandler);
+            workers.add(pool.submit(runnable));
+            runnables.add(runnable);
+        }
+
+        try {
+
+            // feed the workers, the bounded queue blocks until they catch up
+            ArrayList<SpectrumMatch> batch = new ArrayList<SpectrumMatch>(BATCH_SIZE);
+            while (!idFileSpectrumMatches.isEmpty()) {
+                batch.add(idFileSpectrumMatches.pollLast());
+                if (batch.size() == BATCH_SIZE || idFileSpectrumMatches.isEmpty()) {
+                    if (!offerBatch(batchQueue, batch, workers, waitingHandler)) {
+                        return;
+                    }
+                    batch = new ArrayList<SpectrumMatch>(BATCH_SIZE);
+                }
+            }
+
+            // an empty batch tells a worker that there is nothing left to import
+            for (int i = 0; i < nThreads; i++) {
+                if (!offerBatch(batchQueue, new ArrayList<SpectrumMatch>(0), workers, waitingHandler)) {
+                    break;
+                }
+            }
             if (waitingHandler.isRunCanceled()) {
-                pool.shutdownNow();
                 return;
             }
+            pool.shutdown();
+            if (!pool.awaitTermination(1, TimeUnit.DAYS)) {
+                throw new InterruptedException("PSM import timed out. Please contact the developers.");
+            }
+            checkWorkers(workers, waitingHandler);
+
+        } finally {
+            if (!pool.isTerminated()) {
+                batchQueue.clear();
+                pool.shutdownNow();
+            }
+        }
+
+        // merge the search engine scores gathered on every thread
+        for (PsmImporterRunnable runnable : runnables) {
+            inputMap.addAll(runnable.getPartialInputMap());
+        }
+    }
+
+    /**
+     * Offers a batch of matches to the workers, waiting until there is room in
+     * the queue. Gives up when the import is canceled or when no worker is
+     * left to take the batch.
+     *
+     * @param batchQueue the queue of batches consumed by the workers
+     * @param batch the batch to queue
+     * @param workers the futures of the workers
+     * @param waitingHandler the waiting handler
+     *
+     * @return a boolean indicating whether the batch was queued
+     *
+     * @throws InterruptedException exception thrown whenever the thread was
+     * interrupted while waiting for room in the queue
+     */
+    private boolean offerBatch(BlockingQueue<ArrayList<SpectrumMatch>> batchQueue, ArrayList<SpectrumMatch> batch,
+            ArrayList<Future<?>> workers, WaitingHandler waitingHandler) throws InterruptedException {
+        while (!batchQueue.offer(batch, 1, TimeUnit.SECONDS)) {
+            if (waitingHandler.isRunCanceled() || !checkWorkers(workers, waitingHandler)) {
+                return false;
+            }
         }
-        pool.shutdown();
-        if (!pool.awaitTermination(1, TimeUnit.DAYS)) {
-            throw new InterruptedException("PSM import timed out. Please contact the developers.");
+        return true;
+    }
+
+    /**
+     * Checks the workers and propagates the errors which stopped a worker.
+     *
+     * @param workers the futures of the workers
+     * @param waitingHandler the waiting handler
+     *
+     * @return a boolean indicating whether at least one worker is still
+     * running
+     *
+     * @throws InterruptedException exception thrown whenever the thread was
+     * interrupted while checking a worker
+     */
+    private boolean checkWorkers(ArrayList<Future<?>> workers, WaitingHandler waitingHandler) throws InterruptedException {
+        boolean running = false;
+        for (Future<?> worker : workers) {
+            if (!worker.isDone()) {
+                running = true;
+            } else if (!worker.isCancelled()) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    waitingHandler.setRunCanceled();
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException("PSM import failed.", cause);
+                }
+            }
         }
+        return running;
     }
 
     /**
      * Imports a PSM.
      *
      * @param spectrumMatch the spectrum match to import
+     * @param partialInputMap the input map where to store the search engine
+     * scores of this thread
      * @param peptideSpectrumAnnotator the spectrum annotator to use to annotate
      * spectra
      * @param waitingHandler waiting handler to display progress and allow
@@ -287,7 +403,7 @@ public class PsmImporter {
      * @throws org.apache.commons.math.MathException exception thrown if a math
      * exception occurred when estimating the noise level
      */
-    private void importPsm(SpectrumMatch spectrumMatch, PeptideSpectrumAnnotator peptideSpectrumAnnotator, WaitingHandler waitingHandler)
+    private void importPsm(SpectrumMatch spectrumMatch, InputMap partialInputMap, PeptideSpectrumAnnotator peptideSpectrumAnnotator, WaitingHandler waitingHandler)
             throws IOException, SQLException, InterruptedException, ClassNotFoundException, MzMLUnmarshallerException, MathException {
 
         // free memory if needed
@@ -325,13 +441,13 @@ public class PsmImporter {
             getAssumptions(rawDbAssumptions, combinedAssumptions);
             spectrumMatch.removeAssumptions();
             identification.removeRawAssumptions(spectrumKey);
-            importAssumptions(spectrumMatch, combinedAssumptions, peptideSpectrumAnnotator, waitingHandler);
+            importAssumptions(spectrumMatch, combinedAssumptions, partialInputMap, peptideSpectrumAnnotator, waitingHandler);
         } else if (matchAssumptions != null) {
             spectrumMatch.removeAssumptions();
-            importAssumptions(spectrumMatch, matchAssumptions, peptideSpectrumAnnotator, waitingHandler);
+            importAssumptions(spectrumMatch, matchAssumptions, partialInputMap, peptideSpectrumAnnotator, waitingHandler);
         } else if (rawDbAssumptions != null) {
             identification.removeRawAssumptions(spectrumKey);
-            importAssumptions(spectrumMatch, rawDbAssumptions, peptideSpectrumAnnotator, waitingHandler);
+            importAssumptions(spectrumMatch, rawDbAssumptions, partialInputMap, peptideSpectrumAnnotator, waitingHandler);
         }
 
         if (waitingHandler.isRunCanceled()) {
@@ -374,6 +490,8 @@ public class PsmImporter {
      *
      * @param spectrumMatch the spectrum match to import
      * @param assumptions the assumptions to import
+     * @param partialInputMap the input map where to store the search engine
+     * scores of this thread
      * @param peptideSpectrumAnnotator the spectrum annotator to use to annotate
      * spectra
      * @param waitingHandler waiting handler to display progress and allow
@@ -392,7 +510,7 @@ public class PsmImporter {
      * @throws org.apache.commons.math.MathException exception thrown if a math
      * exception occurred when estimating the noise level
      */
-    private void importAssumptions(SpectrumMatch spectrumMatch, HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions, PeptideSpectrumAnnotator peptideSpectrumAnnotator, WaitingHandler waitingHandler)
+    private void importAssumptions(SpectrumMatch spectrumMatch, HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions, InputMap partialInputMap, PeptideSpectrumAnnotator peptideSpectrumAnnotator, WaitingHandler waitingHandler)
             throws IOException, SQLException, InterruptedException, ClassNotFoundException, MzMLUnmarshallerException, MathException {
 
         PeptideAssumptionFilter peptideAssumptionFilter = identificationParameters.getPeptideAssumptionFilter();
@@ -591,6 +709,7 @@ public class PsmImporter {
                         if (assumption instanceof PeptideAssumption) {
                             PeptideAssumption peptideAssumption = (PeptideAssumption) assumption;
                             Peptide peptide = peptideAssumption.getPeptide();
+                            boolean mappingCached = peptideMappingCache != null && peptideMappingCache.setParentProteins(peptide);
                             boolean filterPassed = true;
                             if (!peptideAssumptionFilter.validatePeptide(peptide, sequenceMatchingPreferences, searchParameters.getDigestionPreferences())) {
                                 filterPassed = false;
@@ -606,6 +725,9 @@ public class PsmImporter {
                                 proteinIssue++;
                             } else {
                                 ArrayList<String> accessions = peptide.getParentProteins(sequenceMatchingPreferences);
+                                if (peptideMappingCache != null && !mappingCached) {
+                                    peptideMappingCache.addMapping(peptide, accessions);
+                                }
                                 if (accessions == null || accessions.isEmpty()) {
                                     missingProteins++;
                                     filterPassed = false;
@@ -624,7 +746,7 @@ public class PsmImporter {
                         firstPeptideHit = BestMatchSelection.getBestHit(spectrumKey, firstHits, proteinCount, sequenceMatchingPreferences, identificationParameters, peptideSpectrumAnnotator);
                     }
                     if (firstPeptideHit != null) {
-                        inputMap.addEntry(advocateId, spectrumFileName, firstPeptideHit.getScore(), firstPeptideHit.getPeptide().isDecoy(sequenceMatchingPreferences));
+                        partialInputMap.addEntry(advocateId, spectrumFileName, firstPeptideHit.getScore(), firstPeptideHit.getPeptide().isDecoy(sequenceMatchingPreferences));
                         nRetained++;
                         break;
                     } else if (!firstHitsNoProteins.isEmpty()) {
@@ -1375,14 +1497,15 @@ public class PsmImporter {
     }
 
     /**
-     * Private runnable to import PSMs.
+     * Private runnable importing the batches of PSMs of a queue until an empty
+     * batch is encountered.
      */
     private class PsmImporterRunnable implements Runnable {
 
         /**
-         * The spectrum match to import.
+         * The queue of batches of spectrum matches to import.
          */
-        private SpectrumMatch spectrumMatch;
+        private BlockingQueue<ArrayList<SpectrumMatch>> batchQueue;
 
         /**
          * The waiting handler.
@@ -1395,15 +1518,21 @@ public class PsmImporter {
          */
         private PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
 
+        /**
+         * The input map where the search engine scores of this thread are
+         * gathered.
+         */
+        private InputMap partialInputMap = new InputMap();
+
         /**
          * Constructor.
          *
-         * @param spectrumMatch the match to import
+         * @param batchQueue the queue of batches of matches to import
          * @param waitingHandler a waiting handler to display progress and allow
          * canceling the process
          */
-        public PsmImporterRunnable(SpectrumMatch spectrumMatch, WaitingHandler waitingHandler) {
-            this.spectrumMatch = spectrumMatch;
+        public PsmImporterRunnable(BlockingQueue<ArrayList<SpectrumMatch>> batchQueue, WaitingHandler waitingHandler) {
+            this.batchQueue = batchQueue;
             this.waitingHandler = waitingHandler;
         }
 
@@ -1411,9 +1540,20 @@ public class PsmImporter {
         public void run() {
 
             try {
-                if (!waitingHandler.isRunCanceled()) {
-                    importPsm(spectrumMatch, peptideSpectrumAnnotator, waitingHandler);
+                while (!waitingHandler.isRunCanceled()) {
+                    ArrayList<SpectrumMatch> batch = batchQueue.take();
+                    if (batch.isEmpty()) {
+                        return;
+                    }
+                    for (SpectrumMatch spectrumMatch : batch) {
+                        if (waitingHandler.isRunCanceled()) {
+                            return;
+                        }
+                        importPsm(spectrumMatch, partialInputMap, peptideSpectrumAnnotator, waitingHandler);
+                    }
                 }
+            } catch (InterruptedException e) {
+                // the import was canceled
             } catch (Exception e) {
                 if (!waitingHandler.isRunCanceled()) {
                     exceptionHandler.catchException(e);
@@ -1421,5 +1561,16 @@ public class PsmImporter {
                 }
             }
         }
+
+        /**
+         * Returns the input map where the search engine scores of this thread
+         * were gathered.
+         *
+         * @return the input map where the search engine scores of this thread
+         * were gathered
+         */
+        public InputMap getPartialInputMap() {
+            return partialInputMap;
+        }
     }
 }
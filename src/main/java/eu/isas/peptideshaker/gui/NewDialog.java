@@ -716,7 +716,7 @@ public class NewDialog extends javax.swing.JDialog {
                 Util.sendGAUpdate("UA-36198780-1", "startrun-gui", "peptide-shaker-" + PeptideShaker.getVersion());
             }
 
-            peptideShaker = new PeptideShaker(experiment, sample, replicateNumber);
+            peptideShaker = new PeptideShaker(experiment, sample, replicateNumber, peptideShakerGUI.getAccessionDictionary());
 
             ArrayList<String> tips;
             try {
@@ -744,6 +744,7 @@ public class NewDialog extends javax.swing.JDialog {
             progressCounter++; // resolving protein inference
             progressCounter += 4; // Correcting protein probabilities, Validating identifications at 1% FDR, Scoring PTMs in peptides, Scoring PTMs in proteins.
             progressCounter += 2; // Scoring PTMs in PSMs. Estimating PTM FLR.
+            progressCounter++; // Computing protein features
             if (identificationParameters.getPtmScoringPreferences().getAlignNonConfidentPTMs()) {
                 progressCounter++; // Peptide inference
             }
@@ -1648,7 +1649,8 @@ public class NewDialog extends javax.swing.JDialog {
      */
     private void importIdentificationFiles(WaitingDialog waitingDialog) {
         peptideShaker.importFiles(waitingDialog, idFiles, spectrumFiles,
-                identificationParameters, projectDetails, processingPreferences, spectrumCountingPreferences, true);
+                identificationParameters, projectDetails, processingPreferences, spectrumCountingPreferences,
+                peptideShakerGUI.getUserPreferences(), true);
     }
 
     /**
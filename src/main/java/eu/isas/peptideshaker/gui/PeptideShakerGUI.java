@@ -110,6 +110,7 @@ import eu.isas.peptideshaker.scoring.maps.PsmPTMMap;
 import eu.isas.peptideshaker.utils.CpsParent;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.ProteinAccessionDictionary;
 import eu.isas.peptideshaker.utils.PsZipUtils;
 import eu.isas.peptideshaker.utils.StarHider;
 import eu.isas.peptideshaker.validation.MatchesValidator;
@@ -251,10 +252,6 @@ public class PeptideShakerGUI extends JFrame implements ClipboardOwner, JavaHome
      * The utilities user preferences.
      */
     private UtilitiesUserPreferences utilitiesUserPreferences;
-    /**
-     * The processing preferences
-     */
-    private ProcessingPreferences processingPreferences = new ProcessingPreferences();
     /**
      * A simple progress dialog.
      */
@@ -3250,7 +3247,7 @@ public class PeptideShakerGUI extends JFrame implements ClipboardOwner, JavaHome
                             PSMaps pSMaps = new PSMaps();
                             pSMaps = (PSMaps) peptideShakerGUI.getIdentification().getUrParam(pSMaps);
 
-                            MatchesValidator matchesValidator = new MatchesValidator(pSMaps.getPsmSpecificMap(), pSMaps.getPeptideSpecificMap(), pSMaps.getProteinMap());
+                            MatchesValidator matchesValidator = new MatchesValidator(pSMaps.getPsmSpecificMap(), pSMaps.getPeptideSpecificMap(), pSMaps.getProteinMap(), peptideShakerGUI.getAccessionDictionary());
                             matchesValidator.validateIdentifications(peptideShakerGUI.getIdentification(), peptideShakerGUI.getMetrics(), peptideShakerGUI.getGeneMaps(), pSMaps.getInputMap(), progressDialog, exceptionHandler,
                                     peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getIdentificationParameters(),
                                     peptideShakerGUI.getSpectrumCountingPreferences(), peptideShakerGUI.getProcessingPreferences());
@@ -3319,9 +3316,9 @@ public class PeptideShakerGUI extends JFrame implements ClipboardOwner, JavaHome
      * @param evt
      */
     private void processingMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_processingMenuItemActionPerformed
-        ProcessingPreferencesDialog processingPreferencesDialog = new ProcessingPreferencesDialog(this, processingPreferences, true);
+        ProcessingPreferencesDialog processingPreferencesDialog = new ProcessingPreferencesDialog(this, getProcessingPreferences(), true);
         if (!processingPreferencesDialog.isCanceled()) {
-            processingPreferences = processingPreferencesDialog.getProcessingPreferences();
+            setProcessingPreferences(processingPreferencesDialog.getProcessingPreferences());
         }
     }//GEN-LAST:event_processingMenuItemActionPerformed
 
@@ -3963,10 +3960,10 @@ public class PeptideShakerGUI extends JFrame implements ClipboardOwner, JavaHome
      * @return the initial processing preferences
      */
     public ProcessingPreferences getProcessingPreferences() {
-        if (processingPreferences == null) {
-            processingPreferences = new ProcessingPreferences();
+        if (cpsParent.getProcessingPreferences() == null) {
+            cpsParent.setProcessingPreferences(new ProcessingPreferences());
         }
-        return processingPreferences;
+        return cpsParent.getProcessingPreferences();
     }
 
     /**
@@ -3975,7 +3972,7 @@ public class PeptideShakerGUI extends JFrame implements ClipboardOwner, JavaHome
      * @param processingPreferences the initial processing preferences
      */
     public void setProcessingPreferences(ProcessingPreferences processingPreferences) {
-        this.processingPreferences = processingPreferences;
+        cpsParent.setProcessingPreferences(processingPreferences);
     }
 
     /**
@@ -6226,7 +6223,17 @@ public class PeptideShakerGUI extends JFrame implements ClipboardOwner, JavaHome
     }
 
     /**
-     * Resets the feature generator.
+     * Returns the protein accession dictionary of the project.
+     *
+     * @return the protein accession dictionary of the project
+     */
+    public ProteinAccessionDictionary getAccessionDictionary() {
+        return cpsParent.getAccessionDictionary();
+    }
+
+    /**
+     * Resets the feature generator and clears the protein accession
+     * dictionary.
      */
     public void resetIdentificationFeaturesGenerator() {
         cpsParent.resetIdentificationFeaturesGenerator();
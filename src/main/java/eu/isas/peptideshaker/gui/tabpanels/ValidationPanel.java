@@ -1499,7 +1499,7 @@ public class ValidationPanel extends javax.swing.JPanel {
                         PSMaps pSMaps = new PSMaps();
                         pSMaps = (PSMaps) peptideShakerGUI.getIdentification().getUrParam(pSMaps);
 
-                        MatchesValidator matchesValidator = new MatchesValidator(pSMaps.getPsmSpecificMap(), pSMaps.getPeptideSpecificMap(), pSMaps.getProteinMap());
+                        MatchesValidator matchesValidator = new MatchesValidator(pSMaps.getPsmSpecificMap(), pSMaps.getPeptideSpecificMap(), pSMaps.getProteinMap(), peptideShakerGUI.getAccessionDictionary());
                         matchesValidator.validateIdentifications(peptideShakerGUI.getIdentification(), peptideShakerGUI.getMetrics(), peptideShakerGUI.getGeneMaps(), pSMaps.getInputMap(), progressDialog, peptideShakerGUI.getExceptionHandler(), peptideShakerGUI.getIdentificationFeaturesGenerator(), peptideShakerGUI.getIdentificationParameters(), peptideShakerGUI.getSpectrumCountingPreferences(), peptideShakerGUI.getProcessingPreferences());
 
                         progressDialog.setPrimaryProgressCounterIndeterminate(true);
@@ -3019,10 +3019,10 @@ public class ValidationPanel extends javax.swing.JPanel {
 
                 PSMaps pSMaps = new PSMaps();
                 pSMaps = (PSMaps) peptideShakerGUI.getIdentification().getUrParam(pSMaps);
-                PeptideShaker miniShaker = new PeptideShaker(peptideShakerGUI.getExperiment(), peptideShakerGUI.getSample(), peptideShakerGUI.getReplicateNumber(), pSMaps);
+                PeptideShaker miniShaker = new PeptideShaker(peptideShakerGUI.getExperiment(), peptideShakerGUI.getSample(), peptideShakerGUI.getReplicateNumber(), pSMaps, peptideShakerGUI.getAccessionDictionary());
 
                 try {
-                    miniShaker.spectrumMapChanged(peptideShakerGUI.getIdentification(), progressDialog, peptideShakerGUI.getProcessingPreferences(), peptideShakerGUI.getShotgunProtocol(), peptideShakerGUI.getIdentificationParameters());
+                    miniShaker.spectrumMapChanged(peptideShakerGUI.getIdentification(), progressDialog, peptideShakerGUI.getExceptionHandler(), peptideShakerGUI.getProcessingPreferences(), peptideShakerGUI.getShotgunProtocol(), peptideShakerGUI.getIdentificationParameters());
                 } catch (Exception e) {
                     JOptionPane.showMessageDialog(peptideShakerGUI, JOptionEditorPane.getJOptionEditorPane(
                             "An identification conflict occured. If you can reproduce the error <br>"
@@ -3031,6 +3031,14 @@ public class ValidationPanel extends javax.swing.JPanel {
                     e.printStackTrace();
                 }
 
+                try {
+                    if (!progressDialog.isRunCanceled()) {
+                        updateValidationLevels(pSMaps);
+                    }
+                } catch (Exception e) {
+                    peptideShakerGUI.catchException(e);
+                }
+
                 // update the tracking of probabilities modifications
                 for (int key : modifiedMaps.keySet()) {
                     modifiedMaps.put(key, false);
@@ -3069,10 +3077,10 @@ public class ValidationPanel extends javax.swing.JPanel {
 
                 PSMaps pSMaps = new PSMaps();
                 pSMaps = (PSMaps) peptideShakerGUI.getIdentification().getUrParam(pSMaps);
-                PeptideShaker miniShaker = new PeptideShaker(peptideShakerGUI.getExperiment(), peptideShakerGUI.getSample(), peptideShakerGUI.getReplicateNumber(), pSMaps);
+                PeptideShaker miniShaker = new PeptideShaker(peptideShakerGUI.getExperiment(), peptideShakerGUI.getSample(), peptideShakerGUI.getReplicateNumber(), pSMaps, peptideShakerGUI.getAccessionDictionary());
 
                 try {
-                    miniShaker.peptideMapChanged(peptideShakerGUI.getIdentification(), progressDialog, peptideShakerGUI.getIdentificationParameters());
+                    miniShaker.peptideMapChanged(peptideShakerGUI.getIdentification(), progressDialog, peptideShakerGUI.getExceptionHandler(), peptideShakerGUI.getProcessingPreferences(), peptideShakerGUI.getIdentificationParameters());
                 } catch (Exception e) {
                     JOptionPane.showMessageDialog(peptideShakerGUI, JOptionEditorPane.getJOptionEditorPane(
                             "An identification conflict occured. If you can reproduce the error <br>"
@@ -3081,6 +3089,14 @@ public class ValidationPanel extends javax.swing.JPanel {
                     e.printStackTrace();
                 }
 
+                try {
+                    if (!progressDialog.isRunCanceled()) {
+                        updateValidationLevels(pSMaps);
+                    }
+                } catch (Exception e) {
+                    peptideShakerGUI.catchException(e);
+                }
+
                 modifiedMaps.put(0, false);
                 for (int key : peptideMap.keySet()) {
                     modifiedMaps.put(key, false);
@@ -3091,6 +3107,26 @@ public class ValidationPanel extends javax.swing.JPanel {
         }.start();
     }
 
+    /**
+     * Updates the validation level of all matches using the validated
+     * thresholds after the probabilities were recalculated. Only the matches
+     * whose validation changed are saved.
+     *
+     * @param pSMaps the PeptideShaker maps of the identification
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * updating the validation levels
+     */
+    private void updateValidationLevels(PSMaps pSMaps) throws Exception {
+        MatchesValidator matchesValidator = new MatchesValidator(pSMaps.getPsmSpecificMap(), pSMaps.getPeptideSpecificMap(), pSMaps.getProteinMap(), peptideShakerGUI.getAccessionDictionary());
+        int nChanged = matchesValidator.updateValidationLevels(peptideShakerGUI.getIdentification(), peptideShakerGUI.getGeneMaps(), peptideShakerGUI.getIdentificationFeaturesGenerator(),
+                peptideShakerGUI.getIdentificationParameters(), peptideShakerGUI.getProcessingPreferences(), progressDialog, peptideShakerGUI.getExceptionHandler());
+        if (nChanged > 0) {
+            peptideShakerGUI.getMetrics().setnValidatedProteins(-1);
+            peptideShakerGUI.getMetrics().setnConfidentProteins(-1);
+        }
+    }
+
     /**
      * Apply the new protein settings.
      */
@@ -3120,9 +3156,9 @@ public class ValidationPanel extends javax.swing.JPanel {
                 try {
                     PSMaps pSMaps = new PSMaps();
                     pSMaps = (PSMaps) peptideShakerGUI.getIdentification().getUrParam(pSMaps);
-                    PeptideShaker miniShaker = new PeptideShaker(peptideShakerGUI.getExperiment(), peptideShakerGUI.getSample(), peptideShakerGUI.getReplicateNumber(), pSMaps);
+                    PeptideShaker miniShaker = new PeptideShaker(peptideShakerGUI.getExperiment(), peptideShakerGUI.getSample(), peptideShakerGUI.getReplicateNumber(), pSMaps, peptideShakerGUI.getAccessionDictionary());
 
-                    miniShaker.proteinMapChanged(progressDialog, peptideShakerGUI.getIdentificationParameters().getFractionSettings());
+                    miniShaker.proteinMapChanged(progressDialog, peptideShakerGUI.getExceptionHandler(), peptideShakerGUI.getProcessingPreferences(), peptideShakerGUI.getIdentificationParameters().getFractionSettings());
                     modifiedMaps.put(0, false);
                 } catch (Exception e) {
                     peptideShakerGUI.catchException(e);
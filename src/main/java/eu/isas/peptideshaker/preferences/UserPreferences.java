@@ -1,5 +1,7 @@
 package eu.isas.peptideshaker.preferences;
 
+import eu.isas.peptideshaker.protein_inference.PeptideMapper;
+import eu.isas.peptideshaker.utils.IdentificationFeaturesCache;
 import java.awt.Color;
 import java.io.File;
 import java.io.Serializable;
@@ -25,6 +27,21 @@ public class UserPreferences implements Serializable {
      * Show/hide sliders.
      */
     private boolean showSliders = false;
+    /**
+     * The memory allocated to the big objects of the identification features
+     * cache in MB.
+     */
+    private Integer featuresCacheMemory = IdentificationFeaturesCache.DEFAULT_BIG_OBJECTS_CACHE_MEMORY;
+    /**
+     * Boolean indicating whether the peptide to protein mappings should be
+     * cached on disk.
+     */
+    private Boolean peptideMappingCache = true;
+    /**
+     * The maximal number of peptides per batch when mapping peptides to
+     * proteins with multiple threads.
+     */
+    private Integer mappingBatchSize = PeptideMapper.DEFAULT_BATCH_SIZE;
 
     /**
      * Constructor.
@@ -50,6 +67,80 @@ public class UserPreferences implements Serializable {
         this.showSliders = showSliders;
     }
 
+    /**
+     * Returns the memory allocated to the big objects of the identification
+     * features cache in MB.
+     *
+     * @return the memory allocated to the big objects of the identification
+     * features cache in MB
+     */
+    public int getFeaturesCacheMemory() {
+        if (featuresCacheMemory == null) { // Backward compatibility
+            featuresCacheMemory = IdentificationFeaturesCache.DEFAULT_BIG_OBJECTS_CACHE_MEMORY;
+        }
+        return featuresCacheMemory;
+    }
+
+    /**
+     * Sets the memory allocated to the big objects of the identification
+     * features cache in MB.
+     *
+     * @param featuresCacheMemory the memory allocated to the big objects of
+     * the identification features cache in MB
+     */
+    public void setFeaturesCacheMemory(int featuresCacheMemory) {
+        this.featuresCacheMemory = featuresCacheMemory;
+    }
+
+    /**
+     * Returns a boolean indicating whether the peptide to protein mappings
+     * should be cached on disk.
+     *
+     * @return a boolean indicating whether the peptide to protein mappings
+     * should be cached on disk
+     */
+    public boolean usePeptideMappingCache() {
+        if (peptideMappingCache == null) { // Backward compatibility
+            peptideMappingCache = true;
+        }
+        return peptideMappingCache;
+    }
+
+    /**
+     * Sets whether the peptide to protein mappings should be cached on disk.
+     *
+     * @param peptideMappingCache a boolean indicating whether the peptide to
+     * protein mappings should be cached on disk
+     */
+    public void setPeptideMappingCache(boolean peptideMappingCache) {
+        this.peptideMappingCache = peptideMappingCache;
+    }
+
+    /**
+     * Returns the maximal number of peptides per batch when mapping peptides
+     * to proteins with multiple threads. If 0 or less, the peptides are mapped
+     * by groups of peptides sharing the same key.
+     *
+     * @return the maximal number of peptides per batch
+     */
+    public int getMappingBatchSize() {
+        if (mappingBatchSize == null) { // Backward compatibility
+            mappingBatchSize = PeptideMapper.DEFAULT_BATCH_SIZE;
+        }
+        return mappingBatchSize;
+    }
+
+    /**
+     * Sets the maximal number of peptides per batch when mapping peptides to
+     * proteins with multiple threads. If 0 or less, the peptides are mapped by
+     * groups of peptides sharing the same key.
+     *
+     * @param mappingBatchSize the maximal number of peptides per batch
+     */
+    public void setMappingBatchSize(int mappingBatchSize) {
+        this.mappingBatchSize = mappingBatchSize;
+    }
+
     /**
      * Returns the paths of the recent projects.
      *
@@ -30,7 +30,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -62,6 +62,34 @@ public class PeptideMapper {
      * Exception handler used to catch exceptions.
      */
     private ExceptionHandler exceptionHandler;
+    /**
+     * The cache of the peptide to protein mapping, null if not used.
+     */
+    private PeptideMappingCache peptideMappingCache = null;
+    /**
+     * The default maximal number of peptides per batch when mapping in
+     * batches.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    /**
+     * The minimal number of batches per thread, used to balance the load when
+     * few peptides are mapped.
+     */
+    private static final int MIN_BATCHES_PER_THREAD = 4;
+    /**
+     * The maximal number of peptides per batch. If 0 or less, the peptides are
+     * mapped by groups of peptides sharing the same key.
+     */
+    private final int batchSize;
+    /**
+     * The number of peptides mapped since the last throughput report.
+     */
+    private long nPeptidesMapped = 0;
+    /**
+     * The time spent mapping peptides since the last throughput report in
+     * milliseconds.
+     */
+    private long mappingTime = 0;
 
     /**
      * Constructor.
@@ -71,9 +99,24 @@ public class PeptideMapper {
      * @param exceptionHandler an exception handler
      */
     public PeptideMapper(IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+        this(identificationParameters, waitingHandler, exceptionHandler, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param identificationParameters the identification parameters
+     * @param waitingHandler a waiting handler
+     * @param exceptionHandler an exception handler
+     * @param batchSize the maximal number of peptides per batch when mapping
+     * with multiple threads, if 0 or less the peptides are mapped by groups of
+     * peptides sharing the same key
+     */
+    public PeptideMapper(IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, int batchSize) {
         this.identificationParameters = identificationParameters;
         this.waitingHandler = waitingHandler;
         this.exceptionHandler = exceptionHandler;
+        this.batchSize = batchSize;
     }
 
     /**
@@ -95,13 +138,82 @@ public class PeptideMapper {
      */
     public void mapPeptides(HashMap<String, LinkedList<Peptide>> peptideMap, int nThreads, WaitingHandler waitingHandler) throws IOException, InterruptedException, SQLException,
             ClassNotFoundException {
+        mapPeptides(peptideMap, nThreads, waitingHandler, true);
+    }
+
+    /**
+     * Maps the peptides found to the proteins.
+     *
+     * @param peptideMap a map of the peptides to map: start of the sequence
+     * &gt; list of peptides
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler
+     * @param displayProgress boolean indicating whether the mapping progress
+     * should be displayed, false when mapping a batch of a larger import
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while mapping the peptides to the proteins
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object from the database
+     */
+    public void mapPeptides(HashMap<String, LinkedList<Peptide>> peptideMap, int nThreads, WaitingHandler waitingHandler, boolean displayProgress) throws IOException, InterruptedException, SQLException,
+            ClassNotFoundException {
+        if (peptideMap == null || peptideMap.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        int nPeptides = getNPeptides(peptideMap);
         if (nThreads == 1) {
-            mapPeptidesSingleThreaded(peptideMap, waitingHandler);
+            mapPeptidesSingleThreaded(peptideMap, waitingHandler, displayProgress);
+        } else if (batchSize > 0) {
+            mapPeptidesInBatches(peptideMap, nThreads, waitingHandler, displayProgress);
         } else {
-            mapPeptidesThreadingPerKey(peptideMap, nThreads, waitingHandler);
+            mapPeptidesThreadingPerKey(peptideMap, nThreads, waitingHandler, displayProgress);
+        }
+        nPeptidesMapped += nPeptides;
+        mappingTime += System.currentTimeMillis() - start;
+        if (displayProgress) {
+            reportThroughput(waitingHandler);
         }
     }
 
+    /**
+     * Returns the number of peptides in the given peptide map.
+     *
+     * @param peptideMap a map of the peptides to map: start of the sequence
+     * &gt; list of peptides
+     *
+     * @return the number of peptides in the given peptide map
+     */
+    private static int getNPeptides(HashMap<String, LinkedList<Peptide>> peptideMap) {
+        int nPeptides = 0;
+        for (LinkedList<Peptide> peptides : peptideMap.values()) {
+            nPeptides += peptides.size();
+        }
+        return nPeptides;
+    }
+
+    /**
+     * Writes the number of peptides mapped per second since the last report
+     * and resets the counters.
+     *
+     * @param waitingHandler the waiting handler where to write the report
+     */
+    public void reportThroughput(WaitingHandler waitingHandler) {
+        if (nPeptidesMapped > 0 && !canceled && !waitingHandler.isRunCanceled()) {
+            double seconds = Math.max(mappingTime, 1) / 1000.0;
+            long throughput = Math.round(nPeptidesMapped / seconds);
+            String batchDescription = batchSize > 0 ? "batches of at most " + batchSize + " peptides" : "groups of peptides sharing the same key";
+            waitingHandler.appendReport(nPeptidesMapped + " peptides mapped in " + Math.round(seconds) + " s (" + throughput + " peptides/s, " + batchDescription + ").", true, true);
+        }
+        nPeptidesMapped = 0;
+        mappingTime = 0;
+    }
+
     /**
      * Maps the peptides found to the proteins.
      *
@@ -110,6 +222,8 @@ public class PeptideMapper {
      * @param sequenceMatchingPreferences The sequence matching preferences
      * @param idFilter The import filter
      * @param waitingHandler A waiting handler
+     * @param displayProgress boolean indicating whether the mapping progress
+     * should be displayed
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading or writing a file
@@ -120,20 +234,22 @@ public class PeptideMapper {
      * @throws ClassNotFoundException exception thrown whenever an error
      * occurred while deserializing an object from the database
      */
-    private void mapPeptidesSingleThreaded(HashMap<String, LinkedList<Peptide>> peptideMap, WaitingHandler waitingHandler)
+    private void mapPeptidesSingleThreaded(HashMap<String, LinkedList<Peptide>> peptideMap, WaitingHandler waitingHandler, boolean displayProgress)
             throws IOException, InterruptedException, SQLException, ClassNotFoundException {
 
         if (peptideMap != null && !peptideMap.isEmpty()) {
-            waitingHandler.resetSecondaryProgressCounter();
-            waitingHandler.setMaxSecondaryProgressCounter(peptideMap.size());
-            waitingHandler.appendReport("Mapping peptides to proteins.", true, true);
+            if (displayProgress) {
+                waitingHandler.resetSecondaryProgressCounter();
+                waitingHandler.setMaxSecondaryProgressCounter(peptideMap.size());
+                waitingHandler.appendReport("Mapping peptides to proteins.", true, true);
+            }
             HashSet<String> keys = new HashSet<String>(peptideMap.keySet());
             for (String key : keys) {
                 LinkedList<Peptide> peptides = peptideMap.get(key);
                 Iterator<Peptide> peptideIterator = peptides.iterator();
                 while (peptideIterator.hasNext()) {
                     Peptide peptide = peptideIterator.next();
-                    mapPeptide(peptide, !peptideIterator.hasNext());
+                    mapPeptide(peptide, displayProgress && !peptideIterator.hasNext());
                 }
                 peptideMap.remove(key);
             }
@@ -149,6 +265,8 @@ public class PeptideMapper {
      * @param idFilter the import filter
      * @param nThreads the number of threads to use
      * @param waitingHandler a waiting handler
+     * @param displayProgress boolean indicating whether the mapping progress
+     * should be displayed
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading or writing a file
@@ -160,17 +278,19 @@ public class PeptideMapper {
      * occurred while deserializing an object from the database
      */
     private void mapPeptidesThreadingPerKey(HashMap<String, LinkedList<Peptide>> peptideMap, int nThreads,
-            WaitingHandler waitingHandler) throws IOException, InterruptedException, SQLException, ClassNotFoundException {
+            WaitingHandler waitingHandler, boolean displayProgress) throws IOException, InterruptedException, SQLException, ClassNotFoundException {
 
         if (peptideMap != null && !peptideMap.isEmpty()) {
-            waitingHandler.resetSecondaryProgressCounter();
-            waitingHandler.setMaxSecondaryProgressCounter(peptideMap.size());
-            waitingHandler.appendReport("Mapping peptides to proteins.", true, true);
+            if (displayProgress) {
+                waitingHandler.resetSecondaryProgressCounter();
+                waitingHandler.setMaxSecondaryProgressCounter(peptideMap.size());
+                waitingHandler.appendReport("Mapping peptides to proteins.", true, true);
+            }
             HashSet<String> keys = new HashSet<String>(peptideMap.keySet());
             ExecutorService pool = Executors.newFixedThreadPool(nThreads);
             for (String key : keys) {
                 LinkedList<Peptide> peptides = peptideMap.get(key);
-                PeptideListMapperRunnable peptideMapperRunnable = new PeptideListMapperRunnable(peptides);
+                PeptideListMapperRunnable peptideMapperRunnable = new PeptideListMapperRunnable(peptides, displayProgress);
                 pool.submit(peptideMapperRunnable);
                 if (canceled || waitingHandler.isRunCanceled()) {
                     pool.shutdownNow();
@@ -190,55 +310,79 @@ public class PeptideMapper {
     }
 
     /**
-     * Maps the peptides found to the proteins.
+     * Maps the peptides found to the proteins using batches of comparable
+     * size. The peptides are cut in consecutive batches of at most batchSize
+     * peptides regardless of their key, so that the threads get balanced work
+     * however many peptides share a key.
      *
      * @param peptideMap a map of the peptides to map: start of the sequence
      * &gt; list of peptides
-     * @param sequenceMatchingPreferences The sequence matching preferences
-     * @param idFilter the import filter
      * @param nThreads the number of threads to use
      * @param waitingHandler a waiting handler
+     * @param displayProgress boolean indicating whether the mapping progress
+     * should be displayed
      *
-     * @throws IOException exception thrown whenever an error occurred while
-     * reading or writing a file
      * @throws InterruptedException exception thrown whenever a threading issue
      * occurred while mapping the peptides to the proteins
-     * @throws SQLException exception thrown whenever an error occurred while
-     * interacting with the database
-     * @throws ClassNotFoundException exception thrown whenever an error
-     * occurred while deserializing an object from the database
      */
-    private void mapPeptidesThreadingPerPeptide(HashMap<String, LinkedList<Peptide>> peptideMap, int nThreads,
-            WaitingHandler waitingHandler) throws IOException, InterruptedException, SQLException, ClassNotFoundException, ExecutionException {
-
-        if (peptideMap != null && !peptideMap.isEmpty()) {
-            waitingHandler.setMaxSecondaryProgressCounter(peptideMap.size());
-            waitingHandler.appendReport("Mapping peptides to proteins.", true, true);
-            HashSet<String> keys = new HashSet<String>(peptideMap.keySet());
-            ExecutorService pool = Executors.newFixedThreadPool(nThreads);
-            for (String key : keys) {
-                LinkedList<Peptide> peptides = peptideMap.get(key);
-                Iterator<Peptide> peptideIterator = peptides.iterator();
-                while (peptideIterator.hasNext()) {
-                    Peptide peptide = peptideIterator.next();
-                    PeptideMapperRunnable peptideMapperRunnable = new PeptideMapperRunnable(peptide, !peptideIterator.hasNext());
-                    pool.submit(peptideMapperRunnable);
-                    if (canceled || waitingHandler.isRunCanceled()) {
-                        pool.shutdownNow();
-                        return;
-                    }
-                }
-                peptideMap.remove(key);
-                if (canceled || waitingHandler.isRunCanceled()) {
-                    pool.shutdownNow();
-                    return;
+    private void mapPeptidesInBatches(HashMap<String, LinkedList<Peptide>> peptideMap, int nThreads,
+            WaitingHandler waitingHandler, boolean displayProgress) throws InterruptedException {
+
+        int nPeptides = getNPeptides(peptideMap);
+        int maxBatchSize = Math.min(batchSize, Math.max(1, nPeptides / (MIN_BATCHES_PER_THREAD * nThreads)));
+
+        ConcurrentLinkedQueue<ArrayList<Peptide>> batches = new ConcurrentLinkedQueue<ArrayList<Peptide>>();
+        ArrayList<Peptide> batch = new ArrayList<Peptide>(maxBatchSize);
+        HashSet<String> keys = new HashSet<String>(peptideMap.keySet());
+        for (String key : keys) {
+            for (Peptide peptide : peptideMap.get(key)) {
+                batch.add(peptide);
+                if (batch.size() == maxBatchSize) {
+                    batches.add(batch);
+                    batch = new ArrayList<Peptide>(maxBatchSize);
                 }
             }
-            pool.shutdown();
-            if (!pool.awaitTermination(1, TimeUnit.DAYS)) {
-                waitingHandler.appendReport("Mapping peptides timed out. Please contact the developers.", true, true);
-            }
+            peptideMap.remove(key);
         }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+
+        if (displayProgress) {
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(nPeptides);
+            waitingHandler.appendReport("Mapping peptides to proteins.", true, true);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        for (int i = 0; i < nThreads; i++) {
+            pool.submit(new PeptideBatchMapperRunnable(batches, displayProgress));
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(1, TimeUnit.DAYS)) {
+            waitingHandler.appendReport("Mapping peptides timed out. Please contact the developers.", true, true);
+        }
+    }
+
+    /**
+     * Sets the cache of the peptide to protein mapping to use.
+     *
+     * @param peptideMappingCache the cache of the peptide to protein mapping,
+     * null if not used
+     */
+    public void setPeptideMappingCache(PeptideMappingCache peptideMappingCache) {
+        this.peptideMappingCache = peptideMappingCache;
+    }
+
+    /**
+     * Returns the maximal number of peptides per batch when mapping with
+     * multiple threads. If 0 or less, the peptides are mapped by groups of
+     * peptides sharing the same key.
+     *
+     * @return the maximal number of peptides per batch
+     */
+    public int getBatchSize() {
+        return batchSize;
     }
 
     /**
@@ -280,7 +424,11 @@ public class PeptideMapper {
         SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
         if (identificationParameters.getPeptideAssumptionFilter().validatePeptide(peptide, sequenceMatchingPreferences, identificationParameters.getSearchParameters().getDigestionPreferences())) {
             try {
-                peptide.getParentProteins(sequenceMatchingPreferences);
+                if (peptideMappingCache == null) {
+                    peptide.getParentProteins(sequenceMatchingPreferences);
+                } else if (!peptideMappingCache.setParentProteins(peptide)) {
+                    peptideMappingCache.addMapping(peptide, peptide.getParentProteins(sequenceMatchingPreferences));
+                }
             } catch (java.sql.SQLNonTransientConnectionException derbyException) {
                 derbyException.printStackTrace();
                 throw new IllegalArgumentException("PeptideShaker could not access the FASTA index database. "
@@ -532,13 +680,21 @@ public class PeptideMapper {
          */
         private LinkedList<Peptide> peptideList;
 
+        /**
+         * Boolean indicating whether the progress bar should be increased.
+         */
+        private boolean displayProgress;
+
         /**
          * Constructor.
          *
          * @param peptideList the peptides to map
+         * @param displayProgress boolean indicating whether the progress bar
+         * should be increased after mapping the list
          */
-        public PeptideListMapperRunnable(LinkedList<Peptide> peptideList) {
+        public PeptideListMapperRunnable(LinkedList<Peptide> peptideList, boolean displayProgress) {
             this.peptideList = peptideList;
+            this.displayProgress = displayProgress;
         }
 
         @Override
@@ -549,7 +705,7 @@ public class PeptideMapper {
                 while (peptideIterator.hasNext()) {
                     Peptide peptide = peptideIterator.next();
                     if (!canceled && !waitingHandler.isRunCanceled()) {
-                        mapPeptide(peptide, !peptideIterator.hasNext());
+                        mapPeptide(peptide, displayProgress && !peptideIterator.hasNext());
                     }
                 }
             } catch (Exception e) {
@@ -562,45 +718,47 @@ public class PeptideMapper {
     }
 
     /**
-     * Private runnable to map a peptide.
+     * Private runnable mapping batches of peptides taken from a shared queue.
      */
-    private class PeptideMapperRunnable implements Runnable {
+    private class PeptideBatchMapperRunnable implements Runnable {
 
         /**
-         * The peptide to map.
+         * The queue of batches to map.
          */
-        private Peptide peptide;
+        private final ConcurrentLinkedQueue<ArrayList<Peptide>> batches;
 
         /**
          * Boolean indicating whether the progress bar should be increased.
          */
-        private boolean increaseProgressBar;
-
-        /**
-         * Constructor.
-         */
-        public PeptideMapperRunnable() {
-
-        }
+        private final boolean displayProgress;
 
         /**
          * Constructor.
          *
-         * @param peptide the peptide to map
-         * @param increaseProgressBar boolean indicating whether the progress
-         * bar should be increased after mapping the peptide
+         * @param batches the queue of batches to map
+         * @param displayProgress boolean indicating whether the progress bar
+         * should be increased after mapping a batch
          */
-        public PeptideMapperRunnable(Peptide peptide, boolean increaseProgressBar) {
-            this.peptide = peptide;
-            this.increaseProgressBar = increaseProgressBar;
+        public PeptideBatchMapperRunnable(ConcurrentLinkedQueue<ArrayList<Peptide>> batches, boolean displayProgress) {
+            this.batches = batches;
+            this.displayProgress = displayProgress;
         }
 
         @Override
         public void run() {
 
             try {
-                if (!canceled && !waitingHandler.isRunCanceled()) {
-                    mapPeptide(peptide, increaseProgressBar);
+                ArrayList<Peptide> batch;
+                while ((batch = batches.poll()) != null && !canceled && !waitingHandler.isRunCanceled()) {
+                    for (Peptide peptide : batch) {
+                        mapPeptide(peptide, false);
+                        if (canceled || waitingHandler.isRunCanceled()) {
+                            return;
+                        }
+                    }
+                    if (displayProgress) {
+                        waitingHandler.increaseSecondaryProgressCounter(batch.size());
+                    }
                 }
             } catch (Exception e) {
                 if (!canceled && !waitingHandler.isRunCanceled()) {
@@ -0,0 +1,450 @@
+package eu.isas.peptideshaker.protein_inference;
+
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.preferences.SequenceMatchingPreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On disk cache of the mapping of peptide sequences to proteins. A cache file
+ * is kept for every FASTA file path and sequence matching preferences. The
+ * cache file contains the checksum of the content of the FASTA file together
+ * with the path, size and modification date of the file when the checksum was
+ * computed, so that the content is only read again when one of these changes.
+ * The mapping found in the cache is given to the peptides before they are
+ * mapped to the database. Only the most recently used cache files are kept in
+ * the cache folder, and at most MAX_MAPPINGS peptides are kept in memory.
+ *
+ * @author Marc Vaudel
+ */
+public class PeptideMappingCache {
+
+    /**
+     * The name of the folder containing the cache files.
+     */
+    public static final String CACHE_FOLDER = "peptide_mapping";
+    /**
+     * The extension of the cache files.
+     */
+    public static final String EXTENSION = ".pmc";
+    /**
+     * Number written at the beginning of the cache files.
+     */
+    private static final int MAGIC_NUMBER = 0x50534d43;
+    /**
+     * The version of the cache file format.
+     */
+    private static final int VERSION = 2;
+    /**
+     * The maximal number of cache files kept in the cache folder.
+     */
+    public static final int MAX_CACHE_FILES = 10;
+    /**
+     * The maximal number of peptide mappings kept in memory. New mappings are
+     * not cached anymore when this number is reached.
+     */
+    public static final int MAX_MAPPINGS = 1000000;
+    /**
+     * The encoding used for the sequences and accessions.
+     */
+    private static final String ENCODING = "UTF-8";
+    /**
+     * The cache file.
+     */
+    private final File cacheFile;
+    /**
+     * The path, size and modification date of the FASTA file.
+     */
+    private String fastaFingerprint;
+    /**
+     * The MD5 checksum of the content of the FASTA file.
+     */
+    private String fastaChecksum;
+    /**
+     * The mapping of the peptides: sequence | protein accessions.
+     */
+    private final ConcurrentHashMap<String, ArrayList<String>> mapping = new ConcurrentHashMap<String, ArrayList<String>>();
+    /**
+     * The number of mappings loaded from the file.
+     */
+    private int nLoaded = 0;
+    /**
+     * The number of peptides mapped using the cache.
+     */
+    private int nHits = 0;
+    /**
+     * Boolean indicating whether mappings were added since the cache was
+     * loaded.
+     */
+    private volatile boolean modified = false;
+
+    /**
+     * Constructor.
+     *
+     * @param cacheFile the cache file
+     */
+    private PeptideMappingCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Loads the cache corresponding to the given FASTA file and sequence
+     * matching preferences. An empty cache is returned if none was saved
+     * before or if the content of the FASTA file changed. A cache file which
+     * cannot be read is reported to the waiting handler and replaced.
+     *
+     * @param cacheFolder the folder where the cache files are stored
+     * @param fastaFile the FASTA file
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     * @param waitingHandler the handler displaying feedback to the user
+     *
+     * @return the peptide mapping cache
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the FASTA file
+     */
+    public static PeptideMappingCache load(File cacheFolder, File fastaFile, SequenceMatchingPreferences sequenceMatchingPreferences,
+            WaitingHandler waitingHandler) throws IOException {
+
+        if (!fastaFile.isFile()) {
+            throw new IOException("FASTA file " + fastaFile.getAbsolutePath() + " not found.");
+        }
+        String fastaPath = fastaFile.getCanonicalPath();
+        String fileName = getChecksum(fastaPath.getBytes(ENCODING)) + "_" + getPreferencesChecksum(sequenceMatchingPreferences) + EXTENSION;
+        PeptideMappingCache peptideMappingCache = new PeptideMappingCache(new File(cacheFolder, fileName));
+        peptideMappingCache.fastaFingerprint = fastaPath + "_" + fastaFile.length() + "_" + fastaFile.lastModified();
+
+        if (peptideMappingCache.cacheFile.exists()) {
+            try {
+                peptideMappingCache.cacheFile.setLastModified(System.currentTimeMillis());
+                peptideMappingCache.read(fastaFile);
+            } catch (IOException e) {
+                waitingHandler.appendReport("The peptide mapping cache file " + peptideMappingCache.cacheFile.getName()
+                        + " could not be read (" + e.getLocalizedMessage() + ") and will be replaced.", true, true);
+                peptideMappingCache.mapping.clear();
+                peptideMappingCache.nLoaded = 0;
+                peptideMappingCache.modified = true;
+            }
+        }
+
+        if (peptideMappingCache.fastaChecksum == null) {
+            peptideMappingCache.fastaChecksum = getFastaChecksum(fastaFile);
+        }
+
+        return peptideMappingCache;
+    }
+
+    /**
+     * Reads the cache file. The mappings are only loaded if the checksum of
+     * the FASTA file matches the one of the cache. The content of the FASTA
+     * file is only read if its path, size or modification date changed since
+     * the checksum was computed.
+     *
+     * @param fastaFile the FASTA file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private void read(File fastaFile) throws IOException {
+
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+        try {
+            if (inputStream.readInt() != MAGIC_NUMBER || inputStream.readInt() != VERSION) {
+                throw new IOException("unsupported file format");
+            }
+
+            String cachedFingerprint = readString(inputStream);
+            String cachedChecksum = readString(inputStream);
+            if (cachedFingerprint.equals(fastaFingerprint)) {
+                fastaChecksum = cachedChecksum;
+            } else {
+                fastaChecksum = getFastaChecksum(fastaFile);
+                // save the new fingerprint, or the empty cache if the content changed
+                modified = true;
+                if (!fastaChecksum.equals(cachedChecksum)) {
+                    return;
+                }
+            }
+
+            int nPeptides = Math.min(inputStream.readInt(), MAX_MAPPINGS);
+            for (int i = 0; i < nPeptides; i++) {
+                String sequence = readString(inputStream);
+                int nProteins = inputStream.readInt();
+                ArrayList<String> accessions = new ArrayList<String>(nProteins);
+                for (int j = 0; j < nProteins; j++) {
+                    accessions.add(readString(inputStream));
+                }
+                mapping.put(sequence, accessions);
+            }
+            nLoaded = nPeptides;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Reads a string from the stream.
+     *
+     * @param inputStream the stream
+     *
+     * @return the string read
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the string
+     */
+    private static String readString(DataInputStream inputStream) throws IOException {
+        byte[] bytes = new byte[inputStream.readInt()];
+        inputStream.readFully(bytes);
+        return new String(bytes, ENCODING);
+    }
+
+    /**
+     * Writes a string to the stream.
+     *
+     * @param outputStream the stream
+     * @param string the string to write
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the string
+     */
+    private static void writeString(DataOutputStream outputStream, String string) throws IOException {
+        byte[] bytes = string.getBytes(ENCODING);
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    /**
+     * Saves the cache if new mappings were added. The cache is written to a
+     * temporary file which then replaces the cache file, and the least
+     * recently used cache files are deleted when more than MAX_CACHE_FILES
+     * are found in the folder.
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public synchronized void save() throws IOException {
+
+        if (!modified) {
+            return;
+        }
+
+        File folder = cacheFile.getParentFile();
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Impossible to create folder " + folder.getAbsolutePath() + ".");
+        }
+
+        File tempFile = new File(folder, cacheFile.getName() + "_temp");
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            outputStream.writeInt(MAGIC_NUMBER);
+            outputStream.writeInt(VERSION);
+            writeString(outputStream, fastaFingerprint);
+            writeString(outputStream, fastaChecksum);
+            ArrayList<String> sequences = new ArrayList<String>(mapping.keySet());
+            outputStream.writeInt(sequences.size());
+            for (String sequence : sequences) {
+                ArrayList<String> accessions = mapping.get(sequence);
+                writeString(outputStream, sequence);
+                outputStream.writeInt(accessions.size());
+                for (String accession : accessions) {
+                    writeString(outputStream, accession);
+                }
+            }
+        } finally {
+            outputStream.close();
+        }
+
+        if (cacheFile.exists() && !cacheFile.delete()) {
+            throw new IOException("Impossible to replace the peptide mapping cache " + cacheFile.getAbsolutePath() + ".");
+        }
+        if (!tempFile.renameTo(cacheFile)) {
+            throw new IOException("Impossible to save the peptide mapping cache " + cacheFile.getAbsolutePath() + ".");
+        }
+        modified = false;
+
+        cleanUp(folder, MAX_CACHE_FILES);
+    }
+
+    /**
+     * Deletes the least recently used cache files of the given folder until
+     * at most nFiles remain.
+     *
+     * @param cacheFolder the folder where the cache files are stored
+     * @param nFiles the maximal number of cache files to keep
+     */
+    public static void cleanUp(File cacheFolder, int nFiles) {
+        File[] cacheFiles = cacheFolder.listFiles();
+        if (cacheFiles == null) {
+            return;
+        }
+        ArrayList<File> files = new ArrayList<File>(cacheFiles.length);
+        for (File file : cacheFiles) {
+            if (file.isFile() && file.getName().endsWith(EXTENSION)) {
+                files.add(file);
+            }
+        }
+        if (files.size() <= nFiles) {
+            return;
+        }
+        File[] sortedFiles = files.toArray(new File[files.size()]);
+        Arrays.sort(sortedFiles, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                long date1 = file1.lastModified(), date2 = file2.lastModified();
+                return date1 > date2 ? -1 : date1 < date2 ? 1 : 0;
+            }
+        });
+        for (int i = nFiles; i < sortedFiles.length; i++) {
+            sortedFiles[i].delete();
+        }
+    }
+
+    /**
+     * Sets the parent proteins of the given peptide from the cache if
+     * available. Peptides already mapped are not changed.
+     *
+     * @param peptide the peptide
+     *
+     * @return a boolean indicating whether the peptide is mapped
+     */
+    public boolean setParentProteins(Peptide peptide) {
+        if (peptide.getParentProteinsNoRemapping() != null) {
+            return true;
+        }
+        ArrayList<String> accessions = mapping.get(peptide.getSequence());
+        if (accessions == null) {
+            return false;
+        }
+        peptide.setParentProteins(new ArrayList<String>(accessions));
+        increaseHits();
+        return true;
+    }
+
+    /**
+     * Adds the mapping of a peptide to the cache. The mapping is ignored if
+     * the cache already contains MAX_MAPPINGS peptides.
+     *
+     * @param peptide the peptide
+     * @param accessions the accessions of the proteins the peptide maps to
+     */
+    public void addMapping(Peptide peptide, ArrayList<String> accessions) {
+        if (accessions != null && mapping.size() < MAX_MAPPINGS && mapping.putIfAbsent(peptide.getSequence(), new ArrayList<String>(accessions)) == null) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Increases the number of cache hits.
+     */
+    private synchronized void increaseHits() {
+        nHits++;
+    }
+
+    /**
+     * Returns the number of mappings loaded from the cache file.
+     *
+     * @return the number of mappings loaded from the cache file
+     */
+    public int getnLoaded() {
+        return nLoaded;
+    }
+
+    /**
+     * Returns the number of peptides mapped using the cache.
+     *
+     * @return the number of peptides mapped using the cache
+     */
+    public synchronized int getnHits() {
+        return nHits;
+    }
+
+    /**
+     * Returns the MD5 checksum of the content of the given FASTA file.
+     *
+     * @param fastaFile the FASTA file
+     *
+     * @return the MD5 checksum as hexadecimal string
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    private static String getFastaChecksum(File fastaFile) throws IOException {
+        MessageDigest messageDigest = getMessageDigest();
+        InputStream inputStream = new FileInputStream(fastaFile);
+        try {
+            byte[] buffer = new byte[65536];
+            int nBytes;
+            while ((nBytes = inputStream.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, nBytes);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return new BigInteger(1, messageDigest.digest()).toString(16);
+    }
+
+    /**
+     * Returns the MD5 checksum of the given bytes.
+     *
+     * @param bytes the bytes
+     *
+     * @return the MD5 checksum as hexadecimal string
+     */
+    private static String getChecksum(byte[] bytes) {
+        MessageDigest messageDigest = getMessageDigest();
+        messageDigest.update(bytes);
+        return new BigInteger(1, messageDigest.digest()).toString(16);
+    }
+
+    /**
+     * Returns the MD5 checksum of the serialized sequence matching
+     * preferences.
+     *
+     * @param sequenceMatchingPreferences the sequence matching preferences
+     *
+     * @return the MD5 checksum as hexadecimal string
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * serializing the preferences
+     */
+    private static String getPreferencesChecksum(SequenceMatchingPreferences sequenceMatchingPreferences) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectStream = new ObjectOutputStream(byteStream);
+        try {
+            objectStream.writeObject(sequenceMatchingPreferences);
+        } finally {
+            objectStream.close();
+        }
+        return getChecksum(byteStream.toByteArray());
+    }
+
+    /**
+     * Returns an MD5 message digest.
+     *
+     * @return an MD5 message digest
+     */
+    private static MessageDigest getMessageDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 algorithm not available.", e);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package eu.isas.peptideshaker.protein_inference;
+
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import com.compomics.util.experiment.identification.matches_iterators.ProteinMatchesIterator;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.utils.ProteinAccessionDictionary;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Bipartite graph linking the protein groups to the proteins they contain.
+ * Peptides mapping to the same proteins are represented by the protein group
+ * gathering them. Two groups sharing a protein are connected, and groups
+ * which are not connected through any protein can be inferred independently.
+ * The graph is therefore split in connected components which can be processed
+ * in parallel. Proteins are represented by their index in the
+ * ProteinAccessionDictionary.
+ *
+ * @author Marc Vaudel
+ */
+public class ProteinGraph {
+
+    /**
+     * The keys of the protein groups indexed by group index.
+     */
+    private final ArrayList<String> groupKeys = new ArrayList<String>();
+    /**
+     * The sorted accession indexes of the proteins of every group indexed by
+     * group index.
+     */
+    private final ArrayList<int[]> groupProteins = new ArrayList<int[]>();
+    /**
+     * Map of the groups containing a given protein: accession index | group
+     * indexes.
+     */
+    private final HashMap<Integer, int[]> proteinGroups = new HashMap<Integer, int[]>();
+    /**
+     * The connected components of the graph as lists of group indexes.
+     */
+    private final ArrayList<int[]> components = new ArrayList<int[]>();
+
+    /**
+     * Constructor. Builds the graph from the protein matches of the given
+     * identification.
+     *
+     * @param identification the identification containing the protein matches
+     * @param accessionDictionary the dictionary used to index the protein
+     * accessions
+     * @param waitingHandler the handler displaying feedback to the user, can
+     * be null
+     *
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws IOException thrown if an IOException occurs
+     * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     */
+    public ProteinGraph(Identification identification, ProteinAccessionDictionary accessionDictionary, WaitingHandler waitingHandler) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+
+        HashMap<Integer, ArrayList<Integer>> proteinGroupsLists = new HashMap<Integer, ArrayList<Integer>>();
+        ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(null, false, null, false, null, waitingHandler);
+        ProteinMatch proteinMatch;
+        while ((proteinMatch = proteinMatchesIterator.next()) != null) {
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return;
+            }
+            int groupIndex = groupKeys.size();
+            int[] proteins = accessionDictionary.getGroup(proteinMatch.getTheoreticProteinsAccessions());
+            groupKeys.add(proteinMatch.getKey());
+            groupProteins.add(proteins);
+            for (int protein : proteins) {
+                ArrayList<Integer> groups = proteinGroupsLists.get(protein);
+                if (groups == null) {
+                    groups = new ArrayList<Integer>(1);
+                    proteinGroupsLists.put(protein, groups);
+                }
+                groups.add(groupIndex);
+            }
+        }
+
+        for (Integer protein : proteinGroupsLists.keySet()) {
+            ArrayList<Integer> groupsList = proteinGroupsLists.get(protein);
+            int[] groups = new int[groupsList.size()];
+            for (int i = 0; i < groups.length; i++) {
+                groups[i] = groupsList.get(i);
+            }
+            proteinGroups.put(protein, groups);
+        }
+
+        setComponents();
+    }
+
+    /**
+     * Splits the graph in connected components using a union-find over the
+     * groups. The groups of a component are kept in the order of the protein
+     * matches iteration and the components are sorted by decreasing size so
+     * that the largest ones are processed first.
+     */
+    private void setComponents() {
+
+        int nGroups = groupKeys.size();
+        int[] parents = new int[nGroups];
+        for (int i = 0; i < nGroups; i++) {
+            parents[i] = i;
+        }
+
+        for (int[] groups : proteinGroups.values()) {
+            int root = getRoot(parents, groups[0]);
+            for (int i = 1; i < groups.length; i++) {
+                int otherRoot = getRoot(parents, groups[i]);
+                if (otherRoot != root) {
+                    if (otherRoot < root) {
+                        parents[root] = otherRoot;
+                        root = otherRoot;
+                    } else {
+                        parents[otherRoot] = root;
+                    }
+                }
+            }
+        }
+
+        HashMap<Integer, ArrayList<Integer>> componentsMap = new HashMap<Integer, ArrayList<Integer>>();
+        ArrayList<Integer> roots = new ArrayList<Integer>();
+        for (int i = 0; i < nGroups; i++) {
+            int root = getRoot(parents, i);
+            ArrayList<Integer> component = componentsMap.get(root);
+            if (component == null) {
+                component = new ArrayList<Integer>(1);
+                componentsMap.put(root, component);
+                roots.add(root);
+            }
+            component.add(i);
+        }
+
+        for (Integer root : roots) {
+            ArrayList<Integer> component = componentsMap.get(root);
+            int[] groups = new int[component.size()];
+            for (int i = 0; i < groups.length; i++) {
+                groups[i] = component.get(i);
+            }
+            components.add(groups);
+        }
+
+        Collections.sort(components, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] o1, int[] o2) {
+                return o2.length - o1.length;
+            }
+        });
+    }
+
+    /**
+     * Returns the root of a group in the union-find forest and compresses the
+     * path on the way.
+     *
+     * @param parents the parent of every group
+     * @param group the index of the group
+     *
+     * @return the root of the group
+     */
+    private static int getRoot(int[] parents, int group) {
+        int root = group;
+        while (parents[root] != root) {
+            root = parents[root];
+        }
+        while (parents[group] != root) {
+            int parent = parents[group];
+            parents[group] = root;
+            group = parent;
+        }
+        return root;
+    }
+
+    /**
+     * Returns the number of protein groups in the graph.
+     *
+     * @return the number of protein groups in the graph
+     */
+    public int getNGroups() {
+        return groupKeys.size();
+    }
+
+    /**
+     * Returns the key of a protein group.
+     *
+     * @param group the index of the group
+     *
+     * @return the key of the protein group
+     */
+    public String getGroupKey(int group) {
+        return groupKeys.get(group);
+    }
+
+    /**
+     * Returns the sorted accession indexes of the proteins of a group.
+     *
+     * @param group the index of the group
+     *
+     * @return the sorted accession indexes of the proteins of the group
+     */
+    public int[] getProteins(int group) {
+        return groupProteins.get(group);
+    }
+
+    /**
+     * Returns the indexes of the groups containing the given protein.
+     *
+     * @param protein the accession index of the protein
+     *
+     * @return the indexes of the groups containing the given protein
+     */
+    public int[] getGroups(int protein) {
+        return proteinGroups.get(protein);
+    }
+
+    /**
+     * Returns the number of connected components.
+     *
+     * @return the number of connected components
+     */
+    public int getNComponents() {
+        return components.size();
+    }
+
+    /**
+     * Returns an iterator over the connected components. The iterator can be
+     * shared between threads.
+     *
+     * @return an iterator over the connected components
+     */
+    public ComponentsIterator getComponentsIterator() {
+        return new ComponentsIterator();
+    }
+
+    /**
+     * Iterator over the connected components of the graph.
+     */
+    public class ComponentsIterator {
+
+        /**
+         * The index of the next component.
+         */
+        private int index = 0;
+
+        /**
+         * Returns the groups of the next component, null if none left.
+         *
+         * @return the groups of the next component
+         */
+        public synchronized int[] next() {
+            if (index < components.size()) {
+                return components.get(index++);
+            }
+            return null;
+        }
+    }
+}
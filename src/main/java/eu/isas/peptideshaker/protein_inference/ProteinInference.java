@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.protein_inference;
 
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.biology.Protein;
 import com.compomics.util.experiment.identification.Identification;
 import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
@@ -10,19 +11,27 @@ import com.compomics.util.experiment.identification.matches_iterators.ProteinMat
 import com.compomics.util.experiment.personalization.UrParameter;
 import com.compomics.util.preferences.DigestionPreferences;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.preferences.ProteinInferencePreferences;
 import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.peptideshaker.parameters.PSParameter;
 import eu.isas.peptideshaker.scoring.maps.ProteinMap;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.ProteinAccessionDictionary;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class groups the methods for protein inference.
@@ -34,45 +43,79 @@ public class ProteinInference {
     /**
      * Number of groups deleted because of protein evidence issues.
      */
-    private int evidenceIssue = 0;
+    private AtomicInteger evidenceIssue = new AtomicInteger(0);
     /**
      * Number of groups deleted because of enzymatic issues.
      */
-    private int enzymaticIssue = 0;
+    private AtomicInteger enzymaticIssue = new AtomicInteger(0);
     /**
      * Number of groups deleted because of protein characterization issues.
      */
-    private int uncharacterizedIssue = 0;
+    private AtomicInteger uncharacterizedIssue = new AtomicInteger(0);
     /**
      * Number of groups deleted because explained by a simpler group.
      */
-    private int explainedGroup = 0;
+    private AtomicInteger explainedGroup = new AtomicInteger(0);
     /**
      * The protein sequence factory.
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
     /**
-     * Map of the most complex groups: key | proteins
+     * The protein accession dictionary of the project.
      */
-    private HashMap<String, ArrayList<String>> proteinGroupCache = new HashMap<String, ArrayList<String>>(100);
+    private final ProteinAccessionDictionary accessionDictionary;
     /**
-     * Size of the protein groups cahce
+     * The graph of the protein groups and their proteins. Built when needed
+     * and reset when protein groups are removed.
      */
-    private int cacheSize = 100;
+    private ProteinGraph proteinGraph = null;
+
     /**
-     * The minimal group size to include a protein in the cache
+     * Constructor.
+     *
+     * @param accessionDictionary the protein accession dictionary of the
+     * project
      */
-    private int sizeOfProteinsInCache = 10;
+    public ProteinInference(ProteinAccessionDictionary accessionDictionary) {
+        this.accessionDictionary = accessionDictionary;
+    }
 
     /**
-     * Reduce artifact groups which can be explained by a simpler group.
+     * Returns the graph of the protein groups of the given identification,
+     * builds it if not done already.
+     *
+     * @param identification the identification class containing all
+     * identification matches
+     * @param waitingHandler the handler displaying feedback to the user, can
+     * be null
+     *
+     * @return the graph of the protein groups
+     *
+     * @throws IOException thrown if an IOException occurs
+     * @throws InterruptedException thrown if an InterruptedException occurs
+     * @throws SQLException thrown if an SQLException occurs
+     * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
+     */
+    private ProteinGraph getProteinGraph(Identification identification, WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException {
+        if (proteinGraph == null) {
+            proteinGraph = new ProteinGraph(identification, accessionDictionary, waitingHandler);
+        }
+        return proteinGraph;
+    }
+
+    /**
+     * Reduce artifact groups which can be explained by a simpler group. The
+     * connected components of the protein graph are processed in parallel.
      *
      * @param identification the identification class containing all
      * identification matches
      * @param identificationParameters the identification parameters
      * @param identificationFeaturesGenerator the identification feature
      * generator
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      *
      * @throws IOException thrown if an IOException occurs
      * @throws InterruptedException thrown if an InterruptedException occurs
@@ -80,7 +123,8 @@ public class ProteinInference {
      * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
      */
     public void removeRedundantGroups(Identification identification, IdentificationParameters identificationParameters,
-            IdentificationFeaturesGenerator identificationFeaturesGenerator, WaitingHandler waitingHandler)
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, ProcessingPreferences processingPreferences,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
             throws IOException, SQLException, ClassNotFoundException, InterruptedException {
 
         ArrayList<String> toRemove = new ArrayList<String>();
@@ -92,33 +136,32 @@ public class ProteinInference {
             waitingHandler.setMaxSecondaryProgressCounter(max);
         }
 
-        HashSet<String> toDelete = new HashSet<String>();
-        HashMap<String, String> processedKeys = new HashMap<String, String>();
-
-        ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(null, false, null, false, null, waitingHandler);
-        ProteinMatch proteinSharedGroup;
-        while ((proteinSharedGroup = proteinMatchesIterator.next()) != null) {
-            if (proteinSharedGroup.getNProteins() > 1) {
-                String proteinSharedKey = proteinSharedGroup.getKey();
-                if (!processedKeys.containsKey(proteinSharedKey)) {
-                    String uniqueKey = getSubgroup(identification, proteinSharedKey, proteinSharedGroup, processedKeys, toDelete, identificationParameters, identificationFeaturesGenerator);
-                    if (uniqueKey != null) {
-                        mergeProteinGroups(identification, proteinSharedKey, uniqueKey, toDelete);
-                        processedKeys.put(proteinSharedKey, uniqueKey);
-                    } else {
-                        processedKeys.put(proteinSharedKey, proteinSharedKey);
-                    }
-                }
-                if (waitingHandler != null) {
-                    if (waitingHandler.isRunCanceled()) {
-                        return;
-                    }
-                    waitingHandler.increaseSecondaryProgressCounter();
-                }
-            }
+        ProteinGraph graph = getProteinGraph(identification, waitingHandler);
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            return;
+        }
+        ProteinGraph.ComponentsIterator componentsIterator = graph.getComponentsIterator();
+
+        Set<String> toDelete = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads() && (waitingHandler == null || !waitingHandler.isRunCanceled()); i++) {
+            GroupSimplificationRunnable runnable = new GroupSimplificationRunnable(identification, graph, componentsIterator, identificationParameters,
+                    identificationFeaturesGenerator, toDelete, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+        }
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            pool.shutdownNow();
+            return;
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Protein groups simplification timed out. Please contact the developers.");
+        }
+        if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+            return;
         }
 
-        if (enzymaticIssue + evidenceIssue + uncharacterizedIssue + explainedGroup > 0) { // special case to not divide by zero
+        if (enzymaticIssue.get() + evidenceIssue.get() + uncharacterizedIssue.get() + explainedGroup.get() > 0) { // special case to not divide by zero
 
             if (waitingHandler != null) {
                 waitingHandler.setWaitingText("Removing Mapping Artifacts. Please Wait...");
@@ -126,17 +169,17 @@ public class ProteinInference {
 
                 String padding = "    ";
 
-                if (enzymaticIssue > 0) {
-                    waitingHandler.appendReport(padding + "- " + enzymaticIssue + " protein groups supported by non-enzymatic shared peptides.", true, true);
+                if (enzymaticIssue.get() > 0) {
+                    waitingHandler.appendReport(padding + "- " + enzymaticIssue.get() + " protein groups supported by non-enzymatic shared peptides.", true, true);
                 }
-                if (evidenceIssue > 0) {
-                    waitingHandler.appendReport(padding + "- " + evidenceIssue + " protein groups explained by peptides shared to less confident mappings.", true, true);
+                if (evidenceIssue.get() > 0) {
+                    waitingHandler.appendReport(padding + "- " + evidenceIssue.get() + " protein groups explained by peptides shared to less confident mappings.", true, true);
                 }
-                if (uncharacterizedIssue > 0) {
-                    waitingHandler.appendReport(padding + "- " + uncharacterizedIssue + " protein groups supported by peptides shared to uncharacterized proteins.", true, true);
+                if (uncharacterizedIssue.get() > 0) {
+                    waitingHandler.appendReport(padding + "- " + uncharacterizedIssue.get() + " protein groups supported by peptides shared to uncharacterized proteins.", true, true);
                 }
-                if (explainedGroup > 0) {
-                    waitingHandler.appendReport(padding + "- " + explainedGroup + " groups explained by a simpler group.", true, true);
+                if (explainedGroup.get() > 0) {
+                    waitingHandler.appendReport(padding + "- " + explainedGroup.get() + " groups explained by a simpler group.", true, true);
                 }
                 waitingHandler.appendReport(padding + "Note: a group can present combinations of these criteria.", true, true);
                 waitingHandler.setSecondaryProgressCounterIndeterminate(false);
@@ -156,22 +199,22 @@ public class ProteinInference {
     }
 
     /**
-     * Returns the best subgroup of a protein key, null if none found. If
-     * intermediate groups are found they will be processed. Processed keys are
-     * stored in processedKeys. Keys to delete are stored in keysToDelete.
-     * Returns null if no simpler group is found.
+     * Returns the best subgroup of a protein group, -1 if none found. If
+     * intermediate groups are found they will be processed. Processed groups
+     * are stored in processedGroups. Keys to delete are stored in
+     * keysToDelete. Returns -1 if no simpler group is found.
      *
      * @param identification the identification where to get the matches from.
-     * @param sharedKey the key of the group to inspect
-     * @param processedKeys map of already processed keys and their best smaller
-     * key
+     * @param graph the protein graph
+     * @param sharedGroup the index of the group to inspect in the graph
+     * @param processedGroups map of already processed groups and their best
+     * smaller group
      * @param keysToDelete list of keys to delete
-     * @param shotgunProtocol the protocol containing the enzyme used
+     * @param identificationParameters the identification parameters
      * @param identificationFeaturesGenerator the identification features
      * generator
-     * @param proteinInferencePreferences the protein inference preferences
      *
-     * @return the best smaller group, null if none found.
+     * @return the index of the best smaller group, -1 if none found.
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading or writing a file
@@ -182,139 +225,123 @@ public class ProteinInference {
      * @throws SQLException exception thrown whenever an error occurred while
      * interacting with the back-end database
      */
-    private String getSubgroup(Identification identification, String sharedKey, ProteinMatch sharedProteinMatch, HashMap<String, String> processedKeys,
+    private int getSubgroup(Identification identification, ProteinGraph graph, int sharedGroup, HashMap<Integer, Integer> processedGroups,
             HashSet<String> keysToDelete, IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator)
             throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
-        ArrayList<String> sharedAccessions;
-        if (sharedProteinMatch == null) {
-            sharedAccessions = proteinGroupCache.get(sharedKey);
-            if (sharedAccessions == null) {
-                sharedProteinMatch = identification.getProteinMatch(sharedKey, false);
-            }
-        }
-        if (sharedProteinMatch != null) {
-            sharedAccessions = sharedProteinMatch.getTheoreticProteinsAccessions();
-        } else {
-            sharedAccessions = getProteins(sharedKey);
-        }
-        HashSet<String> candidateUnique = new HashSet<String>(1);
-        HashSet<String> sharedAccessionsAsSet = null;
-
-        for (String accession : sharedAccessions) {
-            HashSet<String> otherGroups = identification.getProteinMap().get(accession);
-            for (String uniqueKey : otherGroups) {
-                if (!uniqueKey.equals(sharedKey)) {
-                    ArrayList<String> uniqueAccessions = proteinGroupCache.get(uniqueKey);
-                    if (uniqueAccessions == null) {
-                        ProteinMatch uniqueProteinMatch = identification.getProteinMatch(uniqueKey, false);
-                        if (uniqueProteinMatch != null) {
-                            uniqueAccessions = uniqueProteinMatch.getTheoreticProteinsAccessions();
-                        } else {
-                            uniqueAccessions = getProteins(uniqueKey);
-                        }
-                    }
-                    if (sharedAccessions.size() >= uniqueAccessions.size()) {
-                        if (sharedAccessionsAsSet == null) {
-                            sharedAccessionsAsSet = new HashSet<String>(sharedAccessions);
-                        }
-                        if (ProteinMatch.contains(sharedAccessionsAsSet, uniqueAccessions) && !keysToDelete.contains(uniqueKey)) {
-                            String subGroup = uniqueKey;
-                            if (uniqueAccessions.size() > 1) {
-                                String reducedGroup = processedKeys.get(uniqueKey);
+        int[] sharedProteins = graph.getProteins(sharedGroup);
+        HashSet<Integer> candidateUnique = new HashSet<Integer>(1);
+
+        for (int sharedProtein : sharedProteins) {
+            for (int uniqueGroup : graph.getGroups(sharedProtein)) {
+                if (uniqueGroup != sharedGroup) {
+                    int[] uniqueProteins = graph.getProteins(uniqueGroup);
+                    if (sharedProteins.length >= uniqueProteins.length) {
+                        String uniqueKey = graph.getGroupKey(uniqueGroup);
+                        if (ProteinAccessionDictionary.contains(sharedProteins, uniqueProteins) && !keysToDelete.contains(uniqueKey)) {
+                            int subGroup = uniqueGroup;
+                            if (uniqueProteins.length > 1) {
+                                Integer reducedGroup = processedGroups.get(uniqueGroup);
                                 if (reducedGroup == null) {
-                                    reducedGroup = getSubgroup(identification, uniqueKey, null, processedKeys, keysToDelete, identificationParameters, identificationFeaturesGenerator);
-                                    if (reducedGroup != null) {
-                                        mergeProteinGroups(identification, uniqueKey, reducedGroup, keysToDelete);
-                                        processedKeys.put(uniqueKey, reducedGroup);
+                                    reducedGroup = getSubgroup(identification, graph, uniqueGroup, processedGroups, keysToDelete, identificationParameters, identificationFeaturesGenerator);
+                                    if (reducedGroup != -1) {
+                                        mergeProteinGroups(identification, uniqueKey, graph.getGroupKey(reducedGroup), keysToDelete);
+                                        processedGroups.put(uniqueGroup, reducedGroup);
                                         subGroup = reducedGroup;
                                     } else {
-                                        processedKeys.put(uniqueKey, uniqueKey);
+                                        processedGroups.put(uniqueGroup, uniqueGroup);
                                     }
                                 }
                             }
-                            if (!candidateUnique.contains(subGroup)) {
-                                candidateUnique.add(subGroup);
-                            }
+                            candidateUnique.add(subGroup);
                         }
                     }
                 }
             }
         }
 
-        String minimalKey = null;
+        int minimalGroup = -1;
 
         if (!candidateUnique.isEmpty()) {
-            ArrayList<String> keys = new ArrayList<String>(candidateUnique.size());
-            for (String accession : candidateUnique) {
-                if (!keysToDelete.contains(accession)) {
-                    keys.add(accession);
+
+            // the proteins of every candidate are retrieved once before comparing the candidates
+            ArrayList<Integer> groups = new ArrayList<Integer>(candidateUnique.size());
+            ArrayList<int[]> groupsProteins = new ArrayList<int[]>(candidateUnique.size());
+            for (int group : candidateUnique) {
+                if (!keysToDelete.contains(graph.getGroupKey(group))) {
+                    groups.add(group);
+                    groupsProteins.add(graph.getProteins(group));
                 }
             }
 
-            if (!keys.isEmpty()) {
-                ProteinMatch match = identification.getProteinMatch(sharedKey);
-                HashMap<String, Integer> preferenceReason = new HashMap<String, Integer>();
-                for (String key1 : keys) {
-                    for (String accession1 : ProteinMatch.getAccessions(key1)) {
-                        if (minimalKey == null) {
-                            preferenceReason = new HashMap<String, Integer>();
+            if (!groups.isEmpty()) {
+                ProteinMatch match = identification.getProteinMatch(graph.getGroupKey(sharedGroup));
+                HashMap<Integer, Integer> preferenceReason = new HashMap<Integer, Integer>();
+                for (int i = 0; i < groups.size(); i++) {
+                    int[] proteins1 = groupsProteins.get(i);
+                    for (int protein1 : proteins1) {
+                        if (minimalGroup == -1) {
+                            preferenceReason = new HashMap<Integer, Integer>();
                             boolean best = true;
-                            for (String key2 : keys) {
-                                if (!key1.equals(key2)) {
-                                    if (!ProteinMatch.contains(key1, key2)) {
-                                        if (!ProteinMatch.getCommonProteins(key1, key2).isEmpty()) {
+                            for (int j = 0; j < groups.size(); j++) {
+                                if (i != j) {
+                                    int[] proteins2 = groupsProteins.get(j);
+                                    if (!ProteinAccessionDictionary.contains(proteins1, proteins2)) {
+                                        if (ProteinAccessionDictionary.intersects(proteins1, proteins2)) {
                                             best = false;
                                         }
-                                        for (String accession2 : ProteinMatch.getAccessions(key2)) {
-                                            int tempPrefernce = compareMainProtein(match, accession2, match, accession1, identificationFeaturesGenerator, identificationParameters);
+                                        for (int protein2 : proteins2) {
+                                            int tempPrefernce = compareMainProtein(match, protein2, match, protein1, identificationFeaturesGenerator, identificationParameters);
                                             if (tempPrefernce != 1) {
                                                 best = false;
                                             } else {
-                                                if (preferenceReason.containsKey(accession2)) {
-                                                    tempPrefernce = Math.min(preferenceReason.get(accession2), tempPrefernce);
+                                                if (preferenceReason.containsKey(protein2)) {
+                                                    tempPrefernce = Math.min(preferenceReason.get(protein2), tempPrefernce);
                                                 }
-                                                preferenceReason.put(accession2, tempPrefernce);
+                                                preferenceReason.put(protein2, tempPrefernce);
                                             }
                                         }
                                     }
                                 }
                             }
                             if (best) {
-                                ArrayList<String> accessions = ProteinMatch.getOtherProteins(sharedKey, key1);
-                                for (String accession2 : accessions) {
-                                    int tempPrefernce = compareMainProtein(match, accession2, match, accession1, identificationFeaturesGenerator, identificationParameters);
+                                for (int protein2 : sharedProteins) {
+                                    if (ProteinAccessionDictionary.contains(proteins1, protein2)) {
+                                        continue;
+                                    }
+                                    int tempPrefernce = compareMainProtein(match, protein2, match, protein1, identificationFeaturesGenerator, identificationParameters);
                                     if (tempPrefernce == 0) {
                                         best = false;
                                         break;
                                     } else {
-                                        if (preferenceReason.containsKey(accession2)) {
-                                            tempPrefernce = Math.min(preferenceReason.get(accession2), tempPrefernce);
+                                        if (preferenceReason.containsKey(protein2)) {
+                                            tempPrefernce = Math.min(preferenceReason.get(protein2), tempPrefernce);
                                         }
-                                        preferenceReason.put(accession2, tempPrefernce);
+                                        preferenceReason.put(protein2, tempPrefernce);
                                     }
                                 }
-                                if (best && minimalKey == null) {
-                                    minimalKey = key1;
+                                if (best && minimalGroup == -1) {
+                                    minimalGroup = groups.get(i);
                                 }
                             }
                         } else {
                             break;
                         }
                     }
-                    if (minimalKey != null) {
-                        for (String key2 : keys) {
-                            if (!key2.equals(minimalKey) && !keysToDelete.contains(key2)) {
+                    if (minimalGroup != -1) {
+                        for (int group2 : groups) {
+                            String key2 = graph.getGroupKey(group2);
+                            if (group2 != minimalGroup && !keysToDelete.contains(key2)) {
                                 keysToDelete.add(key2);
                                 for (int reason : preferenceReason.values()) {
                                     if (reason == 1) {
-                                        enzymaticIssue++;
+                                        enzymaticIssue.incrementAndGet();
                                     }
                                     if (reason == 2) {
-                                        evidenceIssue++;
+                                        evidenceIssue.incrementAndGet();
                                     }
                                     if (reason == 3) {
-                                        uncharacterizedIssue++;
+                                        uncharacterizedIssue.incrementAndGet();
                                     }
                                 }
                             }
@@ -325,7 +352,7 @@ public class ProteinInference {
             }
         }
 
-        return minimalKey;
+        return minimalGroup;
     }
 
     /**
@@ -354,11 +381,12 @@ public class ProteinInference {
         }
 
         keysToDelete.add(sharedGroup);
-        explainedGroup++;
+        explainedGroup.incrementAndGet();
     }
 
     /**
-     * Retains the best scoring of intricate groups.
+     * Retains the best scoring of intricate groups. The connected components
+     * of the protein graph are inspected in parallel.
      *
      * @param identification the identification class containing all
      * identification matches
@@ -368,7 +396,9 @@ public class ProteinInference {
      * @param identificationParameters the identification parameters
      * @param identificationFeaturesGenerator the identification feature
      * generator
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      *
      * @throws IOException thrown if an IOException occurs
      * @throws InterruptedException thrown if an InterruptedException occurs
@@ -376,12 +406,13 @@ public class ProteinInference {
      * @throws ClassNotFoundException thrown if a ClassNotFoundException occurs
      */
     public void retainBestScoringGroups(Identification identification, Metrics metrics, ProteinMap proteinMap,
-            IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator, WaitingHandler waitingHandler)
+            IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
             throws IOException, SQLException, ClassNotFoundException, InterruptedException {
 
         waitingHandler.setWaitingText("Simplifying Redundant Protein Groups. Please Wait...");
 
-        ArrayList<String> toRemove = new ArrayList<String>();
+        Set<String> toRemove = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         int maxProteinKeyLength = 0;
         ProteinInferencePreferences proteinInferencePreferences = identificationParameters.getProteinInferencePreferences();
 
@@ -396,80 +427,42 @@ public class ProteinInference {
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
         parameters.add(psParameter);
         if (proteinInferencePreferences.getSimplifyGroups() && proteinInferencePreferences.getSimplifyGroupsScore()) {
-            ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, true, parameters, true, parameters, waitingHandler);
-            ProteinMatch proteinMatch;
-            while ((proteinMatch = proteinMatchesIterator.next()) != null) {
-
-                if (waitingHandler.isRunCanceled()) {
-                    return;
-                }
-
-                String proteinSharedKey = proteinMatch.getKey();
-                ArrayList<String> sharedAccessions = proteinMatch.getTheoreticProteinsAccessions();
-
-                if (sharedAccessions.size() > 1) {
 
-                    HashSet<String> sharedAccessionsAsSet = null;
-                    psParameter = (PSParameter) identification.getProteinMatchParameter(proteinSharedKey, psParameter);
-                    double sharedProteinProbabilityScore = psParameter.getProteinProbabilityScore();
-                    boolean better = false;
-
-                    for (String accession : sharedAccessions) {
-                        HashSet<String> otherGroups = identification.getProteinMap().get(accession);
-                        for (String proteinUniqueKey : otherGroups) {
-                            if (!proteinUniqueKey.equals(proteinSharedKey)) {
-                                ProteinMatch uniqueProteinMatch = identification.getProteinMatch(proteinUniqueKey, false);
-                                ArrayList<String> uniqueAccessions;
-                                if (uniqueProteinMatch != null) {
-                                    uniqueAccessions = uniqueProteinMatch.getTheoreticProteinsAccessions();
-                                } else {
-                                    uniqueAccessions = getProteins(proteinUniqueKey);
-                                }
-                                if (sharedAccessions.size() >= uniqueAccessions.size()) {
-                                    if (sharedAccessionsAsSet == null) {
-                                        sharedAccessionsAsSet = new HashSet<String>(sharedAccessions);
-                                    }
-                                    if (ProteinMatch.contains(sharedAccessionsAsSet, uniqueAccessions)) {
-                                        psParameter = (PSParameter) identification.getProteinMatchParameter(proteinUniqueKey, psParameter);
-                                        double uniqueProteinProbabilityScore = psParameter.getProteinProbabilityScore();
-                                        ProteinMatch proteinUnique = identification.getProteinMatch(proteinUniqueKey);
-                                        ProteinMatch proteinShared = identification.getProteinMatch(proteinSharedKey);
-                                        for (String sharedPeptideKey : proteinShared.getPeptideMatchesKeys()) {
-                                            proteinUnique.addPeptideMatchKey(sharedPeptideKey);
-                                        }
-                                        identification.updateProteinMatch(proteinUnique);
-                                        if (uniqueProteinProbabilityScore <= sharedProteinProbabilityScore) {
-                                            better = true;
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
+            ProteinGraph graph = getProteinGraph(identification, waitingHandler);
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+            ProteinGraph.ComponentsIterator componentsIterator = graph.getComponentsIterator();
 
-                    if (better) {
-                        toRemove.add(proteinSharedKey);
-                    } else {
-                        waitingHandler.increaseSecondaryProgressCounter();
-                        if (waitingHandler.isRunCanceled()) {
-                            return;
-                        }
-                    }
-                }
+            ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+            for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
+                BestScoringGroupRunnable runnable = new BestScoringGroupRunnable(identification, graph, componentsIterator, toRemove, waitingHandler, exceptionHandler);
+                pool.submit(runnable);
+            }
+            if (waitingHandler.isRunCanceled()) {
+                pool.shutdownNow();
+                return;
+            }
+            pool.shutdown();
+            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+                throw new InterruptedException("Protein groups simplification timed out. Please contact the developers.");
+            }
+            if (waitingHandler.isRunCanceled()) {
+                return;
             }
 
             if (!toRemove.isEmpty()) {
                 for (String proteinKey : toRemove) {
                     psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
-                    proteinMap.removePoint(psParameter.getProteinProbabilityScore(), ProteinMatch.isDecoy(proteinKey));
+                    proteinMap.removePoint(psParameter.getProteinProbabilityScore(), accessionDictionary.isDecoy(proteinKey));
                     identification.removeProteinMatch(proteinKey);
                     waitingHandler.increaseSecondaryProgressCounter();
                 }
                 proteinMap.cleanUp();
+                proteinGraph = null;
             }
         }
 
-        clearCache();
         ProteinMatch.clearCache();
 
         int nSolved = toRemove.size();
@@ -479,192 +472,54 @@ public class ProteinInference {
         waitingHandler.setWaitingText("Inferring PI status, sorting proteins. Please Wait...");
         // As we go through all protein ids, keep the sorted list of proteins and maxima in the instance of the Metrics class to pass them to the GUI afterwards
         // proteins are sorted according to the protein score, then number of peptides (inverted), then number of spectra (inverted).
-        HashMap<Double, HashMap<Integer, HashMap<Integer, ArrayList<String>>>> orderMap
-                = new HashMap<Double, HashMap<Integer, HashMap<Integer, ArrayList<String>>>>();
-        PSParameter probabilities = new PSParameter();
-        double maxMW = 0;
-
         ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, true, parameters, true, parameters, waitingHandler);
-        ProteinMatch proteinMatch;
-        while ((proteinMatch = proteinMatchesIterator.next()) != null) {
-
-            if (waitingHandler.isRunCanceled()) {
-                return;
-            }
-
-            String proteinKey = proteinMatch.getKey();
-
-            if (!ProteinMatch.isDecoy(proteinKey)) {
-                probabilities = (PSParameter) identification.getProteinMatchParameter(proteinKey, probabilities);
-                double score = probabilities.getProteinProbabilityScore();
-                int nPeptides = -proteinMatch.getPeptideMatchesKeys().size();
-                int nSpectra = 0;
-
-                Protein currentProtein = sequenceFactory.getProtein(proteinMatch.getMainMatch());
 
-                if (currentProtein != null) {
-                    double mw = sequenceFactory.computeMolecularWeight(proteinMatch.getMainMatch());
-                    if (mw > maxMW) {
-                        maxMW = mw;
-                    }
-                }
-
-                PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(proteinMatch.getPeptideMatchesKeys(), parameters, false, null, null);
-                PeptideMatch peptideMatch;
-                while ((peptideMatch = peptideMatchesIterator.next()) != null) {
-                    nSpectra -= peptideMatch.getSpectrumCount();
-                }
-                if (!orderMap.containsKey(score)) {
-                    orderMap.put(score, new HashMap<Integer, HashMap<Integer, ArrayList<String>>>());
-                }
-
-                if (!orderMap.get(score).containsKey(nPeptides)) {
-                    orderMap.get(score).put(nPeptides, new HashMap<Integer, ArrayList<String>>());
-                }
-
-                if (!orderMap.get(score).get(nPeptides).containsKey(nSpectra)) {
-                    orderMap.get(score).get(nPeptides).put(nSpectra, new ArrayList<String>());
-                }
-                orderMap.get(score).get(nPeptides).get(nSpectra).add(proteinKey);
-
-                // save the length of the longest protein accession number
-                if (proteinMatch.getMainMatch().length() > maxProteinKeyLength) {
-                    maxProteinKeyLength = proteinMatch.getMainMatch().length();
-                }
-            }
-
-            ArrayList<String> accessions = new ArrayList<String>(Arrays.asList(ProteinMatch.getAccessions(proteinKey)));
-            Collections.sort(accessions);
-            String mainKey = accessions.get(0);
-
-            if (accessions.size() > 1) {
-                boolean similarityFound = false;
-                boolean allSimilar = false;
-                psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
-                for (String accession : accessions) {
-                    if (compareMainProtein(proteinMatch, mainKey, proteinMatch, accession, identificationFeaturesGenerator, identificationParameters) > 0) {
-                        mainKey = accession;
-                    }
-                }
-                for (int i = 0; i < accessions.size() - 1; i++) {
-                    for (int j = i + 1; j < accessions.size(); j++) {
-                        if (getSimilarity(accessions.get(i), accessions.get(j))) {
-                            similarityFound = true;
-                            if (compareMainProtein(proteinMatch, mainKey, proteinMatch, accessions.get(j), identificationFeaturesGenerator, identificationParameters) > 0) {
-                                mainKey = accessions.get(i);
-                            }
-                            break;
-                        }
-                    }
-                    if (similarityFound) {
-                        break;
-                    }
-                }
-                if (similarityFound) {
-                    allSimilar = true;
-                    for (String key : accessions) {
-                        if (!mainKey.equals(key)) {
-                            if (!getSimilarity(mainKey, key)) {
-                                allSimilar = false;
-                                break;
-                            }
-                        }
-                    }
-                }
-                if (!similarityFound) {
-                    psParameter.setProteinInferenceClass(PSParameter.UNRELATED);
-                    nGroups++;
-                    nLeft++;
-                    identification.updateProteinMatchParameter(proteinKey, psParameter);
-
-                    identification.loadPeptideMatchParameters(proteinMatch.getPeptideMatchesKeys(), psParameter, null, false);
-                    for (String peptideKey : proteinMatch.getPeptideMatchesKeys()) {
-                        psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
-                        psParameter.setProteinInferenceClass(PSParameter.UNRELATED);
-                        identification.updatePeptideMatchParameter(peptideKey, psParameter);
-                    }
-
-                } else if (!allSimilar) {
-                    psParameter.setProteinInferenceClass(PSParameter.RELATED_AND_UNRELATED);
-                    nGroups++;
-                    nSolved++;
-                    identification.updateProteinMatchParameter(proteinKey, psParameter);
-
-                    identification.loadPeptideMatchParameters(proteinMatch.getPeptideMatchesKeys(), psParameter, null, false);
-                    for (String peptideKey : proteinMatch.getPeptideMatchesKeys()) {
-                        psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
-                        psParameter.setProteinInferenceClass(PSParameter.RELATED_AND_UNRELATED);
-                        identification.updatePeptideMatchParameter(peptideKey, psParameter);
-                    }
-
-                } else {
-                    psParameter.setProteinInferenceClass(PSParameter.RELATED);
-                    nGroups++;
-                    nSolved++;
-                    identification.updateProteinMatchParameter(proteinKey, psParameter);
-
-                    String mainMatch = proteinMatch.getMainMatch();
-                    PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(proteinMatch.getPeptideMatchesKeys(), parameters, false, null, null);
-                    PeptideMatch peptideMatch;
-                    while ((peptideMatch = peptideMatchesIterator.next()) != null) {
-                        String peptideKey = peptideMatch.getKey();
-                        psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
-                        boolean unrelated = false;
-                        for (String proteinAccession : peptideMatch.getTheoreticPeptide().getParentProteins(identificationParameters.getSequenceMatchingPreferences())) {
-                            if (!proteinKey.contains(proteinAccession)) {
-                                if (!getSimilarity(mainMatch, proteinAccession)) {
-                                    unrelated = true;
-                                    break;
-                                }
-                            }
-                        }
-                        if (unrelated) {
-                            psParameter.setProteinInferenceClass(PSParameter.RELATED_AND_UNRELATED);
-                        } else {
-                            psParameter.setProteinInferenceClass(PSParameter.RELATED);
-                        }
-                        identification.updatePeptideMatchParameter(peptideKey, psParameter);
-                    }
-                }
-            } else {
-                String mainMatch = proteinMatch.getMainMatch();
-                PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(proteinMatch.getPeptideMatchesKeys(), parameters, false, null, null);
-                PeptideMatch peptideMatch;
-                while ((peptideMatch = peptideMatchesIterator.next()) != null) {
-                    String peptideKey = peptideMatch.getKey();
-                    psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
-                    boolean unrelated = false;
-                    boolean otherProtein = false;
-                    for (String protein : peptideMatch.getTheoreticPeptide().getParentProteins(identificationParameters.getSequenceMatchingPreferences())) {
-                        if (!proteinKey.contains(protein)) {
-                            otherProtein = true;
-                            if (!getSimilarity(mainMatch, protein)) {
-                                unrelated = true;
-                                break;
-                            }
-                        }
-                    }
-                    if (otherProtein) {
-                        psParameter.setProteinInferenceClass(PSParameter.RELATED);
-                    }
-                    if (unrelated) {
-                        psParameter.setProteinInferenceClass(PSParameter.UNRELATED);
-                    }
-                    identification.updatePeptideMatchParameter(peptideKey, psParameter);
-                }
-            }
+        ConcurrentHashMap<String, PeptidePiStatus> peptidePiStatus = new ConcurrentHashMap<String, PeptidePiStatus>();
+        AtomicInteger matchCounter = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        ArrayList<PiStatusRunnable> piStatusRunnables = new ArrayList<PiStatusRunnable>(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
+            PiStatusRunnable runnable = new PiStatusRunnable(proteinMatchesIterator, matchCounter, identification, identificationParameters, identificationFeaturesGenerator,
+                    peptidePiStatus, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+            piStatusRunnables.add(runnable);
+        }
+        if (waitingHandler.isRunCanceled()) {
+            pool.shutdownNow();
+            return;
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Protein inference timed out. Please contact the developers.");
+        }
+        if (waitingHandler.isRunCanceled()) {
+            return;
+        }
 
-            if (ProteinMatch.getNProteins(proteinKey) > 1) {
-                if (!proteinMatch.getMainMatch().equals(mainKey)) {
-                    proteinMatch.setMainMatch(mainKey);
-                    identification.updateProteinMatch(proteinMatch);
+        // the PI status of the peptides is set once all groups are inspected
+        if (!peptidePiStatus.isEmpty()) {
+            ArrayList<String> peptideKeys = new ArrayList<String>(peptidePiStatus.keySet());
+            identification.loadPeptideMatchParameters(peptideKeys, psParameter, null, false);
+            for (String peptideKey : peptideKeys) {
+                psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
+                psParameter.setProteinInferenceClass(peptidePiStatus.get(peptideKey).piClass);
+                identification.updatePeptideMatchParameter(peptideKey, psParameter);
+                if (waitingHandler.isRunCanceled()) {
+                    return;
                 }
             }
+        }
 
-            waitingHandler.increaseSecondaryProgressCounter();
-            if (waitingHandler.isRunCanceled()) {
-                return;
-            }
+        HashMap<Double, HashMap<Integer, HashMap<Integer, ArrayList<String>>>> orderMap
+                = new HashMap<Double, HashMap<Integer, HashMap<Integer, ArrayList<String>>>>();
+        double maxMW = 0;
+        for (PiStatusRunnable runnable : piStatusRunnables) {
+            mergeOrderMaps(orderMap, runnable.getOrderMap());
+            maxMW = Math.max(maxMW, runnable.getMaxMW());
+            maxProteinKeyLength = Math.max(maxProteinKeyLength, runnable.getMaxProteinKeyLength());
+            nGroups += runnable.getnGroups();
+            nSolved += runnable.getnSolved();
+            nLeft += runnable.getnLeft();
         }
 
         ArrayList<String> proteinList = new ArrayList<String>();
@@ -740,6 +595,39 @@ public class ProteinInference {
         return result;
     }
 
+    /**
+     * Checks whether a new main protein (newProtein) of the new protein match
+     * (newProteinMatch) is better than another one main protein (oldProtein)
+     * of another protein match (oldProteinMatch). The proteins are given by
+     * their index in the accession dictionary.
+     *
+     * @param oldProteinMatch the protein match of oldProtein
+     * @param oldProtein the index of the old protein
+     * @param newProteinMatch the protein match of newProtein
+     * @param newProtein the index of the new protein
+     * @param identificationFeaturesGenerator the identification features
+     * generator
+     * @param identificationParameters the identification parameters
+     *
+     * @return the product of the comparison: 1: better enzymaticity, 2: better
+     * evidence, 3: better characterization, 0: equal or not better
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file
+     * @throws InterruptedException exception thrown whenever an threading error
+     * occurred
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the back-end database
+     */
+    private int compareMainProtein(ProteinMatch oldProteinMatch, int oldProtein, ProteinMatch newProteinMatch, int newProtein,
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, IdentificationParameters identificationParameters)
+            throws IOException, InterruptedException, IllegalArgumentException, ClassNotFoundException, SQLException {
+        return compareMainProtein(oldProteinMatch, accessionDictionary.getAccession(oldProtein), newProteinMatch, accessionDictionary.getAccession(newProtein),
+                identificationFeaturesGenerator, identificationParameters);
+    }
+
     /**
      * Checks whether a new main protein (newAccession) of the new protein match
      * (newProteinMatch) is better than another one main protein (oldAccession)
@@ -846,6 +734,20 @@ public class ProteinInference {
         return 0;
     }
 
+    /**
+     * Simplistic method comparing protein similarity. Returns true if both
+     * proteins come from the same gene or if the descriptions are of same
+     * length and present more than half similar words. The proteins are given
+     * by their index in the accession dictionary.
+     *
+     * @param primaryProtein index of the first protein
+     * @param secondaryProtein index of the second protein
+     * @return a boolean indicating whether the proteins are similar
+     */
+    private boolean getSimilarity(int primaryProtein, int secondaryProtein) throws IOException, IllegalArgumentException, InterruptedException, ClassNotFoundException {
+        return getSimilarity(accessionDictionary.getAccession(primaryProtein), accessionDictionary.getAccession(secondaryProtein));
+    }
+
     /**
      * Simplistic method comparing protein similarity. Returns true if both
      * proteins come from the same gene or if the descriptions are of same
@@ -918,43 +820,667 @@ public class ProteinInference {
     }
 
     /**
-     * Returns the proteins of a group key. Uses
-     * ProteinMatch.getAccessions(groupKey) after checking if the protein group
-     * is in cache. Manages cache update and size.
+     * Runnable simplifying the protein groups of the connected components of
+     * the protein graph.
      *
-     * @param groupKey the group key of interest
+     * @author Marc Vaudel
+     */
+    private class GroupSimplificationRunnable implements Runnable {
+
+        /**
+         * The identification.
+         */
+        private final Identification identification;
+        /**
+         * The protein graph.
+         */
+        private final ProteinGraph graph;
+        /**
+         * The iterator over the connected components of the graph.
+         */
+        private final ProteinGraph.ComponentsIterator componentsIterator;
+        /**
+         * The identification parameters.
+         */
+        private final IdentificationParameters identificationParameters;
+        /**
+         * The identification features generator.
+         */
+        private final IdentificationFeaturesGenerator identificationFeaturesGenerator;
+        /**
+         * The waiting handler.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private final ExceptionHandler exceptionHandler;
+        /**
+         * The keys of the groups explained by a simpler group, shared between
+         * the runnables.
+         */
+        private final Set<String> toDelete;
+
+        /**
+         * Constructor.
+         *
+         * @param identification the identification
+         * @param graph the protein graph
+         * @param componentsIterator the iterator over the connected components
+         * of the graph
+         * @param identificationParameters the identification parameters
+         * @param identificationFeaturesGenerator the identification features
+         * generator
+         * @param toDelete the thread safe set where to add the keys of the
+         * groups explained by a simpler group
+         * @param waitingHandler the handler displaying feedback to the user,
+         * can be null
+         * @param exceptionHandler handler for exceptions
+         */
+        public GroupSimplificationRunnable(Identification identification, ProteinGraph graph, ProteinGraph.ComponentsIterator componentsIterator,
+                IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+                Set<String> toDelete, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.identification = identification;
+            this.graph = graph;
+            this.componentsIterator = componentsIterator;
+            this.identificationParameters = identificationParameters;
+            this.identificationFeaturesGenerator = identificationFeaturesGenerator;
+            this.toDelete = toDelete;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int[] component;
+                while ((component = componentsIterator.next()) != null) {
+                    HashMap<Integer, Integer> processedGroups = new HashMap<Integer, Integer>();
+                    HashSet<String> keysToDelete = new HashSet<String>();
+                    for (int sharedGroup : component) {
+                        if (graph.getProteins(sharedGroup).length > 1) {
+                            if (!processedGroups.containsKey(sharedGroup)) {
+                                int uniqueGroup = getSubgroup(identification, graph, sharedGroup, processedGroups, keysToDelete, identificationParameters, identificationFeaturesGenerator);
+                                if (uniqueGroup != -1) {
+                                    mergeProteinGroups(identification, graph.getGroupKey(sharedGroup), graph.getGroupKey(uniqueGroup), keysToDelete);
+                                    processedGroups.put(sharedGroup, uniqueGroup);
+                                } else {
+                                    processedGroups.put(sharedGroup, sharedGroup);
+                                }
+                            }
+                            if (waitingHandler != null) {
+                                if (waitingHandler.isRunCanceled()) {
+                                    return;
+                                }
+                                waitingHandler.increaseSecondaryProgressCounter();
+                            }
+                        }
+                    }
+                    toDelete.addAll(keysToDelete);
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                if (waitingHandler != null) {
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runnable merging the groups of the connected components of the protein
+     * graph into their subgroups and listing the groups scoring worse than
+     * their subgroups.
      *
-     * @return the proteins of a group key
+     * @author Marc Vaudel
      */
-    private ArrayList<String> getProteins(String groupKey) {
-        ArrayList<String> result = proteinGroupCache.get(groupKey);
-        if (result == null) {
-            result = new ArrayList<String>(Arrays.asList(ProteinMatch.getAccessions(groupKey)));
-            if (result.size() > sizeOfProteinsInCache) {
-                proteinGroupCache.put(groupKey, result);
-                if (proteinGroupCache.size() > cacheSize) {
-                    int smallestSize = sizeOfProteinsInCache;
-                    String smallestGroup = null;
-                    for (String key : proteinGroupCache.keySet()) {
-                        ArrayList<String> group = proteinGroupCache.get(key);
-                        if (smallestGroup == null || group.size() < smallestSize) {
-                            smallestGroup = key;
-                            smallestSize = group.size();
+    private class BestScoringGroupRunnable implements Runnable {
+
+        /**
+         * The identification.
+         */
+        private final Identification identification;
+        /**
+         * The protein graph.
+         */
+        private final ProteinGraph graph;
+        /**
+         * The iterator over the connected components of the graph.
+         */
+        private final ProteinGraph.ComponentsIterator componentsIterator;
+        /**
+         * The waiting handler.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private final ExceptionHandler exceptionHandler;
+        /**
+         * The keys of the groups to remove, shared between the runnables.
+         */
+        private final Set<String> toRemove;
+
+        /**
+         * Constructor.
+         *
+         * @param identification the identification
+         * @param graph the protein graph
+         * @param componentsIterator the iterator over the connected components
+         * of the graph
+         * @param toRemove the thread safe set where to add the keys of the
+         * groups to remove
+         * @param waitingHandler the handler displaying feedback to the user
+         * @param exceptionHandler handler for exceptions
+         */
+        public BestScoringGroupRunnable(Identification identification, ProteinGraph graph, ProteinGraph.ComponentsIterator componentsIterator,
+                Set<String> toRemove, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.identification = identification;
+            this.graph = graph;
+            this.componentsIterator = componentsIterator;
+            this.toRemove = toRemove;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                PSParameter psParameter = new PSParameter();
+                int[] component;
+                while ((component = componentsIterator.next()) != null && !waitingHandler.isRunCanceled()) {
+                    for (int sharedGroup : component) {
+
+                        int[] sharedProteins = graph.getProteins(sharedGroup);
+
+                        if (sharedProteins.length > 1) {
+
+                            String proteinSharedKey = graph.getGroupKey(sharedGroup);
+                            psParameter = (PSParameter) identification.getProteinMatchParameter(proteinSharedKey, psParameter);
+                            double sharedProteinProbabilityScore = psParameter.getProteinProbabilityScore();
+                            boolean better = false;
+
+                            for (int protein : sharedProteins) {
+                                for (int uniqueGroup : graph.getGroups(protein)) {
+                                    if (uniqueGroup != sharedGroup) {
+                                        int[] uniqueProteins = graph.getProteins(uniqueGroup);
+                                        if (sharedProteins.length >= uniqueProteins.length) {
+                                            if (ProteinAccessionDictionary.contains(sharedProteins, uniqueProteins)) {
+                                                String proteinUniqueKey = graph.getGroupKey(uniqueGroup);
+                                                psParameter = (PSParameter) identification.getProteinMatchParameter(proteinUniqueKey, psParameter);
+                                                double uniqueProteinProbabilityScore = psParameter.getProteinProbabilityScore();
+                                                ProteinMatch proteinUnique = identification.getProteinMatch(proteinUniqueKey);
+                                                ProteinMatch proteinShared = identification.getProteinMatch(proteinSharedKey);
+                                                for (String sharedPeptideKey : proteinShared.getPeptideMatchesKeys()) {
+                                                    proteinUnique.addPeptideMatchKey(sharedPeptideKey);
+                                                }
+                                                identification.updateProteinMatch(proteinUnique);
+                                                if (uniqueProteinProbabilityScore <= sharedProteinProbabilityScore) {
+                                                    better = true;
+                                                }
+                                            }
+                                        }
+                                    }
+                                }
+                            }
+
+                            if (better) {
+                                toRemove.add(proteinSharedKey);
+                            } else {
+                                waitingHandler.increaseSecondaryProgressCounter();
+                                if (waitingHandler.isRunCanceled()) {
+                                    return;
+                                }
+                            }
                         }
                     }
-                    proteinGroupCache.remove(smallestGroup);
-                    sizeOfProteinsInCache = smallestSize;
                 }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
             }
         }
-        return result;
     }
 
     /**
-     * Clears the cache.
+     * Merges the protein order map of a thread into the global order map.
+     *
+     * @param orderMap the global order map
+     * @param threadOrderMap the order map of a thread
+     */
+    private static void mergeOrderMaps(HashMap<Double, HashMap<Integer, HashMap<Integer, ArrayList<String>>>> orderMap,
+            HashMap<Double, HashMap<Integer, HashMap<Integer, ArrayList<String>>>> threadOrderMap) {
+        for (Double score : threadOrderMap.keySet()) {
+            HashMap<Integer, HashMap<Integer, ArrayList<String>>> threadScoreMap = threadOrderMap.get(score);
+            HashMap<Integer, HashMap<Integer, ArrayList<String>>> scoreMap = orderMap.get(score);
+            if (scoreMap == null) {
+                orderMap.put(score, threadScoreMap);
+            } else {
+                for (Integer nPeptides : threadScoreMap.keySet()) {
+                    HashMap<Integer, ArrayList<String>> threadPeptidesMap = threadScoreMap.get(nPeptides);
+                    HashMap<Integer, ArrayList<String>> peptidesMap = scoreMap.get(nPeptides);
+                    if (peptidesMap == null) {
+                        scoreMap.put(nPeptides, threadPeptidesMap);
+                    } else {
+                        for (Integer nSpectra : threadPeptidesMap.keySet()) {
+                            ArrayList<String> threadKeys = threadPeptidesMap.get(nSpectra);
+                            ArrayList<String> keys = peptidesMap.get(nSpectra);
+                            if (keys == null) {
+                                peptidesMap.put(nSpectra, threadKeys);
+                            } else {
+                                keys.addAll(threadKeys);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The PI status of a peptide and the index of the protein group it was
+     * inferred from in the iteration order.
+     */
+    private static class PeptidePiStatus {
+
+        /**
+         * The index of the protein group in the iteration order.
+         */
+        private final int matchIndex;
+        /**
+         * The protein inference class of the peptide.
+         */
+        private final int piClass;
+
+        /**
+         * Constructor.
+         *
+         * @param matchIndex the index of the protein group in the iteration
+         * order
+         * @param piClass the protein inference class of the peptide
+         */
+        private PeptidePiStatus(int matchIndex, int piClass) {
+            this.matchIndex = matchIndex;
+            this.piClass = piClass;
+        }
+    }
+
+    /**
+     * Runnable inferring the PI status of the protein matches and selecting
+     * their main protein. The PI status of the peptides is gathered in a map
+     * shared between the runnables. Peptides shared by several groups get the
+     * status inferred from the group coming last in the iteration order, like
+     * when the groups are processed one after the other, independently of the
+     * thread processing them.
+     *
+     * @author Marc Vaudel
      */
-    private void clearCache() {
-        proteinGroupCache.clear();
-        sizeOfProteinsInCache = 10;
+    private class PiStatusRunnable implements Runnable {
+
+        /**
+         * An iterator for the protein matches.
+         */
+        private final ProteinMatchesIterator proteinMatchesIterator;
+        /**
+         * The number of protein matches drawn from the iterator, shared
+         * between the runnables.
+         */
+        private final AtomicInteger matchCounter;
+        /**
+         * The identification.
+         */
+        private final Identification identification;
+        /**
+         * The identification parameters.
+         */
+        private final IdentificationParameters identificationParameters;
+        /**
+         * The identification features generator.
+         */
+        private final IdentificationFeaturesGenerator identificationFeaturesGenerator;
+        /**
+         * The PI status of the peptides, shared between the runnables.
+         */
+        private final ConcurrentHashMap<String, PeptidePiStatus> peptidePiStatus;
+        /**
+         * The waiting handler.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private final ExceptionHandler exceptionHandler;
+        /**
+         * The target protein keys of this thread indexed by score, number of
+         * peptides (inverted) and number of spectra (inverted).
+         */
+        private final HashMap<Double, HashMap<Integer, HashMap<Integer, ArrayList<String>>>> orderMap
+                = new HashMap<Double, HashMap<Integer, HashMap<Integer, ArrayList<String>>>>();
+        /**
+         * The maximal molecular weight of the target proteins of this thread.
+         */
+        private double maxMW = 0;
+        /**
+         * The length of the longest main accession of this thread.
+         */
+        private int maxProteinKeyLength = 0;
+        /**
+         * The number of groups inspected by this thread.
+         */
+        private int nGroups = 0;
+        /**
+         * The number of groups solved by this thread.
+         */
+        private int nSolved = 0;
+        /**
+         * The number of unrelated groups found by this thread.
+         */
+        private int nLeft = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param proteinMatchesIterator an iterator for the protein matches
+         * @param matchCounter the counter of the protein matches drawn from the
+         * iterator
+         * @param identification the identification
+         * @param identificationParameters the identification parameters
+         * @param identificationFeaturesGenerator the identification features
+         * generator
+         * @param peptidePiStatus the map where to store the PI status of the
+         * peptides
+         * @param waitingHandler the handler displaying feedback to the user
+         * @param exceptionHandler handler for exceptions
+         */
+        public PiStatusRunnable(ProteinMatchesIterator proteinMatchesIterator, AtomicInteger matchCounter, Identification identification,
+                IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+                ConcurrentHashMap<String, PeptidePiStatus> peptidePiStatus, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.proteinMatchesIterator = proteinMatchesIterator;
+            this.matchCounter = matchCounter;
+            this.identification = identification;
+            this.identificationParameters = identificationParameters;
+            this.identificationFeaturesGenerator = identificationFeaturesGenerator;
+            this.peptidePiStatus = peptidePiStatus;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                PSParameter probabilities = new PSParameter();
+                PSParameter psParameter = new PSParameter();
+                ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+                parameters.add(psParameter);
+                Comparator<Integer> accessionComparator = new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer o1, Integer o2) {
+                        return accessionDictionary.getAccession(o1).compareTo(accessionDictionary.getAccession(o2));
+                    }
+                };
+                ProteinMatch proteinMatch;
+                int matchIndex;
+                while (true) {
+
+                    // the matches are numbered in the iteration order
+                    synchronized (proteinMatchesIterator) {
+                        proteinMatch = proteinMatchesIterator.next();
+                        matchIndex = matchCounter.getAndIncrement();
+                    }
+                    if (proteinMatch == null) {
+                        break;
+                    }
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+
+                    String proteinKey = proteinMatch.getKey();
+                    int[] proteins = accessionDictionary.getGroup(proteinKey);
+
+                    if (!accessionDictionary.isDecoy(proteinKey)) {
+                        probabilities = (PSParameter) identification.getProteinMatchParameter(proteinKey, probabilities);
+                        double score = probabilities.getProteinProbabilityScore();
+                        int nPeptides = -proteinMatch.getPeptideMatchesKeys().size();
+                        int nSpectra = 0;
+
+                        Protein currentProtein = sequenceFactory.getProtein(proteinMatch.getMainMatch());
+
+                        if (currentProtein != null) {
+                            double mw = sequenceFactory.computeMolecularWeight(proteinMatch.getMainMatch());
+                            if (mw > maxMW) {
+                                maxMW = mw;
+                            }
+                        }
+
+                        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(proteinMatch.getPeptideMatchesKeys(), parameters, false, null, null);
+                        PeptideMatch peptideMatch;
+                        while ((peptideMatch = peptideMatchesIterator.next()) != null) {
+                            nSpectra -= peptideMatch.getSpectrumCount();
+                        }
+                        if (!orderMap.containsKey(score)) {
+                            orderMap.put(score, new HashMap<Integer, HashMap<Integer, ArrayList<String>>>());
+                        }
+
+                        if (!orderMap.get(score).containsKey(nPeptides)) {
+                            orderMap.get(score).put(nPeptides, new HashMap<Integer, ArrayList<String>>());
+                        }
+
+                        if (!orderMap.get(score).get(nPeptides).containsKey(nSpectra)) {
+                            orderMap.get(score).get(nPeptides).put(nSpectra, new ArrayList<String>());
+                        }
+                        orderMap.get(score).get(nPeptides).get(nSpectra).add(proteinKey);
+
+                        // save the length of the longest protein accession number
+                        if (proteinMatch.getMainMatch().length() > maxProteinKeyLength) {
+                            maxProteinKeyLength = proteinMatch.getMainMatch().length();
+                        }
+                    }
+
+                    // the proteins are inspected in the order of the accessions
+                    ArrayList<Integer> sortedProteins = new ArrayList<Integer>(proteins.length);
+                    for (int protein : proteins) {
+                        sortedProteins.add(protein);
+                    }
+                    Collections.sort(sortedProteins, accessionComparator);
+                    int mainProtein = sortedProteins.get(0);
+
+                    if (sortedProteins.size() > 1) {
+                        boolean similarityFound = false;
+                        boolean allSimilar = false;
+                        psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
+                        for (int protein : sortedProteins) {
+                            if (compareMainProtein(proteinMatch, mainProtein, proteinMatch, protein, identificationFeaturesGenerator, identificationParameters) > 0) {
+                                mainProtein = protein;
+                            }
+                        }
+                        for (int i = 0; i < sortedProteins.size() - 1; i++) {
+                            for (int j = i + 1; j < sortedProteins.size(); j++) {
+                                if (getSimilarity(sortedProteins.get(i), sortedProteins.get(j))) {
+                                    similarityFound = true;
+                                    if (compareMainProtein(proteinMatch, mainProtein, proteinMatch, sortedProteins.get(j), identificationFeaturesGenerator, identificationParameters) > 0) {
+                                        mainProtein = sortedProteins.get(i);
+                                    }
+                                    break;
+                                }
+                            }
+                            if (similarityFound) {
+                                break;
+                            }
+                        }
+                        if (similarityFound) {
+                            allSimilar = true;
+                            for (int protein : sortedProteins) {
+                                if (protein != mainProtein) {
+                                    if (!getSimilarity(mainProtein, protein)) {
+                                        allSimilar = false;
+                                        break;
+                                    }
+                                }
+                            }
+                        }
+                        if (!similarityFound) {
+                            psParameter.setProteinInferenceClass(PSParameter.UNRELATED);
+                            nGroups++;
+                            nLeft++;
+                            identification.updateProteinMatchParameter(proteinKey, psParameter);
+
+                            for (String peptideKey : proteinMatch.getPeptideMatchesKeys()) {
+                                setPeptidePiStatus(peptideKey, matchIndex, PSParameter.UNRELATED);
+                            }
+
+                        } else if (!allSimilar) {
+                            psParameter.setProteinInferenceClass(PSParameter.RELATED_AND_UNRELATED);
+                            nGroups++;
+                            nSolved++;
+                            identification.updateProteinMatchParameter(proteinKey, psParameter);
+
+                            for (String peptideKey : proteinMatch.getPeptideMatchesKeys()) {
+                                setPeptidePiStatus(peptideKey, matchIndex, PSParameter.RELATED_AND_UNRELATED);
+                            }
+
+                        } else {
+                            psParameter.setProteinInferenceClass(PSParameter.RELATED);
+                            nGroups++;
+                            nSolved++;
+                            identification.updateProteinMatchParameter(proteinKey, psParameter);
+
+                            String mainMatch = proteinMatch.getMainMatch();
+                            PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(proteinMatch.getPeptideMatchesKeys(), null, false, null, null);
+                            PeptideMatch peptideMatch;
+                            while ((peptideMatch = peptideMatchesIterator.next()) != null) {
+                                boolean unrelated = false;
+                                for (String proteinAccession : peptideMatch.getTheoreticPeptide().getParentProteins(identificationParameters.getSequenceMatchingPreferences())) {
+                                    if (!ProteinAccessionDictionary.contains(proteins, accessionDictionary.getIndex(proteinAccession))) {
+                                        if (!getSimilarity(mainMatch, proteinAccession)) {
+                                            unrelated = true;
+                                            break;
+                                        }
+                                    }
+                                }
+                                if (unrelated) {
+                                    setPeptidePiStatus(peptideMatch.getKey(), matchIndex, PSParameter.RELATED_AND_UNRELATED);
+                                } else {
+                                    setPeptidePiStatus(peptideMatch.getKey(), matchIndex, PSParameter.RELATED);
+                                }
+                            }
+                        }
+                    } else {
+                        String mainMatch = proteinMatch.getMainMatch();
+                        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(proteinMatch.getPeptideMatchesKeys(), null, false, null, null);
+                        PeptideMatch peptideMatch;
+                        while ((peptideMatch = peptideMatchesIterator.next()) != null) {
+                            boolean unrelated = false;
+                            boolean otherProtein = false;
+                            for (String protein : peptideMatch.getTheoreticPeptide().getParentProteins(identificationParameters.getSequenceMatchingPreferences())) {
+                                if (!ProteinAccessionDictionary.contains(proteins, accessionDictionary.getIndex(protein))) {
+                                    otherProtein = true;
+                                    if (!getSimilarity(mainMatch, protein)) {
+                                        unrelated = true;
+                                        break;
+                                    }
+                                }
+                            }
+                            if (unrelated) {
+                                setPeptidePiStatus(peptideMatch.getKey(), matchIndex, PSParameter.UNRELATED);
+                            } else if (otherProtein) {
+                                setPeptidePiStatus(peptideMatch.getKey(), matchIndex, PSParameter.RELATED);
+                            }
+                        }
+                    }
+
+                    if (proteins.length > 1) {
+                        String mainKey = accessionDictionary.getAccession(mainProtein);
+                        if (!proteinMatch.getMainMatch().equals(mainKey)) {
+                            proteinMatch.setMainMatch(mainKey);
+                            identification.updateProteinMatch(proteinMatch);
+                        }
+                    }
+
+                    waitingHandler.increaseSecondaryProgressCounter();
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+
+        /**
+         * Stores the PI status of a peptide inferred from a protein group. If
+         * a status was already inferred from another group, the status of the
+         * group coming last in the iteration order is retained.
+         *
+         * @param peptideKey the key of the peptide
+         * @param matchIndex the index of the protein group in the iteration
+         * order
+         * @param piClass the protein inference class of the peptide
+         */
+        private void setPeptidePiStatus(String peptideKey, int matchIndex, int piClass) {
+            PeptidePiStatus newStatus = new PeptidePiStatus(matchIndex, piClass);
+            while (true) {
+                PeptidePiStatus status = peptidePiStatus.putIfAbsent(peptideKey, newStatus);
+                if (status == null || status.matchIndex > matchIndex || peptidePiStatus.replace(peptideKey, status, newStatus)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Returns the target protein keys of this thread indexed by score,
+         * number of peptides (inverted) and number of spectra (inverted).
+         *
+         * @return the target protein keys of this thread
+         */
+        public HashMap<Double, HashMap<Integer, HashMap<Integer, ArrayList<String>>>> getOrderMap() {
+            return orderMap;
+        }
+
+        /**
+         * Returns the maximal molecular weight of the target proteins of this
+         * thread.
+         *
+         * @return the maximal molecular weight
+         */
+        public double getMaxMW() {
+            return maxMW;
+        }
+
+        /**
+         * Returns the length of the longest main accession of this thread.
+         *
+         * @return the length of the longest main accession
+         */
+        public int getMaxProteinKeyLength() {
+            return maxProteinKeyLength;
+        }
+
+        /**
+         * Returns the number of groups inspected by this thread.
+         *
+         * @return the number of groups inspected
+         */
+        public int getnGroups() {
+            return nGroups;
+        }
+
+        /**
+         * Returns the number of groups solved by this thread.
+         *
+         * @return the number of groups solved
+         */
+        public int getnSolved() {
+            return nSolved;
+        }
+
+        /**
+         * Returns the number of unrelated groups found by this thread.
+         *
+         * @return the number of unrelated groups
+         */
+        public int getnLeft() {
+            return nLeft;
+        }
     }
 }
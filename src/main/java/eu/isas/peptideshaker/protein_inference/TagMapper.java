@@ -39,6 +39,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -73,6 +74,11 @@ public class TagMapper {
      * The sequence factory.
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * The number of spectra after which the cache of the tag matcher of a
+     * runnable is cleared, bounding the memory used by every runnable.
+     */
+    private static final int TAG_MATCHER_CACHE_SPECTRA = 100;
 
     /**
      * Constructor.
@@ -113,29 +119,48 @@ public class TagMapper {
     public void mapTags(IdfileReader idfileReader, Identification identification, WaitingHandler waitingHandler, int nThreads) throws IOException,
             InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, JAXBException, XmlPullParserException {
 
-        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
-        LinkedList<SpectrumMatch> spectrumMatches = idfileReader.getAllSpectrumMatches(waitingHandler, identificationParameters.getSearchParameters());
-        if (spectrumMatches != null && !spectrumMatches.isEmpty()) {
-            waitingHandler.setMaxSecondaryProgressCounter(spectrumMatches.size());
+        LinkedList<SpectrumMatch> spectrumMatchesList = idfileReader.getAllSpectrumMatches(waitingHandler, identificationParameters.getSearchParameters());
+        if (spectrumMatchesList != null && !spectrumMatchesList.isEmpty()) {
+
+            // the readers only return all matches at once, the workers poll them from a queue without locking
+            int nSpectra = spectrumMatchesList.size();
+            ConcurrentLinkedQueue<SpectrumMatch> spectrumMatches = new ConcurrentLinkedQueue<SpectrumMatch>(spectrumMatchesList);
+            spectrumMatchesList.clear();
+            waitingHandler.resetSecondaryProgressCounter();
+            waitingHandler.setMaxSecondaryProgressCounter(nSpectra);
             waitingHandler.appendReport("Mapping de novo tags to peptides.", true, true);
-            PtmSettings modificationProfile = identificationParameters.getSearchParameters().getPtmSettings();
-            TagMatcher tagMatcher = new TagMatcher(modificationProfile.getFixedModifications(), modificationProfile.getAllNotFixedModifications(), identificationParameters.getSequenceMatchingPreferences());
-            tagMatcher.setSynchronizedIndexing(true);
-            for (SpectrumMatch spectrumMatch : spectrumMatches) {
-                SpectrumMatchTagMapperRunnable tagMapperRunnable = new SpectrumMatchTagMapperRunnable(identification, spectrumMatch, tagMatcher, waitingHandler);
+            long start = System.currentTimeMillis();
+
+            // every worker takes the next spectrum match when done with the previous one so that at most nThreads spectra are in flight
+            ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+            for (int i = 0; i < nThreads; i++) {
+                SpectrumMatchTagMapperRunnable tagMapperRunnable = new SpectrumMatchTagMapperRunnable(identification, spectrumMatches, waitingHandler);
                 pool.submit(tagMapperRunnable);
-                if (waitingHandler.isRunCanceled()) {
-                    pool.shutdownNow();
-                    return;
-                }
             }
-        }
-        pool.shutdown();
-        if (!pool.awaitTermination(1, TimeUnit.DAYS)) {
-            waitingHandler.appendReport("Mapping tags timed out. Please contact the developers.", true, true);
+            pool.shutdown();
+            if (!pool.awaitTermination(1, TimeUnit.DAYS)) {
+                waitingHandler.appendReport("Mapping tags timed out. Please contact the developers.", true, true);
+            }
+
+            if (!waitingHandler.isRunCanceled()) {
+                double seconds = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+                long throughput = Math.round(nSpectra / seconds);
+                waitingHandler.appendReport("Tags of " + nSpectra + " spectra mapped in " + Math.round(seconds) + " s (" + throughput + " spectra/s).", true, true);
+            }
         }
     }
 
+    /**
+     * Returns a new tag matcher for the identification parameters of this
+     * mapper.
+     *
+     * @return a new tag matcher
+     */
+    private TagMatcher getTagMatcher() {
+        PtmSettings modificationProfile = identificationParameters.getSearchParameters().getPtmSettings();
+        return new TagMatcher(modificationProfile.getFixedModifications(), modificationProfile.getAllNotFixedModifications(), identificationParameters.getSequenceMatchingPreferences());
+    }
+
     /**
      * Maps tags to the protein database.
      *
@@ -211,7 +236,6 @@ public class TagMapper {
 
         identification.addRawAssumptions(spectrumKey, assumptionsMap);
 
-        tagMatcher.clearCache();
         waitingHandler.increaseSecondaryProgressCounter();
 
         // free memory if needed and possible
@@ -333,23 +357,27 @@ public class TagMapper {
     }
 
     /**
-     * Private runnable to map tags of a spectrum match.
+     * Private runnable mapping the tags of spectrum matches taken from a
+     * shared queue. Every runnable uses its own tag matcher so that its cache
+     * is reused from one spectrum to the next. The cache is cleared every
+     * TAG_MATCHER_CACHE_SPECTRA spectra, or earlier if the memory runs low.
      */
     private class SpectrumMatchTagMapperRunnable implements Runnable {
 
         /**
-         * The spectrum match to process.
+         * The spectrum matches to process, shared between the runnables.
+         * Processed matches are removed from the queue.
          */
-        private final SpectrumMatch spectrumMatch;
+        private final ConcurrentLinkedQueue<SpectrumMatch> spectrumMatches;
 
         /**
          * The waiting handler to display progress and cancel the process.
          */
         private final WaitingHandler waitingHandler;
         /**
-         * The tag to protein matcher.
+         * The tag to protein matcher of this runnable.
          */
-        private final TagMatcher tagMatcher;
+        private final TagMatcher tagMatcher = getTagMatcher();
         /**
          * Identification where to store the matches
          */
@@ -360,15 +388,14 @@ public class TagMapper {
          *
          * @param identification the identification object where to store the
          * matches
-         * @param spectrumMatch the spectrum match to map
-         * @param tagMatcher the tag matcher
+         * @param spectrumMatches the spectrum matches to map, shared between
+         * the runnables
          * @param waitingHandler waiting handler allowing the display of
          * progress and cancelling the process
          */
-        public SpectrumMatchTagMapperRunnable(Identification identification, SpectrumMatch spectrumMatch, TagMatcher tagMatcher, WaitingHandler waitingHandler) {
-            this.spectrumMatch = spectrumMatch;
+        public SpectrumMatchTagMapperRunnable(Identification identification, ConcurrentLinkedQueue<SpectrumMatch> spectrumMatches, WaitingHandler waitingHandler) {
+            this.spectrumMatches = spectrumMatches;
             this.waitingHandler = waitingHandler;
-            this.tagMatcher = tagMatcher;
             this.identification = identification;
         }
 
@@ -376,9 +403,16 @@ public class TagMapper {
         public void run() {
 
             try {
-                if (!waitingHandler.isRunCanceled()) {
+                int nSpectraInCache = 0;
+                SpectrumMatch spectrumMatch;
+                while (!waitingHandler.isRunCanceled() && (spectrumMatch = spectrumMatches.poll()) != null) {
                     mapTagsForSpectrumMatch(identification, spectrumMatch, tagMatcher, waitingHandler);
+                    if (++nSpectraInCache == TAG_MATCHER_CACHE_SPECTRA || MemoryConsumptionStatus.memoryUsed() > 0.8) {
+                        tagMatcher.clearCache();
+                        nSpectraInCache = 0;
+                    }
                 }
+                tagMatcher.clearCache();
             } catch (Exception e) {
                 if (!waitingHandler.isRunCanceled()) {
                     exceptionHandler.catchException(e);
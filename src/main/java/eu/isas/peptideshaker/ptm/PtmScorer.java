@@ -40,6 +40,7 @@ import eu.isas.peptideshaker.scoring.maps.PsmPTMMap;
 import eu.isas.peptideshaker.scoring.PtmScoring;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyResults;
+import eu.isas.peptideshaker.utils.CachingPeptideSpectrumAnnotator;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import eu.isas.peptideshaker.utils.Metrics;
 import java.io.FileNotFoundException;
@@ -50,6 +51,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -80,6 +82,11 @@ public class PtmScorer {
      * The PSM PTM localization conflict map.
      */
     private PsmPTMMap psmPTMMap;
+    /**
+     * The number of protein matches scored by a thread before they are written
+     * back to the identification.
+     */
+    private static final int PROTEIN_UPDATE_BATCH_SIZE = 1000;
 
     /**
      * Constructor.
@@ -601,7 +608,6 @@ public class PtmScorer {
         PtmSettings ptmSettings = identificationParameters.getSearchParameters().getPtmSettings();
 
         PSPtmScores peptideScores = new PSPtmScores();
-        PSParameter psParameter = new PSParameter();
 
         HashMap<Double, Integer> variableModifications = new HashMap<Double, Integer>(peptide.getNModifications());
         HashMap<Double, HashMap<Integer, ArrayList<String>>> inferredSites = new HashMap<Double, HashMap<Integer, ArrayList<String>>>(peptide.getNModifications());
@@ -685,16 +691,20 @@ public class PtmScorer {
 
         HashMap<Double, ArrayList<Integer>> confidentSites = new HashMap<Double, ArrayList<Integer>>(variableModifications.size());
 
-        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(new PSParameter());
-        PsmIterator psmIterator = identification.getPsmIterator(peptideMatch.getSpectrumMatchesKeys(), parameters, false, waitingHandler);
-        
-        // Map confident sites
+        // Load the PTM scores of the PSMs once for both passes, the PSMs are loaded in batch
+        ArrayList<String> spectrumKeys = peptideMatch.getSpectrumMatchesKeys();
+        ArrayList<PSPtmScores> psmsScores = new ArrayList<PSPtmScores>(spectrumKeys.size());
+        PsmIterator psmIterator = identification.getPsmIterator(spectrumKeys, null, false, null);
         SpectrumMatch spectrumMatch;
-        while ((spectrumMatch = psmIterator.next()) != null) { 
-            String spectrumKey = spectrumMatch.getKey();
-            psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
+        while ((spectrumMatch = psmIterator.next()) != null) {
             PSPtmScores psmScores = (PSPtmScores) spectrumMatch.getUrParam(new PSPtmScores());
+            if (psmScores != null) {
+                psmsScores.add(psmScores);
+            }
+        }
+
+        // Map confident sites
+        for (PSPtmScores psmScores : psmsScores) {
 
             for (String ptmName : psmScores.getScoredPTMs()) {
                 PtmScoring psmScoring = psmScores.getPtmScoring(ptmName);
@@ -802,14 +812,8 @@ public class PtmScorer {
 
             HashMap<Double, HashMap<Double, HashMap<Double, HashMap<Integer, ArrayList<String>>>>> ambiguousSites = new HashMap<Double, HashMap<Double, HashMap<Double, HashMap<Integer, ArrayList<String>>>>>(originalMatches.size());
 
-            psmIterator = identification.getPsmIterator(peptideMatch.getSpectrumMatchesKeys(), parameters, true, waitingHandler);
-
             // Map ambiguous sites
-            while ((spectrumMatch = psmIterator.next()) != null) {
-                
-                String spectrumKey = spectrumMatch.getKey();
-                psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
-                PSPtmScores psmScores = (PSPtmScores) spectrumMatch.getUrParam(new PSPtmScores());
+            for (PSPtmScores psmScores : psmsScores) {
 
                 for (int representativeSite : psmScores.getRepresentativeSites()) {
                     HashMap<Integer, ArrayList<String>> ambiguousMappingAtSite = psmScores.getAmbiguousPtmsAtRepresentativeSite(representativeSite);
@@ -954,15 +958,33 @@ public class PtmScorer {
 
         String newKey = peptide.getMatchingKey(sequenceMatchingPreferences);
         if (!newKey.equals(originalKey)) {
-            if (identification.getPeptideIdentification().contains(newKey)) {
-                throw new IllegalArgumentException("Attempting to create duplicate peptide key: " + newKey + " from peptide " + originalKey + ".");
-            }
-            identification.updatePeptideMatch(originalKey, newKey, peptideMatch);
+            updatePeptideMatchKey(identification, peptideMatch, originalKey, newKey);
         } else {
             identification.updatePeptideMatch(peptideMatch);
         }
     }
 
+    /**
+     * Updates a peptide match whose key changed after PTM scoring. The method
+     * is synchronized so that two peptides scored in parallel cannot take the
+     * same key.
+     *
+     * @param identification identification object containing the identification
+     * matches
+     * @param peptideMatch the peptide match
+     * @param originalKey the original key of the peptide match
+     * @param newKey the new key of the peptide match
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * updating the match in the database
+     */
+    private synchronized void updatePeptideMatchKey(Identification identification, PeptideMatch peptideMatch, String originalKey, String newKey) throws Exception {
+        if (identification.getPeptideIdentification().contains(newKey)) {
+            throw new IllegalArgumentException("Attempting to create duplicate peptide key: " + newKey + " from peptide " + originalKey + ".");
+        }
+        identification.updatePeptideMatch(originalKey, newKey, peptideMatch);
+    }
+
     /**
      * Returns a representative to secondary sites map (representative site &gt;
      * secondary site &gt; list of PTM names) based on an ambiguous sites scores
@@ -1246,6 +1268,31 @@ public class PtmScorer {
      * deserilalizing a match
      */
     public void scorePTMs(Identification identification, ProteinMatch proteinMatch, IdentificationParameters identificationParameters, boolean scorePeptides, WaitingHandler waitingHandler) throws Exception {
+        PSPtmScores proteinScores = getPtmScores(identification, proteinMatch, identificationParameters, scorePeptides, waitingHandler);
+        proteinMatch.addUrParam(proteinScores);
+        identification.updateProteinMatch(proteinMatch);
+    }
+
+    /**
+     * Scores PTMs in a protein match and returns the scores. The protein match
+     * is not updated. The validated modified peptides without PTM scores are
+     * scored on the fly.
+     *
+     * @param identification identification object containing the identification
+     * matches
+     * @param proteinMatch the protein match
+     * @param identificationParameters the identification parameters
+     * @param scorePeptides boolean indicating whether peptides already scored
+     * should be scored again
+     * @param waitingHandler the waiting handler, can be null
+     *
+     * @return the PTM scores of the protein match
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * deserilalizing a match
+     */
+    private PSPtmScores getPtmScores(Identification identification, ProteinMatch proteinMatch, IdentificationParameters identificationParameters, boolean scorePeptides,
+            WaitingHandler waitingHandler) throws Exception {
 
         PSParameter psParameter = new PSParameter();
         Protein protein = null;
@@ -1255,16 +1302,12 @@ public class PtmScorer {
 
         ArrayList<String> peptideKeys = new ArrayList<String>(proteinMatch.getPeptideMatchesKeys());
 
-        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(new PSParameter());
-        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(peptideKeys, parameters, false, null, waitingHandler);
-PeptideMatch peptideMatch;
+        // only the validated modified peptides are loaded
+        for (String peptideKey : peptideKeys) {
 
-        while ((peptideMatch = peptideMatchesIterator.next()) != null) {
-            
-            String peptideKey = peptideMatch.getKey();
             psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
             if (psParameter.getMatchValidationLevel().isValidated() && Peptide.isModified(peptideKey)) {
+                PeptideMatch peptideMatch = identification.getPeptideMatch(peptideKey);
                 String peptideSequence = Peptide.getSequence(peptideKey);
                 if (peptideMatch.getUrParam(new PSPtmScores()) == null || scorePeptides) {
                     scorePTMs(identification, peptideMatch, identificationParameters, waitingHandler);
@@ -1389,8 +1432,7 @@ PeptideMatch peptideMatch;
             proteinScores.addAmbiguousModificationSites(representativeSite, ambiguousSites.get(representativeSite));
         }
 
-        proteinMatch.addUrParam(proteinScores);
-        identification.updateProteinMatch(proteinMatch);
+        return proteinScores;
     }
 
     /**
@@ -1418,6 +1460,7 @@ PeptideMatch peptideMatch;
         ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
 
         HashMap<String, ArrayList<String>> spectrumKeysMap = metrics.getOrderedSpectrumKeys();
+        ArrayList<CachingPeptideSpectrumAnnotator> annotators = new ArrayList<CachingPeptideSpectrumAnnotator>();
         for (String spectrumFileName : identification.getSpectrumFiles()) {
             ArrayList<String> spectrumKeys = null;
             if (spectrumKeysMap != null) {
@@ -1427,6 +1470,7 @@ PeptideMatch peptideMatch;
             for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
                 PsmPtmScorerRunnable runnable = new PsmPtmScorerRunnable(psmIterator, identification, identificationParameters, waitingHandler, exceptionHandler);
                 pool.submit(runnable);
+                annotators.add(runnable.getPeptideSpectrumAnnotator());
             }
             if (waitingHandler.isRunCanceled()) {
                 pool.shutdownNow();
@@ -1437,6 +1481,11 @@ PeptideMatch peptideMatch;
         if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
             throw new InterruptedException("PSM PTM scoring timed out. Please contact the developers.");
         }
+
+        String cacheReport = CachingPeptideSpectrumAnnotator.getCacheReport(annotators);
+        if (cacheReport != null && !waitingHandler.isRunCanceled()) {
+            waitingHandler.appendReport(cacheReport, true, true);
+        }
     }
 
     /**
@@ -1446,12 +1495,15 @@ PeptideMatch peptideMatch;
      * @param identification identification object containing the identification
      * matches
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      * @param identificationParameters the identification parameters
+     * @param processingPreferences the processing preferences
      *
      * @throws Exception exception thrown whenever a problem occurred while
      * deserializing a match
      */
-    public void scorePeptidePtms(Identification identification, WaitingHandler waitingHandler, IdentificationParameters identificationParameters) throws Exception {
+    public void scorePeptidePtms(Identification identification, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler,
+            IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences) throws Exception {
 
         waitingHandler.setWaitingText("Scoring Peptide PTMs. Please Wait...");
 
@@ -1459,18 +1511,20 @@ PeptideMatch peptideMatch;
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(max);
 
-        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
-        parameters.add(new PSParameter());
-        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(parameters, false, null, waitingHandler);
-        PeptideMatch peptideMatch;
-        
-        while ((peptideMatch = peptideMatchesIterator.next()) != null) {
-            
-            scorePTMs(identification, peptideMatch, identificationParameters, waitingHandler);
-            waitingHandler.increaseSecondaryProgressCounter();
-            if (waitingHandler.isRunCanceled()) {
-                return;
-            }
+        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(null, false, null, waitingHandler);
+
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
+            PeptidePtmScorerRunnable runnable = new PeptidePtmScorerRunnable(peptideMatchesIterator, identification, identificationParameters, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+        }
+        if (waitingHandler.isRunCanceled()) {
+            pool.shutdownNow();
+            return;
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Peptide PTM scoring timed out. Please contact the developers.");
         }
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
@@ -1478,21 +1532,27 @@ PeptideMatch peptideMatch;
 
     /**
      * Scores the PTMs of all protein matches contained in an identification
-     * object.
+     * object. The peptide matches should have been scored using
+     * scorePeptidePtms beforehand, so that peptides shared between proteins
+     * are not scored by several threads. Peptides missing PTM scores are
+     * nevertheless scored here.
      *
      * @param identification identification object containing the identification
      * matches
      * @param metrics if provided, metrics on proteins will be saved while
      * iterating the matches
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      * @param identificationParameters the identification parameters
      * @param identificationFeaturesGenerator identification features generator
      * used to generate metrics which will be stored for later reuse
+     * @param processingPreferences the processing preferences
      *
      * @throws Exception exception thrown whenever a problem occurred while
      * deserializing a match
      */
-    public void scoreProteinPtms(Identification identification, Metrics metrics, WaitingHandler waitingHandler, IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator) throws Exception {
+    public void scoreProteinPtms(Identification identification, Metrics metrics, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler, IdentificationParameters identificationParameters,
+            IdentificationFeaturesGenerator identificationFeaturesGenerator, ProcessingPreferences processingPreferences) throws Exception {
 
         waitingHandler.setWaitingText("Scoring Protein PTMs. Please Wait...");
 
@@ -1500,44 +1560,41 @@ PeptideMatch peptideMatch;
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(max);
 
-        // If needed, while we are iterating proteins, we will take the maximal spectrum counting value and number of validated proteins as well.
-        int nValidatedProteins = 0;
-        int nConfidentProteins = 0;
-        double tempSpectrumCounting, maxSpectrumCounting = 0;
-
         PSParameter psParameter = new PSParameter();
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
         parameters.add(psParameter);
         ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, true, parameters, true, parameters, waitingHandler);
-ProteinMatch proteinMatch;
-        
-        while ((proteinMatch = proteinMatchesIterator.next()) != null) {
 
-            String proteinKey = proteinMatch.getKey();
-
-            scorePTMs(identification, proteinMatch, identificationParameters, false, waitingHandler);
-
-            if (metrics != null) {
-                psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
-                if (psParameter.getMatchValidationLevel().isValidated()) {
-                    nValidatedProteins++;
-                    if (psParameter.getMatchValidationLevel() == MatchValidationLevel.confident) {
-                        nConfidentProteins++;
-                    }
-                }
-                if (identificationFeaturesGenerator != null) {
-                    tempSpectrumCounting = identificationFeaturesGenerator.getNormalizedSpectrumCounting(proteinKey);
-                    if (tempSpectrumCounting > maxSpectrumCounting) {
-                        maxSpectrumCounting = tempSpectrumCounting;
-                    }
-                }
-            }
-            waitingHandler.increaseSecondaryProgressCounter();
-            if (waitingHandler.isRunCanceled()) {
-                return;
-            }
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        ArrayList<ProteinPtmScorerRunnable> runnables = new ArrayList<ProteinPtmScorerRunnable>(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
+            ProteinPtmScorerRunnable runnable = new ProteinPtmScorerRunnable(proteinMatchesIterator, identification, metrics != null, identificationParameters,
+                    identificationFeaturesGenerator, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+            runnables.add(runnable);
+        }
+        if (waitingHandler.isRunCanceled()) {
+            pool.shutdownNow();
+            return;
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Protein PTM scoring timed out. Please contact the developers.");
         }
+        if (waitingHandler.isRunCanceled()) {
+            return;
+        }
+
+        // If needed, while we are iterating proteins, we will take the maximal spectrum counting value and number of validated proteins as well.
         if (metrics != null) {
+            int nValidatedProteins = 0;
+            int nConfidentProteins = 0;
+            double maxSpectrumCounting = 0;
+            for (ProteinPtmScorerRunnable runnable : runnables) {
+                nValidatedProteins += runnable.getnValidatedProteins();
+                nConfidentProteins += runnable.getnConfidentProteins();
+                maxSpectrumCounting = Math.max(maxSpectrumCounting, runnable.getMaxSpectrumCounting());
+            }
             metrics.setMaxSpectrumCounting(maxSpectrumCounting);
             metrics.setnValidatedProteins(nValidatedProteins);
             metrics.setnConfidentProteins(nConfidentProteins);
@@ -1548,333 +1605,415 @@ ProteinMatch proteinMatch;
 
     /**
      * Infers the PTM localization and its confidence for the best match of
-     * every spectrum.
+     * every spectrum. The spectrum files are processed in parallel: the
+     * confidently localized peptides of all files are gathered first, and the
+     * sites of the peptides which are not confidently localized are then
+     * inferred file by file.
      *
      * @param identification identification object containing the identification
      * matches
-     * @param waitingHandler waiting handler displaying progress to the user
      * @param identificationParameters the identification parameters
+     * @param processingPreferences the processing preferences
+     * @param waitingHandler waiting handler displaying progress to the user
+     * @param exceptionHandler handler for exceptions
      *
-     * @throws SQLException exception thrown whenever a problem occurred while
-     * interacting with the database
-     * @throws IOException exception thrown whenever a problem occurred while
-     * writing/reading the database or the FASTA file
-     * @throws ClassNotFoundException exception thrown whenever a problem
-     * occurred while deserializing an object from the database
-     * @throws IllegalArgumentException exception thrown whenever an error
-     * occurred while reading a protein sequence
-     * @throws InterruptedException exception thrown whenever an error occurred
-     * while reading a protein sequence
+     * @throws InterruptedException exception thrown whenever a threading
+     * error occurred
      */
-    public void peptideInference(Identification identification, IdentificationParameters identificationParameters, WaitingHandler waitingHandler)
-            throws SQLException, IOException, ClassNotFoundException, IllegalArgumentException, InterruptedException {
+    public void peptideInference(Identification identification, IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences,
+            WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws InterruptedException {
 
         waitingHandler.setWaitingText("Peptide Inference. Please Wait...");
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
 
-        SequenceMatchingPreferences ptmSequenceMatchingPreferences = identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences(),
-                sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-        SearchParameters searchParameters = identificationParameters.getSearchParameters();
-        PtmSettings ptmSettings = searchParameters.getPtmSettings();
+        int nThreads = Math.max(1, Math.min(processingPreferences.getnThreads(), identification.getSpectrumFiles().size()));
+
+        // gather the confidently and not confidently localized PTMs in every file
+        ConcurrentLinkedQueue<String> spectrumFiles = new ConcurrentLinkedQueue<String>(identification.getSpectrumFiles());
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        ArrayList<PeptideInferenceSitesRunnable> sitesRunnables = new ArrayList<PeptideInferenceSitesRunnable>(nThreads);
+        for (int i = 1; i <= nThreads && !waitingHandler.isRunCanceled(); i++) {
+            PeptideInferenceSitesRunnable runnable = new PeptideInferenceSitesRunnable(spectrumFiles, identification, identificationParameters, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+            sitesRunnables.add(runnable);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Peptide inference timed out. Please contact the developers.");
+        }
+        if (waitingHandler.isRunCanceled()) {
+            return;
+        }
 
-        // PSMs with confidently localized PTMs in a map: PTM mass -> peptide sequence -> spectrum keys
+        // PSMs with confidently localized PTMs in a map: PTM mass -> peptide sequence -> peptide keys
         HashMap<Double, HashMap<String, HashSet<String>>> confidentPeptideInference = new HashMap<Double, HashMap<String, HashSet<String>>>();
         // PSMs with ambiguously localized PTMs in a map: File -> PTM mass -> spectrum keys
         HashMap<String, HashMap<Double, HashSet<String>>> notConfidentPeptideInference = new HashMap<String, HashMap<Double, HashSet<String>>>();
+        for (PeptideInferenceSitesRunnable runnable : sitesRunnables) {
+            mergeConfidentPeptideInference(confidentPeptideInference, runnable.getConfidentPeptideInference());
+            notConfidentPeptideInference.putAll(runnable.getNotConfidentPeptideInference());
+        }
 
-        for (String spectrumFileName : identification.getSpectrumFiles()) {
+        // try to infer the modification site based on any related peptide
+        ConcurrentLinkedQueue<String> filesToInfer = new ConcurrentLinkedQueue<String>(notConfidentPeptideInference.keySet());
+        pool = Executors.newFixedThreadPool(nThreads);
+        for (int i = 1; i <= nThreads && !waitingHandler.isRunCanceled(); i++) {
+            PeptideInferenceRunnable runnable = new PeptideInferenceRunnable(filesToInfer, notConfidentPeptideInference, confidentPeptideInference,
+                    identification, identificationParameters, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Peptide inference timed out. Please contact the developers.");
+        }
+    }
 
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, true, waitingHandler);
-SpectrumMatch spectrumMatch;
-            
-            while ((spectrumMatch = psmIterator.next()) != null) {
+    /**
+     * Adds the confidently localized peptides of a map to another.
+     *
+     * @param confidentPeptideInference the map where to add the peptides: PTM
+     * mass -&gt; peptide sequence -&gt; peptide keys
+     * @param otherMap the map to add
+     */
+    private static void mergeConfidentPeptideInference(HashMap<Double, HashMap<String, HashSet<String>>> confidentPeptideInference, HashMap<Double, HashMap<String, HashSet<String>>> otherMap) {
+        for (Double ptmMass : otherMap.keySet()) {
+            HashMap<String, HashSet<String>> otherModMap = otherMap.get(ptmMass);
+            HashMap<String, HashSet<String>> modMap = confidentPeptideInference.get(ptmMass);
+            if (modMap == null) {
+                confidentPeptideInference.put(ptmMass, otherModMap);
+            } else {
+                for (String sequence : otherModMap.keySet()) {
+                    HashSet<String> peptideKeys = modMap.get(sequence);
+                    if (peptideKeys == null) {
+                        modMap.put(sequence, otherModMap.get(sequence));
+                    } else {
+                        peptideKeys.addAll(otherModMap.get(sequence));
+                    }
+                }
+            }
+        }
+    }
 
-                String spectrumKey = spectrumMatch.getKey();
-                if (spectrumMatch.getBestPeptideAssumption() != null) {
-                    boolean variableAA = false;
-                    Peptide peptide = spectrumMatch.getBestPeptideAssumption().getPeptide();
-                    if (peptide.isModified()) {
-                        for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
-                            if (modificationMatch.isVariable()) {
-                                String modName = modificationMatch.getTheoreticPtm();
-                                PTM ptm = ptmFactory.getPTM(modName);
-                                if (ptm.getType() == PTM.MODAA) {
-                                    variableAA = true;
-                                    break;
-                                } else {
-                                    double ptmMass = ptm.getMass();
-                                    for (String otherPtmName : ptmSettings.getAllNotFixedModifications()) {
-                                        if (!otherPtmName.equals(modName)) {
-                                            PTM ptm2 = ptmFactory.getPTM(otherPtmName);
-                                            if (ptm2.getMass() == ptmMass && ptm.getType() != ptm2.getType()) {
-                                                variableAA = true;
-                                                break;
-                                            }
+    /**
+     * Gathers the PSMs of a spectrum file carrying PTMs which can be located
+     * on different sites.
+     *
+     * @param identification identification object containing the identification
+     * matches
+     * @param spectrumFileName the name of the spectrum file
+     * @param confidentPeptideInference map where to store the peptides with
+     * confidently localized PTMs: PTM mass -&gt; peptide sequence -&gt;
+     * peptide keys
+     * @param notConfidentSpectra map where to store the PSMs with ambiguously
+     * localized PTMs: PTM mass -&gt; spectrum keys
+     * @param identificationParameters the identification parameters
+     * @param waitingHandler waiting handler displaying progress to the user
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * deserializing a match
+     */
+    private void gatherPeptideInferenceSites(Identification identification, String spectrumFileName, HashMap<Double, HashMap<String, HashSet<String>>> confidentPeptideInference,
+            HashMap<Double, HashSet<String>> notConfidentSpectra, IdentificationParameters identificationParameters, WaitingHandler waitingHandler) throws Exception {
+
+        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+        PtmSettings ptmSettings = identificationParameters.getSearchParameters().getPtmSettings();
+
+        PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, true, waitingHandler);
+        SpectrumMatch spectrumMatch;
+
+        while ((spectrumMatch = psmIterator.next()) != null) {
+
+            String spectrumKey = spectrumMatch.getKey();
+            if (spectrumMatch.getBestPeptideAssumption() != null) {
+                boolean variableAA = false;
+                Peptide peptide = spectrumMatch.getBestPeptideAssumption().getPeptide();
+                if (peptide.isModified()) {
+                    for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                        if (modificationMatch.isVariable()) {
+                            String modName = modificationMatch.getTheoreticPtm();
+                            PTM ptm = ptmFactory.getPTM(modName);
+                            if (ptm.getType() == PTM.MODAA) {
+                                variableAA = true;
+                                break;
+                            } else {
+                                double ptmMass = ptm.getMass();
+                                for (String otherPtmName : ptmSettings.getAllNotFixedModifications()) {
+                                    if (!otherPtmName.equals(modName)) {
+                                        PTM ptm2 = ptmFactory.getPTM(otherPtmName);
+                                        if (ptm2.getMass() == ptmMass && ptm.getType() != ptm2.getType()) {
+                                            variableAA = true;
+                                            break;
                                         }
                                     }
                                 }
                             }
                         }
                     }
-                    if (variableAA) {
-                        boolean confident = true;
-                        for (ModificationMatch modMatch : peptide.getModificationMatches()) {
-                            if (modMatch.isVariable()) {
-                                String modName = modMatch.getTheoreticPtm();
-                                PTM ptm = ptmFactory.getPTM(modName);
-                                double ptmMass = ptm.getMass();
-                                boolean maybeNotTerminal = ptm.getType() == PTM.MODAA;
-                                if (!maybeNotTerminal) {
-                                    for (String otherPtmName : ptmSettings.getAllNotFixedModifications()) {
-                                        if (!otherPtmName.equals(modName)) {
-                                            PTM ptm2 = ptmFactory.getPTM(otherPtmName);
-                                            if (ptm2.getMass() == ptmMass && ptm.getType() != ptm2.getType()) {
-                                                maybeNotTerminal = true;
-                                                break;
-                                            }
+                }
+                if (variableAA) {
+                    boolean confident = true;
+                    for (ModificationMatch modMatch : peptide.getModificationMatches()) {
+                        if (modMatch.isVariable()) {
+                            String modName = modMatch.getTheoreticPtm();
+                            PTM ptm = ptmFactory.getPTM(modName);
+                            double ptmMass = ptm.getMass();
+                            boolean maybeNotTerminal = ptm.getType() == PTM.MODAA;
+                            if (!maybeNotTerminal) {
+                                for (String otherPtmName : ptmSettings.getAllNotFixedModifications()) {
+                                    if (!otherPtmName.equals(modName)) {
+                                        PTM ptm2 = ptmFactory.getPTM(otherPtmName);
+                                        if (ptm2.getMass() == ptmMass && ptm.getType() != ptm2.getType()) {
+                                            maybeNotTerminal = true;
+                                            break;
                                         }
                                     }
                                 }
-                                if (maybeNotTerminal) {
-                                    if (!modMatch.isConfident()) {
-                                        HashMap<Double, HashSet<String>> fileMap = notConfidentPeptideInference.get(spectrumFileName);
-                                        if (fileMap == null) {
-                                            fileMap = new HashMap<Double, HashSet<String>>(2);
-                                            notConfidentPeptideInference.put(spectrumFileName, fileMap);
-                                        }
-                                        HashSet<String> spectra = fileMap.get(ptmMass);
-                                        if (spectra == null) {
-                                            spectra = new HashSet<String>(2);
-                                            fileMap.put(ptmMass, spectra);
-                                        }
-                                        spectra.add(spectrumKey);
-                                        confident = false;
-                                    } else {
-                                        HashMap<String, HashSet<String>> modMap = confidentPeptideInference.get(ptmMass);
-                                        if (modMap == null) {
-                                            modMap = new HashMap<String, HashSet<String>>(2);
-                                            confidentPeptideInference.put(ptmMass, modMap);
-                                        }
-                                        String sequence = spectrumMatch.getBestPeptideAssumption().getPeptide().getSequence();
-                                        HashSet<String> spectra = modMap.get(sequence);
-                                        if (spectra == null) {
-                                            spectra = new HashSet<String>(2);
-                                            modMap.put(sequence, spectra);
-                                        }
-                                        spectra.add(spectrumKey);
+                            }
+                            if (maybeNotTerminal) {
+                                if (!modMatch.isConfident()) {
+                                    HashSet<String> spectra = notConfidentSpectra.get(ptmMass);
+                                    if (spectra == null) {
+                                        spectra = new HashSet<String>(2);
+                                        notConfidentSpectra.put(ptmMass, spectra);
                                     }
+                                    spectra.add(spectrumKey);
+                                    confident = false;
+                                } else {
+                                    HashMap<String, HashSet<String>> modMap = confidentPeptideInference.get(ptmMass);
+                                    if (modMap == null) {
+                                        modMap = new HashMap<String, HashSet<String>>(2);
+                                        confidentPeptideInference.put(ptmMass, modMap);
+                                    }
+                                    String sequence = peptide.getSequence();
+                                    HashSet<String> peptideKeys = modMap.get(sequence);
+                                    if (peptideKeys == null) {
+                                        peptideKeys = new HashSet<String>(2);
+                                        modMap.put(sequence, peptideKeys);
+                                    }
+                                    peptideKeys.add(peptide.getMatchingKey(sequenceMatchingPreferences));
                                 }
                             }
                         }
-                        if (confident) {
-                            waitingHandler.increaseSecondaryProgressCounter();
-                        }
-                        if (waitingHandler.isRunCanceled()) {
-                            return;
-                        }
-                    } else {
+                    }
+                    if (confident) {
                         waitingHandler.increaseSecondaryProgressCounter();
-                        if (waitingHandler.isRunCanceled()) {
-                            return;
-                        }
+                    }
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+                } else {
+                    waitingHandler.increaseSecondaryProgressCounter();
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
                     }
                 }
             }
         }
+    }
 
-        // try to infer the modification site based on any related peptide
-        for (String spectrumFile : notConfidentPeptideInference.keySet()) {
+    /**
+     * Infers the sites of the PTMs not confidently localized in a spectrum
+     * file based on the confidently localized peptides.
+     *
+     * @param identification identification object containing the identification
+     * matches
+     * @param peptidesOfFile the PSMs with ambiguously localized PTMs of the
+     * file: PTM mass -&gt; spectrum keys
+     * @param confidentPeptideInference the peptides with confidently localized
+     * PTMs: PTM mass -&gt; peptide sequence -&gt; peptide keys
+     * @param identificationParameters the identification parameters
+     * @param waitingHandler waiting handler displaying progress to the user
+     *
+     * @throws Exception exception thrown whenever an error occurred while
+     * deserializing or updating a match
+     */
+    private void inferPeptideSites(Identification identification, HashMap<Double, HashSet<String>> peptidesOfFile, HashMap<Double, HashMap<String, HashSet<String>>> confidentPeptideInference,
+            IdentificationParameters identificationParameters, WaitingHandler waitingHandler) throws Exception {
+
+        SequenceMatchingPreferences ptmSequenceMatchingPreferences = identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences(),
+                sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+        SearchParameters searchParameters = identificationParameters.getSearchParameters();
+
+        HashSet<String> progress = new HashSet<String>();
 
-            HashSet<String> progress = new HashSet<String>();
-            HashMap<Double, HashSet<String>> peptidesOfFile = notConfidentPeptideInference.get(spectrumFile);
+        for (Double ptmMass : peptidesOfFile.keySet()) {
 
-            for (Double ptmMass : peptidesOfFile.keySet()) {
+            ArrayList<String> spectrumKeys = new ArrayList<String>(peptidesOfFile.get(ptmMass));
+            PsmIterator psmIterator = identification.getPsmIterator(spectrumKeys, true, waitingHandler);
+            SpectrumMatch spectrumMatch;
 
-                ArrayList<String> spectrumKeys = new ArrayList<String>(peptidesOfFile.get(ptmMass));
-                PsmIterator psmIterator = identification.getPsmIterator(spectrumKeys, true, waitingHandler);
-SpectrumMatch spectrumMatch;
-                
-                while ((spectrumMatch = psmIterator.next()) != null) {
+            while ((spectrumMatch = psmIterator.next()) != null) {
 
-                    String spectrumKey = spectrumMatch.getKey();
+                String spectrumKey = spectrumMatch.getKey();
 
-                    Peptide peptide = spectrumMatch.getBestPeptideAssumption().getPeptide();
-                    String sequence = peptide.getSequence();
-                    String notConfidentKey = peptide.getMatchingKey(sequenceMatchingPreferences);
-                    int nMod = Peptide.getModificationCount(notConfidentKey, ptmMass);
-                    ArrayList<Integer> tempLocalizations, oldLocalizations = Peptide.getNModificationLocalized(notConfidentKey, ptmMass);
-                    ArrayList<Integer> newLocalizationCandidates = new ArrayList<Integer>(oldLocalizations.size());
+                Peptide peptide = spectrumMatch.getBestPeptideAssumption().getPeptide();
+                String sequence = peptide.getSequence();
+                String notConfidentKey = peptide.getMatchingKey(sequenceMatchingPreferences);
+                int nMod = Peptide.getModificationCount(notConfidentKey, ptmMass);
+                ArrayList<Integer> tempLocalizations, oldLocalizations = Peptide.getNModificationLocalized(notConfidentKey, ptmMass);
+                ArrayList<Integer> newLocalizationCandidates = new ArrayList<Integer>(oldLocalizations.size());
 
-                    HashMap<String, HashSet<String>> ptmConfidentPeptides = confidentPeptideInference.get(ptmMass);
+                HashMap<String, HashSet<String>> ptmConfidentPeptides = confidentPeptideInference.get(ptmMass);
 
-                    if (ptmConfidentPeptides != null) {
+                if (ptmConfidentPeptides != null) {
 
-                        // See if we can explain this peptide by another already identified peptide with the same number of modifications (the two peptides will be merged)
-                        HashSet<String> keys = ptmConfidentPeptides.get(sequence);
+                    // See if we can explain this peptide by another already identified peptide with the same number of modifications (the two peptides will be merged)
+                    HashSet<String> keys = ptmConfidentPeptides.get(sequence);
 
-                        if (keys != null) {
-                            for (String tempKey : keys) {
-                                SpectrumMatch secondaryMatch = identification.getSpectrumMatch(tempKey);
-                                String secondaryKey = secondaryMatch.getBestPeptideAssumption().getPeptide().getMatchingKey(sequenceMatchingPreferences);
-                                if (Peptide.getModificationCount(secondaryKey, ptmMass) == nMod) {
-                                    tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
-                                    for (int localization : tempLocalizations) {
-                                        if (!oldLocalizations.contains(localization) && !newLocalizationCandidates.contains(localization)) {
-                                            newLocalizationCandidates.add(localization);
-                                        }
+                    if (keys != null) {
+                        for (String secondaryKey : keys) {
+                            if (Peptide.getModificationCount(secondaryKey, ptmMass) == nMod) {
+                                tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
+                                for (int localization : tempLocalizations) {
+                                    if (!oldLocalizations.contains(localization) && !newLocalizationCandidates.contains(localization)) {
+                                        newLocalizationCandidates.add(localization);
                                     }
                                 }
                             }
-                            if (oldLocalizations.size() + newLocalizationCandidates.size() < nMod) {
-                                // we cannot merge this peptide, see whether we can explain the remaining modifications using peptides with the same sequence but other modification profile
-                                for (String tempKey : keys) {
-                                    SpectrumMatch secondaryMatch = identification.getSpectrumMatch(tempKey);
-                                    String secondaryKey = secondaryMatch.getBestPeptideAssumption().getPeptide().getMatchingKey(sequenceMatchingPreferences);
-                                    tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
-                                    for (int localization : tempLocalizations) {
-                                        if (!oldLocalizations.contains(localization) && !newLocalizationCandidates.contains(localization)) {
-                                            newLocalizationCandidates.add(localization);
-                                        }
+                        }
+                        if (oldLocalizations.size() + newLocalizationCandidates.size() < nMod) {
+                            // we cannot merge this peptide, see whether we can explain the remaining modifications using peptides with the same sequence but other modification profile
+                            for (String secondaryKey : keys) {
+                                tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
+                                for (int localization : tempLocalizations) {
+                                    if (!oldLocalizations.contains(localization) && !newLocalizationCandidates.contains(localization)) {
+                                        newLocalizationCandidates.add(localization);
                                     }
                                 }
                             }
                         }
-                        if (oldLocalizations.size() + newLocalizationCandidates.size() < nMod) {
-                            // There are still unexplained sites, let's see if we find a related peptide which can help.
-                            HashMap<String, HashSet<String>> confidentAtMass = confidentPeptideInference.get(ptmMass);
-                            for (String otherSequence : confidentAtMass.keySet()) {
-                                if (!sequence.equals(otherSequence) && sequence.contains(otherSequence)) {
-                                    for (String tempKey : confidentAtMass.get(otherSequence)) {
-                                        SpectrumMatch secondaryMatch = identification.getSpectrumMatch(tempKey);
-                                        String secondaryKey = secondaryMatch.getBestPeptideAssumption().getPeptide().getMatchingKey(sequenceMatchingPreferences);
-                                        tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
-                                        int tempIndex, ref = 0;
-                                        String tempSequence = sequence;
-                                        while ((tempIndex = tempSequence.indexOf(otherSequence)) >= 0) {
-                                            ref += tempIndex;
-                                            for (int localization : tempLocalizations) {
-                                                int shiftedLocalization = ref + localization;
-                                                if (!oldLocalizations.contains(shiftedLocalization) && !newLocalizationCandidates.contains(shiftedLocalization)) {
-                                                    boolean siteOccupied = false;
-                                                    for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
-                                                        PTM ptm = ptmFactory.getPTM(modificationMatch.getTheoreticPtm());
-                                                        if (ptm.getMass() != ptmMass && modificationMatch.getModificationSite() == shiftedLocalization) { // @TODO: compare against the accuracy
-                                                            siteOccupied = true;
-                                                        }
+                    }
+                    if (oldLocalizations.size() + newLocalizationCandidates.size() < nMod) {
+                        // There are still unexplained sites, let's see if we find a related peptide which can help.
+                        HashMap<String, HashSet<String>> confidentAtMass = confidentPeptideInference.get(ptmMass);
+                        for (String otherSequence : confidentAtMass.keySet()) {
+                            if (!sequence.equals(otherSequence) && sequence.contains(otherSequence)) {
+                                for (String secondaryKey : confidentAtMass.get(otherSequence)) {
+                                    tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
+                                    int tempIndex, ref = 0;
+                                    String tempSequence = sequence;
+                                    while ((tempIndex = tempSequence.indexOf(otherSequence)) >= 0) {
+                                        ref += tempIndex;
+                                        for (int localization : tempLocalizations) {
+                                            int shiftedLocalization = ref + localization;
+                                            if (!oldLocalizations.contains(shiftedLocalization) && !newLocalizationCandidates.contains(shiftedLocalization)) {
+                                                boolean siteOccupied = false;
+                                                for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                                                    PTM ptm = ptmFactory.getPTM(modificationMatch.getTheoreticPtm());
+                                                    if (ptm.getMass() != ptmMass && modificationMatch.getModificationSite() == shiftedLocalization) { // @TODO: compare against the accuracy
+                                                        siteOccupied = true;
                                                     }
-                                                    boolean candidatePtm = false;
-                                                    if (!siteOccupied) {
-                                                        for (String ptmName : searchParameters.getPtmSettings().getAllNotFixedModifications()) {
-                                                            PTM ptm = ptmFactory.getPTM(ptmName);
-                                                            if (ptm.getMass() == ptmMass && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(shiftedLocalization)) { // @TODO: compare against the accuracy
-                                                                candidatePtm = true;
-                                                                break;
-                                                            }
+                                                }
+                                                boolean candidatePtm = false;
+                                                if (!siteOccupied) {
+                                                    for (String ptmName : searchParameters.getPtmSettings().getAllNotFixedModifications()) {
+                                                        PTM ptm = ptmFactory.getPTM(ptmName);
+                                                        if (ptm.getMass() == ptmMass && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(shiftedLocalization)) { // @TODO: compare against the accuracy
+                                                            candidatePtm = true;
+                                                            break;
                                                         }
                                                     }
-                                                    if (candidatePtm && !siteOccupied) {
-                                                        newLocalizationCandidates.add(shiftedLocalization);
-                                                    }
+                                                }
+                                                if (candidatePtm && !siteOccupied) {
+                                                    newLocalizationCandidates.add(shiftedLocalization);
                                                 }
                                             }
-                                            tempSequence = tempSequence.substring(tempIndex + 1);
-                                            ref++;
                                         }
+                                        tempSequence = tempSequence.substring(tempIndex + 1);
+                                        ref++;
                                     }
-                                } else if (!sequence.equals(otherSequence) && otherSequence.contains(sequence)) {
-                                    for (String tempKey : confidentAtMass.get(otherSequence)) {
-                                        SpectrumMatch secondaryMatch = identification.getSpectrumMatch(tempKey);
-                                        String secondaryKey = secondaryMatch.getBestPeptideAssumption().getPeptide().getMatchingKey(sequenceMatchingPreferences);
-                                        tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
-                                        int tempIndex, ref = 0;
-                                        String tempSequence = otherSequence;
-                                        while ((tempIndex = tempSequence.indexOf(sequence)) >= 0) {
-                                            ref += tempIndex;
-                                            for (int localization : tempLocalizations) {
-                                                int shiftedLocalization = localization - ref;
-                                                if (shiftedLocalization > 0 && shiftedLocalization <= sequence.length()
-                                                        && !oldLocalizations.contains(shiftedLocalization) && !newLocalizationCandidates.contains(shiftedLocalization)) {
-                                                    boolean siteOccupied = false;
-                                                    for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
-                                                        PTM ptm = ptmFactory.getPTM(modificationMatch.getTheoreticPtm());
-                                                        if (ptm.getMass() != ptmMass && modificationMatch.getModificationSite() == shiftedLocalization) { // @TODO: compare against the accuracy
-                                                            siteOccupied = true;
-                                                        }
+                                }
+                            } else if (!sequence.equals(otherSequence) && otherSequence.contains(sequence)) {
+                                for (String secondaryKey : confidentAtMass.get(otherSequence)) {
+                                    tempLocalizations = Peptide.getNModificationLocalized(secondaryKey, ptmMass);
+                                    int tempIndex, ref = 0;
+                                    String tempSequence = otherSequence;
+                                    while ((tempIndex = tempSequence.indexOf(sequence)) >= 0) {
+                                        ref += tempIndex;
+                                        for (int localization : tempLocalizations) {
+                                            int shiftedLocalization = localization - ref;
+                                            if (shiftedLocalization > 0 && shiftedLocalization <= sequence.length()
+                                                    && !oldLocalizations.contains(shiftedLocalization) && !newLocalizationCandidates.contains(shiftedLocalization)) {
+                                                boolean siteOccupied = false;
+                                                for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                                                    PTM ptm = ptmFactory.getPTM(modificationMatch.getTheoreticPtm());
+                                                    if (ptm.getMass() != ptmMass && modificationMatch.getModificationSite() == shiftedLocalization) { // @TODO: compare against the accuracy
+                                                        siteOccupied = true;
                                                     }
-                                                    boolean candidatePtm = false;
-                                                    if (!siteOccupied) {
-                                                        for (String ptmName : searchParameters.getPtmSettings().getAllNotFixedModifications()) {
-                                                            PTM ptm = ptmFactory.getPTM(ptmName);
-                                                            if (ptm.getMass() == ptmMass && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(shiftedLocalization)) { // @TODO: compare against the accuracy
-                                                                candidatePtm = true;
-                                                                break;
-                                                            }
+                                                }
+                                                boolean candidatePtm = false;
+                                                if (!siteOccupied) {
+                                                    for (String ptmName : searchParameters.getPtmSettings().getAllNotFixedModifications()) {
+                                                        PTM ptm = ptmFactory.getPTM(ptmName);
+                                                        if (ptm.getMass() == ptmMass && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(shiftedLocalization)) { // @TODO: compare against the accuracy
+                                                            candidatePtm = true;
+                                                            break;
                                                         }
                                                     }
-                                                    if (candidatePtm && !siteOccupied) {
-                                                        newLocalizationCandidates.add(shiftedLocalization);
-                                                    }
+                                                }
+                                                if (candidatePtm && !siteOccupied) {
+                                                    newLocalizationCandidates.add(shiftedLocalization);
                                                 }
                                             }
-                                            tempSequence = tempSequence.substring(tempIndex + 1);
-                                            ref++;
                                         }
+                                        tempSequence = tempSequence.substring(tempIndex + 1);
+                                        ref++;
                                     }
                                 }
                             }
                         }
-                        
-                        // Map the most likely inferred sites
-                        if (!newLocalizationCandidates.isEmpty()) {
-                            HashMap<Integer, ModificationMatch> nonConfidentMatches = new HashMap<Integer, ModificationMatch>();
-                            for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
-                                String ptmName = modificationMatch.getTheoreticPtm();
-                                PTM ptm = ptmFactory.getPTM(ptmName);
-                                if (ptm.getMass() == ptmMass && !modificationMatch.isConfident()) { // @TODO: compare against the accuracy
-                                    nonConfidentMatches.put(modificationMatch.getModificationSite(), modificationMatch);
-                                }
+                    }
+                    
+                    // Map the most likely inferred sites
+                    if (!newLocalizationCandidates.isEmpty()) {
+                        HashMap<Integer, ModificationMatch> nonConfidentMatches = new HashMap<Integer, ModificationMatch>();
+                        for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                            String ptmName = modificationMatch.getTheoreticPtm();
+                            PTM ptm = ptmFactory.getPTM(ptmName);
+                            if (ptm.getMass() == ptmMass && !modificationMatch.isConfident()) { // @TODO: compare against the accuracy
+                                nonConfidentMatches.put(modificationMatch.getModificationSite(), modificationMatch);
                             }
-                            HashMap<Integer, Integer> mapping = PtmSiteMapping.align(nonConfidentMatches.keySet(), newLocalizationCandidates);
-                            for (Integer oldLocalization : mapping.keySet()) {
-                                ModificationMatch modificationMatch = nonConfidentMatches.get(oldLocalization);
-                                Integer newLocalization = mapping.get(oldLocalization);
-                                if (modificationMatch == null) {
-                                    throw new IllegalArgumentException("No modification match found at site " + oldLocalization + " in spectrum " + spectrumKey + ".");
-                                }
-                                if (newLocalization != null) {
-                                    if (!newLocalization.equals(oldLocalization)) {
-                                        String ptmCandidateName = null;
-                                        for (String ptmName : searchParameters.getPtmSettings().getAllNotFixedModifications()) {
-                                            PTM ptm = ptmFactory.getPTM(ptmName);
-                                            if (ptm.getMass() == ptmMass && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(newLocalization)) { // @TODO: compare against the accuracy
-                                                ptmCandidateName = ptm.getName();
-                                                break;
-                                            }
-                                        }
-                                        if (ptmCandidateName == null) {
-                                            throw new IllegalArgumentException("No PTM found for site " + newLocalization + " on  peptide " + peptide.getSequence() + " in spectrum " + spectrumKey + ".");
+                        }
+                        HashMap<Integer, Integer> mapping = PtmSiteMapping.align(nonConfidentMatches.keySet(), newLocalizationCandidates);
+                        for (Integer oldLocalization : mapping.keySet()) {
+                            ModificationMatch modificationMatch = nonConfidentMatches.get(oldLocalization);
+                            Integer newLocalization = mapping.get(oldLocalization);
+                            if (modificationMatch == null) {
+                                throw new IllegalArgumentException("No modification match found at site " + oldLocalization + " in spectrum " + spectrumKey + ".");
+                            }
+                            if (newLocalization != null) {
+                                if (!newLocalization.equals(oldLocalization)) {
+                                    String ptmCandidateName = null;
+                                    for (String ptmName : searchParameters.getPtmSettings().getAllNotFixedModifications()) {
+                                        PTM ptm = ptmFactory.getPTM(ptmName);
+                                        if (ptm.getMass() == ptmMass && peptide.getPotentialModificationSites(ptm, sequenceMatchingPreferences, ptmSequenceMatchingPreferences).contains(newLocalization)) { // @TODO: compare against the accuracy
+                                            ptmCandidateName = ptm.getName();
+                                            break;
                                         }
-                                        modificationMatch.setModificationSite(newLocalization);
-                                        modificationMatch.setTheoreticPtm(ptmCandidateName);
-                                        PSPtmScores psmScores = (PSPtmScores) spectrumMatch.getUrParam(new PSPtmScores());
-                                        psmScores.changeRepresentativeSite(ptmCandidateName, oldLocalization, newLocalization);
                                     }
-                                    modificationMatch.setInferred(true);
+                                    if (ptmCandidateName == null) {
+                                        throw new IllegalArgumentException("No PTM found for site " + newLocalization + " on  peptide " + peptide.getSequence() + " in spectrum " + spectrumKey + ".");
+                                    }
+                                    modificationMatch.setModificationSite(newLocalization);
+                                    modificationMatch.setTheoreticPtm(ptmCandidateName);
+                                    PSPtmScores psmScores = (PSPtmScores) spectrumMatch.getUrParam(new PSPtmScores());
+                                    psmScores.changeRepresentativeSite(ptmCandidateName, oldLocalization, newLocalization);
                                 }
+                                modificationMatch.setInferred(true);
                             }
-                            peptide.resetKeysCaches();
                         }
-                        identification.updateSpectrumMatch(spectrumMatch);
-                    }
-                    if (waitingHandler.isRunCanceled()) {
-                        return;
-                    }
-                    if (!progress.contains(spectrumKey)) {
-                        progress.add(spectrumKey);
-                        waitingHandler.increaseSecondaryProgressCounter();
+                        peptide.resetKeysCaches();
                     }
+                    identification.updateSpectrumMatch(spectrumMatch);
+                }
+                if (waitingHandler.isRunCanceled()) {
+                    return;
+                }
+                if (!progress.contains(spectrumKey)) {
+                    progress.add(spectrumKey);
+                    waitingHandler.increaseSecondaryProgressCounter();
                 }
             }
         }
@@ -2324,7 +2463,7 @@ SpectrumMatch spectrumMatch;
         /**
          * The peptide spectrum annotator.
          */
-        private PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+        private CachingPeptideSpectrumAnnotator peptideSpectrumAnnotator = new CachingPeptideSpectrumAnnotator();
 
         /**
          * Constructor.
@@ -2364,5 +2503,417 @@ SpectrumMatch spectrumMatch;
                 waitingHandler.setRunCanceled();
             }
         }
+
+        /**
+         * Returns the peptide spectrum annotator of this runnable.
+         *
+         * @return the peptide spectrum annotator of this runnable
+         */
+        public CachingPeptideSpectrumAnnotator getPeptideSpectrumAnnotator() {
+            return peptideSpectrumAnnotator;
+        }
+    }
+
+    /**
+     * Runnable scoring peptide PTMs.
+     *
+     * @author Marc Vaudel
+     */
+    private class PeptidePtmScorerRunnable implements Runnable {
+
+        /**
+         * An iterator for the peptide matches.
+         */
+        private PeptideMatchesIterator peptideMatchesIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The identification parameters.
+         */
+        private IdentificationParameters identificationParameters;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param peptideMatchesIterator a peptide matches iterator
+         * @param identification the identification containing the matches
+         * @param identificationParameters the identification parameters
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public PeptidePtmScorerRunnable(PeptideMatchesIterator peptideMatchesIterator, Identification identification,
+                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.peptideMatchesIterator = peptideMatchesIterator;
+            this.identification = identification;
+            this.identificationParameters = identificationParameters;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                PeptideMatch peptideMatch;
+                while ((peptideMatch = peptideMatchesIterator.next()) != null && !waitingHandler.isRunCanceled()) {
+                    scorePTMs(identification, peptideMatch, identificationParameters, waitingHandler);
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+    }
+
+    /**
+     * Runnable scoring protein PTMs. The scored protein matches are written
+     * back to the identification by batches.
+     *
+     * @author Marc Vaudel
+     */
+    private class ProteinPtmScorerRunnable implements Runnable {
+
+        /**
+         * An iterator for the protein matches.
+         */
+        private ProteinMatchesIterator proteinMatchesIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * Boolean indicating whether the protein metrics should be gathered.
+         */
+        private boolean gatherMetrics;
+        /**
+         * The identification parameters.
+         */
+        private IdentificationParameters identificationParameters;
+        /**
+         * The identification features generator used to estimate the spectrum
+         * counting, can be null.
+         */
+        private IdentificationFeaturesGenerator identificationFeaturesGenerator;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * The scored protein matches not yet written to the identification.
+         */
+        private ArrayList<ProteinMatch> scoredMatches = new ArrayList<ProteinMatch>(PROTEIN_UPDATE_BATCH_SIZE);
+        /**
+         * The number of validated proteins found by this runnable.
+         */
+        private int nValidatedProteins = 0;
+        /**
+         * The number of confident proteins found by this runnable.
+         */
+        private int nConfidentProteins = 0;
+        /**
+         * The maximal spectrum counting found by this runnable.
+         */
+        private double maxSpectrumCounting = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param proteinMatchesIterator a protein matches iterator
+         * @param identification the identification containing the matches
+         * @param gatherMetrics boolean indicating whether the protein metrics
+         * should be gathered
+         * @param identificationParameters the identification parameters
+         * @param identificationFeaturesGenerator the identification features
+         * generator, can be null
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public ProteinPtmScorerRunnable(ProteinMatchesIterator proteinMatchesIterator, Identification identification, boolean gatherMetrics,
+                IdentificationParameters identificationParameters, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.proteinMatchesIterator = proteinMatchesIterator;
+            this.identification = identification;
+            this.gatherMetrics = gatherMetrics;
+            this.identificationParameters = identificationParameters;
+            this.identificationFeaturesGenerator = identificationFeaturesGenerator;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                PSParameter psParameter = new PSParameter();
+                ProteinMatch proteinMatch;
+                while ((proteinMatch = proteinMatchesIterator.next()) != null && !waitingHandler.isRunCanceled()) {
+
+                    String proteinKey = proteinMatch.getKey();
+
+                    PSPtmScores proteinScores = getPtmScores(identification, proteinMatch, identificationParameters, false, waitingHandler);
+                    proteinMatch.addUrParam(proteinScores);
+                    scoredMatches.add(proteinMatch);
+                    if (scoredMatches.size() == PROTEIN_UPDATE_BATCH_SIZE) {
+                        updateProteinMatches();
+                    }
+
+                    if (gatherMetrics) {
+                        psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
+                        if (psParameter.getMatchValidationLevel().isValidated()) {
+                            nValidatedProteins++;
+                            if (psParameter.getMatchValidationLevel() == MatchValidationLevel.confident) {
+                                nConfidentProteins++;
+                            }
+                        }
+                        if (identificationFeaturesGenerator != null) {
+                            double spectrumCounting = identificationFeaturesGenerator.getNormalizedSpectrumCounting(proteinKey);
+                            if (spectrumCounting > maxSpectrumCounting) {
+                                maxSpectrumCounting = spectrumCounting;
+                            }
+                        }
+                    }
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+                updateProteinMatches();
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+
+        /**
+         * Writes the scored protein matches to the identification and empties
+         * the batch.
+         *
+         * @throws Exception exception thrown whenever an error occurred while
+         * updating a match in the database
+         */
+        private void updateProteinMatches() throws Exception {
+            for (ProteinMatch proteinMatch : scoredMatches) {
+                identification.updateProteinMatch(proteinMatch);
+            }
+            scoredMatches.clear();
+        }
+
+        /**
+         * Returns the number of validated proteins found by this runnable.
+         *
+         * @return the number of validated proteins found by this runnable
+         */
+        public int getnValidatedProteins() {
+            return nValidatedProteins;
+        }
+
+        /**
+         * Returns the number of confident proteins found by this runnable.
+         *
+         * @return the number of confident proteins found by this runnable
+         */
+        public int getnConfidentProteins() {
+            return nConfidentProteins;
+        }
+
+        /**
+         * Returns the maximal spectrum counting found by this runnable.
+         *
+         * @return the maximal spectrum counting found by this runnable
+         */
+        public double getMaxSpectrumCounting() {
+            return maxSpectrumCounting;
+        }
+    }
+
+    /**
+     * Runnable gathering the PSMs with PTMs to infer, one spectrum file at a
+     * time.
+     *
+     * @author Marc Vaudel
+     */
+    private class PeptideInferenceSitesRunnable implements Runnable {
+
+        /**
+         * The spectrum files to process, shared between the runnables.
+         */
+        private ConcurrentLinkedQueue<String> spectrumFiles;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The identification parameters.
+         */
+        private IdentificationParameters identificationParameters;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * The peptides with confidently localized PTMs found by this runnable:
+         * PTM mass -&gt; peptide sequence -&gt; peptide keys.
+         */
+        private HashMap<Double, HashMap<String, HashSet<String>>> confidentPeptideInference = new HashMap<Double, HashMap<String, HashSet<String>>>();
+        /**
+         * The PSMs with ambiguously localized PTMs found by this runnable:
+         * file -&gt; PTM mass -&gt; spectrum keys.
+         */
+        private HashMap<String, HashMap<Double, HashSet<String>>> notConfidentPeptideInference = new HashMap<String, HashMap<Double, HashSet<String>>>();
+
+        /**
+         * Constructor.
+         *
+         * @param spectrumFiles the spectrum files to process, shared between
+         * the runnables
+         * @param identification the identification containing the matches
+         * @param identificationParameters the identification parameters
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public PeptideInferenceSitesRunnable(ConcurrentLinkedQueue<String> spectrumFiles, Identification identification,
+                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.spectrumFiles = spectrumFiles;
+            this.identification = identification;
+            this.identificationParameters = identificationParameters;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                String spectrumFileName;
+                while ((spectrumFileName = spectrumFiles.poll()) != null && !waitingHandler.isRunCanceled()) {
+                    HashMap<Double, HashSet<String>> notConfidentSpectra = new HashMap<Double, HashSet<String>>(2);
+                    gatherPeptideInferenceSites(identification, spectrumFileName, confidentPeptideInference, notConfidentSpectra, identificationParameters, waitingHandler);
+                    if (!notConfidentSpectra.isEmpty()) {
+                        notConfidentPeptideInference.put(spectrumFileName, notConfidentSpectra);
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+
+        /**
+         * Returns the peptides with confidently localized PTMs found by this
+         * runnable.
+         *
+         * @return the peptides with confidently localized PTMs found by this
+         * runnable
+         */
+        public HashMap<Double, HashMap<String, HashSet<String>>> getConfidentPeptideInference() {
+            return confidentPeptideInference;
+        }
+
+        /**
+         * Returns the PSMs with ambiguously localized PTMs found by this
+         * runnable.
+         *
+         * @return the PSMs with ambiguously localized PTMs found by this
+         * runnable
+         */
+        public HashMap<String, HashMap<Double, HashSet<String>>> getNotConfidentPeptideInference() {
+            return notConfidentPeptideInference;
+        }
+    }
+
+    /**
+     * Runnable inferring the sites of the PTMs not confidently localized, one
+     * spectrum file at a time.
+     *
+     * @author Marc Vaudel
+     */
+    private class PeptideInferenceRunnable implements Runnable {
+
+        /**
+         * The spectrum files to process, shared between the runnables.
+         */
+        private ConcurrentLinkedQueue<String> spectrumFiles;
+        /**
+         * The PSMs with ambiguously localized PTMs: file -&gt; PTM mass -&gt;
+         * spectrum keys.
+         */
+        private HashMap<String, HashMap<Double, HashSet<String>>> notConfidentPeptideInference;
+        /**
+         * The peptides with confidently localized PTMs: PTM mass -&gt; peptide
+         * sequence -&gt; peptide keys.
+         */
+        private HashMap<Double, HashMap<String, HashSet<String>>> confidentPeptideInference;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The identification parameters.
+         */
+        private IdentificationParameters identificationParameters;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param spectrumFiles the spectrum files to process, shared between
+         * the runnables
+         * @param notConfidentPeptideInference the PSMs with ambiguously
+         * localized PTMs
+         * @param confidentPeptideInference the peptides with confidently
+         * localized PTMs
+         * @param identification the identification containing the matches
+         * @param identificationParameters the identification parameters
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public PeptideInferenceRunnable(ConcurrentLinkedQueue<String> spectrumFiles, HashMap<String, HashMap<Double, HashSet<String>>> notConfidentPeptideInference,
+                HashMap<Double, HashMap<String, HashSet<String>>> confidentPeptideInference, Identification identification,
+                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.spectrumFiles = spectrumFiles;
+            this.notConfidentPeptideInference = notConfidentPeptideInference;
+            this.confidentPeptideInference = confidentPeptideInference;
+            this.identification = identification;
+            this.identificationParameters = identificationParameters;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                String spectrumFileName;
+                while ((spectrumFileName = spectrumFiles.poll()) != null && !waitingHandler.isRunCanceled()) {
+                    inferPeptideSites(identification, notConfidentPeptideInference.get(spectrumFileName), confidentPeptideInference, identificationParameters, waitingHandler);
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
     }
 }
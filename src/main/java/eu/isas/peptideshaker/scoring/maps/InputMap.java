@@ -261,6 +261,60 @@ public class InputMap implements Serializable {
         targetDecoyMap.put(eValue, isDecoy);
     }
 
+    /**
+     * Adds all the entries and intermediate scores of another input map to
+     * this map. This allows threads to accumulate scores in their own map
+     * without contention. The maps of the other input map might be reused,
+     * it should not be used afterwards.
+     *
+     * @param otherMap another input map
+     */
+    public void addAll(InputMap otherMap) {
+        for (Integer searchEngine : otherMap.inputMap.keySet()) {
+            TargetDecoyMap targetDecoyMap = inputMap.get(searchEngine);
+            if (targetDecoyMap == null) {
+                targetDecoyMap = createTargetDecoyInputMap(searchEngine);
+            }
+            targetDecoyMap.addAll(otherMap.inputMap.get(searchEngine));
+        }
+        for (Integer searchEngine : otherMap.inputSpecificMap.keySet()) {
+            HashMap<String, TargetDecoyMap> algorithmMap = inputSpecificMap.get(searchEngine);
+            if (algorithmMap == null) {
+                algorithmMap = createIntermediateInputSpecificMap(searchEngine);
+            }
+            HashMap<String, TargetDecoyMap> otherAlgorithmMap = otherMap.inputSpecificMap.get(searchEngine);
+            for (String spectrumFileName : otherAlgorithmMap.keySet()) {
+                TargetDecoyMap targetDecoyMap = algorithmMap.get(spectrumFileName);
+                if (targetDecoyMap == null) {
+                    targetDecoyMap = createTargetDecoySpecificMap(spectrumFileName, algorithmMap);
+                }
+                targetDecoyMap.addAll(otherAlgorithmMap.get(spectrumFileName));
+            }
+        }
+        for (String fileName : otherMap.intermediateScores.keySet()) {
+            HashMap<Integer, HashMap<Integer, TargetDecoyMap>> advocateMap = intermediateScores.get(fileName);
+            if (advocateMap == null) {
+                advocateMap = createIntermediateScoreMap(fileName);
+            }
+            HashMap<Integer, HashMap<Integer, TargetDecoyMap>> otherAdvocateMap = otherMap.intermediateScores.get(fileName);
+            for (Integer advocateIndex : otherAdvocateMap.keySet()) {
+                HashMap<Integer, TargetDecoyMap> scoreMap = advocateMap.get(advocateIndex);
+                if (scoreMap == null) {
+                    scoreMap = createIntermediateScoreMap(advocateIndex, advocateMap);
+                }
+                HashMap<Integer, TargetDecoyMap> otherScoreMap = otherAdvocateMap.get(advocateIndex);
+                for (Integer scoreIndex : otherScoreMap.keySet()) {
+                    TargetDecoyMap targetDecoyMap = scoreMap.get(scoreIndex);
+                    if (targetDecoyMap == null) {
+                        scoreMap.put(scoreIndex, otherScoreMap.get(scoreIndex));
+                    } else {
+                        targetDecoyMap.addAll(otherScoreMap.get(scoreIndex));
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Creates the target decoy input map for the given search engine unless already done by another thread.
      * 
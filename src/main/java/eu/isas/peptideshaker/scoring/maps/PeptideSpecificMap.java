@@ -108,10 +108,28 @@ public class PeptideSpecificMap implements Serializable {
     public void addPoint(double probabilityScore, PeptideMatch peptideMatch, SequenceMatchingPreferences sequenceMatchingPreferences)
             throws IOException, InterruptedException, SQLException, ClassNotFoundException {
         String key = getKey(peptideMatch);
-        if (!peptideMaps.containsKey(key)) {
-            peptideMaps.put(key, new TargetDecoyMap());
+        boolean isDecoy = peptideMatch.getTheoreticPeptide().isDecoy(sequenceMatchingPreferences);
+        TargetDecoyMap targetDecoyMap = getOrCreateTargetDecoyMap(key);
+        targetDecoyMap.put(probabilityScore, isDecoy);
+    }
+
+    /**
+     * Returns the target decoy map of the given peptide group and creates it
+     * if no other thread has done it before. The maps are looked up under the
+     * same lock as they are created, the points are then added to the target
+     * decoy map without locking.
+     *
+     * @param key the key of the peptide group
+     *
+     * @return the target decoy map of the given peptide group
+     */
+    private synchronized TargetDecoyMap getOrCreateTargetDecoyMap(String key) {
+        TargetDecoyMap targetDecoyMap = peptideMaps.get(key);
+        if (targetDecoyMap == null) {
+            targetDecoyMap = new TargetDecoyMap();
+            peptideMaps.put(key, targetDecoyMap);
         }
-        peptideMaps.get(key).put(probabilityScore, peptideMatch.getTheoreticPeptide().isDecoy(sequenceMatchingPreferences));
+        return targetDecoyMap;
     }
 
     /**
@@ -159,6 +159,31 @@ public class PsmSpecificMap implements Serializable {
         targetDecoyMap.put(probabilityScore, spectrumMatch.getBestPeptideAssumption().getPeptide().isDecoy(sequenceMatchingPreferences));
     }
 
+    /**
+     * Adds all the points of another PSM map to this map. The other map should
+     * not have been cleaned.
+     *
+     * @param otherMap another PSM map
+     */
+    public void addAll(PsmSpecificMap otherMap) {
+        for (Integer charge : otherMap.fileSpecificPsmsMaps.keySet()) {
+            HashMap<String, TargetDecoyMap> fileMapping = fileSpecificPsmsMaps.get(charge);
+            if (fileMapping == null) {
+                fileMapping = new HashMap<String, TargetDecoyMap>();
+                fileSpecificPsmsMaps.put(charge, fileMapping);
+            }
+            HashMap<String, TargetDecoyMap> otherFileMapping = otherMap.fileSpecificPsmsMaps.get(charge);
+            for (String file : otherFileMapping.keySet()) {
+                TargetDecoyMap targetDecoyMap = fileMapping.get(file);
+                if (targetDecoyMap == null) {
+                    targetDecoyMap = new TargetDecoyMap();
+                    fileMapping.put(file, targetDecoyMap);
+                }
+                targetDecoyMap.addAll(otherFileMapping.get(file));
+            }
+        }
+    }
+
     /**
      * This method groups the statistically non significant PSMs between files
      * and with the ones having a charge directly smaller until statistical
@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.scoring.psm_scoring;
 
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.biology.Peptide;
 import com.compomics.util.experiment.identification.Advocate;
 import com.compomics.util.experiment.identification.Identification;
@@ -14,7 +15,6 @@ import com.compomics.util.experiment.identification.matches_iterators.PsmIterato
 import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
 import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
-import com.compomics.util.memory.MemoryConsumptionStatus;
 import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
 import com.compomics.util.experiment.identification.filtering.PeptideAssumptionFilter;
 import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
@@ -22,9 +22,11 @@ import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
 import com.compomics.util.preferences.IdMatchValidationPreferences;
+import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.peptideshaker.parameters.PSParameter;
 import eu.isas.peptideshaker.scoring.maps.InputMap;
+import eu.isas.peptideshaker.scoring.maps.PsmSpecificMap;
 import eu.isas.peptideshaker.utils.Metrics;
 import eu.isas.peptideshaker.validation.MatchesValidator;
 import java.io.IOException;
@@ -33,6 +35,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.math.MathException;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
@@ -89,7 +94,9 @@ public class BestMatchSelection {
      * Fills the PSM specific map.
      *
      * @param inputMap The input map
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      * @param identificationParameters the identification parameters
      *
      * @throws java.sql.SQLException exception thrown whenever an error occurred
@@ -100,20 +107,81 @@ public class BestMatchSelection {
      * error occurred while deserializing an object
      * @throws java.lang.InterruptedException exception thrown whenever a
      * threading error occurred
-     * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
-     * whenever an error occurred while reading an mzML file
-     * @throws org.apache.commons.math.MathException exception thrown if a math
-     * exception occurred when estimating the noise level
      */
-    public void selectBestHitAndFillPsmMap(InputMap inputMap, WaitingHandler waitingHandler,
-            IdentificationParameters identificationParameters) throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+    public void selectBestHitAndFillPsmMap(InputMap inputMap, ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler,
+            IdentificationParameters identificationParameters) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
 
-        PeptideSpectrumAnnotator spectrumAnnotator = new PeptideSpectrumAnnotator();
         boolean multiSE = inputMap.isMultipleAlgorithms();
 
+        HashMap<String, ArrayList<String>> orderedSpectrumKeys = metrics.getOrderedSpectrumKeys();
+
+        for (String spectrumFileName : identification.getSpectrumFiles()) {
+
+            ArrayList<String> spectrumKeys = null;
+            if (orderedSpectrumKeys != null) {
+                spectrumKeys = orderedSpectrumKeys.get(spectrumFileName);
+            }
+            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, spectrumKeys, null, true, waitingHandler);
+
+            ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+            ArrayList<BestHitSelectionRunnable> runnables = new ArrayList<BestHitSelectionRunnable>(processingPreferences.getnThreads());
+            for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+                BestHitSelectionRunnable runnable = new BestHitSelectionRunnable(psmIterator, multiSE, identificationParameters, waitingHandler, exceptionHandler);
+                pool.submit(runnable);
+                runnables.add(runnable);
+            }
+            pool.shutdown();
+            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+                throw new InterruptedException("Best hit selection timed out. Please contact the developers.");
+            }
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
+
+            // merge the maps gathered on every thread
+            for (BestHitSelectionRunnable runnable : runnables) {
+                matchesValidator.getPsmMap().addAll(runnable.getPsmMap());
+            }
+        }
+
+        // the protein count map is no longer needed
+        proteinCount.clear();
+
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+    }
+
+    /**
+     * Selects the best hit of a spectrum match and adds it to the given PSM
+     * map.
+     *
+     * @param advocateMatch the spectrum match containing the search engine
+     * assumptions
+     * @param multiSE boolean indicating whether multiple search engines were
+     * used
+     * @param spectrumAnnotator the spectrum annotator to use
+     * @param psmMap the PSM map where to add the best hit
+     * @param identificationParameters the identification parameters
+     *
+     * @throws java.sql.SQLException exception thrown whenever an error occurred
+     * while interacting with the back-end database
+     * @throws java.io.IOException exception thrown whenever an error occurred
+     * while reading an external file
+     * @throws java.lang.ClassNotFoundException exception thrown whenever an
+     * error occurred while deserializing an object
+     * @throws java.lang.InterruptedException exception thrown whenever a
+     * threading error occurred
+     * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
+     * whenever an error occurred while reading an mzML file
+     * @throws org.apache.commons.math.MathException exception thrown if a math
+     * exception occurred when estimating the noise level
+     */
+    private void selectBestHit(SpectrumMatch advocateMatch, boolean multiSE, PeptideSpectrumAnnotator spectrumAnnotator, PsmSpecificMap psmMap,
+            IdentificationParameters identificationParameters)
+            throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
+
         PeptideAssumptionFilter peptideAssumptionFilter = identificationParameters.getPeptideAssumptionFilter();
         SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
         SequenceMatchingPreferences ptmSequenceMatchingPreferences = identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences();
@@ -123,269 +191,243 @@ public class BestMatchSelection {
 
         PeptideAssumptionFilter idFilter = identificationParameters.getPeptideAssumptionFilter();
 
-        // Keep a map of the spectrum keys grouped by peptide
-        HashMap<String, ArrayList<String>> orderedPsmMap = null;
-        if (MemoryConsumptionStatus.memoryUsed() < 0.8) {
-            orderedPsmMap = new HashMap<String, ArrayList<String>>(identification.getSpectrumIdentificationMap().size());
-        }
-
         PSParameter psParameter = new PSParameter();
 
-        for (String spectrumFileName : identification.getSpectrumFiles()) {
-
-            HashMap<String, ArrayList<String>> keysMap = null;
-            if (orderedPsmMap != null) {
-                keysMap = new HashMap<String, ArrayList<String>>();
-            }
-
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, null, true, waitingHandler);
-            SpectrumMatch advocateMatch;
-
-            while ((advocateMatch = psmIterator.next()) != null) {
-
-                String spectrumKey = advocateMatch.getKey();
+        String spectrumKey = advocateMatch.getKey();
 
-                // map of the peptide first hits for this spectrum: score -> max protein count -> max search engine votes -> amino acids annotated -> min mass deviation -> peptide sequence
-                HashMap<Double, HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>>> peptideAssumptions
-                        = new HashMap<Double, HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>>>();
+        // map of the peptide first hits for this spectrum: score -> max protein count -> max search engine votes -> amino acids annotated -> min mass deviation -> peptide sequence
+        HashMap<Double, HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>>> peptideAssumptions
+                = new HashMap<Double, HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>>>();
 
-                // map of the tag first hits: score -> assumptions
-                HashMap<Double, ArrayList<TagAssumption>> tagAssumptions = new HashMap<Double, ArrayList<TagAssumption>>();
+        // map of the tag first hits: score -> assumptions
+        HashMap<Double, ArrayList<TagAssumption>> tagAssumptions = new HashMap<Double, ArrayList<TagAssumption>>();
 
-                HashSet<String> identifications = new HashSet<String>();
+        HashSet<String> identifications = new HashSet<String>();
 
-                HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions = identification.getAssumptions(spectrumKey);
+        HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions = identification.getAssumptions(spectrumKey);
 
-                for (int searchEngine1 : assumptions.keySet()) {
+        for (int searchEngine1 : assumptions.keySet()) {
 
-                    HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocate1Map = assumptions.get(searchEngine1);
+            HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocate1Map = assumptions.get(searchEngine1);
 
-                    ArrayList<Double> eValues1 = new ArrayList<Double>(advocate1Map.keySet());
-                    Collections.sort(eValues1);
+            ArrayList<Double> eValues1 = new ArrayList<Double>(advocate1Map.keySet());
+            Collections.sort(eValues1);
 
-                    for (Double eValue1 : eValues1) {
+            for (Double eValue1 : eValues1) {
 
-                        boolean bestPeptideFound = false;
+                boolean bestPeptideFound = false;
 
-                        for (SpectrumIdentificationAssumption assumption1 : advocate1Map.get(eValue1)) {
+                for (SpectrumIdentificationAssumption assumption1 : advocate1Map.get(eValue1)) {
 
-                            if (assumption1 instanceof PeptideAssumption) {
+                    if (assumption1 instanceof PeptideAssumption) {
 
-                                PeptideAssumption peptideAssumption1 = (PeptideAssumption) assumption1;
-                                Peptide peptide1 = peptideAssumption1.getPeptide();
-                                String id = peptide1.getKey();
+                        PeptideAssumption peptideAssumption1 = (PeptideAssumption) assumption1;
+                        Peptide peptide1 = peptideAssumption1.getPeptide();
+                        String id = peptide1.getKey();
 
-                                if (!identifications.contains(id)) {
+                        if (!identifications.contains(id)) {
 
-                                    boolean filterPassed1 = true;
-                                    if (!peptideAssumptionFilter.validatePeptide(peptide1, sequenceMatchingPreferences, searchParameters.getDigestionPreferences())
-                                            || !peptideAssumptionFilter.validateModifications(peptide1, sequenceMatchingPreferences, ptmSequenceMatchingPreferences, searchParameters.getPtmSettings())
-                                            || !peptideAssumptionFilter.validatePrecursor(peptideAssumption1, spectrumKey, spectrumFactory, searchParameters)
-                                            || !peptideAssumptionFilter.validateProteins(peptide1, sequenceMatchingPreferences)) {
-                                        filterPassed1 = false;
-                                    } else {
-                                        ArrayList<String> accessions = peptide1.getParentProteins(sequenceMatchingPreferences);
-                                        if (accessions == null || accessions.isEmpty()) {
-                                            filterPassed1 = false;
-                                        }
-                                    }
+                            boolean filterPassed1 = true;
+                            if (!peptideAssumptionFilter.validatePeptide(peptide1, sequenceMatchingPreferences, searchParameters.getDigestionPreferences())
+                                    || !peptideAssumptionFilter.validateModifications(peptide1, sequenceMatchingPreferences, ptmSequenceMatchingPreferences, searchParameters.getPtmSettings())
+                                    || !peptideAssumptionFilter.validatePrecursor(peptideAssumption1, spectrumKey, spectrumFactory, searchParameters)
+                                    || !peptideAssumptionFilter.validateProteins(peptide1, sequenceMatchingPreferences)) {
+                                filterPassed1 = false;
+                            } else {
+                                ArrayList<String> accessions = peptide1.getParentProteins(sequenceMatchingPreferences);
+                                if (accessions == null || accessions.isEmpty()) {
+                                    filterPassed1 = false;
+                                }
+                            }
 
-                                    if (filterPassed1) {
+                            if (filterPassed1) {
 
-                                        bestPeptideFound = true;
+                                bestPeptideFound = true;
 
-                                        psParameter = (PSParameter) peptideAssumption1.getUrParam(psParameter);
-                                        double p;
+                                psParameter = (PSParameter) peptideAssumption1.getUrParam(psParameter);
+                                double p;
 
-                                        if (multiSE && sequenceFactory.concatenatedTargetDecoy()) {
-                                            p = psParameter.getSearchEngineProbability();
-                                        } else {
-                                            p = peptideAssumption1.getScore();
-                                        }
+                                if (multiSE && sequenceFactory.concatenatedTargetDecoy()) {
+                                    p = psParameter.getSearchEngineProbability();
+                                } else {
+                                    p = peptideAssumption1.getScore();
+                                }
 
-                                        int nSE = 1;
-                                        int proteinMax = 1;
-                                        for (String protein : peptideAssumption1.getPeptide().getParentProteins(sequenceMatchingPreferences)) {
-                                            Integer tempCount = proteinCount.get(protein);
-                                            if (tempCount != null && tempCount > proteinMax) {
-                                                proteinMax = tempCount;
-                                            }
-                                        }
+                                int nSE = 1;
+                                int proteinMax = 1;
+                                for (String protein : peptideAssumption1.getPeptide().getParentProteins(sequenceMatchingPreferences)) {
+                                    Integer tempCount = proteinCount.get(protein);
+                                    if (tempCount != null && tempCount > proteinMax) {
+                                        proteinMax = tempCount;
+                                    }
+                                }
 
-                                        for (int searchEngine2 : assumptions.keySet()) {
+                                for (int searchEngine2 : assumptions.keySet()) {
 
-                                            if (searchEngine1 != searchEngine2) {
+                                    if (searchEngine1 != searchEngine2) {
 
-                                                HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocate2Map = assumptions.get(searchEngine2);
+                                        HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocate2Map = assumptions.get(searchEngine2);
 
-                                                boolean found = false;
-                                                ArrayList<Double> eValues2 = new ArrayList<Double>(advocate2Map.keySet());
-                                                Collections.sort(eValues2);
+                                        boolean found = false;
+                                        ArrayList<Double> eValues2 = new ArrayList<Double>(advocate2Map.keySet());
+                                        Collections.sort(eValues2);
 
-                                                for (double eValue2 : eValues2) {
+                                        for (double eValue2 : eValues2) {
 
-                                                    for (SpectrumIdentificationAssumption assumption2 : advocate2Map.get(eValue2)) {
+                                            for (SpectrumIdentificationAssumption assumption2 : advocate2Map.get(eValue2)) {
 
-                                                        if (assumption2 instanceof PeptideAssumption) {
+                                                if (assumption2 instanceof PeptideAssumption) {
 
-                                                            PeptideAssumption peptideAssumption2 = (PeptideAssumption) assumption2;
+                                                    PeptideAssumption peptideAssumption2 = (PeptideAssumption) assumption2;
 
-                                                            if (peptideAssumption1.getPeptide().isSameSequenceAndModificationStatus(peptideAssumption2.getPeptide(),
-                                                                    sequenceMatchingPreferences)) {
-                                                                PSParameter psParameter2 = (PSParameter) peptideAssumption2.getUrParam(psParameter);
-                                                                p = p * psParameter2.getSearchEngineProbability();
-                                                                nSE++;
-                                                                found = true;
-                                                                break;
-                                                            }
-                                                        }
-                                                    }
-                                                    if (found) {
+                                                    if (peptideAssumption1.getPeptide().isSameSequenceAndModificationStatus(peptideAssumption2.getPeptide(),
+                                                            sequenceMatchingPreferences)) {
+                                                        PSParameter psParameter2 = (PSParameter) peptideAssumption2.getUrParam(psParameter);
+                                                        p = p * psParameter2.getSearchEngineProbability();
+                                                        nSE++;
+                                                        found = true;
                                                         break;
                                                     }
                                                 }
                                             }
+                                            if (found) {
+                                                break;
+                                            }
                                         }
+                                    }
+                                }
 
-                                        identifications.add(id);
-
-                                        HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>> pMap = peptideAssumptions.get(p);
-                                        if (pMap == null) {
-                                            pMap = new HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>>(advocate1Map.size());
-                                            peptideAssumptions.put(p, pMap);
-                                        }
+                                identifications.add(id);
 
-                                        HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>> proteinMaxMap = pMap.get(proteinMax);
-                                        if (proteinMaxMap == null) {
-                                            proteinMaxMap = new HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>(1);
-                                            pMap.put(proteinMax, proteinMaxMap);
-                                        }
+                                HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>> pMap = peptideAssumptions.get(p);
+                                if (pMap == null) {
+                                    pMap = new HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>>(advocate1Map.size());
+                                    peptideAssumptions.put(p, pMap);
+                                }
 
-                                        HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>> nSeMap = proteinMaxMap.get(nSE);
-                                        if (nSeMap == null) {
-                                            nSeMap = new HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>(1);
-                                            proteinMaxMap.put(nSE, nSeMap);
-                                            HashMap<Double, HashMap<String, PeptideAssumption>> coverageMap = new HashMap<Double, HashMap<String, PeptideAssumption>>(1);
-                                            nSeMap.put(-1, coverageMap);
-                                            HashMap<String, PeptideAssumption> assumptionMap = new HashMap<String, PeptideAssumption>(1);
-                                            coverageMap.put(-1.0, assumptionMap);
-                                            assumptionMap.put(peptideAssumption1.getPeptide().getSequenceWithLowerCasePtms(), peptideAssumption1);
-                                        } else {
-                                            MSnSpectrum spectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumKey);
-
-                                            HashMap<Double, HashMap<String, PeptideAssumption>> coverageMap = nSeMap.get(-1);
-                                            if (coverageMap != null) {
-                                                HashMap<String, PeptideAssumption> assumptionMap = coverageMap.get(-1.0);
-                                                for (PeptideAssumption tempAssumption : assumptionMap.values()) { // There should be only one
-                                                    Peptide peptide = tempAssumption.getPeptide();
-                                                    SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(spectrum.getSpectrumKey(), tempAssumption, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
-                                                    HashMap<Integer, ArrayList<IonMatch>> coveredAminoAcids = spectrumAnnotator.getCoveredAminoAcids(annotationPreferences, specificAnnotationPreferences, (MSnSpectrum) spectrum, peptide, true);
-                                                    int nIons = coveredAminoAcids.size();
-                                                    nSeMap.put(nIons, coverageMap);
-                                                }
-                                                nSeMap.remove(-1);
-                                            }
+                                HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>> proteinMaxMap = pMap.get(proteinMax);
+                                if (proteinMaxMap == null) {
+                                    proteinMaxMap = new HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>(1);
+                                    pMap.put(proteinMax, proteinMaxMap);
+                                }
 
-                                            Peptide peptide = peptideAssumption1.getPeptide();
-                                            SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(spectrum.getSpectrumKey(), peptideAssumption1, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
+                                HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>> nSeMap = proteinMaxMap.get(nSE);
+                                if (nSeMap == null) {
+                                    nSeMap = new HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>(1);
+                                    proteinMaxMap.put(nSE, nSeMap);
+                                    HashMap<Double, HashMap<String, PeptideAssumption>> coverageMap = new HashMap<Double, HashMap<String, PeptideAssumption>>(1);
+                                    nSeMap.put(-1, coverageMap);
+                                    HashMap<String, PeptideAssumption> assumptionMap = new HashMap<String, PeptideAssumption>(1);
+                                    coverageMap.put(-1.0, assumptionMap);
+                                    assumptionMap.put(peptideAssumption1.getPeptide().getSequenceWithLowerCasePtms(), peptideAssumption1);
+                                } else {
+                                    MSnSpectrum spectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumKey);
+
+                                    HashMap<Double, HashMap<String, PeptideAssumption>> coverageMap = nSeMap.get(-1);
+                                    if (coverageMap != null) {
+                                        HashMap<String, PeptideAssumption> assumptionMap = coverageMap.get(-1.0);
+                                        for (PeptideAssumption tempAssumption : assumptionMap.values()) { // There should be only one
+                                            Peptide peptide = tempAssumption.getPeptide();
+                                            SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(spectrum.getSpectrumKey(), tempAssumption, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
                                             HashMap<Integer, ArrayList<IonMatch>> coveredAminoAcids = spectrumAnnotator.getCoveredAminoAcids(annotationPreferences, specificAnnotationPreferences, (MSnSpectrum) spectrum, peptide, true);
                                             int nIons = coveredAminoAcids.size();
+                                            nSeMap.put(nIons, coverageMap);
+                                        }
+                                        nSeMap.remove(-1);
+                                    }
 
-                                            coverageMap = nSeMap.get(nIons);
-                                            if (coverageMap == null) {
-                                                coverageMap = new HashMap<Double, HashMap<String, PeptideAssumption>>(1);
-                                                HashMap<String, PeptideAssumption> assumptionMap = new HashMap<String, PeptideAssumption>(1);
-                                                assumptionMap.put(peptideAssumption1.getPeptide().getSequenceWithLowerCasePtms(), peptideAssumption1);
-                                                coverageMap.put(-1.0, assumptionMap);
-                                                nSeMap.put(nIons, coverageMap);
-                                            } else {
-                                                HashMap<String, PeptideAssumption> assumptionMap = coverageMap.get(-1.0);
-                                                if (assumptionMap != null) {
-                                                    for (PeptideAssumption tempAssumption : assumptionMap.values()) { // There should be only one
-                                                        double massError = Math.abs(tempAssumption.getDeltaMass(spectrum.getPrecursor().getMz(), searchParameters.isPrecursorAccuracyTypePpm(), searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection()));
-                                                        coverageMap.put(massError, assumptionMap);
-                                                    }
-                                                    coverageMap.remove(-1.0);
-                                                }
-
-                                                double massError = Math.abs(peptideAssumption1.getDeltaMass(spectrum.getPrecursor().getMz(), searchParameters.isPrecursorAccuracyTypePpm(), searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection()));
-                                                assumptionMap = coverageMap.get(massError);
-                                                if (assumptionMap == null) {
-                                                    assumptionMap = new HashMap<String, PeptideAssumption>(1);
-                                                    coverageMap.put(massError, assumptionMap);
-                                                }
-                                                assumptionMap.put(peptideAssumption1.getPeptide().getSequenceWithLowerCasePtms(), peptideAssumption1);
+                                    Peptide peptide = peptideAssumption1.getPeptide();
+                                    SpecificAnnotationSettings specificAnnotationPreferences = annotationPreferences.getSpecificAnnotationPreferences(spectrum.getSpectrumKey(), peptideAssumption1, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
+                                    HashMap<Integer, ArrayList<IonMatch>> coveredAminoAcids = spectrumAnnotator.getCoveredAminoAcids(annotationPreferences, specificAnnotationPreferences, (MSnSpectrum) spectrum, peptide, true);
+                                    int nIons = coveredAminoAcids.size();
+
+                                    coverageMap = nSeMap.get(nIons);
+                                    if (coverageMap == null) {
+                                        coverageMap = new HashMap<Double, HashMap<String, PeptideAssumption>>(1);
+                                        HashMap<String, PeptideAssumption> assumptionMap = new HashMap<String, PeptideAssumption>(1);
+                                        assumptionMap.put(peptideAssumption1.getPeptide().getSequenceWithLowerCasePtms(), peptideAssumption1);
+                                        coverageMap.put(-1.0, assumptionMap);
+                                        nSeMap.put(nIons, coverageMap);
+                                    } else {
+                                        HashMap<String, PeptideAssumption> assumptionMap = coverageMap.get(-1.0);
+                                        if (assumptionMap != null) {
+                                            for (PeptideAssumption tempAssumption : assumptionMap.values()) { // There should be only one
+                                                double massError = Math.abs(tempAssumption.getDeltaMass(spectrum.getPrecursor().getMz(), searchParameters.isPrecursorAccuracyTypePpm(), searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection()));
+                                                coverageMap.put(massError, assumptionMap);
                                             }
+                                            coverageMap.remove(-1.0);
+                                        }
+
+                                        double massError = Math.abs(peptideAssumption1.getDeltaMass(spectrum.getPrecursor().getMz(), searchParameters.isPrecursorAccuracyTypePpm(), searchParameters.getMinIsotopicCorrection(), searchParameters.getMaxIsotopicCorrection()));
+                                        assumptionMap = coverageMap.get(massError);
+                                        if (assumptionMap == null) {
+                                            assumptionMap = new HashMap<String, PeptideAssumption>(1);
+                                            coverageMap.put(massError, assumptionMap);
                                         }
+                                        assumptionMap.put(peptideAssumption1.getPeptide().getSequenceWithLowerCasePtms(), peptideAssumption1);
                                     }
                                 }
-                            } else if (assumption1 instanceof TagAssumption) {
-                                TagAssumption tagAssumption = (TagAssumption) assumption1;
-                                ArrayList<TagAssumption> assumptionList = tagAssumptions.get(eValue1);
-                                if (assumptionList == null) {
-                                    assumptionList = new ArrayList<TagAssumption>();
-                                    tagAssumptions.put(eValue1, assumptionList);
-                                }
-                                assumptionList.add(tagAssumption);
                             }
                         }
-                        if (bestPeptideFound) {
-                            break;
+                    } else if (assumption1 instanceof TagAssumption) {
+                        TagAssumption tagAssumption = (TagAssumption) assumption1;
+                        ArrayList<TagAssumption> assumptionList = tagAssumptions.get(eValue1);
+                        if (assumptionList == null) {
+                            assumptionList = new ArrayList<TagAssumption>();
+                            tagAssumptions.put(eValue1, assumptionList);
                         }
+                        assumptionList.add(tagAssumption);
                     }
                 }
+                if (bestPeptideFound) {
+                    break;
+                }
+            }
+        }
 
-                SpectrumMatch spectrumMatch = new SpectrumMatch(spectrumKey);
-                if (!peptideAssumptions.isEmpty()) {
+        SpectrumMatch spectrumMatch = new SpectrumMatch(spectrumKey);
+        if (!peptideAssumptions.isEmpty()) {
 
-                    PeptideAssumption bestPeptideAssumption = null;
-                    ArrayList<Double> ps = new ArrayList<Double>(peptideAssumptions.keySet());
-                    Collections.sort(ps);
-                    double retainedP = 0;
+            PeptideAssumption bestPeptideAssumption = null;
+            ArrayList<Double> ps = new ArrayList<Double>(peptideAssumptions.keySet());
+            Collections.sort(ps);
+            double retainedP = 0;
 
-                    for (double p : ps) {
+            for (double p : ps) {
 
-                        retainedP = p;
-                        HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>> pMap = peptideAssumptions.get(p);
-                        ArrayList<Integer> proteinMaxs = new ArrayList<Integer>(pMap.keySet());
-                        Collections.sort(proteinMaxs, Collections.reverseOrder());
+                retainedP = p;
+                HashMap<Integer, HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>>> pMap = peptideAssumptions.get(p);
+                ArrayList<Integer> proteinMaxs = new ArrayList<Integer>(pMap.keySet());
+                Collections.sort(proteinMaxs, Collections.reverseOrder());
 
-                        for (int proteinMax : proteinMaxs) {
+                for (int proteinMax : proteinMaxs) {
 
-                            HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>> proteinMaxMap = pMap.get(proteinMax);
-                            ArrayList<Integer> nSEs = new ArrayList<Integer>(proteinMaxMap.keySet());
-                            Collections.sort(nSEs, Collections.reverseOrder());
+                    HashMap<Integer, HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>>> proteinMaxMap = pMap.get(proteinMax);
+                    ArrayList<Integer> nSEs = new ArrayList<Integer>(proteinMaxMap.keySet());
+                    Collections.sort(nSEs, Collections.reverseOrder());
 
-                            for (int nSE : nSEs) {
+                    for (int nSE : nSEs) {
 
-                                HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>> nSeMap = proteinMaxMap.get(nSE);
-                                ArrayList<Integer> coverages = new ArrayList<Integer>(nSeMap.keySet());
-                                Collections.sort(coverages, Collections.reverseOrder());
+                        HashMap<Integer, HashMap<Double, HashMap<String, PeptideAssumption>>> nSeMap = proteinMaxMap.get(nSE);
+                        ArrayList<Integer> coverages = new ArrayList<Integer>(nSeMap.keySet());
+                        Collections.sort(coverages, Collections.reverseOrder());
 
-                                for (Integer coverage : coverages) {
+                        for (Integer coverage : coverages) {
 
-                                    HashMap<Double, HashMap<String, PeptideAssumption>> coverageMap = nSeMap.get(coverage);
-                                    ArrayList<Double> minErrors = new ArrayList<Double>(coverageMap.keySet());
-                                    Collections.sort(minErrors);
+                            HashMap<Double, HashMap<String, PeptideAssumption>> coverageMap = nSeMap.get(coverage);
+                            ArrayList<Double> minErrors = new ArrayList<Double>(coverageMap.keySet());
+                            Collections.sort(minErrors);
 
-                                    for (double minError : minErrors) {
+                            for (double minError : minErrors) {
 
-                                        HashMap<String, PeptideAssumption> bestPeptideAssumptions = coverageMap.get(minError);
-                                        ArrayList<String> sequences = new ArrayList<String>(bestPeptideAssumptions.keySet());
-                                        Collections.sort(sequences);
+                                HashMap<String, PeptideAssumption> bestPeptideAssumptions = coverageMap.get(minError);
+                                ArrayList<String> sequences = new ArrayList<String>(bestPeptideAssumptions.keySet());
+                                Collections.sort(sequences);
 
-                                        for (String sequence : sequences) {
-                                            PeptideAssumption peptideAssumption = bestPeptideAssumptions.get(sequence);
-                                            if (idFilter.validateProteins(peptideAssumption.getPeptide(), sequenceMatchingPreferences)) {
-                                                bestPeptideAssumption = peptideAssumption;
-                                                break;
-                                            }
-                                        }
-                                        if (bestPeptideAssumption != null) {
-                                            break;
-                                        }
-                                    }
-                                    if (bestPeptideAssumption != null) {
+                                for (String sequence : sequences) {
+                                    PeptideAssumption peptideAssumption = bestPeptideAssumptions.get(sequence);
+                                    if (idFilter.validateProteins(peptideAssumption.getPeptide(), sequenceMatchingPreferences)) {
+                                        bestPeptideAssumption = peptideAssumption;
                                         break;
                                     }
                                 }
@@ -402,172 +444,144 @@ public class BestMatchSelection {
                         }
                     }
                     if (bestPeptideAssumption != null) {
+                        break;
+                    }
+                }
+                if (bestPeptideAssumption != null) {
+                    break;
+                }
+            }
+            if (bestPeptideAssumption != null) {
 
-                        if (multiSE) {
-
-                            // try to find the most likely modification localization based on the search engine results
-                            HashMap<PeptideAssumption, ArrayList<Double>> assumptionPEPs = new HashMap<PeptideAssumption, ArrayList<Double>>();
-                            String bestAssumptionKey = bestPeptideAssumption.getPeptide().getMatchingKey(sequenceMatchingPreferences);
+                if (multiSE) {
 
-                            for (int searchEngine : assumptions.keySet()) {
+                    // try to find the most likely modification localization based on the search engine results
+                    HashMap<PeptideAssumption, ArrayList<Double>> assumptionPEPs = new HashMap<PeptideAssumption, ArrayList<Double>>();
+                    String bestAssumptionKey = bestPeptideAssumption.getPeptide().getMatchingKey(sequenceMatchingPreferences);
 
-                                boolean found = false;
-                                HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocateMap = assumptions.get(searchEngine);
-                                ArrayList<Double> eValues = new ArrayList<Double>(advocateMap.keySet());
-                                Collections.sort(eValues);
+                    for (int searchEngine : assumptions.keySet()) {
 
-                                for (double eValue : eValues) {
-                                    for (SpectrumIdentificationAssumption assumption : advocateMap.get(eValue)) {
+                        boolean found = false;
+                        HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocateMap = assumptions.get(searchEngine);
+                        ArrayList<Double> eValues = new ArrayList<Double>(advocateMap.keySet());
+                        Collections.sort(eValues);
 
-                                        if (assumption instanceof PeptideAssumption) {
+                        for (double eValue : eValues) {
+                            for (SpectrumIdentificationAssumption assumption : advocateMap.get(eValue)) {
 
-                                            PeptideAssumption peptideAssumption = (PeptideAssumption) assumption;
+                                if (assumption instanceof PeptideAssumption) {
 
-                                            if (peptideAssumption.getPeptide().getMatchingKey(sequenceMatchingPreferences).equals(bestAssumptionKey)) {
+                                    PeptideAssumption peptideAssumption = (PeptideAssumption) assumption;
 
-                                                found = true;
-                                                boolean found2 = false;
+                                    if (peptideAssumption.getPeptide().getMatchingKey(sequenceMatchingPreferences).equals(bestAssumptionKey)) {
 
-                                                for (PeptideAssumption assumption1 : assumptionPEPs.keySet()) {
-                                                    if (assumption1.getPeptide().sameModificationsAs(peptideAssumption.getPeptide())) {
-                                                        found2 = true;
-                                                        psParameter = (PSParameter) assumption.getUrParam(psParameter);
-                                                        ArrayList<Double> peps = assumptionPEPs.get(assumption1);
-                                                        peps.add(psParameter.getSearchEngineProbability());
-                                                        break;
-                                                    }
-                                                }
+                                        found = true;
+                                        boolean found2 = false;
 
-                                                if (!found2) {
-                                                    ArrayList<Double> peps = new ArrayList<Double>(1);
-                                                    assumptionPEPs.put(peptideAssumption, peps);
-                                                    psParameter = (PSParameter) assumption.getUrParam(psParameter);
-                                                    peps.add(psParameter.getSearchEngineProbability());
-                                                }
+                                        for (PeptideAssumption assumption1 : assumptionPEPs.keySet()) {
+                                            if (assumption1.getPeptide().sameModificationsAs(peptideAssumption.getPeptide())) {
+                                                found2 = true;
+                                                psParameter = (PSParameter) assumption.getUrParam(psParameter);
+                                                ArrayList<Double> peps = assumptionPEPs.get(assumption1);
+                                                peps.add(psParameter.getSearchEngineProbability());
+                                                break;
                                             }
                                         }
-                                    }
 
-                                    if (found) {
-                                        break;
+                                        if (!found2) {
+                                            ArrayList<Double> peps = new ArrayList<Double>(1);
+                                            assumptionPEPs.put(peptideAssumption, peps);
+                                            psParameter = (PSParameter) assumption.getUrParam(psParameter);
+                                            peps.add(psParameter.getSearchEngineProbability());
+                                        }
                                     }
                                 }
                             }
 
-                            Double bestSeP = null;
-                            int nSe = -1;
-
-                            for (PeptideAssumption peptideAssumption : assumptionPEPs.keySet()) {
-
-                                ArrayList<Double> peps = assumptionPEPs.get(peptideAssumption);
-                                Double sep = Collections.min(peps);
-
-                                if (bestSeP == null || bestSeP > sep) {
-                                    bestSeP = sep;
-                                    nSe = peps.size();
-                                    bestPeptideAssumption = peptideAssumption;
-                                } else if (peps.size() > nSe) {
-                                    if (sep != null && (Math.abs(sep - bestSeP) <= 1e-10)) {
-                                        nSe = peps.size();
-                                        bestPeptideAssumption = peptideAssumption;
-                                    }
-                                }
+                            if (found) {
+                                break;
                             }
                         }
+                    }
 
-                        // create a PeptideShaker match based on the best search engine match
-                        Peptide sePeptide = bestPeptideAssumption.getPeptide();
-                        ArrayList<String> psProteins = new ArrayList<String>(sePeptide.getParentProteins(sequenceMatchingPreferences));
-                        ArrayList<ModificationMatch> psModificationMatches = null;
-                        if (sePeptide.isModified()) {
-                            psModificationMatches = new ArrayList<ModificationMatch>(sePeptide.getNModifications());
-                            for (ModificationMatch seModMatch : sePeptide.getModificationMatches()) {
-                                psModificationMatches.add(new ModificationMatch(seModMatch.getTheoreticPtm(), seModMatch.isVariable(), seModMatch.getModificationSite()));
-                            }
-                        }
+                    Double bestSeP = null;
+                    int nSe = -1;
 
-                        Peptide psPeptide = new Peptide(sePeptide.getSequence(), psModificationMatches);
-                        psPeptide.setParentProteins(psProteins);
-                        PeptideAssumption psAssumption = new PeptideAssumption(psPeptide, 1, Advocate.peptideShaker.getIndex(), bestPeptideAssumption.getIdentificationCharge(), retainedP);
+                    for (PeptideAssumption peptideAssumption : assumptionPEPs.keySet()) {
 
-                        spectrumMatch.setBestPeptideAssumption(psAssumption);
+                        ArrayList<Double> peps = assumptionPEPs.get(peptideAssumption);
+                        Double sep = Collections.min(peps);
 
-                        if (orderedPsmMap != null) {
-                            String peptideKey = psPeptide.getMatchingKey(sequenceMatchingPreferences);
-                            ArrayList<String> spectrumKeys = keysMap.get(peptideKey);
-                            if (spectrumKeys == null) {
-                                spectrumKeys = new ArrayList<String>();
-                                keysMap.put(peptideKey, spectrumKeys);
+                        if (bestSeP == null || bestSeP > sep) {
+                            bestSeP = sep;
+                            nSe = peps.size();
+                            bestPeptideAssumption = peptideAssumption;
+                        } else if (peps.size() > nSe) {
+                            if (sep != null && (Math.abs(sep - bestSeP) <= 1e-10)) {
+                                nSe = peps.size();
+                                bestPeptideAssumption = peptideAssumption;
                             }
-                            spectrumKeys.add(spectrumKey);
-                        }
-
-                        psParameter = new PSParameter();
-                        psParameter.setSpectrumProbabilityScore(retainedP);
-
-                        PSParameter matchParameter = (PSParameter) bestPeptideAssumption.getUrParam(psParameter);
-                        psParameter.setSearchEngineProbability(matchParameter.getSearchEngineProbability());
-                        psParameter.setAlgorithmDeltaPEP(matchParameter.getAlgorithmDeltaPEP());
-                        psParameter.setDeltaPEP(matchParameter.getDeltaPEP());
-
-                        matchesValidator.getPsmMap().addPoint(psParameter.getPsmProbabilityScore(), spectrumMatch, sequenceMatchingPreferences);
-                        String validationMapKey = "";
-                        if (idMatchValidationPreferences.getSeparatePsms()) {
-                            validationMapKey += psAssumption.getIdentificationCharge().value;
                         }
-                        psParameter.setSpecificMapKey(validationMapKey);
-                        identification.addSpectrumMatchParameter(spectrumKey, psParameter);
-                        identification.updateSpectrumMatch(spectrumMatch);
                     }
                 }
-                if (!tagAssumptions.isEmpty()) {
-                    ArrayList<Double> evalues = new ArrayList<Double>(tagAssumptions.keySet());
-                    Double bestEvalue = Collections.min(evalues);
-                    TagAssumption bestAssumption = tagAssumptions.get(bestEvalue).get(0);
-                    spectrumMatch.setBestTagAssumption(bestAssumption);
-                    identification.updateSpectrumMatch(spectrumMatch);
-                    if (spectrumMatch.getBestPeptideAssumption() == null) {
-                        psParameter = new PSParameter();
-                        if (!multiSE) {
-                            psParameter.setSpectrumProbabilityScore(bestEvalue);
-                        }
-                        PSParameter matchParameter = (PSParameter) bestAssumption.getUrParam(psParameter);
-                        psParameter.setSearchEngineProbability(matchParameter.getSearchEngineProbability());
-                        psParameter.setAlgorithmDeltaPEP(matchParameter.getAlgorithmDeltaPEP());
-                        psParameter.setDeltaPEP(matchParameter.getDeltaPEP());
-                        psParameter.setSpecificMapKey(spectrumMatch.getBestTagAssumption().getIdentificationCharge().value + "");
-                        identification.addSpectrumMatchParameter(spectrumKey, psParameter);
+
+                // create a PeptideShaker match based on the best search engine match
+                Peptide sePeptide = bestPeptideAssumption.getPeptide();
+                ArrayList<String> psProteins = new ArrayList<String>(sePeptide.getParentProteins(sequenceMatchingPreferences));
+                ArrayList<ModificationMatch> psModificationMatches = null;
+                if (sePeptide.isModified()) {
+                    psModificationMatches = new ArrayList<ModificationMatch>(sePeptide.getNModifications());
+                    for (ModificationMatch seModMatch : sePeptide.getModificationMatches()) {
+                        psModificationMatches.add(new ModificationMatch(seModMatch.getTheoreticPtm(), seModMatch.isVariable(), seModMatch.getModificationSite()));
                     }
                 }
-                waitingHandler.increaseSecondaryProgressCounter();
-                if (waitingHandler.isRunCanceled()) {
-                    return;
-                }
-            }
 
-            if (orderedPsmMap != null) {
-                ArrayList<String> orderedKeys = new ArrayList<String>(identification.getSpectrumIdentification(spectrumFileName).size());
-                for (ArrayList<String> keys : keysMap.values()) {
-                    orderedKeys.addAll(keys);
-                }
-                orderedPsmMap.put(spectrumFileName, orderedKeys);
+                Peptide psPeptide = new Peptide(sePeptide.getSequence(), psModificationMatches);
+                psPeptide.setParentProteins(psProteins);
+                PeptideAssumption psAssumption = new PeptideAssumption(psPeptide, 1, Advocate.peptideShaker.getIndex(), bestPeptideAssumption.getIdentificationCharge(), retainedP);
+
+                spectrumMatch.setBestPeptideAssumption(psAssumption);
+
+                psParameter = new PSParameter();
+                psParameter.setSpectrumProbabilityScore(retainedP);
+
+                PSParameter matchParameter = (PSParameter) bestPeptideAssumption.getUrParam(psParameter);
+                psParameter.setSearchEngineProbability(matchParameter.getSearchEngineProbability());
+                psParameter.setAlgorithmDeltaPEP(matchParameter.getAlgorithmDeltaPEP());
+                psParameter.setDeltaPEP(matchParameter.getDeltaPEP());
 
-                if (MemoryConsumptionStatus.memoryUsed() > 0.9) {
-                    orderedPsmMap = null;
+                psmMap.addPoint(psParameter.getPsmProbabilityScore(), spectrumMatch, sequenceMatchingPreferences);
+                String validationMapKey = "";
+                if (idMatchValidationPreferences.getSeparatePsms()) {
+                    validationMapKey += psAssumption.getIdentificationCharge().value;
                 }
+                psParameter.setSpecificMapKey(validationMapKey);
+                identification.addSpectrumMatchParameter(spectrumKey, psParameter);
+                identification.updateSpectrumMatch(spectrumMatch);
             }
         }
-
-        if (orderedPsmMap != null) {
-            metrics.setOrderedSpectrumKeys(orderedPsmMap);
+        if (!tagAssumptions.isEmpty()) {
+            ArrayList<Double> evalues = new ArrayList<Double>(tagAssumptions.keySet());
+            Double bestEvalue = Collections.min(evalues);
+            TagAssumption bestAssumption = tagAssumptions.get(bestEvalue).get(0);
+            spectrumMatch.setBestTagAssumption(bestAssumption);
+            identification.updateSpectrumMatch(spectrumMatch);
+            if (spectrumMatch.getBestPeptideAssumption() == null) {
+                psParameter = new PSParameter();
+                if (!multiSE) {
+                    psParameter.setSpectrumProbabilityScore(bestEvalue);
+                }
+                PSParameter matchParameter = (PSParameter) bestAssumption.getUrParam(psParameter);
+                psParameter.setSearchEngineProbability(matchParameter.getSearchEngineProbability());
+                psParameter.setAlgorithmDeltaPEP(matchParameter.getAlgorithmDeltaPEP());
+                psParameter.setDeltaPEP(matchParameter.getDeltaPEP());
+                psParameter.setSpecificMapKey(spectrumMatch.getBestTagAssumption().getIdentificationCharge().value + "");
+                identification.addSpectrumMatchParameter(spectrumKey, psParameter);
+            }
         }
-
-        // the protein count map is no longer needed
-        proteinCount.clear();
-
-        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
     }
 
+
     /**
      * Selects a first hit in a list of equally scoring peptide matches. The
      * selection is made based on: 1 - The occurrence of the protein detection
@@ -692,4 +706,85 @@ public class BestMatchSelection {
         Collections.sort(sequences);
         return sequenceToPeptideAssumptionsMap.get(sequences.get(0));
     }
+
+    /**
+     * Runnable selecting the best hit of the PSMs.
+     *
+     * @author Marc Vaudel
+     */
+    private class BestHitSelectionRunnable implements Runnable {
+
+        /**
+         * An iterator for the PSMs.
+         */
+        private PsmIterator psmIterator;
+        /**
+         * Boolean indicating whether multiple search engines were used.
+         */
+        private boolean multiSE;
+        /**
+         * The identification parameters.
+         */
+        private IdentificationParameters identificationParameters;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * The peptide spectrum annotator.
+         */
+        private PeptideSpectrumAnnotator spectrumAnnotator = new PeptideSpectrumAnnotator();
+        /**
+         * The PSM map filled by this thread.
+         */
+        private PsmSpecificMap psmMap = new PsmSpecificMap();
+
+        /**
+         * Constructor.
+         *
+         * @param psmIterator an iterator of the PSMs to process
+         * @param multiSE boolean indicating whether multiple search engines
+         * were used
+         * @param identificationParameters the identification parameters
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public BestHitSelectionRunnable(PsmIterator psmIterator, boolean multiSE, IdentificationParameters identificationParameters,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.psmIterator = psmIterator;
+            this.multiSE = multiSE;
+            this.identificationParameters = identificationParameters;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                SpectrumMatch advocateMatch;
+
+                while ((advocateMatch = psmIterator.next()) != null && !waitingHandler.isRunCanceled()) {
+                    selectBestHit(advocateMatch, multiSE, spectrumAnnotator, psmMap, identificationParameters);
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+
+        /**
+         * Returns the PSM map filled by this thread.
+         *
+         * @return the PSM map filled by this thread
+         */
+        public PsmSpecificMap getPsmMap() {
+            return psmMap;
+        }
+    }
 }
@@ -26,6 +26,7 @@ import com.compomics.util.waiting.WaitingHandler;
 import eu.isas.peptideshaker.parameters.PSParameter;
 import eu.isas.peptideshaker.scoring.maps.InputMap;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
+import eu.isas.peptideshaker.utils.Metrics;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -63,6 +64,7 @@ public class PsmScorer {
      *
      * @param identification the object containing the identification matches
      * @param inputMap the input map scores
+     * @param metrics the metrics containing the order of the spectrum keys
      * @param processingPreferences the processing preferences
      * @param identificationParameters identification parameters used
      * @param waitingHandler the handler displaying feedback to the user
@@ -77,7 +79,7 @@ public class PsmScorer {
      * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
      * occurs
      */
-    public void estimateIntermediateScores(Identification identification, InputMap inputMap, ProcessingPreferences processingPreferences,
+    public void estimateIntermediateScores(Identification identification, InputMap inputMap, Metrics metrics, ProcessingPreferences processingPreferences,
             IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
             throws SQLException, IOException, InterruptedException, ClassNotFoundException, MzMLUnmarshallerException {
 
@@ -91,12 +93,20 @@ public class PsmScorer {
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
 
+        HashMap<String, ArrayList<String>> orderedSpectrumKeys = metrics.getOrderedSpectrumKeys();
         for (String spectrumFileName : identification.getSpectrumFiles()) {
             ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, null, true, null);
+            ArrayList<String> fileSpectrumKeys = null;
+            if (orderedSpectrumKeys != null) {
+                fileSpectrumKeys = orderedSpectrumKeys.get(spectrumFileName);
+            }
+            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, fileSpectrumKeys, null, true, null);
             ArrayList<PsmScorerRunnable> psmScorerRunnables = new ArrayList<PsmScorerRunnable>(processingPreferences.getnThreads());
+            ArrayList<InputMap> partialInputMaps = new ArrayList<InputMap>(processingPreferences.getnThreads());
             for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
-                PsmScorerRunnable runnable = new PsmScorerRunnable(psmIterator, identification, inputMap, identificationParameters, waitingHandler, exceptionHandler);
+                InputMap partialInputMap = new InputMap();
+                partialInputMaps.add(partialInputMap);
+                PsmScorerRunnable runnable = new PsmScorerRunnable(psmIterator, identification, partialInputMap, identificationParameters, waitingHandler, exceptionHandler);
                 psmScorerRunnables.add(runnable);
                 pool.submit(runnable);
             }
@@ -130,11 +140,23 @@ public class PsmScorer {
                 if (!bHistogram.isEmpty()) {
                     defaultB = HistogramUtils.getMedianValue(bHistogram);
                 }
-                ArrayList<String> spectrumKeys = new ArrayList<String>(missingValuesMap.keySet());
+                ArrayList<String> spectrumKeys;
+                if (fileSpectrumKeys != null) {
+                    spectrumKeys = new ArrayList<String>(missingValuesMap.size());
+                    for (String spectrumKey : fileSpectrumKeys) {
+                        if (missingValuesMap.containsKey(spectrumKey)) {
+                            spectrumKeys.add(spectrumKey);
+                        }
+                    }
+                } else {
+                    spectrumKeys = new ArrayList<String>(missingValuesMap.keySet());
+                }
                 psmIterator = identification.getPsmIterator(spectrumKeys, null, true, null);
                 pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
                 for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
-                    MissingEValueEstimatorRunnable runnable = new MissingEValueEstimatorRunnable(missingValuesMap, defaultA, defaultB, psmIterator, identification, inputMap, identificationParameters, waitingHandler, exceptionHandler);
+                    InputMap partialInputMap = new InputMap();
+                    partialInputMaps.add(partialInputMap);
+                    MissingEValueEstimatorRunnable runnable = new MissingEValueEstimatorRunnable(missingValuesMap, defaultA, defaultB, psmIterator, identification, partialInputMap, identificationParameters, waitingHandler, exceptionHandler);
                     pool.submit(runnable);
                 }
                 if (waitingHandler.isRunCanceled()) {
@@ -146,6 +168,11 @@ public class PsmScorer {
                     throw new InterruptedException("PSM scoring timed out. Please contact the developers.");
                 }
             }
+
+            // merge the intermediate scores gathered on every thread
+            for (InputMap partialInputMap : partialInputMaps) {
+                inputMap.addAll(partialInputMap);
+            }
         }
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
@@ -323,9 +350,11 @@ public class PsmScorer {
      *
      * @param identification the object containing the identification matches
      * @param inputMap the input map scores
+     * @param metrics the metrics containing the order of the spectrum keys
      * @param processingPreferences the processing preferences
      * @param identificationParameters the identification parameters
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler a handler for exceptions
      *
      * @throws IOException thrown if an IOException occurs
      * @throws InterruptedException thrown if an InterruptedException occurs
@@ -336,84 +365,124 @@ public class PsmScorer {
      * @throws MzMLUnmarshallerException thrown if an MzMLUnmarshallerException
      * occurs
      */
-    public void scorePsms(Identification identification, InputMap inputMap, ProcessingPreferences processingPreferences,
-            IdentificationParameters identificationParameters, WaitingHandler waitingHandler)
+    public void scorePsms(Identification identification, InputMap inputMap, Metrics metrics, ProcessingPreferences processingPreferences,
+            IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
             throws SQLException, IOException, InterruptedException, ClassNotFoundException, MzMLUnmarshallerException {
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getSpectrumIdentificationSize());
-        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
-        PsmScoringPreferences psmScoringPreferences = identificationParameters.getPsmScoringPreferences();
-
-        PSParameter psParameter = new PSParameter();
 
+        HashMap<String, ArrayList<String>> orderedSpectrumKeys = metrics.getOrderedSpectrumKeys();
         for (String spectrumFileName : identification.getSpectrumFiles()) {
 
-            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, null, false, waitingHandler);
-            SpectrumMatch spectrumMatch;
-
-            while ((spectrumMatch = psmIterator.next()) != null) {
+            ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+            ArrayList<String> fileSpectrumKeys = null;
+            if (orderedSpectrumKeys != null) {
+                fileSpectrumKeys = orderedSpectrumKeys.get(spectrumFileName);
+            }
+            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, fileSpectrumKeys, null, false, waitingHandler);
+            ArrayList<PsmScoreAttacherRunnable> runnables = new ArrayList<PsmScoreAttacherRunnable>(processingPreferences.getnThreads());
+            for (int i = 1; i <= processingPreferences.getnThreads() && !waitingHandler.isRunCanceled(); i++) {
+                PsmScoreAttacherRunnable runnable = new PsmScoreAttacherRunnable(psmIterator, identification, inputMap, identificationParameters, waitingHandler, exceptionHandler);
+                runnables.add(runnable);
+                pool.submit(runnable);
+            }
+            if (waitingHandler.isRunCanceled()) {
+                pool.shutdownNow();
+                return;
+            }
+            pool.shutdown();
+            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+                throw new InterruptedException("PSM scoring timed out. Please contact the developers.");
+            }
+            if (waitingHandler.isRunCanceled()) {
+                return;
+            }
 
-                String spectrumKey = spectrumMatch.getKey();
+            // merge the scores gathered on every thread
+            for (PsmScoreAttacherRunnable runnable : runnables) {
+                inputMap.addAll(runnable.getPartialInputMap());
+            }
+        }
 
-                HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions = identification.getAssumptions(spectrumKey);
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+    }
 
-                for (int advocateIndex : assumptions.keySet()) {
+    /**
+     * Attaches a score to the peptide assumptions of a spectrum match.
+     *
+     * @param identification the object containing the identification matches
+     * @param spectrumMatch the spectrum match to score
+     * @param inputMap the input map containing the intermediate scores
+     * @param partialInputMap the input map where the scores of the assumptions
+     * should be added
+     * @param identificationParameters the identification parameters
+     *
+     * @throws IOException thrown if an exception occurred while reading or
+     * writing a file
+     * @throws InterruptedException thrown if a threading exception occurred
+     * @throws SQLException thrown if an SQL exception occurred while retrieving
+     * or storing an object from the database
+     * @throws ClassNotFoundException thrown if a casting exception occurred
+     * while retrieving an object from the database
+     */
+    public void scorePsm(Identification identification, SpectrumMatch spectrumMatch, InputMap inputMap, InputMap partialInputMap,
+            IdentificationParameters identificationParameters) throws SQLException, IOException, InterruptedException, ClassNotFoundException {
 
-                    HashSet<Integer> scoresForAdvocate = psmScoringPreferences.getScoreForAlgorithm(advocateIndex);
+        SequenceMatchingPreferences sequenceMatchingPreferences = identificationParameters.getSequenceMatchingPreferences();
+        PsmScoringPreferences psmScoringPreferences = identificationParameters.getPsmScoringPreferences();
 
-                    if (scoresForAdvocate != null) {
+        String spectrumKey = spectrumMatch.getKey();
+        String spectrumFileName = Spectrum.getSpectrumFile(spectrumKey);
+        PSParameter psParameter = new PSParameter();
 
-                        HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocateAssumptions = assumptions.get(advocateIndex);
+        HashMap<Integer, HashMap<Double, ArrayList<SpectrumIdentificationAssumption>>> assumptions = identification.getAssumptions(spectrumKey);
 
-                        for (double eValue : advocateAssumptions.keySet()) {
-                            for (SpectrumIdentificationAssumption assumption : advocateAssumptions.get(eValue)) {
+        for (int advocateIndex : assumptions.keySet()) {
 
-                                if (assumption instanceof PeptideAssumption) {
+            HashSet<Integer> scoresForAdvocate = psmScoringPreferences.getScoreForAlgorithm(advocateIndex);
 
-                                    psParameter = (PSParameter) assumption.getUrParam(psParameter);
+            if (scoresForAdvocate != null) {
 
-                                    Double score = 1.0;
+                HashMap<Double, ArrayList<SpectrumIdentificationAssumption>> advocateAssumptions = assumptions.get(advocateIndex);
 
-                                    HashSet<Integer> scores = psmScoringPreferences.getScoreForAlgorithm(advocateIndex);
+                for (double eValue : advocateAssumptions.keySet()) {
+                    for (SpectrumIdentificationAssumption assumption : advocateAssumptions.get(eValue)) {
 
-                                    if (scores.size() == 1 || !sequenceFactory.concatenatedTargetDecoy()) {
-                                        score = psParameter.getIntermediateScore(scores.iterator().next());
-                                    } else {
-                                        for (int scoreIndex : scores) {
-                                            TargetDecoyMap targetDecoyMap = inputMap.getIntermediateScoreMap(spectrumFileName, advocateIndex, scoreIndex);
-                                            Double intermediateScore = psParameter.getIntermediateScore(scoreIndex);
-                                            if (intermediateScore != null) {
-                                                Double p = targetDecoyMap.getProbability(intermediateScore);
-                                                score *= (1.0 - p);
-                                            }
-                                        }
-                                        score = 1 - score;
-                                    }
+                        if (assumption instanceof PeptideAssumption) {
 
-                                    assumption.setScore(score);
+                            psParameter = (PSParameter) assumption.getUrParam(psParameter);
 
-                                    PeptideAssumption peptideAssumption = (PeptideAssumption) assumption;
-                                    Peptide peptide = peptideAssumption.getPeptide();
-                                    boolean decoy = peptide.isDecoy(sequenceMatchingPreferences);
-                                    inputMap.addEntry(advocateIndex, spectrumFileName, assumption.getScore(), decoy);
+                            Double score = 1.0;
 
+                            if (scoresForAdvocate.size() == 1 || !sequenceFactory.concatenatedTargetDecoy()) {
+                                score = psParameter.getIntermediateScore(scoresForAdvocate.iterator().next());
+                            } else {
+                                for (int scoreIndex : scoresForAdvocate) {
+                                    TargetDecoyMap targetDecoyMap = inputMap.getIntermediateScoreMap(spectrumFileName, advocateIndex, scoreIndex);
+                                    Double intermediateScore = psParameter.getIntermediateScore(scoreIndex);
+                                    if (intermediateScore != null) {
+                                        double p = targetDecoyMap.getProbability(intermediateScore);
+                                        score *= (1.0 - p);
+                                    }
                                 }
+                                score = 1 - score;
                             }
+
+                            assumption.setScore(score);
+
+                            PeptideAssumption peptideAssumption = (PeptideAssumption) assumption;
+                            Peptide peptide = peptideAssumption.getPeptide();
+                            boolean decoy = peptide.isDecoy(sequenceMatchingPreferences);
+                            partialInputMap.addEntry(advocateIndex, spectrumFileName, assumption.getScore(), decoy);
+
                         }
                     }
                 }
-
-                identification.updateAssumptions(spectrumKey, assumptions);
-                if (waitingHandler.isRunCanceled()) {
-                    return;
-                }
-                waitingHandler.increaseSecondaryProgressCounter();
             }
         }
 
-//        br.close();
-        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+        identification.updateAssumptions(spectrumKey, assumptions);
     }
 
     /**
@@ -526,6 +595,88 @@ public class PsmScorer {
 
     }
 
+    /**
+     * Runnable attaching the final score to the PSMs.
+     *
+     * @author Marc Vaudel
+     */
+    private class PsmScoreAttacherRunnable implements Runnable {
+
+        /**
+         * An iterator for the PSMs.
+         */
+        private PsmIterator psmIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The input map containing the intermediate scores.
+         */
+        private InputMap inputMap;
+        /**
+         * The input map where the scores of this thread are gathered.
+         */
+        private InputMap partialInputMap = new InputMap();
+        /**
+         * The identification parameters.
+         */
+        private IdentificationParameters identificationParameters;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param psmIterator An iterator of the PSMs to iterate
+         * @param identification the identification containing all matches
+         * @param inputMap the input map containing the intermediate scores
+         * @param identificationParameters the identification parameters
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public PsmScoreAttacherRunnable(PsmIterator psmIterator, Identification identification, InputMap inputMap,
+                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.psmIterator = psmIterator;
+            this.identification = identification;
+            this.inputMap = inputMap;
+            this.identificationParameters = identificationParameters;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                SpectrumMatch spectrumMatch;
+
+                while ((spectrumMatch = psmIterator.next()) != null && !waitingHandler.isRunCanceled()) {
+                    scorePsm(identification, spectrumMatch, inputMap, partialInputMap, identificationParameters);
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+
+        /**
+         * Returns the input map where the scores of this thread were gathered.
+         *
+         * @return the input map where the scores of this thread were gathered
+         */
+        public InputMap getPartialInputMap() {
+            return partialInputMap;
+        }
+    }
+
     /**
      * Runnable estimating the missing e-values.
      *
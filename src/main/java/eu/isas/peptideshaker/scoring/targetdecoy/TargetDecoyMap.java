@@ -1,11 +1,14 @@
 package eu.isas.peptideshaker.scoring.targetdecoy;
 
 import com.compomics.util.waiting.WaitingHandler;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This map contains the information of a target/decoy strategy.
@@ -19,9 +22,15 @@ public class TargetDecoyMap implements Serializable {
      */
     static final long serialVersionUID = 7333389442377322662L;
     /**
-     * The hit map containing the indexed target/decoy points.
+     * The hit map containing the indexed target/decoy points. Only used for
+     * serialization, the points are accessed via the concurrent points map.
      */
-    private HashMap<Double, TargetDecoyPoint> hitMap = new HashMap<Double, TargetDecoyPoint>();
+    private HashMap<Double, TargetDecoyPoint> hitMap = null;
+    /**
+     * The target/decoy points indexed by score. Points can be added and
+     * incremented concurrently without locking.
+     */
+    private transient ConcurrentHashMap<Double, TargetDecoyPoint> points = new ConcurrentHashMap<Double, TargetDecoyPoint>();
     /**
      * The estimated number of true positives in the bin centered on a given
      * score.
@@ -37,9 +46,34 @@ public class TargetDecoyMap implements Serializable {
      */
     private HashMap<Double, Double> nFP;
     /**
-     * The scores imported in the map.
+     * The scores imported in the map sorted in ascending order. Only used for
+     * serialization, older versions of PeptideShaker read the scores from
+     * this list.
+     *
+     * @deprecated replaced by the sorted score array
      */
     private ArrayList<Double> scores;
+    /**
+     * The scores of the map sorted in ascending order, null if the scores need
+     * to be sorted. Set last when the sorted arrays are filled.
+     */
+    private transient volatile double[] sortedScores = null;
+    /**
+     * The points of the map in the order of the sorted scores.
+     */
+    private transient TargetDecoyPoint[] sortedPoints;
+    /**
+     * The number of target hits in the order of the sorted scores.
+     */
+    private transient int[] sortedNTarget;
+    /**
+     * The number of decoy hits in the order of the sorted scores.
+     */
+    private transient int[] sortedNDecoy;
+    /**
+     * The posterior error probabilities in the order of the sorted scores.
+     */
+    private transient double[] sortedP;
     /**
      * The number of decoy matches to include in the first bin to set the bin
      * size nmax. Two means that two consecutive decoys will be used.
@@ -89,26 +123,30 @@ public class TargetDecoyMap implements Serializable {
      * @param score the given score
      * @return the estimated posterior error probability
      */
-    public Double getProbability(double score) {
-        TargetDecoyPoint point = hitMap.get(score);
-        if (point != null) {
-            return point.p;
-        } else if (score >= scores.get(scores.size() - 1)) {
-            return hitMap.get(scores.get(scores.size() - 1)).p;
-        } else {
-            int indexDown = 0;
-            int indexUp = scores.size() - 1;
-            int indexTemp;
-            while (indexUp - indexDown > 1) {
-                indexTemp = (indexUp - indexDown) / 2 + indexDown;
-                if (scores.get(indexTemp) > score) {
-                    indexUp = indexTemp;
-                } else {
-                    indexDown = indexTemp;
-                }
+    public double getProbability(double score) {
+        double[] scoresArray = sortedScores;
+        if (scoresArray == null) {
+            scoresArray = estimateScores();
+        }
+        double[] pArray = sortedP;
+        int indexUp = scoresArray.length - 1;
+        if (score >= scoresArray[indexUp]) {
+            return pArray[indexUp];
+        }
+        int indexDown = 0;
+        int indexTemp;
+        while (indexUp - indexDown > 1) {
+            indexTemp = (indexUp - indexDown) / 2 + indexDown;
+            if (scoresArray[indexTemp] > score) {
+                indexUp = indexTemp;
+            } else {
+                indexDown = indexTemp;
             }
-            return (hitMap.get(scores.get(indexUp)).p + hitMap.get(scores.get(indexDown)).p) / 2;
         }
+        if (scoresArray[indexDown] == score) {
+            return pArray[indexDown];
+        }
+        return (pArray[indexUp] + pArray[indexDown]) / 2;
     }
 
     /**
@@ -118,7 +156,7 @@ public class TargetDecoyMap implements Serializable {
      * @return the number of target hits found at the given score
      */
     public int getNTarget(double score) {
-        return hitMap.get(score).nTarget;
+        return points.get(score).nTarget;
     }
 
     /**
@@ -128,7 +166,7 @@ public class TargetDecoyMap implements Serializable {
      * @return the number of decoy hits found at the given score
      */
     public int getNDecoy(double score) {
-        return hitMap.get(score).nDecoy;
+        return points.get(score).nDecoy;
     }
 
     /**
@@ -138,7 +176,7 @@ public class TargetDecoyMap implements Serializable {
      * @param isDecoy boolean indicating whether the hit is decoy
      */
     public void put(Double score, boolean isDecoy) {
-        TargetDecoyPoint targetDecoyPoint = hitMap.get(score);
+        TargetDecoyPoint targetDecoyPoint = points.get(score);
         if (targetDecoyPoint == null) {
             targetDecoyPoint = createTargetDecoyPoint(score);
         }
@@ -147,6 +185,9 @@ public class TargetDecoyMap implements Serializable {
         } else {
             targetDecoyPoint.increaseTarget();
         }
+        if (sortedScores != null) {
+            sortedScores = null;
+        }
     }
 
     /**
@@ -157,11 +198,15 @@ public class TargetDecoyMap implements Serializable {
      *
      * @return the target decoy point of the map at the given score
      */
-    public synchronized TargetDecoyPoint createTargetDecoyPoint(Double score) {
-        TargetDecoyPoint targetDecoyPoint = hitMap.get(score);
+    public TargetDecoyPoint createTargetDecoyPoint(Double score) {
+        TargetDecoyPoint targetDecoyPoint = points.get(score);
         if (targetDecoyPoint == null) {
-            targetDecoyPoint = new TargetDecoyPoint();
-            hitMap.put(score, targetDecoyPoint);
+            TargetDecoyPoint newPoint = new TargetDecoyPoint();
+            targetDecoyPoint = points.putIfAbsent(score, newPoint);
+            if (targetDecoyPoint == null) {
+                targetDecoyPoint = newPoint;
+                sortedScores = null;
+            }
         }
         return targetDecoyPoint;
     }
@@ -174,12 +219,13 @@ public class TargetDecoyMap implements Serializable {
      * @param isDecoy boolean indicating whether the hit is decoy
      */
     public void remove(Double score, boolean isDecoy) {
-        TargetDecoyPoint targetDecoyPoint = hitMap.get(score);
+        TargetDecoyPoint targetDecoyPoint = points.get(score);
         if (!isDecoy) {
             targetDecoyPoint.decreaseTarget();
         } else {
             targetDecoyPoint.decreaseDecoy();
         }
+        sortedScores = null;
     }
 
     /**
@@ -187,17 +233,16 @@ public class TargetDecoyMap implements Serializable {
      */
     public synchronized void cleanUp() {
         boolean removed = false;
-        HashSet<Double> currentScores = new HashSet<Double>(hitMap.keySet());
-        for (Double score : currentScores) {
-            TargetDecoyPoint targetDecoyPoint = hitMap.get(score);
+        for (Double score : points.keySet()) {
+            TargetDecoyPoint targetDecoyPoint = points.get(score);
             if (targetDecoyPoint.nTarget == 0
                     && targetDecoyPoint.nDecoy == 0) {
-                hitMap.remove(score);
+                points.remove(score, targetDecoyPoint);
                 removed = true;
             }
         }
         if (removed) {
-            scores = null;
+            sortedScores = null;
             nmax = null;
             windowSize = null;
         }
@@ -208,9 +253,12 @@ public class TargetDecoyMap implements Serializable {
      * and above will be skipped for Nmax.
      */
     private void estimateNs() {
-        if (scores == null) {
-            estimateScores();
+        double[] scoresArray = sortedScores;
+        if (scoresArray == null) {
+            scoresArray = estimateScores();
         }
+        int[] nTargetArray = sortedNTarget;
+        int[] nDecoyArray = sortedNDecoy;
         boolean onlyTarget = true;
         nmax = 0;
         int targetCpt = 0;
@@ -218,33 +266,35 @@ public class TargetDecoyMap implements Serializable {
         nTargetOnly = 0;
         int targetCount = 0, decoyCount = 0;
 
-        for (double score : scores) {
-            TargetDecoyPoint point = hitMap.get(score);
+        for (int i = 0; i < scoresArray.length; i++) {
+            double score = scoresArray[i];
+            int pointNTarget = nTargetArray[i];
+            int pointNDecoy = nDecoyArray[i];
             if (onlyTarget) {
-                if (point.nDecoy > 0) {
-                    nTargetOnly += point.nTarget / 2 + point.nTarget % 2;
-                    targetCpt += point.nTarget / 2;
+                if (pointNDecoy > 0) {
+                    nTargetOnly += pointNTarget / 2 + pointNTarget % 2;
+                    targetCpt += pointNTarget / 2;
                     onlyTarget = false;
-                    decoyCpt += point.nDecoy;
+                    decoyCpt += pointNDecoy;
 
                 } else {
-                    nTargetOnly += point.nTarget;
+                    nTargetOnly += pointNTarget;
                 }
-            } else if (point.nDecoy > 0) {
-                targetCpt += point.nTarget / 2 + point.nTarget % 2;
-                decoyCpt += point.nDecoy;
+            } else if (pointNDecoy > 0) {
+                targetCpt += pointNTarget / 2 + pointNTarget % 2;
+                decoyCpt += pointNDecoy;
                 if (targetCpt > nmax
                         && score < 1.0
                         && decoyCpt >= minDecoysInBin) {
                     nmax = targetCpt;
                 }
-                targetCpt = point.nTarget / 2;
-                decoyCpt = point.nDecoy;
+                targetCpt = pointNTarget / 2;
+                decoyCpt = pointNDecoy;
             } else {
-                targetCpt += point.nTarget;
+                targetCpt += pointNTarget;
             }
-            targetCount += point.nTarget;
-            decoyCount += point.nDecoy;
+            targetCount += pointNTarget;
+            decoyCount += pointNDecoy;
             if (targetCount > 0) {
                 Double fdr = ((double) decoyCount) / targetCount;
                 if (fdr < minFDR) {
@@ -261,8 +311,9 @@ public class TargetDecoyMap implements Serializable {
      */
     public void estimateProbabilities(WaitingHandler waitingHandler) {
 
-        if (scores == null) {
-            estimateScores();
+        double[] scoresArray = sortedScores;
+        if (scoresArray == null) {
+            scoresArray = estimateScores();
         }
         if (nmax == null) {
             estimateNs();
@@ -271,30 +322,32 @@ public class TargetDecoyMap implements Serializable {
             windowSize = nmax;
         }
 
+        int[] nTargetArray = sortedNTarget;
+        int[] nDecoyArray = sortedNDecoy;
+        double[] pArray = sortedP;
+
         // estimate p
-        Double currentScore = scores.get(0);
-        TargetDecoyPoint tempPoint, previousPoint = hitMap.get(currentScore);
+        int previousNTarget = nTargetArray[0];
         double nLimit = 0.5 * windowSize;
-        double nTargetUp = 1.5 * previousPoint.nTarget;
-        double nTargetDown = -0.5 * previousPoint.nTarget;
-        double nDecoy = previousPoint.nDecoy;
+        double nTargetUp = 1.5 * previousNTarget;
+        double nTargetDown = -0.5 * previousNTarget;
+        double nDecoy = nDecoyArray[0];
         int iDown = 0;
         int iUp = 1;
         boolean oneReached = false;
 
-        for (int i = 0; i < scores.size(); i++) {
-            currentScore = scores.get(i);
-            TargetDecoyPoint point = hitMap.get(currentScore);
+        for (int i = 0; i < scoresArray.length; i++) {
+            int pointNTarget = nTargetArray[i];
+            double p;
             if (!oneReached) {
-                double change = 0.5 * (previousPoint.nTarget + point.nTarget);
+                double change = 0.5 * (previousNTarget + pointNTarget);
                 nTargetDown += change;
                 nTargetUp -= change;
                 while (nTargetDown > nLimit) {
                     if (iDown < i) {
-                        tempPoint = hitMap.get(scores.get(iDown));
-                        double nTargetDownTemp = nTargetDown - tempPoint.nTarget;
+                        double nTargetDownTemp = nTargetDown - nTargetArray[iDown];
                         if (nTargetDownTemp >= nLimit) {
-                            nDecoy -= tempPoint.nDecoy;
+                            nDecoy -= nDecoyArray[iDown];
                             nTargetDown = nTargetDownTemp;
                             iDown++;
                         } else {
@@ -304,21 +357,22 @@ public class TargetDecoyMap implements Serializable {
                         break;
                     }
                 }
-                while (nTargetUp < nLimit && iUp < scores.size()) {
-                    tempPoint = hitMap.get(scores.get(iUp));
-                    nTargetUp += tempPoint.nTarget;
-                    nDecoy += tempPoint.nDecoy;
+                while (nTargetUp < nLimit && iUp < scoresArray.length) {
+                    nTargetUp += nTargetArray[iUp];
+                    nDecoy += nDecoyArray[iUp];
                     iUp++;
                 }
                 double nTarget = nTargetDown + nTargetUp;
-                point.p = Math.max(Math.min(nDecoy / nTarget, 1), 0);
-                if (point.p >= 0.98) {
+                p = Math.max(Math.min(nDecoy / nTarget, 1), 0);
+                if (p >= 0.98) {
                     oneReached = true;
                 }
             } else {
-                point.p = 1;
+                p = 1;
             }
-            previousPoint = point;
+            pArray[i] = p;
+            sortedPoints[i].p = p;
+            previousNTarget = pointNTarget;
 
             waitingHandler.increaseSecondaryProgressCounter();
             if (waitingHandler.isRunCanceled()) {
@@ -372,11 +426,38 @@ public class TargetDecoyMap implements Serializable {
     }
 
     /**
-     * Sorts the scores implemented in this map.
-     */
-    private void estimateScores() {
-        scores = new ArrayList<Double>(hitMap.keySet());
-        Collections.sort(scores);
+     * Sorts the scores implemented in this map and fills the sorted arrays.
+     *
+     * @return the sorted scores
+     */
+    private synchronized double[] estimateScores() {
+        double[] scoresArray = sortedScores;
+        if (scoresArray == null) {
+            int size = points.size();
+            scoresArray = new double[size];
+            int i = 0;
+            for (Double score : points.keySet()) {
+                scoresArray[i++] = score;
+            }
+            Arrays.sort(scoresArray);
+            TargetDecoyPoint[] pointsArray = new TargetDecoyPoint[size];
+            int[] nTargetArray = new int[size];
+            int[] nDecoyArray = new int[size];
+            double[] pArray = new double[size];
+            for (i = 0; i < size; i++) {
+                TargetDecoyPoint point = points.get(scoresArray[i]);
+                pointsArray[i] = point;
+                nTargetArray[i] = point.nTarget;
+                nDecoyArray[i] = point.nDecoy;
+                pArray[i] = point.p;
+            }
+            sortedPoints = pointsArray;
+            sortedNTarget = nTargetArray;
+            sortedNDecoy = nDecoyArray;
+            sortedP = pArray;
+            sortedScores = scoresArray;
+        }
+        return scoresArray;
     }
 
     /**
@@ -385,10 +466,15 @@ public class TargetDecoyMap implements Serializable {
      * @return the sorted scores implemented in this map.
      */
     public ArrayList<Double> getScores() {
-        if (scores == null) {
-            estimateScores();
+        double[] scoresArray = sortedScores;
+        if (scoresArray == null) {
+            scoresArray = estimateScores();
         }
-        return scores;
+        ArrayList<Double> result = new ArrayList<Double>(scoresArray.length);
+        for (double score : scoresArray) {
+            result.add(score);
+        }
+        return result;
     }
 
     /**
@@ -397,15 +483,15 @@ public class TargetDecoyMap implements Serializable {
      * @param anOtherMap another target/decoy map
      */
     public void addAll(TargetDecoyMap anOtherMap) {
-        for (double score : anOtherMap.getScores()) {
-            for (int i = 0; i < anOtherMap.getNDecoy(score); i++) {
-                put(score, true);
-            }
-            for (int i = 0; i < anOtherMap.getNTarget(score); i++) {
-                put(score, false);
+        for (Double score : anOtherMap.points.keySet()) {
+            TargetDecoyPoint otherPoint = anOtherMap.points.get(score);
+            TargetDecoyPoint targetDecoyPoint = points.get(score);
+            if (targetDecoyPoint == null) {
+                targetDecoyPoint = createTargetDecoyPoint(score);
             }
+            targetDecoyPoint.increase(otherPoint.nTarget, otherPoint.nDecoy);
         }
-        scores = null;
+        sortedScores = null;
         nmax = null;
         windowSize = null;
     }
@@ -442,7 +528,7 @@ public class TargetDecoyMap implements Serializable {
      * @return the target decoy series
      */
     public TargetDecoySeries getTargetDecoySeries() {
-        return new TargetDecoySeries(hitMap);
+        return new TargetDecoySeries(points);
     }
 
     /**
@@ -472,6 +558,44 @@ public class TargetDecoyMap implements Serializable {
      * @return the size of the map
      */
     public int getMapSize() {
-        return hitMap.size();
+        return points.size();
+    }
+
+    /**
+     * Writes the map to the given stream, the points are serialized in the hit
+     * map and the sorted scores in the legacy scores list.
+     *
+     * @param out the object output stream
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the object
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        hitMap = new HashMap<Double, TargetDecoyPoint>(points);
+        scores = getScores();
+        out.defaultWriteObject();
+        hitMap = null;
+        scores = null;
+    }
+
+    /**
+     * Reads the map from the given stream, the points are retrieved from the
+     * hit map.
+     *
+     * @param in the object input stream
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the object
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing the object
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (hitMap != null) {
+            points = new ConcurrentHashMap<Double, TargetDecoyPoint>(hitMap);
+        } else {
+            points = new ConcurrentHashMap<Double, TargetDecoyPoint>();
+        }
+        hitMap = null;
     }
 }
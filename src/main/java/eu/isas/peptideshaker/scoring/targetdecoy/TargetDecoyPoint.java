@@ -1,6 +1,7 @@
 package eu.isas.peptideshaker.scoring.targetdecoy;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * This class represents a target/decoy hit in its simplest form.
@@ -13,14 +14,22 @@ public class TargetDecoyPoint implements Serializable {
      * Serial version UID for post-serialization compatibility.
      */
     static final long serialVersionUID = 1030681250987827768L;
+    /**
+     * Updater allowing the lock-free modification of the target counter.
+     */
+    private static final AtomicIntegerFieldUpdater<TargetDecoyPoint> N_TARGET_UPDATER = AtomicIntegerFieldUpdater.newUpdater(TargetDecoyPoint.class, "nTarget");
+    /**
+     * Updater allowing the lock-free modification of the decoy counter.
+     */
+    private static final AtomicIntegerFieldUpdater<TargetDecoyPoint> N_DECOY_UPDATER = AtomicIntegerFieldUpdater.newUpdater(TargetDecoyPoint.class, "nDecoy");
     /**
      * The number of target hits at this point.
      */
-    public int nTarget = 0; // @TODO make private
+    public volatile int nTarget = 0; // @TODO make private
     /**
      * The number of decoy hits at this point.
      */
-    public int nDecoy = 0; // @TODO make private
+    public volatile int nDecoy = 0; // @TODO make private
     /**
      * The posterior error probability associated to this point.
      */
@@ -35,28 +44,39 @@ public class TargetDecoyPoint implements Serializable {
     /**
      * Increases the target counter.
      */
-    public synchronized void increaseTarget() {
-        nTarget++;
+    public void increaseTarget() {
+        N_TARGET_UPDATER.incrementAndGet(this);
     }
     
     /**
      * Increases the decoy counter.
      */
-    public synchronized void increaseDecoy() {
-        nDecoy++;
+    public void increaseDecoy() {
+        N_DECOY_UPDATER.incrementAndGet(this);
+    }
+    
+    /**
+     * Increases the target and decoy counters by the given amounts.
+     *
+     * @param nTarget the number of target hits to add
+     * @param nDecoy the number of decoy hits to add
+     */
+    public void increase(int nTarget, int nDecoy) {
+        N_TARGET_UPDATER.addAndGet(this, nTarget);
+        N_DECOY_UPDATER.addAndGet(this, nDecoy);
     }
     
     /**
      * Decreases the target counter.
      */
-    public synchronized void decreaseTarget() {
-        nTarget--;
+    public void decreaseTarget() {
+        N_TARGET_UPDATER.decrementAndGet(this);
     }
     
     /**
      * Decreases the decoy counter.
      */
-    public synchronized void decreaseDecoy() {
-        nDecoy--;
+    public void decreaseDecoy() {
+        N_DECOY_UPDATER.decrementAndGet(this);
     }
 }
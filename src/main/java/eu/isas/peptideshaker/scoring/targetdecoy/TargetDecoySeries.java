@@ -3,6 +3,7 @@ package eu.isas.peptideshaker.scoring.targetdecoy;
 import eu.isas.peptideshaker.parameters.PSParameter;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This class will contain the PEP, FDR and FNR values of a target decoy map
@@ -90,7 +91,7 @@ public class TargetDecoySeries {
      *
      * @param hitMap a map as present in target decoy maps
      */
-    public TargetDecoySeries(HashMap<Double, TargetDecoyPoint> hitMap) {
+    public TargetDecoySeries(Map<Double, TargetDecoyPoint> hitMap) {
 
         scores = new double[hitMap.size()];
         scoresLog = new double[scores.length];
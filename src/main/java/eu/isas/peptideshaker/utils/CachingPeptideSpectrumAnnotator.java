@@ -0,0 +1,248 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.Util;
+import com.compomics.util.experiment.biology.Ion;
+import com.compomics.util.experiment.biology.NeutralLossesMap;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.matches.IonMatch;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.math.MathException;
+
+/**
+ * Peptide spectrum annotator keeping the annotations of the spectrum currently
+ * inspected. The ion matches of every peptide isoform are computed once and
+ * reused as long as the same spectrum object and annotation settings values
+ * are used, for instance by the different PTM localization scores of a PSM or
+ * by the different items of the quality filters of a PSM. The cache is emptied
+ * when another spectrum is annotated and its size is bounded. Like the peptide
+ * spectrum annotator, an instance should only be used by one thread.
+ *
+ * @author Marc Vaudel
+ */
+public class CachingPeptideSpectrumAnnotator extends PeptideSpectrumAnnotator {
+
+    /**
+     * The default maximal number of annotations kept per spectrum.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 128;
+    /**
+     * The spectrum of the annotations in cache.
+     */
+    private MSnSpectrum currentSpectrum = null;
+    /**
+     * The annotations of the current spectrum: settings and isoform key |
+     * ion matches.
+     */
+    private final LinkedHashMap<String, ArrayList<IonMatch>> annotationsCache;
+    /**
+     * The number of annotations found in cache.
+     */
+    private long nHits = 0;
+    /**
+     * The number of annotations computed.
+     */
+    private long nMisses = 0;
+
+    /**
+     * Constructor.
+     */
+    public CachingPeptideSpectrumAnnotator() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param cacheSize the maximal number of annotations kept per spectrum
+     */
+    public CachingPeptideSpectrumAnnotator(final int cacheSize) {
+        annotationsCache = new LinkedHashMap<String, ArrayList<IonMatch>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ArrayList<IonMatch>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the annotation of the given spectrum. The list returned is a
+     * copy of the list in cache and can be modified by the caller.
+     *
+     * @param annotationSettings the annotation settings
+     * @param specificAnnotationSettings the specific annotation settings
+     * @param spectrum the spectrum to annotate
+     * @param peptide the peptide
+     * @param useIntensityFilter boolean indicating whether intensity filters
+     * should be used
+     *
+     * @return the ion matches
+     *
+     * @throws InterruptedException exception thrown whenever a threading
+     * error occurred
+     * @throws MathException exception thrown whenever a math error occurred
+     */
+    @Override
+    public ArrayList<IonMatch> getSpectrumAnnotation(AnnotationSettings annotationSettings, SpecificAnnotationSettings specificAnnotationSettings,
+            MSnSpectrum spectrum, Peptide peptide, boolean useIntensityFilter) throws InterruptedException, MathException {
+
+        if (spectrum != currentSpectrum) {
+            annotationsCache.clear();
+            currentSpectrum = spectrum;
+        }
+
+        String key = getSettingsKey(annotationSettings, specificAnnotationSettings) + getIsoformKey(peptide, useIntensityFilter);
+        ArrayList<IonMatch> ionMatches = annotationsCache.get(key);
+        if (ionMatches != null) {
+            nHits++;
+        } else {
+            nMisses++;
+            ionMatches = super.getSpectrumAnnotation(annotationSettings, specificAnnotationSettings, spectrum, peptide, useIntensityFilter);
+            annotationsCache.put(key, ionMatches);
+        }
+        return new ArrayList<IonMatch>(ionMatches);
+    }
+
+    /**
+     * Returns a key for the values of the given settings read by the peptide
+     * spectrum annotator. The settings objects can be modified between two
+     * calls, the key is therefore computed from their values at every call.
+     *
+     * @param annotationSettings the annotation settings
+     * @param specificAnnotationSettings the specific annotation settings
+     *
+     * @return a key for the settings
+     */
+    String getSettingsKey(AnnotationSettings annotationSettings, SpecificAnnotationSettings specificAnnotationSettings) {
+        StringBuilder key = new StringBuilder();
+        key.append(annotationSettings.getIntensityThresholdType()).append('_')
+                .append(annotationSettings.getAnnotationIntensityLimit()).append('_')
+                .append(annotationSettings.getTiesResolution()).append('_')
+                .append(specificAnnotationSettings.getSpectrumKey()).append('_')
+                .append(specificAnnotationSettings.getSpectrumIdentificationAssumption().getIdentificationCharge().value).append('_')
+                .append(specificAnnotationSettings.getFragmentIonAccuracy()).append('_')
+                .append(specificAnnotationSettings.isFragmentIonPpm()).append('_')
+                .append(specificAnnotationSettings.getSelectedCharges()).append('_');
+        appendIonTypes(key, specificAnnotationSettings.getIonTypes());
+        key.append('_');
+        appendNeutralLosses(key, specificAnnotationSettings.getNeutralLossesMap());
+        key.append('|');
+        return key.toString();
+    }
+
+    /**
+     * Appends the ion types and subtypes to the key in a deterministic order.
+     *
+     * @param key the key
+     * @param ionTypes the ion types and subtypes
+     */
+    private static void appendIonTypes(StringBuilder key, HashMap<Ion.IonType, HashSet<Integer>> ionTypes) {
+        ArrayList<Ion.IonType> types = new ArrayList<Ion.IonType>(ionTypes.keySet());
+        Collections.sort(types);
+        for (Ion.IonType ionType : types) {
+            ArrayList<Integer> subTypes = new ArrayList<Integer>(ionTypes.get(ionType));
+            Collections.sort(subTypes);
+            key.append(ionType).append(subTypes);
+        }
+    }
+
+    /**
+     * Appends the neutral losses and their start positions to the key in a
+     * deterministic order.
+     *
+     * @param key the key
+     * @param neutralLossesMap the neutral losses map
+     */
+    private static void appendNeutralLosses(StringBuilder key, NeutralLossesMap neutralLossesMap) {
+        ArrayList<String> neutralLosses = new ArrayList<String>(neutralLossesMap.getAccountedNeutralLosses());
+        Collections.sort(neutralLosses);
+        for (String neutralLoss : neutralLosses) {
+            key.append(neutralLoss).append('[')
+                    .append(neutralLossesMap.getForwardStart(neutralLoss)).append(',')
+                    .append(neutralLossesMap.getRewindStart(neutralLoss)).append(']');
+        }
+    }
+
+    /**
+     * Returns a key for the given peptide isoform: sequence and modifications
+     * with their sites.
+     *
+     * @param peptide the peptide
+     * @param useIntensityFilter boolean indicating whether the intensity
+     * filter is used
+     *
+     * @return a key for the peptide isoform
+     */
+    private static String getIsoformKey(Peptide peptide, boolean useIntensityFilter) {
+        StringBuilder key = new StringBuilder(peptide.getSequence());
+        if (peptide.isModified()) {
+            ArrayList<String> modifications = new ArrayList<String>(peptide.getNModifications());
+            for (ModificationMatch modificationMatch : peptide.getModificationMatches()) {
+                modifications.add(modificationMatch.getModificationSite() + modificationMatch.getTheoreticPtm());
+            }
+            Collections.sort(modifications);
+            for (String modification : modifications) {
+                key.append('_').append(modification);
+            }
+        }
+        key.append('_').append(useIntensityFilter);
+        return key.toString();
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public void clearCache() {
+        annotationsCache.clear();
+        currentSpectrum = null;
+    }
+
+    /**
+     * Returns the number of annotations found in cache.
+     *
+     * @return the number of annotations found in cache
+     */
+    public long getnHits() {
+        return nHits;
+    }
+
+    /**
+     * Returns the number of annotations computed.
+     *
+     * @return the number of annotations computed
+     */
+    public long getnMisses() {
+        return nMisses;
+    }
+
+    /**
+     * Returns a report on the share of annotations found in the cache of the
+     * given annotators, null if no annotation was requested.
+     *
+     * @param annotators the annotators
+     *
+     * @return a report on the share of annotations found in cache
+     */
+    public static String getCacheReport(Collection<CachingPeptideSpectrumAnnotator> annotators) {
+        long hits = 0, misses = 0;
+        for (CachingPeptideSpectrumAnnotator annotator : annotators) {
+            hits += annotator.getnHits();
+            misses += annotator.getnMisses();
+        }
+        long total = hits + misses;
+        if (total == 0) {
+            return null;
+        }
+        return "Fragment annotations reused: " + hits + " of " + total + " (" + Util.roundDouble(100.0 * hits / total, 1) + "%).";
+    }
+}
@@ -19,6 +19,7 @@ import com.compomics.util.preferences.FractionSettings;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.preferences.PSProcessingPreferences;
+import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.preferences.ProteinInferencePreferences;
 import eu.isas.peptideshaker.export.CpsExporter;
 import eu.isas.peptideshaker.fileimport.CpsFileImporter;
@@ -56,6 +57,10 @@ public class CpsParent extends UserPreferencesParent {
      * The identification features generator.
      */
     protected IdentificationFeaturesGenerator identificationFeaturesGenerator;
+    /**
+     * The protein accession dictionary of the project.
+     */
+    protected ProteinAccessionDictionary accessionDictionary = new ProteinAccessionDictionary();
     /**
      * The spectrum counting preferences.
      */
@@ -108,6 +113,10 @@ public class CpsParent extends UserPreferencesParent {
      * The identification parameters.
      */
     protected IdentificationParameters identificationParameters;
+    /**
+     * The processing preferences.
+     */
+    protected ProcessingPreferences processingPreferences = new ProcessingPreferences();
     /**
      * The folder where the database is stored.
      */
@@ -271,9 +280,14 @@ public class CpsParent extends UserPreferencesParent {
         }
 
         // Set up caches
-        identificationFeaturesGenerator = new IdentificationFeaturesGenerator(identification, identificationParameters, metrics, spectrumCountingPreferences);
+        loadUserPreferences();
+        accessionDictionary.clear();
+        identificationFeaturesGenerator = new IdentificationFeaturesGenerator(identification, identificationParameters, metrics, spectrumCountingPreferences,
+                accessionDictionary, userPreferences.getFeaturesCacheMemory());
+        identificationFeaturesGenerator.setnThreads(processingPreferences.getnThreads());
         IdentificationFeaturesCache identificationFeaturesCache = experimentSettings.getIdentificationFeaturesCache();
         if (identificationFeaturesCache != null) {
+            identificationFeaturesCache.setBigObjectsCacheMemory(userPreferences.getFeaturesCacheMemory());
             identificationFeaturesGenerator.setIdentificationFeaturesCache(experimentSettings.getIdentificationFeaturesCache());
             identificationFeaturesCache.setReadOnly(false);
         }
@@ -283,7 +297,6 @@ public class CpsParent extends UserPreferencesParent {
             return;
         }
 
-        loadUserPreferences();
         userPreferences.addRecentProject(cpsFile);
         saveUserPreferences();
     }
@@ -503,6 +516,15 @@ public class CpsParent extends UserPreferencesParent {
         return identificationFeaturesGenerator;
     }
 
+    /**
+     * Returns the protein accession dictionary of the project.
+     *
+     * @return the protein accession dictionary of the project
+     */
+    public ProteinAccessionDictionary getAccessionDictionary() {
+        return accessionDictionary;
+    }
+
     /**
      * Returns the spectrum counting preferences.
      *
@@ -741,10 +763,14 @@ public class CpsParent extends UserPreferencesParent {
     }
 
     /**
-     * Resets the feature generator.
+     * Resets the feature generator and clears the protein accession
+     * dictionary.
      */
     public void resetIdentificationFeaturesGenerator() {
-        identificationFeaturesGenerator = new IdentificationFeaturesGenerator(identification, identificationParameters, metrics, spectrumCountingPreferences);
+        accessionDictionary.clear();
+        identificationFeaturesGenerator = new IdentificationFeaturesGenerator(identification, identificationParameters, metrics, spectrumCountingPreferences,
+                accessionDictionary, userPreferences.getFeaturesCacheMemory());
+        identificationFeaturesGenerator.setnThreads(processingPreferences.getnThreads());
     }
 
     /**
@@ -765,6 +791,27 @@ public class CpsParent extends UserPreferencesParent {
         this.identificationParameters = identificationParameters;
     }
 
+    /**
+     * Returns the processing preferences.
+     *
+     * @return the processing preferences
+     */
+    public ProcessingPreferences getProcessingPreferences() {
+        return processingPreferences;
+    }
+
+    /**
+     * Sets the processing preferences.
+     *
+     * @param processingPreferences the processing preferences
+     */
+    public void setProcessingPreferences(ProcessingPreferences processingPreferences) {
+        this.processingPreferences = processingPreferences;
+        if (identificationFeaturesGenerator != null) {
+            identificationFeaturesGenerator.setnThreads(processingPreferences.getnThreads());
+        }
+    }
+
     /**
      * Returns information on the protocol used.
      *
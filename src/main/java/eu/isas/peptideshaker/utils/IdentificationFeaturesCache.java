@@ -1,12 +1,31 @@
 package eu.isas.peptideshaker.utils;
 
+import com.compomics.util.memory.MemoryConsumptionStatus;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class caches the identification features calculated by the
- * IdentificationFeaturesGenerator for later reuse.
+ * IdentificationFeaturesGenerator for later reuse. Every object type has its
+ * own cache: the big objects are evicted in least recently used order when
+ * their estimated memory exceeds the memory allocated to the cache, and the
+ * small objects are evicted in insertion order. The small objects
+ * can be read without locking, so that the cache can be shared between
+ * threads.
  *
  * @author Marc Vaudel
  */
@@ -109,33 +128,68 @@ public class IdentificationFeaturesCache implements Serializable {
         containsEnzymaticPeptides;
     }
     /**
-     * The number of values kept in memory for small objects.
+     * The number of values kept in memory for all types of small objects
+     * together.
      */
-    private final int smallObjectsCacheSize = 1000000;
+    private static final int SMALL_OBJECTS_CACHE_SIZE = 1000000;
     /**
-     * The number of values kept in memory for big objects.
+     * The default memory allocated to the big objects in MB.
      */
-    private final int bigObjectsCacheSize = 1000;
+    public static final int DEFAULT_BIG_OBJECTS_CACHE_MEMORY = 128;
     /**
-     * Separator used to concatenate strings.
+     * The share of the memory used by the JVM above which big objects are
+     * evicted from the cache.
      */
-    private static final String cacheSeparator = "_ccs_";
+    private static final double MEMORY_USED_THRESHOLD = 0.9;
     /**
-     * The cached protein matches for small objects.
+     * The number of big objects added between two checks of the memory used
+     * by the JVM.
      */
-    private ArrayList<String> smallObjectsInCache = new ArrayList<String>();
+    private static final int MEMORY_CHECK_INTERVAL = 100;
     /**
-     * The cached protein matches for big objects.
+     * The estimated memory overhead of a cache entry in bytes.
      */
-    private ArrayList<String> bigObjectsInCache = new ArrayList<String>();
+    private static final long ENTRY_MEMORY = 64;
     /**
-     * Mapping of the stored big objects.
+     * The caches of the different object types.
      */
-    private HashMap<ObjectType, HashMap<String, Object>> bigObjectsCache = new HashMap<ObjectType, HashMap<String, Object>>();
+    private transient ConcurrentHashMap<ObjectType, TypeCache> typeCaches = new ConcurrentHashMap<ObjectType, TypeCache>();
     /**
-     * Mapping of the stored small objects.
+     * The number of objects found in cache.
      */
-    private HashMap<ObjectType, HashMap<String, Object>> smallObjectsCache = new HashMap<ObjectType, HashMap<String, Object>>();
+    private transient AtomicLong nHits = new AtomicLong();
+    /**
+     * The number of objects not found in cache.
+     */
+    private transient AtomicLong nMisses = new AtomicLong();
+    /**
+     * The number of objects evicted from the cache.
+     */
+    private transient AtomicLong nEvictions = new AtomicLong();
+    /**
+     * The big objects of all types.
+     */
+    private transient BigObjectsLru bigObjects = new BigObjectsLru(nEvictions);
+    /**
+     * The number of big objects added.
+     */
+    private transient AtomicInteger nBigObjectsAdded = new AtomicInteger();
+    /**
+     * The insertion order of the small objects of all types.
+     */
+    private transient SmallObjectsQueue smallObjectsQueue = new SmallObjectsQueue(SMALL_OBJECTS_CACHE_SIZE);
+    /**
+     * The protein features computed after validation, null if not computed.
+     */
+    private volatile ProteinFeaturesTable proteinFeaturesTable = null;
+    /**
+     * Mapping of the stored big objects, only used to serialize the cache.
+     */
+    private HashMap<ObjectType, HashMap<String, Object>> bigObjectsCache = null;
+    /**
+     * Mapping of the stored small objects, only used to serialize the cache.
+     */
+    private HashMap<ObjectType, HashMap<String, Object>> smallObjectsCache = null;
     /**
      * The protein list.
      */
@@ -183,52 +237,155 @@ public class IdentificationFeaturesCache implements Serializable {
      */
     private boolean readOnly = false;
 
+    /**
+     * Constructor. The default memory is allocated to the big objects.
+     */
+    public IdentificationFeaturesCache() {
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param bigObjectsCacheMemory the memory allocated to the big objects in
+     * MB
+     */
+    public IdentificationFeaturesCache(int bigObjectsCacheMemory) {
+        setBigObjectsCacheMemory(bigObjectsCacheMemory);
+    }
+
+    /**
+     * Indicates whether the given type of object is a big object, i.e.
+     * an object whose size depends on the protein length.
+     *
+     * @param type the object type
+     *
+     * @return a boolean indicating whether the given type of object is a big
+     * object
+     */
+    private static boolean isBigObject(ObjectType type) {
+        switch (type) {
+            case coverable_AA_p:
+            case AA_coverage:
+            case tryptic_protein:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the number of values kept in memory for all types of small
+     * objects together if the given type is cached, 0 otherwise.
+     *
+     * @param type the object type
+     *
+     * @return the number of values kept in memory for the small objects
+     */
+    private static int getCacheSize(ObjectType type) {
+        switch (type) {
+            case sequence_coverage:
+            case sequence_validation_coverage:
+            case expected_coverage:
+            case spectrum_counting:
+            case number_of_spectra:
+            case number_of_validated_spectra:
+            case number_of_validated_peptides:
+            case number_of_confident_spectra:
+            case number_of_confident_peptides:
+            case max_psm_mz_for_peptides:
+            case unique_peptides:
+            case containsEnzymaticPeptides:
+                return SMALL_OBJECTS_CACHE_SIZE;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Indicates whether the given type of object is cached.
+     *
+     * @param type the object type
+     *
+     * @return a boolean indicating whether the given type of object is cached
+     */
+    private static boolean isCached(ObjectType type) {
+        return isBigObject(type) || getCacheSize(type) > 0;
+    }
+
+    /**
+     * Returns a new cache for the given type of object, null if the type is
+     * not cached.
+     *
+     * @param type the object type
+     *
+     * @return a new cache for the given type of object
+     */
+    private TypeCache newTypeCache(ObjectType type) {
+        if (isBigObject(type)) {
+            return new LruTypeCache(bigObjects);
+        }
+        if (getCacheSize(type) == 0) {
+            return null;
+        }
+        return new FifoTypeCache(smallObjectsQueue, nEvictions);
+    }
+
+    /**
+     * Returns the memory allocated to the big objects of the cache in bytes.
+     *
+     * @return the memory allocated to the big objects of the cache in bytes
+     */
+    public long getBigObjectsCacheMemory() {
+        return bigObjects.getMemoryAllocated();
+    }
+
+    /**
+     * Sets the memory allocated to the big objects of the cache in MB. The
+     * memory allocated is not saved with the cache and is checked when big
+     * objects are added.
+     *
+     * @param memory the memory allocated to the big objects in MB
+     */
+    public void setBigObjectsCacheMemory(int memory) {
+        bigObjects.setMemoryAllocated(memory * 1048576L);
+    }
+
+    /**
+     * Returns the estimated memory used by the big objects in bytes.
+     *
+     * @return the estimated memory used by the big objects in bytes
+     */
+    public long getBigObjectsMemoryUsed() {
+        return bigObjects.getMemoryUsed();
+    }
+
+    /**
+     * Evicts the given share of the big objects of all types, starting with
+     * the least recently used.
+     *
+     * @param share the share of big objects to evict, between 0 and 1
+     */
+    public void reduceMemoryConsumption(double share) {
+        bigObjects.reduce(share);
+    }
+
     /**
      * Clears all objects of the given type.
      *
      * @param type the object type
      */
-    public synchronized void removeObjects(ObjectType type) {
+    public void removeObjects(ObjectType type) {
         if (!readOnly) {
-            String typeKey = getTypeAsString(type);
-            ArrayList<String> toRemove = new ArrayList<String>();
-
-            switch (type) {
-                case coverable_AA_p:
-                case AA_coverage:
-                case tryptic_protein:
-                    bigObjectsCache.remove(type);
-                    for (String key : bigObjectsInCache) {
-                        if (key.contains(typeKey)) {
-                            toRemove.add(key);
-                        }
-                    }
-                    for (String key : toRemove) {
-                        bigObjectsInCache.remove(key);
-                    }
-                    break;
-                case sequence_coverage:
-                case sequence_validation_coverage:
-                case expected_coverage:
-                case spectrum_counting:
-                case number_of_spectra:
-                case number_of_validated_spectra:
-                case number_of_validated_peptides:
-                case number_of_confident_spectra:
-                case number_of_confident_peptides:
-                case max_psm_mz_for_peptides:
-                case unique_peptides:
-                case containsEnzymaticPeptides:
-                    smallObjectsCache.remove(type);
-                    for (String key : smallObjectsInCache) {
-                        if (key.contains(typeKey)) {
-                            toRemove.add(key);
-                        }
-                    }
-                    for (String key : toRemove) {
-                        smallObjectsInCache.remove(key);
-                    }
-                    break;
+            if (proteinFeaturesTable != null) {
+                proteinFeaturesTable.clear(type);
+            }
+            TypeCache typeCache = typeCaches.remove(type);
+            if (typeCache != null) {
+                if (isBigObject(type)) {
+                    ((LruTypeCache) typeCache).clear();
+                } else {
+                    smallObjectsQueue.remove((FifoTypeCache) typeCache);
+                }
             }
         }
     }
@@ -240,72 +397,26 @@ public class IdentificationFeaturesCache implements Serializable {
      * @param objectKey the object key
      * @param object the object to store
      */
-    public synchronized void addObject(ObjectType type, String objectKey, Object object) {
+    public void addObject(ObjectType type, String objectKey, Object object) {
         if (!readOnly) {
-            switch (type) {
-                case coverable_AA_p:
-                case AA_coverage:
-                case tryptic_protein:
-                    if (!bigObjectsCache.containsKey(type)) {
-                        bigObjectsCache.put(type, new HashMap<String, Object>());
-                    }
-
-                    Object oldValue = bigObjectsCache.get(type).put(objectKey, object);
-
-                    if (oldValue == null) { // don't add if the object was already in the cache
-                        bigObjectsInCache.add(getCacheKey(type, objectKey));
-                    }
-
-                    while (bigObjectsInCache.size() >= bigObjectsCacheSize && !bigObjectsInCache.isEmpty()) {
-                        String firstObjectKey = bigObjectsInCache.get(0);
-                        ObjectType oldType = getType(firstObjectKey);
-                        String oldKey = getObjectKey(firstObjectKey);
-                        HashMap<String, Object> cacheForType = bigObjectsCache.get(oldType);
-                        if (cacheForType != null) {
-                            cacheForType.remove(oldKey);
-                            if (cacheForType.isEmpty()) {
-                                bigObjectsCache.remove(oldType);
-                            }
-                        }
-                        bigObjectsInCache.remove(0);
-                    }
-                    break;
-                case sequence_coverage:
-                case sequence_validation_coverage:
-                case expected_coverage:
-                case spectrum_counting:
-                case number_of_spectra:
-                case number_of_validated_spectra:
-                case number_of_validated_peptides:
-                case number_of_confident_spectra:
-                case number_of_confident_peptides:
-                case max_psm_mz_for_peptides:
-                case unique_peptides:
-                case containsEnzymaticPeptides:
-                    if (!smallObjectsCache.containsKey(type)) {
-                        smallObjectsCache.put(type, new HashMap<String, Object>());
-                    }
-
-                    oldValue = smallObjectsCache.get(type).put(objectKey, object);
-
-                    if (oldValue == null) {
-                        smallObjectsInCache.add(getCacheKey(type, objectKey));
-                    }
-
-                    while (smallObjectsInCache.size() >= smallObjectsCacheSize && !smallObjectsInCache.isEmpty()) {
-                        String firstObjectKey = smallObjectsInCache.get(0);
-                        ObjectType oldType = getType(firstObjectKey);
-                        String oldKey = getObjectKey(firstObjectKey);
-                        HashMap<String, Object> cacheForType = smallObjectsCache.get(oldType);
-                        if (cacheForType != null) {
-                            cacheForType.remove(oldKey);
-                            if (cacheForType.isEmpty()) {
-                                smallObjectsCache.remove(oldType);
-                            }
-                        }
-                        smallObjectsInCache.remove(0);
-                    }
-                    break;
+            if (proteinFeaturesTable != null && proteinFeaturesTable.setValue(type, objectKey, object)) {
+                return;
+            }
+            TypeCache typeCache = typeCaches.get(type);
+            if (typeCache == null) {
+                typeCache = newTypeCache(type);
+                if (typeCache == null) {
+                    return;
+                }
+                TypeCache previousCache = typeCaches.putIfAbsent(type, typeCache);
+                if (previousCache != null) {
+                    typeCache = previousCache;
+                }
+            }
+            typeCache.put(objectKey, object);
+            if (isBigObject(type) && nBigObjectsAdded.incrementAndGet() % MEMORY_CHECK_INTERVAL == 0
+                    && MemoryConsumptionStatus.memoryUsed() > MEMORY_USED_THRESHOLD) {
+                reduceMemoryConsumption(0.5);
             }
         }
     }
@@ -318,35 +429,81 @@ public class IdentificationFeaturesCache implements Serializable {
      * @return the desired object
      */
     public Object getObject(ObjectType type, String objectKey) {
-        switch (type) {
-            case coverable_AA_p:
-            case AA_coverage:
-            case tryptic_protein:
-                HashMap<String, Object> cacheForType = bigObjectsCache.get(type);
-                if (cacheForType != null) {
-                    return cacheForType.get(objectKey);
-                }
-                return null;
-            case sequence_coverage:
-            case sequence_validation_coverage:
-            case expected_coverage:
-            case spectrum_counting:
-            case number_of_spectra:
-            case number_of_validated_spectra:
-            case number_of_validated_peptides:
-            case number_of_confident_spectra:
-            case number_of_confident_peptides:
-            case max_psm_mz_for_peptides:
-            case unique_peptides:
-            case containsEnzymaticPeptides:
-                cacheForType = smallObjectsCache.get(type);
-                if (cacheForType != null) {
-                    return cacheForType.get(objectKey);
-                }
-                return null;
-            default:
-                return null;
+        Object result = null;
+        if (proteinFeaturesTable != null) {
+            result = proteinFeaturesTable.getValue(type, objectKey);
+        }
+        if (result == null) {
+            TypeCache typeCache = typeCaches.get(type);
+            if (typeCache != null) {
+                result = typeCache.get(objectKey);
+            }
+        }
+        if (result != null) {
+            nHits.incrementAndGet();
+        } else if (isCached(type)) {
+            nMisses.incrementAndGet();
         }
+        return result;
+    }
+
+    /**
+     * Returns the table of protein features computed after validation, null
+     * if not computed.
+     *
+     * @return the table of protein features
+     */
+    public ProteinFeaturesTable getProteinFeaturesTable() {
+        return proteinFeaturesTable;
+    }
+
+    /**
+     * Sets the table of protein features computed after validation. The
+     * features of the table are looked up before the other caches.
+     *
+     * @param proteinFeaturesTable the table of protein features
+     */
+    public void setProteinFeaturesTable(ProteinFeaturesTable proteinFeaturesTable) {
+        this.proteinFeaturesTable = proteinFeaturesTable;
+    }
+
+    /**
+     * Returns the number of objects found in cache.
+     *
+     * @return the number of objects found in cache
+     */
+    public long getnHits() {
+        return nHits.get();
+    }
+
+    /**
+     * Returns the number of objects not found in cache.
+     *
+     * @return the number of objects not found in cache
+     */
+    public long getnMisses() {
+        return nMisses.get();
+    }
+
+    /**
+     * Returns the number of objects evicted from the cache.
+     *
+     * @return the number of objects evicted from the cache
+     */
+    public long getnEvictions() {
+        return nEvictions.get();
+    }
+
+    /**
+     * Returns the number of objects of the given type in cache.
+     *
+     * @param type the object type
+     *
+     * @return the number of objects of the given type in cache
+     */
+    public int getnObjects(ObjectType type) {
+        TypeCache typeCache = typeCaches.get(type);
+        return typeCache != null ? typeCache.size() : 0;
     }
 
     /**
@@ -535,118 +692,69 @@ public class IdentificationFeaturesCache implements Serializable {
     }
 
     /**
-     * Convenience method returning a string as key for the object of the given
-     * type identified by the given key.
+     * Writes the cache. The objects in cache are saved in maps per category of
+     * object as done in previous versions.
      *
-     * @param type the type of object
-     * @param objectKey the key of the object
-     * @return the key to be used in cache
-     */
-    private String getCacheKey(ObjectType type, String objectKey) {
-        return getTypeAsString(type) + cacheSeparator + objectKey;
-    }
-
-    /**
-     * Returns the object type as string.
+     * @param outputStream the stream where to write the cache
      *
-     * @param type the type of object
-     * @return the corresponding key
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the cache
      */
-    private String getTypeAsString(ObjectType type) {
-        switch (type) {
-            case coverable_AA_p:
-                return "coverable_AA_p";
-            case AA_coverage:
-                return "AA_coverage";
-            case sequence_coverage:
-                return "sequence_coverage";
-            case sequence_validation_coverage:
-                return "sequence_validation_coverage";
-            case expected_coverage:
-                return "expected_coverage";
-            case spectrum_counting:
-                return "spectrum_counting";
-            case number_of_spectra:
-                return "#spectra";
-            case number_of_validated_spectra:
-                return "#validated_spectra";
-            case number_of_validated_peptides:
-                return "#validated_peptides";
-            case number_of_confident_spectra:
-                return "#confident_spectra";
-            case number_of_confident_peptides:
-                return "#confident_peptides";
-            case max_psm_mz_for_peptides:
-                return "max_psm_mz_for_peptides";
-            case tryptic_protein:
-                return "tryptic_protein";
-            case unique_peptides:
-                return "unique_peptides";
-            case containsEnzymaticPeptides:
-                return "contains_enzymatic_peptides";
-            default:
-                return "default";
-        }
-    }
-
-    /**
-     * Convenience method returning the type of object base on the objects cache
-     * key.
-     *
-     * @param cacheKey the object cache key
-     * @return the type of object
-     */
-    private ObjectType getType(String cacheKey) {
-        String objectTypeAsString = cacheKey.split(cacheSeparator)[0];
-        if (objectTypeAsString.equals("coverable_AA_p")) {
-            return ObjectType.coverable_AA_p;
-        } else if (objectTypeAsString.equals("AA_coverage")) {
-            return ObjectType.AA_coverage;
-        } else if (objectTypeAsString.equals("sequence_coverage")) {
-            return ObjectType.sequence_coverage;
-        } else if (objectTypeAsString.equals("sequence_validation_coverage")) {
-            return ObjectType.sequence_validation_coverage;
-        } else if (objectTypeAsString.equals("expected_coverage")) {
-            return ObjectType.expected_coverage;
-        } else if (objectTypeAsString.equals("spectrum_counting")) {
-            return ObjectType.spectrum_counting;
-        } else if (objectTypeAsString.equals("#spectra")) {
-            return ObjectType.number_of_spectra;
-        } else if (objectTypeAsString.equals("#validated_spectra")) {
-            return ObjectType.number_of_validated_spectra;
-        } else if (objectTypeAsString.equals("#validated_peptides")) {
-            return ObjectType.number_of_validated_peptides;
-        } else if (objectTypeAsString.equals("#confident_spectra")) {
-            return ObjectType.number_of_confident_spectra;
-        } else if (objectTypeAsString.equals("#confident_peptides")) {
-            return ObjectType.number_of_confident_peptides;
-        } else if (objectTypeAsString.equals("max_psm_mz_for_peptides")) {
-            return ObjectType.max_psm_mz_for_peptides;
-        } else if (objectTypeAsString.equals("tryptic_protein")) {
-            return ObjectType.tryptic_protein;
-        } else if (objectTypeAsString.equals("unique_peptides")) {
-            return ObjectType.unique_peptides;
-        } else if (objectTypeAsString.equals("contains_enzymatic_peptides")) { 
-            return ObjectType.containsEnzymaticPeptides;
-        } else {
-            return null;
+    private void writeObject(ObjectOutputStream outputStream) throws IOException {
+        bigObjectsCache = new HashMap<ObjectType, HashMap<String, Object>>();
+        smallObjectsCache = new HashMap<ObjectType, HashMap<String, Object>>();
+        for (ObjectType type : typeCaches.keySet()) {
+            TypeCache typeCache = typeCaches.get(type);
+            if (typeCache != null) {
+                if (isBigObject(type)) {
+                    bigObjectsCache.put(type, typeCache.getObjects());
+                } else {
+                    smallObjectsCache.put(type, typeCache.getObjects());
+                }
+            }
         }
+        outputStream.defaultWriteObject();
+        bigObjectsCache = null;
+        smallObjectsCache = null;
     }
 
     /**
-     * Convenience method returning the object key based on the cache key.
+     * Reads the cache.
+     *
+     * @param inputStream the stream where to read the cache
      *
-     * @param cacheKey the cache key
-     * @return the object key
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the cache
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object
      */
-    private String getObjectKey(String cacheKey) {
-        StringBuilder buf = new StringBuilder();
-        String escapedString = java.util.regex.Pattern.quote(cacheKey);
-        String[] splittedKey = cacheKey.split(escapedString);
-        for (int i = 1; i < splittedKey.length; i++) {
-            buf.append(splittedKey[i]);
+    private void readObject(ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
+        inputStream.defaultReadObject();
+        typeCaches = new ConcurrentHashMap<ObjectType, TypeCache>();
+        nHits = new AtomicLong();
+        nMisses = new AtomicLong();
+        nEvictions = new AtomicLong();
+        bigObjects = new BigObjectsLru(nEvictions);
+        nBigObjectsAdded = new AtomicInteger();
+        smallObjectsQueue = new SmallObjectsQueue(SMALL_OBJECTS_CACHE_SIZE);
+        boolean wasReadOnly = readOnly;
+        readOnly = false;
+        for (HashMap<ObjectType, HashMap<String, Object>> categoryCache : new HashMap[]{bigObjectsCache, smallObjectsCache}) {
+            if (categoryCache != null) {
+                for (ObjectType type : categoryCache.keySet()) {
+                    HashMap<String, Object> objects = categoryCache.get(type);
+                    if (objects != null) {
+                        for (String objectKey : objects.keySet()) {
+                            addObject(type, objectKey, objects.get(objectKey));
+                        }
+                    }
+                }
+            }
         }
-        return buf.toString();
+        readOnly = wasReadOnly;
+        bigObjectsCache = null;
+        smallObjectsCache = null;
+        nEvictions.set(0);
     }
 
     /**
@@ -658,4 +766,634 @@ public class IdentificationFeaturesCache implements Serializable {
     public void setReadOnly(boolean readOnly) {
         this.readOnly = readOnly;
     }
+
+    /**
+     * Cache of the objects of a given type.
+     */
+    private static abstract class TypeCache {
+
+        /**
+         * Returns the object of the given key, null if not in cache.
+         *
+         * @param objectKey the key of the object
+         *
+         * @return the object of the given key
+         */
+        public abstract Object get(String objectKey);
+
+        /**
+         * Adds an object to the cache and evicts objects if the cache is full.
+         *
+         * @param objectKey the key of the object
+         * @param object the object
+         */
+        public abstract void put(String objectKey, Object object);
+
+        /**
+         * Returns the number of objects in cache.
+         *
+         * @return the number of objects in cache
+         */
+        public abstract int size();
+
+        /**
+         * Returns a copy of the objects in cache.
+         *
+         * @return a copy of the objects in cache
+         */
+        public abstract HashMap<String, Object> getObjects();
+    }
+
+    /**
+     * Returns the estimated memory used by a cache entry in bytes.
+     *
+     * @param objectKey the key of the object
+     * @param object the object
+     *
+     * @return the estimated memory used by the entry in bytes
+     */
+    private static long getMemory(String objectKey, Object object) {
+        return ENTRY_MEMORY + getMemory(objectKey) + getMemory(object);
+    }
+
+    /**
+     * Returns the estimated memory used by an object in bytes, based on the
+     * length of arrays, strings and collections.
+     *
+     * @param object the object
+     *
+     * @return the estimated memory used by the object in bytes
+     */
+    private static long getMemory(Object object) {
+        if (object instanceof double[]) {
+            return 16 + 8L * ((double[]) object).length;
+        } else if (object instanceof int[]) {
+            return 16 + 4L * ((int[]) object).length;
+        } else if (object instanceof String) {
+            return 40 + 2L * ((String) object).length();
+        } else if (object instanceof Collection) {
+            long memory = 24;
+            for (Object element : (Collection) object) {
+                memory += 8 + getMemory(element);
+            }
+            return memory;
+        }
+        return 16;
+    }
+
+    /**
+     * The big objects of all types, evicted together starting with the least
+     * recently used when the memory used by the big objects exceeds the memory
+     * allocated. Objects are read without locking: every access stamps the
+     * entry with a shared clock, and the evictions, synchronized on the
+     * eviction candidates, take the oldest entries of a sorted snapshot of
+     * the objects, skipping the ones accessed or replaced since the snapshot.
+     */
+    private static class BigObjectsLru {
+
+        /**
+         * The minimal number of eviction candidates taken from a snapshot of
+         * the objects.
+         */
+        private static final int MIN_EVICTION_CANDIDATES = 16;
+        /**
+         * The objects.
+         */
+        private final ConcurrentHashMap<BigObjectKey, BigObjectEntry> objects = new ConcurrentHashMap<BigObjectKey, BigObjectEntry>();
+        /**
+         * The clock used to stamp the accesses to the objects.
+         */
+        private final AtomicLong clock = new AtomicLong();
+        /**
+         * The estimated memory used by the objects in bytes.
+         */
+        private final AtomicLong memoryUsed = new AtomicLong();
+        /**
+         * The memory allocated to the objects in bytes.
+         */
+        private volatile long memoryAllocated = DEFAULT_BIG_OBJECTS_CACHE_MEMORY * 1048576L;
+        /**
+         * The oldest entries of the last snapshot of the objects, oldest first.
+         * The evictions are synchronized on this queue.
+         */
+        private final ArrayDeque<BigObjectEntry> evictionCandidates = new ArrayDeque<BigObjectEntry>();
+        /**
+         * The counter of evictions.
+         */
+        private final AtomicLong nEvictions;
+
+        /**
+         * Constructor.
+         *
+         * @param nEvictions the counter of evictions
+         */
+        public BigObjectsLru(AtomicLong nEvictions) {
+            this.nEvictions = nEvictions;
+        }
+
+        /**
+         * Returns the memory allocated to the objects in bytes.
+         *
+         * @return the memory allocated to the objects in bytes
+         */
+        public long getMemoryAllocated() {
+            return memoryAllocated;
+        }
+
+        /**
+         * Sets the memory allocated to the objects in bytes. Objects are
+         * evicted when the next object is added.
+         *
+         * @param memoryAllocated the memory allocated to the objects in bytes
+         */
+        public void setMemoryAllocated(long memoryAllocated) {
+            this.memoryAllocated = memoryAllocated;
+        }
+
+        /**
+         * Returns the object of the given key in the given cache, null if not
+         * in cache.
+         *
+         * @param typeCache the cache of the object type
+         * @param objectKey the key of the object
+         *
+         * @return the object of the given key
+         */
+        public Object get(LruTypeCache typeCache, String objectKey) {
+            BigObjectEntry entry = objects.get(new BigObjectKey(typeCache, objectKey));
+            if (entry == null) {
+                return null;
+            }
+            entry.accessStamp = clock.incrementAndGet();
+            return entry.object;
+        }
+
+        /**
+         * Adds an object and evicts the least recently used objects of all
+         * types while the memory used exceeds the memory allocated. The object
+         * added is never evicted.
+         *
+         * @param typeCache the cache of the object type
+         * @param objectKey the key of the object
+         * @param object the object
+         */
+        public void put(LruTypeCache typeCache, String objectKey, Object object) {
+            BigObjectKey key = new BigObjectKey(typeCache, objectKey);
+            BigObjectEntry entry = new BigObjectEntry(key, object, getMemory(objectKey, object), clock.incrementAndGet());
+            BigObjectEntry previousEntry = objects.put(key, entry);
+            if (previousEntry != null) {
+                memoryUsed.addAndGet(entry.memory - previousEntry.memory);
+            } else {
+                memoryUsed.addAndGet(entry.memory);
+                typeCache.size.incrementAndGet();
+            }
+            if (memoryUsed.get() > memoryAllocated) {
+                synchronized (evictionCandidates) {
+                    while (memoryUsed.get() > memoryAllocated && evictOldest(entry)) {
+                        nEvictions.incrementAndGet();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Evicts the given share of objects, starting with the least recently
+         * used.
+         *
+         * @param share the share of objects to evict, between 0 and 1
+         */
+        public void reduce(double share) {
+            int nToEvict = (int) Math.ceil(share * objects.size());
+            synchronized (evictionCandidates) {
+                for (int i = 0; i < nToEvict && evictOldest(null); i++) {
+                    nEvictions.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Evicts the least recently used object among the eviction candidates,
+         * taking a new snapshot of the objects when no candidate is left. To
+         * be called while synchronized on the eviction candidates.
+         *
+         * @param entryToKeep an entry which should not be evicted, can be null
+         *
+         * @return a boolean indicating whether an object was evicted
+         */
+        private boolean evictOldest(BigObjectEntry entryToKeep) {
+            for (int attempt = 0; attempt < 2; attempt++) {
+                BigObjectEntry entry;
+                while ((entry = evictionCandidates.poll()) != null) {
+                    if (entry != entryToKeep && entry.accessStamp == entry.snapshotStamp && remove(entry)) {
+                        return true;
+                    }
+                }
+                ArrayList<BigObjectEntry> snapshot = new ArrayList<BigObjectEntry>(objects.size());
+                for (BigObjectEntry objectEntry : objects.values()) {
+                    if (objectEntry != entryToKeep) {
+                        objectEntry.snapshotStamp = objectEntry.accessStamp;
+                        snapshot.add(objectEntry);
+                    }
+                }
+                if (snapshot.isEmpty()) {
+                    return false;
+                }
+                Collections.sort(snapshot, new Comparator<BigObjectEntry>() {
+                    @Override
+                    public int compare(BigObjectEntry entry1, BigObjectEntry entry2) {
+                        return entry1.snapshotStamp < entry2.snapshotStamp ? -1 : entry1.snapshotStamp == entry2.snapshotStamp ? 0 : 1;
+                    }
+                });
+                int nCandidates = Math.min(snapshot.size(), Math.max(MIN_EVICTION_CANDIDATES, snapshot.size() / 8));
+                evictionCandidates.addAll(snapshot.subList(0, nCandidates));
+            }
+            return false;
+        }
+
+        /**
+         * Removes all objects of the given cache.
+         *
+         * @param typeCache the cache of the object type
+         */
+        public void clear(LruTypeCache typeCache) {
+            for (BigObjectEntry entry : objects.values()) {
+                if (entry.key.typeCache == typeCache) {
+                    remove(entry);
+                }
+            }
+        }
+
+        /**
+         * Returns the number of objects of the given cache.
+         *
+         * @param typeCache the cache of the object type
+         *
+         * @return the number of objects of the given cache
+         */
+        public int size(LruTypeCache typeCache) {
+            return typeCache.size.get();
+        }
+
+        /**
+         * Returns a copy of the objects of the given cache.
+         *
+         * @param typeCache the cache of the object type
+         *
+         * @return a copy of the objects of the given cache
+         */
+        public HashMap<String, Object> getObjects(LruTypeCache typeCache) {
+            HashMap<String, Object> result = new HashMap<String, Object>(typeCache.size.get());
+            for (BigObjectEntry entry : objects.values()) {
+                if (entry.key.typeCache == typeCache) {
+                    result.put(entry.key.objectKey, entry.object);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the estimated memory used by the objects in bytes.
+         *
+         * @return the estimated memory used by the objects in bytes
+         */
+        public long getMemoryUsed() {
+            return memoryUsed.get();
+        }
+
+        /**
+         * Removes the given entry if it was not replaced or removed already.
+         *
+         * @param entry the entry to remove
+         *
+         * @return a boolean indicating whether the entry was removed
+         */
+        private boolean remove(BigObjectEntry entry) {
+            if (objects.remove(entry.key, entry)) {
+                memoryUsed.addAndGet(-entry.memory);
+                entry.key.typeCache.size.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Entry of the big objects.
+     */
+    private static class BigObjectEntry {
+
+        /**
+         * The key of the object.
+         */
+        private final BigObjectKey key;
+        /**
+         * The object.
+         */
+        private final Object object;
+        /**
+         * The estimated memory used by the entry in bytes.
+         */
+        private final long memory;
+        /**
+         * The stamp of the last access to the object.
+         */
+        private volatile long accessStamp;
+        /**
+         * The access stamp of the object in the last snapshot of the objects,
+         * guarded by the eviction candidates.
+         */
+        private long snapshotStamp;
+
+        /**
+         * Constructor.
+         *
+         * @param key the key of the object
+         * @param object the object
+         * @param memory the estimated memory used by the entry in bytes
+         * @param accessStamp the stamp of the addition of the object
+         */
+        public BigObjectEntry(BigObjectKey key, Object object, long memory, long accessStamp) {
+            this.key = key;
+            this.object = object;
+            this.memory = memory;
+            this.accessStamp = accessStamp;
+        }
+    }
+
+    /**
+     * Key of a big object in the access order of all types.
+     */
+    private static class BigObjectKey {
+
+        /**
+         * The cache of the object type.
+         */
+        private final LruTypeCache typeCache;
+        /**
+         * The key of the object.
+         */
+        private final String objectKey;
+
+        /**
+         * Constructor.
+         *
+         * @param typeCache the cache of the object type
+         * @param objectKey the key of the object
+         */
+        public BigObjectKey(LruTypeCache typeCache, String objectKey) {
+            this.typeCache = typeCache;
+            this.objectKey = objectKey;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BigObjectKey)) {
+                return false;
+            }
+            BigObjectKey other = (BigObjectKey) obj;
+            return typeCache == other.typeCache && objectKey.equals(other.objectKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(typeCache) + objectKey.hashCode();
+        }
+    }
+
+    /**
+     * Cache of a big object type, the objects are stored in the access order
+     * shared by all big object types.
+     */
+    private static class LruTypeCache extends TypeCache {
+
+        /**
+         * The big objects of all types.
+         */
+        private final BigObjectsLru bigObjects;
+        /**
+         * The number of objects of this type.
+         */
+        private final AtomicInteger size = new AtomicInteger();
+
+        /**
+         * Constructor.
+         *
+         * @param bigObjects the big objects of all types
+         */
+        public LruTypeCache(BigObjectsLru bigObjects) {
+            this.bigObjects = bigObjects;
+        }
+
+        @Override
+        public Object get(String objectKey) {
+            return bigObjects.get(this, objectKey);
+        }
+
+        @Override
+        public void put(String objectKey, Object object) {
+            bigObjects.put(this, objectKey, object);
+        }
+
+        /**
+         * Removes all objects from the cache.
+         */
+        public void clear() {
+            bigObjects.clear(this);
+        }
+
+        @Override
+        public int size() {
+            return bigObjects.size(this);
+        }
+
+        @Override
+        public HashMap<String, Object> getObjects() {
+            return bigObjects.getObjects(this);
+        }
+    }
+
+    /**
+     * Insertion order of the small objects shared by the caches of all small
+     * object types, so that the number of small objects kept in memory is
+     * bounded for all types together as in previous versions. The entries of
+     * a cache are purged from the queue when the cache is removed.
+     */
+    private static class SmallObjectsQueue {
+
+        /**
+         * The maximal number of entries in the queue.
+         */
+        private final int cacheSize;
+        /**
+         * The number of entries in the queue.
+         */
+        private final AtomicInteger size = new AtomicInteger();
+        /**
+         * The entries in insertion order.
+         */
+        private final ConcurrentLinkedQueue<SmallObjectEntry> entries = new ConcurrentLinkedQueue<SmallObjectEntry>();
+
+        /**
+         * Constructor.
+         *
+         * @param cacheSize the maximal number of entries in the queue
+         */
+        public SmallObjectsQueue(int cacheSize) {
+            this.cacheSize = cacheSize;
+        }
+
+        /**
+         * Adds an entry to the queue and evicts the eldest objects of all
+         * types while the queue is full.
+         *
+         * @param entry the entry to add
+         * @param nEvictions the counter of evictions
+         */
+        public void add(SmallObjectEntry entry, AtomicLong nEvictions) {
+            entries.add(entry);
+            if (size.incrementAndGet() > cacheSize) {
+                while (size.get() > cacheSize) {
+                    SmallObjectEntry eldestEntry = entries.poll();
+                    if (eldestEntry == null) {
+                        break;
+                    }
+                    if (eldestEntry.release()) {
+                        size.decrementAndGet();
+                        if (eldestEntry.typeCache.remove(eldestEntry.objectKey)) {
+                            nEvictions.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Removes the entries of the given cache from the queue.
+         *
+         * @param typeCache the cache of the entries to remove
+         */
+        public void remove(FifoTypeCache typeCache) {
+            Iterator<SmallObjectEntry> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                SmallObjectEntry entry = iterator.next();
+                if (entry.typeCache == typeCache) {
+                    iterator.remove();
+                    if (entry.release()) {
+                        size.decrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Entry of the small objects queue.
+     */
+    private static class SmallObjectEntry {
+
+        /**
+         * Updater of the released flag of the entries.
+         */
+        private static final AtomicIntegerFieldUpdater<SmallObjectEntry> RELEASED_UPDATER = AtomicIntegerFieldUpdater.newUpdater(SmallObjectEntry.class, "released");
+        /**
+         * The cache containing the object.
+         */
+        private final FifoTypeCache typeCache;
+        /**
+         * The key of the object.
+         */
+        private final String objectKey;
+        /**
+         * Flag indicating whether the entry was removed from the queue, 1 if
+         * removed, 0 otherwise.
+         */
+        private volatile int released = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param typeCache the cache containing the object
+         * @param objectKey the key of the object
+         */
+        public SmallObjectEntry(FifoTypeCache typeCache, String objectKey) {
+            this.typeCache = typeCache;
+            this.objectKey = objectKey;
+        }
+
+        /**
+         * Marks the entry as removed from the queue. Only the first call
+         * returns true so that the entry is not discounted twice when it is
+         * evicted and purged concurrently.
+         *
+         * @return a boolean indicating whether the entry was in the queue
+         */
+        public boolean release() {
+            return RELEASED_UPDATER.compareAndSet(this, 0, 1);
+        }
+    }
+
+    /**
+     * Cache evicting the objects in insertion order together with the other
+     * small object types. Objects are read without locking.
+     */
+    private static class FifoTypeCache extends TypeCache {
+
+        /**
+         * The insertion order of the small objects of all types.
+         */
+        private final SmallObjectsQueue smallObjectsQueue;
+        /**
+         * The counter of evictions.
+         */
+        private final AtomicLong nEvictions;
+        /**
+         * The objects in cache.
+         */
+        private final ConcurrentHashMap<String, Object> objects = new ConcurrentHashMap<String, Object>();
+
+        /**
+         * Constructor.
+         *
+         * @param smallObjectsQueue the insertion order of the small objects
+         * of all types
+         * @param nEvictions the counter of evictions
+         */
+        public FifoTypeCache(SmallObjectsQueue smallObjectsQueue, AtomicLong nEvictions) {
+            this.smallObjectsQueue = smallObjectsQueue;
+            this.nEvictions = nEvictions;
+        }
+
+        @Override
+        public Object get(String objectKey) {
+            return objects.get(objectKey);
+        }
+
+        @Override
+        public void put(String objectKey, Object object) {
+            if (objects.put(objectKey, object) == null) {
+                smallObjectsQueue.add(new SmallObjectEntry(this, objectKey), nEvictions);
+            }
+        }
+
+        /**
+         * Removes an object from the cache.
+         *
+         * @param objectKey the key of the object
+         *
+         * @return a boolean indicating whether the object was in cache
+         */
+        public boolean remove(String objectKey) {
+            return objects.remove(objectKey) != null;
+        }
+
+        @Override
+        public int size() {
+            return objects.size();
+        }
+
+        @Override
+        public HashMap<String, Object> getObjects() {
+            return new HashMap<String, Object>(objects);
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package eu.isas.peptideshaker.utils;
 
+import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.units.MetricsPrefix;
 import com.compomics.util.experiment.biology.AminoAcidPattern;
 import com.compomics.util.experiment.biology.Enzyme;
@@ -28,6 +29,7 @@ import com.compomics.util.math.statistics.distributions.NonSymmetricalNormalDist
 import com.compomics.util.preferences.DigestionPreferences;
 import com.compomics.util.waiting.WaitingHandler;
 import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.ProcessingPreferences;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import eu.isas.peptideshaker.filtering.ProteinFilter;
 import eu.isas.peptideshaker.parameters.PSParameter;
@@ -42,6 +44,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.math.MathException;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
@@ -58,6 +64,10 @@ public class IdentificationFeaturesGenerator {
      * The sequence factory.
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * The protein accession dictionary of the project.
+     */
+    private final ProteinAccessionDictionary accessionDictionary;
     /**
      * The compomics PTM factory.
      */
@@ -70,7 +80,7 @@ public class IdentificationFeaturesGenerator {
      * The identification features cache where the recently accessed
      * identification features are stored
      */
-    private IdentificationFeaturesCache identificationFeaturesCache = new IdentificationFeaturesCache();
+    private IdentificationFeaturesCache identificationFeaturesCache;
     /**
      * The metrics picked-up wile loading the data.
      */
@@ -91,6 +101,10 @@ public class IdentificationFeaturesGenerator {
      * Map of the distributions of precursor mass errors.
      */
     private HashMap<String, NonSymmetricalNormalDistribution> massErrorDistribution = null;
+    /**
+     * The number of threads to use when sorting the proteins.
+     */
+    private int nThreads = Runtime.getRuntime().availableProcessors();
 
     /**
      * Constructor.
@@ -99,13 +113,20 @@ public class IdentificationFeaturesGenerator {
      * @param identificationParameters the identification parameters
      * @param metrics the metrics picked-up wile loading the data
      * @param spectrumCountingPreferences the spectrum counting preferences
+     * @param accessionDictionary the protein accession dictionary of the
+     * project
+     * @param featuresCacheMemory the memory allocated to the big objects of
+     * the identification features cache in MB
      */
     public IdentificationFeaturesGenerator(Identification identification, IdentificationParameters identificationParameters,
-            Metrics metrics, SpectrumCountingPreferences spectrumCountingPreferences) {
+            Metrics metrics, SpectrumCountingPreferences spectrumCountingPreferences, ProteinAccessionDictionary accessionDictionary,
+            int featuresCacheMemory) {
         this.metrics = metrics;
         this.identificationParameters = identificationParameters;
         this.identification = identification;
         this.spectrumCountingPreferences = spectrumCountingPreferences;
+        this.accessionDictionary = accessionDictionary;
+        identificationFeaturesCache = new IdentificationFeaturesCache(featuresCacheMemory);
     }
 
     /**
@@ -757,6 +778,7 @@ public class IdentificationFeaturesGenerator {
         ArrayList<String> result = new ArrayList<String>();
 
         if (digestionPreferences.getCleavagePreference() == DigestionPreferences.CleavagePreference.enzyme) {
+            int[] proteins = accessionDictionary.getGroup(proteinMatchKey);
             // see if we have non-tryptic peptides
             for (String peptideKey : peptideKeys) {
 
@@ -766,8 +788,8 @@ public class IdentificationFeaturesGenerator {
 
                     String peptideSequence = Peptide.getSequence(peptideKey);
                     boolean enzymatic = false;
-                    for (String accession : ProteinMatch.getAccessions(proteinMatchKey)) {
-                        Protein currentProtein = sequenceFactory.getProtein(accession);
+                    for (int protein : proteins) {
+                        Protein currentProtein = sequenceFactory.getProtein(accessionDictionary.getAccession(protein));
                         if (currentProtein.isEnzymaticPeptide(peptideSequence, digestionPreferences.getEnzymes(),
                                 identificationParameters.getSequenceMatchingPreferences())) {
                             enzymatic = true;
@@ -1110,7 +1132,7 @@ public class IdentificationFeaturesGenerator {
                 psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
                 if (psParameter.getMatchValidationLevel().getIndex() >= spectrumCountingPreferences.getMatchValidationLevel()) {
                     String peptideSequence = Peptide.getSequence(peptideKey);
-                    ArrayList<String> possibleProteinMatches = new ArrayList<String>();
+                    HashSet<String> possibleProteinMatches = new HashSet<String>();
 
                     for (String protein : peptideMatch.getTheoreticPeptide().getParentProteins(sequenceMatchingPreferences)) {
                         if (identification.getProteinMap().get(protein) != null) {
@@ -1296,7 +1318,7 @@ public class IdentificationFeaturesGenerator {
             return 1.0;
         }
         String mainMatch;
-        if (ProteinMatch.getNProteins(proteinMatchKey) == 1) {
+        if (accessionDictionary.getGroup(proteinMatchKey).length == 1) {
             mainMatch = proteinMatchKey;
         } else {
             ProteinMatch proteinMatch = identification.getProteinMatch(proteinMatchKey);
@@ -1358,7 +1380,7 @@ public class IdentificationFeaturesGenerator {
         identification.loadProteinMatchParameters(new ArrayList<String>(identification.getProteinIdentification()), probabilities, null, false);
 
         for (String proteinKey : identification.getProteinIdentification()) {
-            if (!ProteinMatch.isDecoy(proteinKey)) {
+            if (!accessionDictionary.isDecoy(proteinKey)) {
                 probabilities = (PSParameter) identification.getProteinMatchParameter(proteinKey, probabilities);
                 if (probabilities.getMatchValidationLevel().isValidated()) {
                     cpt++;
@@ -1417,7 +1439,7 @@ public class IdentificationFeaturesGenerator {
         identification.loadProteinMatchParameters(new ArrayList<String>(identification.getProteinIdentification()), probabilities, null, false);
 
         for (String proteinKey : identification.getProteinIdentification()) {
-            if (!ProteinMatch.isDecoy(proteinKey)) {
+            if (!accessionDictionary.isDecoy(proteinKey)) {
                 probabilities = (PSParameter) identification.getProteinMatchParameter(proteinKey, probabilities);
                 if (probabilities.getMatchValidationLevel() == MatchValidationLevel.confident) {
                     cpt++;
@@ -2392,6 +2414,22 @@ public class IdentificationFeaturesGenerator {
         identificationFeaturesCache.removeObjects(IdentificationFeaturesCache.ObjectType.spectrum_counting);
     }
 
+    /**
+     * Clears the features depending on the validation of the matches from the
+     * cache.
+     */
+    public void clearValidationDependentFeatures() {
+        identificationFeaturesCache.removeObjects(IdentificationFeaturesCache.ObjectType.sequence_coverage);
+        identificationFeaturesCache.removeObjects(IdentificationFeaturesCache.ObjectType.sequence_validation_coverage);
+        identificationFeaturesCache.removeObjects(IdentificationFeaturesCache.ObjectType.spectrum_counting);
+        identificationFeaturesCache.removeObjects(IdentificationFeaturesCache.ObjectType.number_of_validated_spectra);
+        identificationFeaturesCache.removeObjects(IdentificationFeaturesCache.ObjectType.number_of_confident_spectra);
+        identificationFeaturesCache.removeObjects(IdentificationFeaturesCache.ObjectType.number_of_validated_peptides);
+        identificationFeaturesCache.removeObjects(IdentificationFeaturesCache.ObjectType.number_of_confident_peptides);
+        identificationFeaturesCache.removeObjects(IdentificationFeaturesCache.ObjectType.unique_validated_peptides);
+        identificationFeaturesCache.removeObjects(IdentificationFeaturesCache.ObjectType.unique_validated_peptides_group);
+    }
+
     /**
      * Returns a summary of all PTMs present on the sequence confidently
      * assigned to an amino acid. Example: SEQVEM&lt;mox&gt;CE gives Oxidation
@@ -2882,90 +2920,42 @@ public class IdentificationFeaturesGenerator {
                     || metrics.getMaxMW() == null
                     || metrics.getMaxMW() <= 0;
 
-            // sort the proteins according to the protein score, then number of peptides (inverted), then number of spectra (inverted).
-            HashMap<Double, HashMap<Integer, HashMap<Integer, ArrayList<String>>>> orderMap
-                    = new HashMap<Double, HashMap<Integer, HashMap<Integer, ArrayList<String>>>>();
-            ArrayList<Double> scores = new ArrayList<Double>();
-            PSParameter probabilities = new PSParameter();
-            int maxPeptides = 0, maxSpectra = 0;
-            double maxSpectrumCounting = 0, maxMW = 0;
-            int nValidatedProteins = 0;
-            int nConfidentProteins = 0;
-
+            // gather the protein score, number of peptides and number of spectra of the target proteins in parallel
+            int nProteins = identification.getProteinIdentification().size();
+            ProteinSortingData sortingData = new ProteinSortingData(nProteins);
             PSParameter psParameter = new PSParameter();
             ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
             parameters.add(psParameter);
             ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, true, parameters, true, parameters, waitingHandler);
-            ProteinMatch proteinMatch;
-
-            while ((proteinMatch = proteinMatchesIterator.next()) != null) {
-
-                String proteinKey = proteinMatch.getKey();
-
-                if (!ProteinMatch.isDecoy(proteinKey)) {
-                    probabilities = (PSParameter) identification.getProteinMatchParameter(proteinKey, probabilities);
-                    if (!probabilities.isHidden()) {
-                        double score = probabilities.getProteinProbabilityScore();
-                        int nPeptides = -proteinMatch.getPeptideMatchesKeys().size();
-                        int nSpectra = -getNSpectra(proteinKey);
-
-                        if (needMaxValues) {
-
-                            if (-nPeptides > maxPeptides) {
-                                maxPeptides = -nPeptides;
-                            }
-
-                            if (-nSpectra > maxSpectra) {
-                                maxSpectra = -nSpectra;
-                            }
-
-                            double tempSpectrumCounting = getNormalizedSpectrumCounting(proteinKey);
-
-                            if (tempSpectrumCounting > maxSpectrumCounting) {
-                                maxSpectrumCounting = tempSpectrumCounting;
-                            }
-
-                            Protein currentProtein = sequenceFactory.getProtein(proteinMatch.getMainMatch());
-
-                            if (currentProtein != null) {
-                                double mw = sequenceFactory.computeMolecularWeight(proteinMatch.getMainMatch());
-                                if (mw > maxMW) {
-                                    maxMW = mw;
-                                }
-                            }
-
-                            if (probabilities.getMatchValidationLevel().isValidated()) {
-                                nValidatedProteins++;
-                                if (probabilities.getMatchValidationLevel() == MatchValidationLevel.confident) {
-                                    nConfidentProteins++;
-                                }
-                            }
-                        }
-
-                        if (!orderMap.containsKey(score)) {
-                            orderMap.put(score, new HashMap<Integer, HashMap<Integer, ArrayList<String>>>());
-                            scores.add(score);
-                        }
 
-                        if (!orderMap.get(score).containsKey(nPeptides)) {
-                            orderMap.get(score).put(nPeptides, new HashMap<Integer, ArrayList<String>>());
-                        }
-
-                        if (!orderMap.get(score).get(nPeptides).containsKey(nSpectra)) {
-                            orderMap.get(score).get(nPeptides).put(nSpectra, new ArrayList<String>());
-                        }
-
-                        orderMap.get(score).get(nPeptides).get(nSpectra).add(proteinKey);
-                    }
-                }
+            ArrayList<ProteinSortingRunnable> runnables = new ArrayList<ProteinSortingRunnable>(nThreads);
+            ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+            for (int i = 1; i <= nThreads; i++) {
+                ProteinSortingRunnable runnable = new ProteinSortingRunnable(proteinMatchesIterator, sortingData, needMaxValues, waitingHandler);
+                pool.submit(runnable);
+                runnables.add(runnable);
+            }
+            pool.shutdown();
+            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+                throw new InterruptedException("Protein sorting timed out. Please contact the developers.");
+            }
 
-                if (waitingHandler != null) {
-                    waitingHandler.increaseSecondaryProgressCounter();
+            int maxPeptides = 0, maxSpectra = 0;
+            double maxSpectrumCounting = 0, maxMW = 0;
+            int nValidatedProteins = 0;
+            int nConfidentProteins = 0;
+            for (ProteinSortingRunnable runnable : runnables) {
+                runnable.throwException();
+                maxPeptides = Math.max(maxPeptides, runnable.maxPeptides);
+                maxSpectra = Math.max(maxSpectra, runnable.maxSpectra);
+                maxSpectrumCounting = Math.max(maxSpectrumCounting, runnable.maxSpectrumCounting);
+                maxMW = Math.max(maxMW, runnable.maxMW);
+                nValidatedProteins += runnable.nValidatedProteins;
+                nConfidentProteins += runnable.nConfidentProteins;
+            }
 
-                    if (waitingHandler.isRunCanceled()) {
-                        return null;
-                    }
-                }
+            if (waitingHandler != null && waitingHandler.isRunCanceled()) {
+                return null;
             }
 
             if (needMaxValues) {
@@ -2977,41 +2967,14 @@ public class IdentificationFeaturesGenerator {
                 metrics.setnConfidentProteins(nConfidentProteins);
             }
 
-            ArrayList<String> proteinList = new ArrayList<String>();
-
-            ArrayList<Double> scoreList = new ArrayList<Double>(orderMap.keySet());
-            Collections.sort(scoreList);
-
             if (waitingHandler != null) {
                 waitingHandler.resetSecondaryProgressCounter();
                 waitingHandler.setWaitingText("Updating Protein Table. Please Wait...");
                 waitingHandler.setMaxSecondaryProgressCounter(identification.getProteinIdentification().size());
             }
 
-            for (double currentScore : scoreList) {
-
-                ArrayList<Integer> nPeptideList = new ArrayList<Integer>(orderMap.get(currentScore).keySet());
-                Collections.sort(nPeptideList);
-
-                for (int currentNPeptides : nPeptideList) {
-
-                    ArrayList<Integer> nPsmList = new ArrayList<Integer>(orderMap.get(currentScore).get(currentNPeptides).keySet());
-                    Collections.sort(nPsmList);
-
-                    for (int currentNPsms : nPsmList) {
-                        ArrayList<String> tempList = orderMap.get(currentScore).get(currentNPeptides).get(currentNPsms);
-                        Collections.sort(tempList);
-                        proteinList.addAll(tempList);
-                        if (waitingHandler != null) {
-                            waitingHandler.setMaxSecondaryProgressCounter(tempList.size());
-
-                            if (waitingHandler.isRunCanceled()) {
-                                return null;
-                            }
-                        }
-                    }
-                }
-            }
+            // sort the proteins according to the protein score, then number of peptides (inverted), then number of spectra (inverted), then key.
+            ArrayList<String> proteinList = sortingData.getSortedKeys();
 
             identificationFeaturesCache.setProteinList(proteinList);
 
@@ -3032,7 +2995,7 @@ public class IdentificationFeaturesGenerator {
             int nConfidentProteins = 0;
 
             for (String proteinKey : identificationFeaturesCache.getProteinList()) {
-                if (!ProteinMatch.isDecoy(proteinKey)) {
+                if (!accessionDictionary.isDecoy(proteinKey)) {
                     psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
                     if (!psParameter.isHidden()) {
                         proteinListAfterHiding.add(proteinKey);
@@ -3064,6 +3027,15 @@ public class IdentificationFeaturesGenerator {
         return identificationFeaturesCache.getProteinListAfterHiding();
     }
 
+    /**
+     * Sets the number of threads to use when sorting the proteins.
+     *
+     * @param nThreads the number of threads to use
+     */
+    public void setnThreads(int nThreads) {
+        this.nThreads = nThreads;
+    }
+
     /**
      * Returns the ordered protein keys to display when no filtering is applied.
      *
@@ -3334,6 +3306,45 @@ public class IdentificationFeaturesGenerator {
         this.identificationFeaturesCache = identificationFeaturesCache;
     }
 
+    /**
+     * Computes the number of spectra, number of validated peptides, number of
+     * unique peptides, spectrum counting, validated sequence coverage and
+     * observable coverage of all proteins and stores them in the table of
+     * protein features of the cache. To be called after validation.
+     *
+     * @param processingPreferences the processing preferences
+     * @param waitingHandler a waiting handler to display progress and allow
+     * canceling the process
+     * @param exceptionHandler handler for exceptions
+     *
+     * @throws java.lang.InterruptedException exception thrown if a threading
+     * error occurred while computing the features
+     */
+    public void computeProteinFeatures(ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws InterruptedException {
+
+        ProteinFeaturesTable proteinFeaturesTable = new ProteinFeaturesTable(identification.getProteinIdentification());
+
+        waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+        waitingHandler.setMaxSecondaryProgressCounter(proteinFeaturesTable.getnProteins());
+
+        AtomicInteger proteinIndex = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+            ProteinFeaturesRunnable runnable = new ProteinFeaturesRunnable(proteinFeaturesTable, proteinIndex, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Protein features computation timed out. Please contact the developers.");
+        }
+
+        if (!waitingHandler.isRunCanceled()) {
+            identificationFeaturesCache.setProteinFeaturesTable(proteinFeaturesTable);
+        }
+
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+    }
+
     /**
      * Returns the metrics.
      *
@@ -3403,4 +3414,376 @@ public class IdentificationFeaturesGenerator {
         }
         return nValidated;
     }
+
+    /**
+     * Runnable computing the features of the proteins of a protein features
+     * table.
+     *
+     * @author Marc Vaudel
+     */
+    private class ProteinFeaturesRunnable implements Runnable {
+
+        /**
+         * The table where to store the features.
+         */
+        private final ProteinFeaturesTable proteinFeaturesTable;
+        /**
+         * The index of the next protein to process, shared between the
+         * runnables.
+         */
+        private final AtomicInteger proteinIndex;
+        /**
+         * The waiting handler.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private final ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param proteinFeaturesTable the table where to store the features
+         * @param proteinIndex the index of the next protein to process
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public ProteinFeaturesRunnable(ProteinFeaturesTable proteinFeaturesTable, AtomicInteger proteinIndex, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.proteinFeaturesTable = proteinFeaturesTable;
+            this.proteinIndex = proteinIndex;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int nProteins = proteinFeaturesTable.getnProteins();
+                int index;
+                while ((index = proteinIndex.getAndIncrement()) < nProteins && !waitingHandler.isRunCanceled()) {
+                    String proteinKey = proteinFeaturesTable.getProteinKey(index);
+                    proteinFeaturesTable.setValue(IdentificationFeaturesCache.ObjectType.number_of_spectra, index, estimateNSpectra(proteinKey));
+                    proteinFeaturesTable.setValue(IdentificationFeaturesCache.ObjectType.number_of_validated_peptides, index, estimateNValidatedPeptides(proteinKey));
+                    proteinFeaturesTable.setValue(IdentificationFeaturesCache.ObjectType.unique_peptides, index, estimateNUniquePeptides(proteinKey));
+                    proteinFeaturesTable.setValue(IdentificationFeaturesCache.ObjectType.spectrum_counting, index, estimateSpectrumCounting(proteinKey));
+                    proteinFeaturesTable.setValue(IdentificationFeaturesCache.ObjectType.sequence_coverage, index, estimateValidatedSequenceCoverage(proteinKey));
+                    proteinFeaturesTable.setValue(IdentificationFeaturesCache.ObjectType.expected_coverage, index, estimateObservableCoverage(proteinKey));
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+    }
+
+    /**
+     * The data used to sort the proteins stored in primitive arrays. Every
+     * protein gets a slot in the arrays, so that the data can be filled by
+     * different threads.
+     */
+    static class ProteinSortingData {
+
+        /**
+         * The index of the next free slot.
+         */
+        private final AtomicInteger nextSlot = new AtomicInteger();
+        /**
+         * The protein keys.
+         */
+        private final String[] keys;
+        /**
+         * The protein scores.
+         */
+        private final double[] scores;
+        /**
+         * The number of peptides.
+         */
+        private final int[] nPeptides;
+        /**
+         * The number of spectra.
+         */
+        private final int[] nSpectra;
+
+        /**
+         * Constructor.
+         *
+         * @param nProteins the maximal number of proteins
+         */
+        public ProteinSortingData(int nProteins) {
+            keys = new String[nProteins];
+            scores = new double[nProteins];
+            nPeptides = new int[nProteins];
+            nSpectra = new int[nProteins];
+        }
+
+        /**
+         * Adds a protein.
+         *
+         * @param key the key of the protein
+         * @param score the protein score
+         * @param nPeptides the number of peptides
+         * @param nSpectra the number of spectra
+         */
+        public void add(String key, double score, int nPeptides, int nSpectra) {
+            int slot = nextSlot.getAndIncrement();
+            keys[slot] = key;
+            scores[slot] = score;
+            this.nPeptides[slot] = nPeptides;
+            this.nSpectra[slot] = nSpectra;
+        }
+
+        /**
+         * Returns the keys of the proteins sorted by increasing score, then
+         * decreasing number of peptides, then decreasing number of spectra,
+         * then key.
+         *
+         * @return the sorted protein keys
+         */
+        public ArrayList<String> getSortedKeys() {
+            int nProteins = nextSlot.get();
+            int[] indexes = new int[nProteins];
+            for (int i = 0; i < nProteins; i++) {
+                indexes[i] = i;
+            }
+            sort(indexes, new int[nProteins], 0, nProteins);
+            ArrayList<String> result = new ArrayList<String>(nProteins);
+            for (int index : indexes) {
+                result.add(keys[index]);
+            }
+            return result;
+        }
+
+        /**
+         * Sorts the given range of protein indexes using a merge sort.
+         *
+         * @param indexes the protein indexes
+         * @param buffer a buffer of the size of the indexes array
+         * @param from the first index of the range, inclusive
+         * @param to the last index of the range, exclusive
+         */
+        private void sort(int[] indexes, int[] buffer, int from, int to) {
+            if (to - from < 8) {
+                for (int i = from + 1; i < to; i++) {
+                    int index = indexes[i];
+                    int j = i - 1;
+                    while (j >= from && compare(indexes[j], index) > 0) {
+                        indexes[j + 1] = indexes[j];
+                        j--;
+                    }
+                    indexes[j + 1] = index;
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            sort(indexes, buffer, from, middle);
+            sort(indexes, buffer, middle, to);
+            if (compare(indexes[middle - 1], indexes[middle]) <= 0) {
+                return;
+            }
+            System.arraycopy(indexes, from, buffer, from, to - from);
+            int i = from, j = middle;
+            for (int k = from; k < to; k++) {
+                if (j >= to || i < middle && compare(buffer[i], buffer[j]) <= 0) {
+                    indexes[k] = buffer[i++];
+                } else {
+                    indexes[k] = buffer[j++];
+                }
+            }
+        }
+
+        /**
+         * Compares two proteins by increasing score, then decreasing number
+         * of peptides, then decreasing number of spectra, then key.
+         *
+         * @param i1 the index of the first protein
+         * @param i2 the index of the second protein
+         *
+         * @return a negative integer, zero, or a positive integer as the first
+         * protein is before, equal to, or after the second protein
+         */
+        private int compare(int i1, int i2) {
+            int result = Double.compare(scores[i1], scores[i2]);
+            if (result != 0) {
+                return result;
+            }
+            if (nPeptides[i1] != nPeptides[i2]) {
+                return nPeptides[i1] > nPeptides[i2] ? -1 : 1;
+            }
+            if (nSpectra[i1] != nSpectra[i2]) {
+                return nSpectra[i1] > nSpectra[i2] ? -1 : 1;
+            }
+            return keys[i1].compareTo(keys[i2]);
+        }
+    }
+
+    /**
+     * Runnable gathering the data needed to sort the proteins and the maximal
+     * values of the protein features.
+     *
+     * @author Marc Vaudel
+     */
+    private class ProteinSortingRunnable implements Runnable {
+
+        /**
+         * The iterator of the protein matches, shared between the runnables.
+         */
+        private final ProteinMatchesIterator proteinMatchesIterator;
+        /**
+         * The data used to sort the proteins.
+         */
+        private final ProteinSortingData sortingData;
+        /**
+         * Boolean indicating whether the maximal values should be gathered.
+         */
+        private final boolean needMaxValues;
+        /**
+         * The waiting handler, can be null.
+         */
+        private final WaitingHandler waitingHandler;
+        /**
+         * The maximal number of peptides found by this runnable.
+         */
+        private int maxPeptides = 0;
+        /**
+         * The maximal number of spectra found by this runnable.
+         */
+        private int maxSpectra = 0;
+        /**
+         * The maximal spectrum counting found by this runnable.
+         */
+        private double maxSpectrumCounting = 0;
+        /**
+         * The maximal molecular weight found by this runnable.
+         */
+        private double maxMW = 0;
+        /**
+         * The number of validated proteins found by this runnable.
+         */
+        private int nValidatedProteins = 0;
+        /**
+         * The number of confident proteins found by this runnable.
+         */
+        private int nConfidentProteins = 0;
+        /**
+         * The exception encountered by this runnable, null if none.
+         */
+        private Exception exception = null;
+
+        /**
+         * Constructor.
+         *
+         * @param proteinMatchesIterator the iterator of the protein matches
+         * @param sortingData the data used to sort the proteins
+         * @param needMaxValues boolean indicating whether the maximal values
+         * should be gathered
+         * @param waitingHandler the waiting handler, can be null
+         */
+        public ProteinSortingRunnable(ProteinMatchesIterator proteinMatchesIterator, ProteinSortingData sortingData, boolean needMaxValues, WaitingHandler waitingHandler) {
+            this.proteinMatchesIterator = proteinMatchesIterator;
+            this.sortingData = sortingData;
+            this.needMaxValues = needMaxValues;
+            this.waitingHandler = waitingHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                PSParameter probabilities = new PSParameter();
+                ProteinMatch proteinMatch;
+
+                while ((proteinMatch = proteinMatchesIterator.next()) != null) {
+
+                    String proteinKey = proteinMatch.getKey();
+
+                    if (!accessionDictionary.isDecoy(proteinKey)) {
+                        probabilities = (PSParameter) identification.getProteinMatchParameter(proteinKey, probabilities);
+                        if (!probabilities.isHidden()) {
+                            int nPeptides = proteinMatch.getPeptideMatchesKeys().size();
+                            int nSpectra = getNSpectra(proteinKey);
+
+                            if (needMaxValues) {
+
+                                if (nPeptides > maxPeptides) {
+                                    maxPeptides = nPeptides;
+                                }
+
+                                if (nSpectra > maxSpectra) {
+                                    maxSpectra = nSpectra;
+                                }
+
+                                double tempSpectrumCounting = getNormalizedSpectrumCounting(proteinKey);
+
+                                if (tempSpectrumCounting > maxSpectrumCounting) {
+                                    maxSpectrumCounting = tempSpectrumCounting;
+                                }
+
+                                Protein currentProtein = sequenceFactory.getProtein(proteinMatch.getMainMatch());
+
+                                if (currentProtein != null) {
+                                    double mw = sequenceFactory.computeMolecularWeight(proteinMatch.getMainMatch());
+                                    if (mw > maxMW) {
+                                        maxMW = mw;
+                                    }
+                                }
+
+                                if (probabilities.getMatchValidationLevel().isValidated()) {
+                                    nValidatedProteins++;
+                                    if (probabilities.getMatchValidationLevel() == MatchValidationLevel.confident) {
+                                        nConfidentProteins++;
+                                    }
+                                }
+                            }
+
+                            sortingData.add(proteinKey, probabilities.getProteinProbabilityScore(), nPeptides, nSpectra);
+                        }
+                    }
+
+                    if (waitingHandler != null) {
+                        waitingHandler.increaseSecondaryProgressCounter();
+
+                        if (waitingHandler.isRunCanceled()) {
+                            return;
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                exception = e;
+                if (waitingHandler != null) {
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+
+        /**
+         * Throws the exception encountered by this runnable if any.
+         *
+         * @throws java.sql.SQLException exception thrown whenever an error
+         * occurred while interacting with a database
+         * @throws java.io.IOException exception thrown whenever an error
+         * occurred while reading or writing a file
+         * @throws java.lang.ClassNotFoundException exception thrown whenever
+         * an error occurred while deserializing an object from a database
+         * @throws java.lang.InterruptedException exception thrown whenever a
+         * threading error occurred while interacting with a database
+         */
+        public void throwException() throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+            if (exception == null) {
+                return;
+            } else if (exception instanceof SQLException) {
+                throw (SQLException) exception;
+            } else if (exception instanceof IOException) {
+                throw (IOException) exception;
+            } else if (exception instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) exception;
+            } else if (exception instanceof InterruptedException) {
+                throw (InterruptedException) exception;
+            } else if (exception instanceof RuntimeException) {
+                throw (RuntimeException) exception;
+            }
+            throw new IllegalArgumentException(exception);
+        }
+    }
 }
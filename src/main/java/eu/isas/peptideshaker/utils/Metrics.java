@@ -113,8 +113,8 @@ public class Metrics implements Serializable {
      */
     private NonSymmetricalNormalDistribution peptideLengthDistribution = null;
     /**
-     * Map of the spectrum keys grouped per peptide. Spectrum file name &gt;
-     * list of keys.
+     * Map of the spectrum keys in the order used by the PSM processing steps.
+     * Spectrum file name &gt; list of keys.
      */
     private HashMap<String, ArrayList<String>> orderedSpectrumKeys;
     /**
@@ -571,25 +571,26 @@ public class Metrics implements Serializable {
     }
 
     /**
-     * Returns the spectrum keys grouped per peptide. 
+     * Returns the spectrum keys in the order used by the PSM processing steps,
+     * null if not set.
      *
-     * @return the grouped spectrum keys
+     * @return the ordered spectrum keys
      */
     public HashMap<String, ArrayList<String>> getOrderedSpectrumKeys() {
         return orderedSpectrumKeys;
     }
 
     /**
-     * Sets the grouped spectrum keys.
+     * Sets the spectrum keys in the order used by the PSM processing steps.
      *
-     * @param orderedSpectrumKeys the grouped spectrum keys
+     * @param orderedSpectrumKeys the ordered spectrum keys
      */
     public void setOrderedSpectrumKeys(HashMap<String, ArrayList<String>> orderedSpectrumKeys) {
         this.orderedSpectrumKeys = orderedSpectrumKeys;
     }
 
     /**
-     * Removes the grouped spectrum keys from the Metrics.
+     * Removes the ordered spectrum keys from the Metrics.
      */
     public void clearSpectrumKeys() {
         if (orderedSpectrumKeys != null) {
@@ -0,0 +1,518 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.Util;
+import com.compomics.util.db.ObjectsCache;
+import com.compomics.util.experiment.MsExperiment;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.io.ExperimentIO;
+import com.compomics.util.io.SerializationUtils;
+import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.waiting.WaitingHandler;
+import eu.isas.peptideshaker.preferences.ProjectDetails;
+import eu.isas.peptideshaker.scoring.PSMaps;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Checkpoint of the processing of the identifications. The checkpoint is saved
+ * in the matches folder after the most expensive processing steps together
+ * with a copy of the identification database, allowing an interrupted
+ * processing to resume from the last saved step when rerun on the same input.
+ *
+ * @author Marc Vaudel
+ */
+public class ProcessingCheckpoint implements Serializable {
+
+    /**
+     * Serial number for backward compatibility.
+     */
+    static final long serialVersionUID = -3870256127409162735L;
+    /**
+     * The name of the folder where the checkpoint is stored in the matches
+     * folder.
+     */
+    public static final String CHECKPOINT_FOLDER_NAME = "checkpoint";
+    /**
+     * The name of the folder where the checkpoint is written before replacing
+     * the previous one.
+     */
+    public static final String TEMP_CHECKPOINT_FOLDER_NAME = "checkpoint_temp";
+    /**
+     * The name of the folder containing the copy of the database in the
+     * checkpoint folder.
+     */
+    private static final String DATABASE_FOLDER_NAME = "db";
+    /**
+     * The name of the file containing the checkpoint in the checkpoint folder.
+     */
+    private static final String CHECKPOINT_FILE_NAME = "processing.checkpoint";
+
+    /**
+     * The processing steps, in the order of the processing. Since a checkpoint
+     * copies the whole database, checkpoints are only saved after the steps
+     * which take long compared to the copy. No checkpoint is saved after the
+     * computation of the protein features: it is the last step and its results
+     * are kept in the features cache, which is saved with the project.
+     */
+    public enum Stage {
+
+        /**
+         * Import of the identification files.
+         */
+        IMPORT("file import", true),
+        /**
+         * Scoring of the PSMs and estimation of the assumptions probabilities.
+         */
+        PSM_SCORING("PSM scoring", false),
+        /**
+         * Selection of the best hit per spectrum and estimation of the PSM
+         * probabilities.
+         */
+        BEST_HIT_SELECTION("best hit selection", false),
+        /**
+         * Scoring of the PTMs in PSMs and peptide inference.
+         */
+        PTM_SCORING("PTM scoring", true),
+        /**
+         * Building of the peptide and protein maps.
+         */
+        PEPTIDE_PROTEIN_MAPS("peptide and protein maps", true),
+        /**
+         * Validation of the matches.
+         */
+        VALIDATION("validation", false),
+        /**
+         * Scoring of the PTMs in peptides.
+         */
+        PEPTIDE_PTM_SCORING("peptide PTM scoring", false),
+        /**
+         * Scoring of the PTMs in proteins.
+         */
+        PROTEIN_PTM_SCORING("protein PTM scoring", true);
+
+        /**
+         * The description of the step.
+         */
+        public final String description;
+        /**
+         * Indicates whether a checkpoint is saved after this step.
+         */
+        public final boolean checkpoint;
+
+        /**
+         * Constructor.
+         *
+         * @param description the description of the step
+         * @param checkpoint boolean indicating whether a checkpoint is saved
+         * after this step
+         */
+        private Stage(String description, boolean checkpoint) {
+            this.description = description;
+            this.checkpoint = checkpoint;
+        }
+    }
+
+    /**
+     * Description of the input files: path, size and modification date.
+     */
+    private ArrayList<String> inputFiles;
+    /**
+     * The identification parameters as given before the import.
+     */
+    private IdentificationParameters identificationParameters;
+    /**
+     * The last completed processing step.
+     */
+    private Stage stage;
+    /**
+     * The PeptideShaker maps.
+     */
+    private PSMaps psMaps;
+    /**
+     * Map of proteins found several times with the number of times they
+     * appeared as first hit.
+     */
+    private HashMap<String, Integer> proteinCount;
+    /**
+     * The metrics of the dataset.
+     */
+    private Metrics metrics;
+    /**
+     * The project details filled during the import.
+     */
+    private ProjectDetails projectDetails;
+    /**
+     * The experiment restored from the checkpoint.
+     */
+    private transient MsExperiment experiment;
+    /**
+     * The folder where the checkpoint was loaded from.
+     */
+    private transient File folder;
+
+    /**
+     * Constructor.
+     *
+     * @param idFiles the identification files to process
+     * @param spectrumFiles the spectrum files to process
+     * @param identificationParameters the identification parameters
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * copying the identification parameters
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while copying the identification parameters
+     */
+    public ProcessingCheckpoint(ArrayList<File> idFiles, ArrayList<File> spectrumFiles, IdentificationParameters identificationParameters) throws IOException, ClassNotFoundException {
+
+        inputFiles = new ArrayList<String>(idFiles.size() + spectrumFiles.size() + 1);
+        for (File file : idFiles) {
+            inputFiles.add(getFileDescription(file));
+        }
+        for (File file : spectrumFiles) {
+            inputFiles.add(getFileDescription(file));
+        }
+        Collections.sort(inputFiles);
+        File fastaFile = identificationParameters.getSearchParameters().getFastaFile();
+        if (fastaFile != null) {
+            inputFiles.add(getFileDescription(fastaFile));
+        }
+
+        // keep a copy, the parameters can be modified during the processing
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
+        try {
+            objectOutputStream.writeObject(identificationParameters);
+        } finally {
+            objectOutputStream.close();
+        }
+        ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        try {
+            this.identificationParameters = (IdentificationParameters) objectInputStream.readObject();
+        } finally {
+            objectInputStream.close();
+        }
+    }
+
+    /**
+     * Returns a description of a file allowing the detection of changes
+     * between two runs.
+     *
+     * @param file the file
+     *
+     * @return a description of the file
+     */
+    private static String getFileDescription(File file) {
+        return file.getAbsolutePath() + "_" + file.length() + "_" + file.lastModified();
+    }
+
+    /**
+     * Indicates whether this checkpoint was saved for the same input as the
+     * given checkpoint.
+     *
+     * @param otherCheckpoint the other checkpoint
+     *
+     * @return a boolean indicating whether this checkpoint was saved for the
+     * same input as the given checkpoint
+     */
+    public boolean isCompatible(ProcessingCheckpoint otherCheckpoint) {
+        return inputFiles.equals(otherCheckpoint.inputFiles)
+                && identificationParameters.equals(otherCheckpoint.identificationParameters);
+    }
+
+    /**
+     * Saves the checkpoint in the given matches folder. The objects in cache
+     * are saved, the connection to the database is closed while the database
+     * is copied, and restored afterwards. The previous checkpoint is replaced
+     * only once the new one is completely written.
+     *
+     * @param matchesFolder the matches folder containing the database
+     * @param stage the last completed processing step
+     * @param experiment the experiment
+     * @param identification the identification
+     * @param objectsCache the objects cache
+     * @param waitingHandler a waiting handler displaying progress to the user
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the checkpoint
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object
+     * @throws InterruptedException exception thrown whenever a threading error
+     * occurred while interacting with the database
+     */
+    public void save(File matchesFolder, Stage stage, MsExperiment experiment, Identification identification, ObjectsCache objectsCache, WaitingHandler waitingHandler)
+            throws IOException, SQLException, ClassNotFoundException, InterruptedException {
+
+        File tempFolder = new File(matchesFolder, TEMP_CHECKPOINT_FOLDER_NAME);
+        if (tempFolder.exists() && !Util.deleteDir(tempFolder)) {
+            throw new IOException("Impossible to delete the temporary checkpoint folder " + tempFolder.getAbsolutePath() + ".");
+        }
+        File databaseFolder = new File(tempFolder, DATABASE_FOLDER_NAME);
+        if (!databaseFolder.mkdirs()) {
+            throw new IOException("Impossible to create the checkpoint folder " + databaseFolder.getAbsolutePath() + ".");
+        }
+
+        objectsCache.saveCache(waitingHandler, false);
+        objectsCache.setReadOnly(true);
+
+        try {
+            identification.close();
+            for (File file : matchesFolder.listFiles()) {
+                if (!isCheckpointFile(file)) {
+                    copy(file, new File(databaseFolder, file.getName()));
+                }
+            }
+            ExperimentIO.save(new File(tempFolder, MsExperiment.experimentObjectName), experiment);
+        } finally {
+            objectsCache.setReadOnly(false);
+            if (!identification.isConnectionActive()) {
+                identification.restoreConnection(matchesFolder.getAbsolutePath(), false, objectsCache);
+            }
+        }
+
+        this.stage = stage;
+        SerializationUtils.writeObject(this, new File(tempFolder, CHECKPOINT_FILE_NAME));
+
+        File checkpointFolder = new File(matchesFolder, CHECKPOINT_FOLDER_NAME);
+        if (checkpointFolder.exists() && !Util.deleteDir(checkpointFolder)) {
+            throw new IOException("Impossible to delete the previous checkpoint " + checkpointFolder.getAbsolutePath() + ".");
+        }
+        if (!tempFolder.renameTo(checkpointFolder)) {
+            throw new IOException("Impossible to move the checkpoint to " + checkpointFolder.getAbsolutePath() + ".");
+        }
+    }
+
+    /**
+     * Loads the checkpoint saved in the given matches folder. Returns null if
+     * no complete checkpoint is found.
+     *
+     * @param matchesFolder the matches folder
+     *
+     * @return the checkpoint saved in the given matches folder
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the checkpoint
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing the checkpoint
+     */
+    public static ProcessingCheckpoint load(File matchesFolder) throws IOException, ClassNotFoundException {
+
+        File checkpointFolder = new File(matchesFolder, CHECKPOINT_FOLDER_NAME);
+        File checkpointFile = new File(checkpointFolder, CHECKPOINT_FILE_NAME);
+
+        if (!checkpointFile.exists()) {
+
+            // the processing might have been interrupted while replacing the previous checkpoint
+            checkpointFolder = new File(matchesFolder, TEMP_CHECKPOINT_FOLDER_NAME);
+            checkpointFile = new File(checkpointFolder, CHECKPOINT_FILE_NAME);
+
+            if (!checkpointFile.exists()) {
+                return null;
+            }
+        }
+
+        ProcessingCheckpoint checkpoint = (ProcessingCheckpoint) SerializationUtils.readObject(checkpointFile);
+        checkpoint.experiment = ExperimentIO.loadExperiment(new File(checkpointFolder, MsExperiment.experimentObjectName));
+        checkpoint.folder = checkpointFolder;
+
+        return checkpoint;
+    }
+
+    /**
+     * Replaces the database in the given matches folder by the copy saved in
+     * the checkpoint.
+     *
+     * @param matchesFolder the matches folder
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * copying the database
+     */
+    public void restoreDatabase(File matchesFolder) throws IOException {
+
+        for (File file : matchesFolder.listFiles()) {
+            if (!isCheckpointFile(file) && !Util.deleteDir(file)) {
+                throw new IOException("Impossible to delete " + file.getAbsolutePath() + ".");
+            }
+        }
+
+        File databaseFolder = new File(folder, DATABASE_FOLDER_NAME);
+        for (File file : databaseFolder.listFiles()) {
+            copy(file, new File(matchesFolder, file.getName()));
+        }
+    }
+
+    /**
+     * Deletes the checkpoint saved in the given matches folder if any.
+     *
+     * @param matchesFolder the matches folder
+     */
+    public static void delete(File matchesFolder) {
+        File checkpointFolder = new File(matchesFolder, CHECKPOINT_FOLDER_NAME);
+        if (checkpointFolder.exists()) {
+            Util.deleteDir(checkpointFolder);
+        }
+        File tempFolder = new File(matchesFolder, TEMP_CHECKPOINT_FOLDER_NAME);
+        if (tempFolder.exists()) {
+            Util.deleteDir(tempFolder);
+        }
+    }
+
+    /**
+     * Indicates whether the given file of the matches folder belongs to the
+     * checkpoint.
+     *
+     * @param file the file
+     *
+     * @return a boolean indicating whether the given file belongs to the
+     * checkpoint
+     */
+    public static boolean isCheckpointFile(File file) {
+        String fileName = file.getName();
+        return fileName.equals(CHECKPOINT_FOLDER_NAME) || fileName.equals(TEMP_CHECKPOINT_FOLDER_NAME);
+    }
+
+    /**
+     * Copies a file or a folder and its content.
+     *
+     * @param source the file or folder to copy
+     * @param destination the destination
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * copying the file
+     */
+    private static void copy(File source, File destination) throws IOException {
+
+        if (source.isDirectory()) {
+            if (!destination.exists() && !destination.mkdirs()) {
+                throw new IOException("Impossible to create the folder " + destination.getAbsolutePath() + ".");
+            }
+            for (File file : source.listFiles()) {
+                copy(file, new File(destination, file.getName()));
+            }
+        } else {
+            FileInputStream inputStream = new FileInputStream(source);
+            try {
+                FileOutputStream outputStream = new FileOutputStream(destination);
+                try {
+                    FileChannel inputChannel = inputStream.getChannel();
+                    FileChannel outputChannel = outputStream.getChannel();
+                    long size = inputChannel.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += inputChannel.transferTo(position, size - position, outputChannel);
+                    }
+                    outputStream.getFD().sync();
+                } finally {
+                    outputStream.close();
+                }
+            } finally {
+                inputStream.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the last completed processing step.
+     *
+     * @return the last completed processing step
+     */
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * Returns the experiment restored from the checkpoint.
+     *
+     * @return the experiment restored from the checkpoint
+     */
+    public MsExperiment getExperiment() {
+        return experiment;
+    }
+
+    /**
+     * Returns the PeptideShaker maps.
+     *
+     * @return the PeptideShaker maps
+     */
+    public PSMaps getPsMaps() {
+        return psMaps;
+    }
+
+    /**
+     * Sets the PeptideShaker maps.
+     *
+     * @param psMaps the PeptideShaker maps
+     */
+    public void setPsMaps(PSMaps psMaps) {
+        this.psMaps = psMaps;
+    }
+
+    /**
+     * Returns the map of proteins found several times with the number of
+     * times they appeared as first hit.
+     *
+     * @return the protein count map
+     */
+    public HashMap<String, Integer> getProteinCount() {
+        return proteinCount;
+    }
+
+    /**
+     * Sets the map of proteins found several times with the number of times
+     * they appeared as first hit.
+     *
+     * @param proteinCount the protein count map
+     */
+    public void setProteinCount(HashMap<String, Integer> proteinCount) {
+        this.proteinCount = proteinCount;
+    }
+
+    /**
+     * Returns the metrics of the dataset.
+     *
+     * @return the metrics of the dataset
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics of the dataset.
+     *
+     * @param metrics the metrics of the dataset
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the project details filled during the import.
+     *
+     * @return the project details
+     */
+    public ProjectDetails getProjectDetails() {
+        return projectDetails;
+    }
+
+    /**
+     * Sets the project details filled during the import.
+     *
+     * @param projectDetails the project details
+     */
+    public void setProjectDetails(ProjectDetails projectDetails) {
+        this.projectDetails = projectDetails;
+    }
+}
@@ -0,0 +1,270 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.experiment.identification.matches.ProteinMatch;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary attributing an integer index to every protein accession. Protein
+ * groups are represented as sorted arrays of indexes so that they can be
+ * compared without parsing and hashing the group keys. Indexes are attributed
+ * in a thread safe manner, their order depends on the order of the queries
+ * and should not be used to order proteins. One dictionary is used per
+ * project, it is shared by the protein inference, the validation and the
+ * identification features generator, and cleared when the project is closed.
+ *
+ * @author Marc Vaudel
+ */
+public class ProteinAccessionDictionary {
+
+    /**
+     * Map of the accession indexes: accession | index.
+     */
+    private final ConcurrentHashMap<String, Integer> accessionIndexes = new ConcurrentHashMap<String, Integer>();
+    /**
+     * The accessions indexed by accession index.
+     */
+    private volatile String[] accessions = new String[1024];
+    /**
+     * Indicates for every accession index whether the protein is a decoy.
+     */
+    private volatile boolean[] decoys = new boolean[1024];
+    /**
+     * The number of accessions in the dictionary.
+     */
+    private int nAccessions = 0;
+
+    /**
+     * Constructor.
+     */
+    public ProteinAccessionDictionary() {
+    }
+
+    /**
+     * Returns the index of the given accession. The accession is added to the
+     * dictionary if not already present.
+     *
+     * @param accession the protein accession
+     *
+     * @return the index of the accession
+     */
+    public int getIndex(String accession) {
+        Integer index = accessionIndexes.get(accession);
+        if (index == null) {
+            index = addAccession(accession);
+        }
+        return index;
+    }
+
+    /**
+     * Adds an accession to the dictionary and returns its index.
+     *
+     * @param accession the protein accession
+     *
+     * @return the index of the accession
+     */
+    private synchronized int addAccession(String accession) {
+        Integer index = accessionIndexes.get(accession);
+        if (index == null) {
+            index = nAccessions;
+            if (index == accessions.length) {
+                int newLength = 2 * accessions.length;
+                decoys = Arrays.copyOf(decoys, newLength);
+                accessions = Arrays.copyOf(accessions, newLength);
+            }
+            decoys[index] = SequenceFactory.getInstance().isDecoyAccession(accession);
+            accessions[index] = accession;
+            nAccessions++;
+            accessionIndexes.put(accession, index);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the accession corresponding to the given index.
+     *
+     * @param index the index of the accession
+     *
+     * @return the protein accession
+     */
+    public String getAccession(int index) {
+        return accessions[index];
+    }
+
+    /**
+     * Returns the accessions corresponding to the given indexes.
+     *
+     * @param indexes the indexes of the accessions
+     *
+     * @return the protein accessions in the order of the indexes
+     */
+    public ArrayList<String> getAccessions(int[] indexes) {
+        ArrayList<String> result = new ArrayList<String>(indexes.length);
+        for (int index : indexes) {
+            result.add(accessions[index]);
+        }
+        return result;
+    }
+
+    /**
+     * Indicates whether the protein of the given index is a decoy.
+     *
+     * @param index the index of the accession
+     *
+     * @return a boolean indicating whether the protein is a decoy
+     */
+    public boolean isDecoy(int index) {
+        return decoys[index];
+    }
+
+    /**
+     * Indicates whether a protein group contains a decoy protein.
+     *
+     * @param groupKey the key of the protein group
+     *
+     * @return a boolean indicating whether the group contains a decoy protein
+     */
+    public boolean isDecoy(String groupKey) {
+        for (int index : getGroup(groupKey)) {
+            if (decoys[index]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the sorted accession indexes of a protein group.
+     *
+     * @param groupKey the key of the protein group
+     *
+     * @return the sorted accession indexes of the group
+     */
+    public int[] getGroup(String groupKey) {
+        return getGroup(ProteinMatch.getAccessions(groupKey));
+    }
+
+    /**
+     * Returns the sorted accession indexes of the given accessions.
+     *
+     * @param groupAccessions the accessions of the group
+     *
+     * @return the sorted accession indexes of the group
+     */
+    public int[] getGroup(String[] groupAccessions) {
+        int[] result = new int[groupAccessions.length];
+        for (int i = 0; i < groupAccessions.length; i++) {
+            result[i] = getIndex(groupAccessions[i]);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Returns the sorted accession indexes of the given accessions.
+     *
+     * @param groupAccessions the accessions of the group
+     *
+     * @return the sorted accession indexes of the group
+     */
+    public int[] getGroup(ArrayList<String> groupAccessions) {
+        return getGroup(groupAccessions.toArray(new String[groupAccessions.size()]));
+    }
+
+    /**
+     * Clears the dictionary.
+     */
+    public synchronized void clear() {
+        accessionIndexes.clear();
+        accessions = new String[1024];
+        decoys = new boolean[1024];
+        nAccessions = 0;
+    }
+
+    /**
+     * Indicates whether a sorted group contains the given accession index.
+     *
+     * @param group the sorted accession indexes of the group
+     * @param index the accession index
+     *
+     * @return a boolean indicating whether the group contains the accession
+     */
+    public static boolean contains(int[] group, int index) {
+        return Arrays.binarySearch(group, index) >= 0;
+    }
+
+    /**
+     * Indicates whether a sorted group contains all accessions of another
+     * sorted group.
+     *
+     * @param group the sorted accession indexes of the group
+     * @param subgroup the sorted accession indexes of the putative subgroup
+     *
+     * @return a boolean indicating whether all accessions of subgroup are in
+     * group
+     */
+    public static boolean contains(int[] group, int[] subgroup) {
+        if (subgroup.length > group.length) {
+            return false;
+        }
+        int i = 0;
+        for (int index : subgroup) {
+            while (i < group.length && group[i] < index) {
+                i++;
+            }
+            if (i == group.length || group[i] != index) {
+                return false;
+            }
+            i++;
+        }
+        return true;
+    }
+
+    /**
+     * Indicates whether two sorted groups have at least one accession in
+     * common.
+     *
+     * @param group1 the sorted accession indexes of the first group
+     * @param group2 the sorted accession indexes of the second group
+     *
+     * @return a boolean indicating whether the groups share an accession
+     */
+    public static boolean intersects(int[] group1, int[] group2) {
+        int i = 0, j = 0;
+        while (i < group1.length && j < group2.length) {
+            if (group1[i] == group2[j]) {
+                return true;
+            } else if (group1[i] < group2[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the accession indexes of a sorted group which are not in another
+     * sorted group.
+     *
+     * @param group the sorted accession indexes of the group
+     * @param otherGroup the sorted accession indexes of the group to exclude
+     *
+     * @return the sorted accession indexes of group not in otherGroup
+     */
+    public static int[] getOther(int[] group, int[] otherGroup) {
+        int[] result = new int[group.length];
+        int n = 0, j = 0;
+        for (int index : group) {
+            while (j < otherGroup.length && otherGroup[j] < index) {
+                j++;
+            }
+            if (j == otherGroup.length || otherGroup[j] != index) {
+                result[n++] = index;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+}
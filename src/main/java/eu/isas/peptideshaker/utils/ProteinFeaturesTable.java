@@ -0,0 +1,202 @@
+package eu.isas.peptideshaker.utils;
+
+import eu.isas.peptideshaker.utils.IdentificationFeaturesCache.ObjectType;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+
+/**
+ * Table of protein features stored by column. The protein keys are sorted and
+ * the features of a protein are found at the index of its key in every
+ * column. Integer features are stored in int arrays and decimal features in
+ * double arrays. Missing values are represented by -1 and NaN respectively.
+ * The columns are never resized, so that values can be read and written by
+ * different threads without locking.
+ *
+ * @author Marc Vaudel
+ */
+public class ProteinFeaturesTable implements Serializable {
+
+    /**
+     * The version UID for serialization/deserialization compatibility.
+     */
+    static final long serialVersionUID = 4821396510762248753L;
+    /**
+     * The features stored as integers.
+     */
+    public static final ObjectType[] INTEGER_FEATURES = {ObjectType.number_of_spectra, ObjectType.number_of_validated_peptides, ObjectType.unique_peptides};
+    /**
+     * The features stored as doubles.
+     */
+    public static final ObjectType[] DOUBLE_FEATURES = {ObjectType.spectrum_counting, ObjectType.sequence_coverage, ObjectType.expected_coverage};
+    /**
+     * The sorted protein keys.
+     */
+    private final String[] proteinKeys;
+    /**
+     * The integer columns.
+     */
+    private final EnumMap<ObjectType, int[]> integerColumns = new EnumMap<ObjectType, int[]>(ObjectType.class);
+    /**
+     * The double columns.
+     */
+    private final EnumMap<ObjectType, double[]> doubleColumns = new EnumMap<ObjectType, double[]>(ObjectType.class);
+
+    /**
+     * Constructor. All values are missing.
+     *
+     * @param proteinKeys the keys of the proteins
+     */
+    public ProteinFeaturesTable(Collection<String> proteinKeys) {
+        this.proteinKeys = proteinKeys.toArray(new String[proteinKeys.size()]);
+        Arrays.sort(this.proteinKeys);
+        for (ObjectType type : INTEGER_FEATURES) {
+            int[] column = new int[this.proteinKeys.length];
+            Arrays.fill(column, -1);
+            integerColumns.put(type, column);
+        }
+        for (ObjectType type : DOUBLE_FEATURES) {
+            double[] column = new double[this.proteinKeys.length];
+            Arrays.fill(column, Double.NaN);
+            doubleColumns.put(type, column);
+        }
+    }
+
+    /**
+     * Returns the number of proteins in the table.
+     *
+     * @return the number of proteins in the table
+     */
+    public int getnProteins() {
+        return proteinKeys.length;
+    }
+
+    /**
+     * Returns the key of the protein at the given index.
+     *
+     * @param index the index of the protein
+     *
+     * @return the key of the protein
+     */
+    public String getProteinKey(int index) {
+        return proteinKeys[index];
+    }
+
+    /**
+     * Returns the index of the given protein, a negative value if not in the
+     * table.
+     *
+     * @param proteinKey the key of the protein
+     *
+     * @return the index of the protein
+     */
+    public int getIndex(String proteinKey) {
+        return Arrays.binarySearch(proteinKeys, proteinKey);
+    }
+
+    /**
+     * Indicates whether the given type of feature is stored in the table.
+     *
+     * @param type the type of feature
+     *
+     * @return a boolean indicating whether the given type of feature is stored
+     * in the table
+     */
+    public boolean contains(ObjectType type) {
+        return integerColumns.containsKey(type) || doubleColumns.containsKey(type);
+    }
+
+    /**
+     * Returns the value of a feature for the given protein as Integer or
+     * Double, null if missing.
+     *
+     * @param type the type of feature
+     * @param proteinKey the key of the protein
+     *
+     * @return the value of the feature
+     */
+    public Object getValue(ObjectType type, String proteinKey) {
+        int[] integerColumn = integerColumns.get(type);
+        if (integerColumn != null) {
+            int index = getIndex(proteinKey);
+            if (index >= 0 && integerColumn[index] != -1) {
+                return integerColumn[index];
+            }
+            return null;
+        }
+        double[] doubleColumn = doubleColumns.get(type);
+        if (doubleColumn != null) {
+            int index = getIndex(proteinKey);
+            if (index >= 0 && !Double.isNaN(doubleColumn[index])) {
+                return doubleColumn[index];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the value of an integer feature.
+     *
+     * @param type the type of feature
+     * @param index the index of the protein
+     * @param value the value
+     */
+    public void setValue(ObjectType type, int index, int value) {
+        integerColumns.get(type)[index] = value;
+    }
+
+    /**
+     * Sets the value of a double feature.
+     *
+     * @param type the type of feature
+     * @param index the index of the protein
+     * @param value the value
+     */
+    public void setValue(ObjectType type, int index, double value) {
+        doubleColumns.get(type)[index] = value;
+    }
+
+    /**
+     * Sets the value of a feature for the given protein if the feature and the
+     * protein are in the table.
+     *
+     * @param type the type of feature
+     * @param proteinKey the key of the protein
+     * @param value the value as Integer or Double
+     *
+     * @return a boolean indicating whether the value was set
+     */
+    public boolean setValue(ObjectType type, String proteinKey, Object value) {
+        if (!contains(type) || !(value instanceof Number)) {
+            return false;
+        }
+        int index = getIndex(proteinKey);
+        if (index < 0) {
+            return false;
+        }
+        int[] integerColumn = integerColumns.get(type);
+        if (integerColumn != null) {
+            integerColumn[index] = ((Number) value).intValue();
+        } else {
+            doubleColumns.get(type)[index] = ((Number) value).doubleValue();
+        }
+        return true;
+    }
+
+    /**
+     * Sets all values of the given feature as missing.
+     *
+     * @param type the type of feature
+     */
+    public void clear(ObjectType type) {
+        int[] integerColumn = integerColumns.get(type);
+        if (integerColumn != null) {
+            Arrays.fill(integerColumn, -1);
+        }
+        double[] doubleColumn = doubleColumns.get(type);
+        if (doubleColumn != null) {
+            Arrays.fill(doubleColumn, Double.NaN);
+        }
+    }
+}
@@ -919,7 +919,7 @@ public class StarHider {
         /**
          * The spectrum annotator to use for this thread
          */
-        private PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+        private PeptideSpectrumAnnotator peptideSpectrumAnnotator = new CachingPeptideSpectrumAnnotator();
 
         /**
          * Constructor.
@@ -45,8 +45,10 @@ import eu.isas.peptideshaker.scoring.maps.ProteinMap;
 import eu.isas.peptideshaker.scoring.maps.PsmSpecificMap;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMap;
 import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyResults;
+import eu.isas.peptideshaker.utils.CachingPeptideSpectrumAnnotator;
 import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator;
 import eu.isas.peptideshaker.utils.Metrics;
+import eu.isas.peptideshaker.utils.ProteinAccessionDictionary;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -87,6 +89,10 @@ public class MatchesValidator {
      * The protein sequence factory.
      */
     private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * The protein accession dictionary of the project.
+     */
+    private final ProteinAccessionDictionary accessionDictionary;
 
     /**
      * Constructor.
@@ -94,11 +100,14 @@ public class MatchesValidator {
      * @param psmMap the PSM target decoy map
      * @param peptideMap the peptide target decoy map
      * @param proteinMap the protein target decoy map
+     * @param accessionDictionary the protein accession dictionary of the
+     * project
      */
-    public MatchesValidator(PsmSpecificMap psmMap, PeptideSpecificMap peptideMap, ProteinMap proteinMap) {
+    public MatchesValidator(PsmSpecificMap psmMap, PeptideSpecificMap peptideMap, ProteinMap proteinMap, ProteinAccessionDictionary accessionDictionary) {
         this.psmMap = psmMap;
         this.peptideMap = peptideMap;
         this.proteinMap = proteinMap;
+        this.accessionDictionary = accessionDictionary;
     }
 
     /**
@@ -264,6 +273,7 @@ public class MatchesValidator {
         if (inputMap != null) {
             inputMap.resetAdvocateContributions();
         }
+        ArrayList<CachingPeptideSpectrumAnnotator> annotators = new ArrayList<CachingPeptideSpectrumAnnotator>();
         for (String spectrumFileName : identification.getSpectrumFiles()) {
 
             AnnotationSettings annotationPreferences = identificationParameters.getAnnotationPreferences();
@@ -341,6 +351,7 @@ public class MatchesValidator {
             for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
                 PsmValidatorRunnable runnable = new PsmValidatorRunnable(psmIterator, identification, identificationFeaturesGenerator, geneMaps, identificationParameters, waitingHandler, exceptionHandler, inputMap, true, false);
                 pool.submit(runnable);
+                annotators.add(runnable.getPeptideSpectrumAnnotator());
                 if (waitingHandler != null && waitingHandler.isRunCanceled()) {
                     break;
                 }
@@ -357,6 +368,11 @@ public class MatchesValidator {
             annotationPreferences.setIntensityLimit(intensityLimit);
         }
 
+        String cacheReport = CachingPeptideSpectrumAnnotator.getCacheReport(annotators);
+        if (cacheReport != null && waitingHandler != null && !waitingHandler.isRunCanceled()) {
+            waitingHandler.appendReport(cacheReport, true, true);
+        }
+
         // validate the peptides
         ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
         ArrayList<PeptideValidatorRunnable> peptideRunnables = new ArrayList<PeptideValidatorRunnable>(processingPreferences.getnThreads());
@@ -436,6 +452,142 @@ public class MatchesValidator {
         metrics.setTotalSpectrumCountingMass(totalSpectrumCountingMass);
     }
 
+    /**
+     * Updates the validation level of all spectrum, peptide and protein
+     * matches using the current thresholds, for instance after the
+     * probabilities were recalculated with a new PEP window. The matches of every level are processed in
+     * parallel and only the parameters of the matches whose validation changed
+     * are saved. If the validation of any match changed, the features
+     * depending on the validation are cleared from the cache. Target Decoy
+     * thresholds must be set.
+     *
+     * @param identification the identification class containing the matches to
+     * validate
+     * @param geneMaps the gene maps
+     * @param identificationFeaturesGenerator an identification features
+     * generator computing information about the identification matches
+     * @param identificationParameters the identification parameters
+     * @param processingPreferences the processing preferences
+     * @param waitingHandler a waiting handler displaying progress to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for exceptions
+     *
+     * @return the number of matches whose validation changed
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading or writing a file.
+     * @throws InterruptedException exception thrown whenever a threading issue
+     * occurred while validating the matches.
+     * @throws SQLException exception thrown whenever an error occurred while
+     * interacting with the database.
+     * @throws uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException exception thrown
+     * whenever an error occurred while reading an mzML file.
+     * @throws ClassNotFoundException exception thrown whenever an error
+     * occurred while deserializing an object from the database.
+     */
+    public int updateValidationLevels(Identification identification, GeneMaps geneMaps, IdentificationFeaturesGenerator identificationFeaturesGenerator,
+            IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
+            throws SQLException, IOException, ClassNotFoundException, MzMLUnmarshallerException, InterruptedException {
+
+        PSParameter psParameter = new PSParameter();
+        ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
+        parameters.add(psParameter);
+
+        waitingHandler.setWaitingText("Updating Validation Levels. Please Wait...");
+        waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+        waitingHandler.resetSecondaryProgressCounter();
+        waitingHandler.setMaxSecondaryProgressCounter(identification.getProteinIdentification().size()
+                + identification.getPeptideIdentification().size()
+                + identification.getSpectrumIdentificationSize());
+
+        ArrayList<ValidationLevelUpdaterRunnable> runnables = new ArrayList<ValidationLevelUpdaterRunnable>();
+
+        // update the spectrum matches
+        AnnotationSettings annotationPreferences = identificationParameters.getAnnotationPreferences();
+        Double intensityLimit = annotationPreferences.getAnnotationIntensityLimit();
+        annotationPreferences.setIntensityLimit(0);
+
+        for (String spectrumFileName : identification.getSpectrumFiles()) {
+
+            ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+            PsmIterator psmIterator = identification.getPsmIterator(spectrumFileName, null, parameters, false, waitingHandler);
+
+            for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+                ValidationLevelUpdaterRunnable runnable = new ValidationLevelUpdaterRunnable(psmIterator, null, null, identification, identificationFeaturesGenerator, geneMaps, identificationParameters, waitingHandler, exceptionHandler);
+                pool.submit(runnable);
+                runnables.add(runnable);
+                if (waitingHandler.isRunCanceled()) {
+                    break;
+                }
+            }
+            if (waitingHandler.isRunCanceled()) {
+                pool.shutdownNow();
+                annotationPreferences.setIntensityLimit(intensityLimit);
+                return 0;
+            }
+            pool.shutdown();
+            if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+                throw new InterruptedException("PSM validation timed out. Please contact the developers.");
+            }
+        }
+
+        annotationPreferences.setIntensityLimit(intensityLimit);
+
+        // update the peptides
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(parameters, false, parameters, waitingHandler);
+
+        for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+            ValidationLevelUpdaterRunnable runnable = new ValidationLevelUpdaterRunnable(null, peptideMatchesIterator, null, identification, identificationFeaturesGenerator, geneMaps, identificationParameters, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+            runnables.add(runnable);
+            if (waitingHandler.isRunCanceled()) {
+                break;
+            }
+        }
+        if (waitingHandler.isRunCanceled()) {
+            pool.shutdownNow();
+            return 0;
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Peptide validation timed out. Please contact the developers.");
+        }
+
+        // update the proteins
+        pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, true, parameters, false, null, waitingHandler);
+
+        for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+            ValidationLevelUpdaterRunnable runnable = new ValidationLevelUpdaterRunnable(null, null, proteinMatchesIterator, identification, identificationFeaturesGenerator, geneMaps, identificationParameters, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+            runnables.add(runnable);
+            if (waitingHandler.isRunCanceled()) {
+                break;
+            }
+        }
+        if (waitingHandler.isRunCanceled()) {
+            pool.shutdownNow();
+            return 0;
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Protein validation timed out. Please contact the developers.");
+        }
+
+        int nChanged = 0;
+        for (ValidationLevelUpdaterRunnable runnable : runnables) {
+            nChanged += runnable.getnChanged();
+        }
+        if (nChanged > 0) {
+            identificationFeaturesGenerator.clearValidationDependentFeatures();
+        }
+
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+
+        return nChanged;
+    }
+
     /**
      * Updates the validation status of a protein match. If the match was
      * manually validated nothing will be changed.
@@ -448,6 +600,8 @@ public class MatchesValidator {
      * @param proteinKey the key of the protein match of interest
      * @param identificationParameters the identification parameters
      *
+     * @return a boolean indicating whether the validation of the match changed
+     *
      * @throws IOException exception thrown whenever an error occurred while
      * reading or writing a file.
      * @throws InterruptedException exception thrown whenever a threading issue
@@ -461,7 +615,7 @@ public class MatchesValidator {
      * @throws org.apache.commons.math.MathException Exception thrown whenever
      * an error occurred while doing statistics on a distribution
      */
-    public static void updateProteinMatchValidationLevel(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
+    public static boolean updateProteinMatchValidationLevel(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
             IdentificationParameters identificationParameters, ProteinMap proteinMap, String proteinKey)
             throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
 
@@ -479,7 +633,7 @@ public class MatchesValidator {
         }
 
         boolean noValidated = proteinMap.getTargetDecoyMap().getTargetDecoyResults().noValidated();
-        updateProteinMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, identificationParameters,
+        return updateProteinMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, identificationParameters,
                 targetDecoyMap, proteinThreshold, nTargetLimit, proteinConfidentThreshold, noValidated, proteinKey);
     }
 
@@ -502,6 +656,8 @@ public class MatchesValidator {
      * @param proteinKey the key of the protein match of interest
      * @param identificationParameters the identification parameters
      *
+     * @return a boolean indicating whether the validation of the match changed
+     *
      * @throws IOException exception thrown whenever an error occurred while
      * reading or writing a file.
      * @throws InterruptedException exception thrown whenever a threading issue
@@ -515,7 +671,7 @@ public class MatchesValidator {
      * @throws org.apache.commons.math.MathException Exception thrown whenever
      * an error occurred while doing statistics on a distribution
      */
-    public static void updateProteinMatchValidationLevel(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
+    public static boolean updateProteinMatchValidationLevel(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
             IdentificationParameters identificationParameters, TargetDecoyMap targetDecoyMap, double scoreThreshold, double nTargetLimit,
             double confidenceThreshold, boolean noValidated,
             String proteinKey) throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
@@ -523,6 +679,8 @@ public class MatchesValidator {
         SequenceFactory sequenceFactory = SequenceFactory.getInstance();
         PSParameter psParameter = new PSParameter();
         psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
+        MatchValidationLevel previousValidationLevel = psParameter.getMatchValidationLevel();
+        HashMap<String, Boolean> previousQcResults = getQcResults(psParameter);
         psParameter.resetQcResults();
         ValidationQCPreferences validationQCPreferences = identificationParameters.getIdValidationPreferences().getValidationQCPreferences();
 
@@ -558,8 +716,12 @@ public class MatchesValidator {
                 psParameter.setMatchValidationLevel(MatchValidationLevel.none);
             }
 
-            identification.updateProteinMatchParameter(proteinKey, psParameter);
+            if (validationChanged(psParameter, previousValidationLevel, previousQcResults)) {
+                identification.updateProteinMatchParameter(proteinKey, psParameter);
+                return true;
+            }
         }
+        return false;
     }
 
     /**
@@ -574,6 +736,8 @@ public class MatchesValidator {
      * @param identificationParameters the identification parameters
      * @param peptideKey the key of the peptide match of interest
      *
+     * @return a boolean indicating whether the validation of the match changed
+     *
      * @throws IOException exception thrown whenever an error occurred while
      * reading or writing a file.
      * @throws InterruptedException exception thrown whenever a threading issue
@@ -587,13 +751,15 @@ public class MatchesValidator {
      * @throws org.apache.commons.math.MathException Exception thrown whenever
      * an error occurred while doing statistics on a distribution
      */
-    public static void updatePeptideMatchValidationLevel(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
+    public static boolean updatePeptideMatchValidationLevel(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
             IdentificationParameters identificationParameters, PeptideSpecificMap peptideMap, String peptideKey)
             throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
 
         SequenceFactory sequenceFactory = SequenceFactory.getInstance();
         PSParameter psParameter = new PSParameter();
         psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
+        MatchValidationLevel previousValidationLevel = psParameter.getMatchValidationLevel();
+        HashMap<String, Boolean> previousQcResults = getQcResults(psParameter);
         psParameter.resetQcResults();
         ValidationQCPreferences validationQCPreferences = identificationParameters.getIdValidationPreferences().getValidationQCPreferences();
 
@@ -637,7 +803,11 @@ public class MatchesValidator {
             psParameter.setMatchValidationLevel(MatchValidationLevel.none);
         }
 
-        identification.updatePeptideMatchParameter(peptideKey, psParameter);
+        if (validationChanged(psParameter, previousValidationLevel, previousQcResults)) {
+            identification.updatePeptideMatchParameter(peptideKey, psParameter);
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -654,6 +824,8 @@ public class MatchesValidator {
      * @param peptideSpectrumAnnotator a spectrum annotator, can be null
      * @param applyQCFilters if true quality control filters will be used
      *
+     * @return a boolean indicating whether the validation of the match changed
+     *
      * @throws IOException exception thrown whenever an error occurred while
      * reading or writing a file.
      * @throws InterruptedException exception thrown whenever a threading issue
@@ -667,13 +839,15 @@ public class MatchesValidator {
      * @throws org.apache.commons.math.MathException Exception thrown whenever
      * an error occurred while doing statistics on a distribution
      */
-    public static void updateSpectrumMatchValidationLevel(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
+    public static boolean updateSpectrumMatchValidationLevel(Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
             IdentificationParameters identificationParameters, PeptideSpectrumAnnotator peptideSpectrumAnnotator,
             PsmSpecificMap psmMap, String spectrumKey, boolean applyQCFilters) throws SQLException, IOException, ClassNotFoundException, InterruptedException, MzMLUnmarshallerException, MathException {
 
         SequenceFactory sequenceFactory = SequenceFactory.getInstance();
         PSParameter psParameter = new PSParameter();
         psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
+        MatchValidationLevel previousValidationLevel = psParameter.getMatchValidationLevel();
+        HashMap<String, Boolean> previousQcResults = getQcResults(psParameter);
         psParameter.resetQcResults();
         ValidationQCPreferences validationQCPreferences = identificationParameters.getIdValidationPreferences().getValidationQCPreferences();
 
@@ -735,7 +909,45 @@ public class MatchesValidator {
             psParameter.setMatchValidationLevel(MatchValidationLevel.none);
         }
 
-        identification.updateSpectrumMatchParameter(spectrumKey, psParameter);
+        if (validationChanged(psParameter, previousValidationLevel, previousQcResults)) {
+            identification.updateSpectrumMatchParameter(spectrumKey, psParameter);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the results of the quality control filters of a match.
+     *
+     * @param psParameter the PeptideShaker parameter of the match
+     *
+     * @return the results of the quality control filters: filter name |
+     * passed
+     */
+    private static HashMap<String, Boolean> getQcResults(PSParameter psParameter) {
+        HashMap<String, Boolean> qcResults = new HashMap<String, Boolean>();
+        if (psParameter.getQcCriteria() != null) {
+            for (String criterion : psParameter.getQcCriteria()) {
+                qcResults.put(criterion, psParameter.isQcPassed(criterion));
+            }
+        }
+        return qcResults;
+    }
+
+    /**
+     * Indicates whether the validation level or the results of the quality
+     * control filters of a match differ from the given previous values.
+     *
+     * @param psParameter the PeptideShaker parameter of the match
+     * @param previousValidationLevel the previous validation level
+     * @param previousQcResults the previous results of the quality control
+     * filters
+     *
+     * @return a boolean indicating whether the validation changed
+     */
+    private static boolean validationChanged(PSParameter psParameter, MatchValidationLevel previousValidationLevel, HashMap<String, Boolean> previousQcResults) {
+        return psParameter.getMatchValidationLevel() != previousValidationLevel
+                || !getQcResults(psParameter).equals(previousQcResults);
     }
 
     /**
@@ -932,7 +1144,9 @@ public class MatchesValidator {
      * @param metrics if provided fraction information and found modifications
      * will be saved while iterating the matches
      * @param identificationParameters the identification parameters
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading or writing a file.
@@ -943,103 +1157,43 @@ public class MatchesValidator {
      * @throws ClassNotFoundException exception thrown whenever an error
      * occurred while deserializing an object from the database.
      */
-    public void fillPeptideMaps(Identification identification, Metrics metrics, WaitingHandler waitingHandler,
-            IdentificationParameters identificationParameters) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+    public void fillPeptideMaps(Identification identification, Metrics metrics, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler,
+            IdentificationParameters identificationParameters, ProcessingPreferences processingPreferences) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
         waitingHandler.setWaitingText("Filling Peptide Maps. Please Wait...");
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getPeptideIdentification().size() * 2);
 
-        HashSet<String> foundModifications = new HashSet<String>();
-        HashMap<String, ArrayList<String>> fractionPsmMatches = new HashMap<String, ArrayList<String>>();
-
         PSParameter psParameter = new PSParameter();
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
         parameters.add(psParameter);
         PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(null, false, parameters, waitingHandler);
-        int nFractions = identification.getSpectrumFiles().size();
-        PeptideMatch peptideMatch;
-
-        while ((peptideMatch = peptideMatchesIterator.next()) != null) {
-
-            String peptideKey = peptideMatch.getKey();
-
-            for (String modification : Peptide.getModificationFamily(peptideKey)) {
-                if (!foundModifications.contains(modification)) {
-                    foundModifications.add(modification);
-                }
-            }
-
-            double probaScore = 1;
-            HashMap<String, Double> fractionScores = new HashMap<String, Double>(nFractions);
-
-            // get the global and fraction level peptide scores
-            for (String spectrumKey : peptideMatch.getSpectrumMatchesKeys()) {
 
-                psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
-                probaScore = probaScore * psParameter.getPsmProbability();
-
-                if (nFractions > 1) {
-                    String fraction = Spectrum.getSpectrumFile(spectrumKey);
-
-                    Double fractionScore = fractionScores.get(fraction);
-                    boolean change = false;
-                    if (fractionScore == null) {
-                        fractionScore = 1.0;
-                        change = true;
-                    }
-                    Double tempScore = psParameter.getPsmProbability();
-                    if (tempScore != 1.0) {
-                        fractionScore *= tempScore;
-                        change = true;
-                    }
-                    if (change) {
-                        fractionScores.put(fraction, fractionScore);
-                    }
-
-                    String fractionKey = fraction + "_" + peptideKey;
-                    ArrayList<String> spectrumMatches = fractionPsmMatches.get(fractionKey);
-                    if (spectrumMatches == null) {
-                        spectrumMatches = new ArrayList<String>(1);
-                        fractionPsmMatches.put(fractionKey, spectrumMatches);
-                    }
-                    spectrumMatches.add(spectrumKey);
-                }
-            }
-            if (nFractions == 1) {
-                String spectrumFile = identification.getSpectrumFiles().get(0);
-                fractionScores.put(spectrumFile, probaScore);
-                String fractionKey = spectrumFile + "_" + peptideKey;
-                fractionPsmMatches.put(fractionKey, new ArrayList<String>(peptideMatch.getSpectrumMatchesKeys()));
-            }
-
-            psParameter = new PSParameter();
-
-            // set the fraction scores
-            for (String fractionName : fractionScores.keySet()) {
-                psParameter.setFractionScore(fractionName, fractionScores.get(fractionName));
-            }
-
-            // Set the global score and grouping key
-            psParameter.setPeptideProbabilityScore(probaScore);
-            String peptideValidationGroup = "";
-            if (identificationParameters.getIdValidationPreferences().getSeparatePeptides()) {
-                psParameter.setSpecificMapKey(peptideValidationGroup);
-            }
-            identification.addPeptideMatchParameter(peptideKey, psParameter);
-            peptideMap.addPoint(psParameter.getPeptideProbabilityScore(), peptideMatch, identificationParameters.getSequenceMatchingPreferences());
-
-            waitingHandler.increaseSecondaryProgressCounter();
-
-            if (waitingHandler.isRunCanceled()) {
-                return;
-            }
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        ArrayList<PeptideMapFillerRunnable> runnables = new ArrayList<PeptideMapFillerRunnable>(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+            PeptideMapFillerRunnable runnable = new PeptideMapFillerRunnable(peptideMatchesIterator, identification, identificationParameters, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+            runnables.add(runnable);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Peptide map filling timed out. Please contact the developers.");
+        }
+        if (waitingHandler.isRunCanceled()) {
+            return;
         }
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
 
         if (metrics != null) {
+            HashSet<String> foundModifications = new HashSet<String>();
+            HashMap<String, ArrayList<String>> fractionPsmMatches = new HashMap<String, ArrayList<String>>();
+            for (PeptideMapFillerRunnable runnable : runnables) {
+                foundModifications.addAll(runnable.getFoundModifications());
+                fractionPsmMatches.putAll(runnable.getFractionPsmMatches());
+            }
             // set the fraction psm matches
             metrics.setFractionPsmMatches(fractionPsmMatches);
             // set the ptms
@@ -1053,7 +1207,9 @@ public class MatchesValidator {
      *
      * @param identification the identification class containing the matches to
      * validate
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading or writing a file.
@@ -1064,7 +1220,7 @@ public class MatchesValidator {
      * @throws ClassNotFoundException exception thrown whenever an error
      * occurred while deserializing an object from the database.
      */
-    public void attachPeptideProbabilities(Identification identification, WaitingHandler waitingHandler)
+    public void attachPeptideProbabilities(Identification identification, ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler)
             throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
         waitingHandler.setWaitingText("Attaching Peptide Probabilities. Please Wait...");
@@ -1076,36 +1232,18 @@ public class MatchesValidator {
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
         parameters.add(psParameter);
         PeptideMatchesIterator peptideMatchesIterator = identification.getPeptideMatchesIterator(parameters, false, parameters, waitingHandler);
-        PeptideMatch peptideMatch;
 
-        while ((peptideMatch = peptideMatchesIterator.next()) != null) {
-
-            String peptideKey = peptideMatch.getKey();
-            psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
-
-            if (sequenceFactory.concatenatedTargetDecoy()) {
-                psParameter.setPeptideProbability(peptideMap.getProbability(psParameter.getSpecificMapKey(), psParameter.getPeptideProbabilityScore()));
-            } else {
-                psParameter.setPeptideProbability(1.0);
-            }
-            Set<String> fractions = psParameter.getFractions();
-            if (fractions == null) {
-                throw new IllegalArgumentException("Fractions not found for peptide " + peptideKey + ".");
-            }
-            for (String fraction : fractions) {
-                if (sequenceFactory.concatenatedTargetDecoy()) {
-                    psParameter.setFractionPEP(fraction, peptideMap.getProbability(psParameter.getSpecificMapKey(), psParameter.getFractionScore(fraction)));
-                } else {
-                    psParameter.setFractionPEP(fraction, 1.0);
-                }
-            }
-
-            identification.updatePeptideMatchParameter(peptideKey, psParameter);
-            waitingHandler.increaseSecondaryProgressCounter();
-
-            if (waitingHandler.isRunCanceled()) {
-                return;
-            }
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+            PeptideProbabilitiesRunnable runnable = new PeptideProbabilitiesRunnable(peptideMatchesIterator, identification, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Peptide probabilities attachment timed out. Please contact the developers.");
+        }
+        if (waitingHandler.isRunCanceled()) {
+            return;
         }
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
@@ -1116,12 +1254,14 @@ public class MatchesValidator {
      *
      * @param identification the identification class containing the matches to
      * validate
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      *
-     * @throws IOException exception thrown whenever an error occurred while
-     * reading or writing a file.
+     * @throws Exception exception thrown whenever an error occurred while
+     * filling the map
      */
-    public void fillProteinMap(Identification identification, WaitingHandler waitingHandler) throws Exception {
+    public void fillProteinMap(Identification identification, ProcessingPreferences processingPreferences, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws Exception {
 
         waitingHandler.setWaitingText("Filling Protein Map. Please Wait...");
 
@@ -1134,68 +1274,18 @@ public class MatchesValidator {
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
         parameters.add(psParameter);
         ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(null, true, parameters, false, null, waitingHandler);
-        int nFractions = identification.getSpectrumFiles().size();
-        ProteinMatch proteinMatch;
-
-        while ((proteinMatch = proteinMatchesIterator.next()) != null) {
-
-            String proteinKey = proteinMatch.getKey();
-
-            waitingHandler.increaseSecondaryProgressCounter();
-            if (waitingHandler.isRunCanceled()) {
-                return;
-            }
-
-            HashMap<String, Double> fractionScores = new HashMap<String, Double>(nFractions);
-            double probaScore = 1;
-
-            if (proteinMatch == null) {
-                throw new IllegalArgumentException("Protein match " + proteinKey + " not found.");
-            }
-
-            // get the global and fraction level scores
-            for (String peptideKey : proteinMatch.getPeptideMatchesKeys()) {
-
-                psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
-                probaScore = probaScore * psParameter.getPeptideProbability();
-
-                if (nFractions > 1) {
-                    for (String fraction : psParameter.getFractions()) {
-
-                        Double fractionScore = fractionScores.get(fraction);
-                        boolean change = false;
-                        if (fractionScore == null) {
-                            fractionScore = 1.0;
-                            change = true;
-                        }
-                        Double peptideScore = psParameter.getFractionPEP(fraction);
-                        if (peptideScore != 1.0) {
-                            fractionScore *= peptideScore;
-                            change = true;
-                        }
-                        if (change) {
-                            fractionScores.put(fraction, fractionScore);
-                        }
-                    }
-                }
-            }
-            if (nFractions == 1) {
-                String spectrumFile = identification.getSpectrumFiles().get(0);
-                fractionScores.put(spectrumFile, probaScore);
-            }
-
-            psParameter = new PSParameter();
-
-            // set the fraction scores
-            for (String fractionName : fractionScores.keySet()) {
-                psParameter.setFractionScore(fractionName, fractionScores.get(fractionName));
-            }
-
-            // Set the global score
-            psParameter.setProteinProbabilityScore(probaScore);
 
-            identification.addProteinMatchParameter(proteinKey, psParameter);
-            proteinMap.addPoint(psParameter.getProteinProbabilityScore(), proteinMatch.isDecoy());
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+            ProteinMapFillerRunnable runnable = new ProteinMapFillerRunnable(proteinMatchesIterator, identification, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Protein map filling timed out. Please contact the developers.");
+        }
+        if (waitingHandler.isRunCanceled()) {
+            return;
         }
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
@@ -1207,7 +1297,9 @@ public class MatchesValidator {
      * @param identification the identification class containing the matches to
      * validate
      * @param metrics if provided fraction information
+     * @param processingPreferences the processing preferences
      * @param waitingHandler the handler displaying feedback to the user
+     * @param exceptionHandler handler for exceptions
      * @param fractionSettings the fraction settings
      *
      * @throws SQLException exception thrown whenever an error occurred while
@@ -1221,63 +1313,48 @@ public class MatchesValidator {
      * occurred while retrieving the match or when an error is encountered while
      * reading the FASTA file
      */
-    public void attachProteinProbabilities(Identification identification, Metrics metrics, WaitingHandler waitingHandler,
-            FractionSettings fractionSettings) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
+    public void attachProteinProbabilities(Identification identification, Metrics metrics, ProcessingPreferences processingPreferences, WaitingHandler waitingHandler,
+            ExceptionHandler exceptionHandler, FractionSettings fractionSettings) throws SQLException, IOException, ClassNotFoundException, InterruptedException {
 
         waitingHandler.setWaitingText("Attaching Protein Probabilities. Please Wait...");
 
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
         waitingHandler.setMaxSecondaryProgressCounter(identification.getProteinIdentification().size());
 
-        HashMap<String, ArrayList<Double>> fractionMW = new HashMap<String, ArrayList<Double>>();
-
         PSParameter psParameter = new PSParameter();
         ArrayList<UrParameter> parameters = new ArrayList<UrParameter>(1);
         parameters.add(psParameter);
         ProteinMatchesIterator proteinMatchesIterator = identification.getProteinMatchesIterator(parameters, true, parameters, true, parameters, waitingHandler);
-        ProteinMatch proteinMatch;
-
-        while ((proteinMatch = proteinMatchesIterator.next()) != null) {
-
-            String proteinKey = proteinMatch.getKey();
-            Double proteinMW = sequenceFactory.computeMolecularWeight(proteinMatch.getMainMatch());
-
-            psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
-            if (sequenceFactory.concatenatedTargetDecoy()) {
-                double proteinProbability = proteinMap.getProbability(psParameter.getProteinProbabilityScore());
-                psParameter.setProteinProbability(proteinProbability);
-            } else {
-                psParameter.setProteinProbability(1.0);
-            }
 
-            for (String fraction : psParameter.getFractions()) {
-                if (sequenceFactory.concatenatedTargetDecoy()) {
-                    psParameter.setFractionPEP(fraction, proteinMap.getProbability(psParameter.getFractionScore(fraction)));
-                } else {
-                    psParameter.setFractionPEP(fraction, 1.0);
-                }
+        ExecutorService pool = Executors.newFixedThreadPool(processingPreferences.getnThreads());
+        ArrayList<ProteinProbabilitiesRunnable> runnables = new ArrayList<ProteinProbabilitiesRunnable>(processingPreferences.getnThreads());
+        for (int i = 1; i <= processingPreferences.getnThreads(); i++) {
+            ProteinProbabilitiesRunnable runnable = new ProteinProbabilitiesRunnable(proteinMatchesIterator, identification, fractionSettings, waitingHandler, exceptionHandler);
+            pool.submit(runnable);
+            runnables.add(runnable);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(7, TimeUnit.DAYS)) {
+            throw new InterruptedException("Protein probabilities attachment timed out. Please contact the developers.");
+        }
+        if (waitingHandler.isRunCanceled()) {
+            return;
+        }
 
-                // set the fraction molecular weights
-                if (!proteinMatch.isDecoy() && psParameter.getFractionConfidence(fraction) > fractionSettings.getProteinConfidenceMwPlots()) {
+        if (metrics != null) {
+            // set the observed fractional molecular weights per fraction
+            HashMap<String, ArrayList<Double>> fractionMW = new HashMap<String, ArrayList<Double>>();
+            for (ProteinProbabilitiesRunnable runnable : runnables) {
+                HashMap<String, ArrayList<Double>> threadFractionMW = runnable.getFractionMW();
+                for (String fraction : threadFractionMW.keySet()) {
                     ArrayList<Double> mw = fractionMW.get(fraction);
                     if (mw == null) {
-                        mw = new ArrayList<Double>(1);
+                        mw = new ArrayList<Double>(threadFractionMW.get(fraction).size());
                         fractionMW.put(fraction, mw);
                     }
-                    mw.add(proteinMW);
+                    mw.addAll(threadFractionMW.get(fraction));
                 }
             }
-
-            identification.updateProteinMatchParameter(proteinKey, psParameter);
-            waitingHandler.increaseSecondaryProgressCounter();
-
-            if (waitingHandler.isRunCanceled()) {
-                return;
-            }
-        }
-
-        if (metrics != null) {
-            // set the observed fractional molecular weights per fraction
             metrics.setObservedFractionalMassesAll(fractionMW);
         }
 
@@ -1417,7 +1494,7 @@ public class MatchesValidator {
         /**
          * The peptide spectrum annotator.
          */
-        private PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+        private CachingPeptideSpectrumAnnotator peptideSpectrumAnnotator = new CachingPeptideSpectrumAnnotator();
         /**
          * List used to store precursor m/z deviations of matches currently
          * validated.
@@ -1563,9 +1640,18 @@ public class MatchesValidator {
         public ArrayList<Double> getThreadPrecursorMzDeviations() {
             return threadPrecursorMzDeviations;
         }
-    }
 
-    /**
+        /**
+         * Returns the peptide spectrum annotator of this runnable.
+         *
+         * @return the peptide spectrum annotator of this runnable
+         */
+        public CachingPeptideSpectrumAnnotator getPeptideSpectrumAnnotator() {
+            return peptideSpectrumAnnotator;
+        }
+    }
+
+    /**
      * Runnable validating peptides.
      *
      * @author Marc Vaudel
@@ -1883,7 +1969,7 @@ public class MatchesValidator {
                         System.out.println("Null validation level: " + proteinKey);
                     }
 
-                    if (!proteinMatch.isDecoy() && psParameter.getMatchValidationLevel().getIndex() >= spectrumCountingPreferences.getMatchValidationLevel()) {
+                    if (!accessionDictionary.isDecoy(proteinKey) && psParameter.getMatchValidationLevel().getIndex() >= spectrumCountingPreferences.getMatchValidationLevel()) {
                         double tempSpectrumCounting = identificationFeaturesGenerator.getSpectrumCounting(proteinKey);
                         increaseSpectrumCounting(tempSpectrumCounting);
                         double molecularWeight = sequenceFactory.computeMolecularWeight(proteinMatch.getMainMatch());
@@ -1891,7 +1977,7 @@ public class MatchesValidator {
                         increaseSpectrumCountingMass(massContribution);
                     }
                     // Load the coverage in cache
-                    if (!proteinMatch.isDecoy() && psParameter.getMatchValidationLevel().isValidated()) {
+                    if (!accessionDictionary.isDecoy(proteinKey) && psParameter.getMatchValidationLevel().isValidated()) {
                         identificationFeaturesGenerator.getSequenceCoverage(proteinKey);
                     }
 
@@ -2051,4 +2137,594 @@ public class MatchesValidator {
             return totalSpectrumCounting;
         }
     }
+
+    /**
+     * Runnable computing the peptide scores and filling the peptide map.
+     *
+     * @author Marc Vaudel
+     */
+    private class PeptideMapFillerRunnable implements Runnable {
+
+        /**
+         * An iterator for the peptide matches.
+         */
+        private PeptideMatchesIterator peptideMatchesIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The identification parameters.
+         */
+        private IdentificationParameters identificationParameters;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * The modifications found by this thread.
+         */
+        private HashSet<String> foundModifications = new HashSet<String>();
+        /**
+         * The PSMs found by this thread indexed by fraction and peptide key.
+         */
+        private HashMap<String, ArrayList<String>> fractionPsmMatches = new HashMap<String, ArrayList<String>>();
+
+        /**
+         * Constructor.
+         *
+         * @param peptideMatchesIterator a peptide matches iterator
+         * @param identification the identification containing the matches
+         * @param identificationParameters the identification parameters
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public PeptideMapFillerRunnable(PeptideMatchesIterator peptideMatchesIterator, Identification identification,
+                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.peptideMatchesIterator = peptideMatchesIterator;
+            this.identification = identification;
+            this.identificationParameters = identificationParameters;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+
+                int nFractions = identification.getSpectrumFiles().size();
+                PSParameter psParameter = new PSParameter();
+                PeptideMatch peptideMatch;
+
+                while ((peptideMatch = peptideMatchesIterator.next()) != null && !waitingHandler.isRunCanceled()) {
+
+                    String peptideKey = peptideMatch.getKey();
+
+                    foundModifications.addAll(Peptide.getModificationFamily(peptideKey));
+
+                    double probaScore = 1;
+                    HashMap<String, Double> fractionScores = new HashMap<String, Double>(nFractions);
+
+                    // get the global and fraction level peptide scores
+                    for (String spectrumKey : peptideMatch.getSpectrumMatchesKeys()) {
+
+                        psParameter = (PSParameter) identification.getSpectrumMatchParameter(spectrumKey, psParameter);
+                        probaScore = probaScore * psParameter.getPsmProbability();
+
+                        if (nFractions > 1) {
+                            String fraction = Spectrum.getSpectrumFile(spectrumKey);
+
+                            Double fractionScore = fractionScores.get(fraction);
+                            boolean change = false;
+                            if (fractionScore == null) {
+                                fractionScore = 1.0;
+                                change = true;
+                            }
+                            Double tempScore = psParameter.getPsmProbability();
+                            if (tempScore != 1.0) {
+                                fractionScore *= tempScore;
+                                change = true;
+                            }
+                            if (change) {
+                                fractionScores.put(fraction, fractionScore);
+                            }
+
+                            String fractionKey = fraction + "_" + peptideKey;
+                            ArrayList<String> spectrumMatches = fractionPsmMatches.get(fractionKey);
+                            if (spectrumMatches == null) {
+                                spectrumMatches = new ArrayList<String>(1);
+                                fractionPsmMatches.put(fractionKey, spectrumMatches);
+                            }
+                            spectrumMatches.add(spectrumKey);
+                        }
+                    }
+                    if (nFractions == 1) {
+                        String spectrumFile = identification.getSpectrumFiles().get(0);
+                        fractionScores.put(spectrumFile, probaScore);
+                        String fractionKey = spectrumFile + "_" + peptideKey;
+                        fractionPsmMatches.put(fractionKey, new ArrayList<String>(peptideMatch.getSpectrumMatchesKeys()));
+                    }
+
+                    PSParameter peptideParameter = new PSParameter();
+
+                    // set the fraction scores
+                    for (String fractionName : fractionScores.keySet()) {
+                        peptideParameter.setFractionScore(fractionName, fractionScores.get(fractionName));
+                    }
+
+                    // Set the global score and grouping key
+                    peptideParameter.setPeptideProbabilityScore(probaScore);
+                    String peptideValidationGroup = "";
+                    if (identificationParameters.getIdValidationPreferences().getSeparatePeptides()) {
+                        peptideParameter.setSpecificMapKey(peptideValidationGroup);
+                    }
+                    identification.addPeptideMatchParameter(peptideKey, peptideParameter);
+                    peptideMap.addPoint(peptideParameter.getPeptideProbabilityScore(), peptideMatch, identificationParameters.getSequenceMatchingPreferences());
+
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+
+        /**
+         * Returns the modifications found by this thread.
+         *
+         * @return the modifications found by this thread
+         */
+        public HashSet<String> getFoundModifications() {
+            return foundModifications;
+        }
+
+        /**
+         * Returns the PSMs found by this thread indexed by fraction and peptide
+         * key.
+         *
+         * @return the PSMs found by this thread indexed by fraction and peptide
+         * key
+         */
+        public HashMap<String, ArrayList<String>> getFractionPsmMatches() {
+            return fractionPsmMatches;
+        }
+    }
+
+    /**
+     * Runnable attaching the peptide posterior error probabilities to the
+     * peptide matches.
+     *
+     * @author Marc Vaudel
+     */
+    private class PeptideProbabilitiesRunnable implements Runnable {
+
+        /**
+         * An iterator for the peptide matches.
+         */
+        private PeptideMatchesIterator peptideMatchesIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param peptideMatchesIterator a peptide matches iterator
+         * @param identification the identification containing the matches
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public PeptideProbabilitiesRunnable(PeptideMatchesIterator peptideMatchesIterator, Identification identification,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.peptideMatchesIterator = peptideMatchesIterator;
+            this.identification = identification;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+
+                PSParameter psParameter = new PSParameter();
+                PeptideMatch peptideMatch;
+
+                while ((peptideMatch = peptideMatchesIterator.next()) != null && !waitingHandler.isRunCanceled()) {
+
+                    String peptideKey = peptideMatch.getKey();
+                    psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
+
+                    if (sequenceFactory.concatenatedTargetDecoy()) {
+                        psParameter.setPeptideProbability(peptideMap.getProbability(psParameter.getSpecificMapKey(), psParameter.getPeptideProbabilityScore()));
+                    } else {
+                        psParameter.setPeptideProbability(1.0);
+                    }
+                    Set<String> fractions = psParameter.getFractions();
+                    if (fractions == null) {
+                        throw new IllegalArgumentException("Fractions not found for peptide " + peptideKey + ".");
+                    }
+                    for (String fraction : fractions) {
+                        if (sequenceFactory.concatenatedTargetDecoy()) {
+                            psParameter.setFractionPEP(fraction, peptideMap.getProbability(psParameter.getSpecificMapKey(), psParameter.getFractionScore(fraction)));
+                        } else {
+                            psParameter.setFractionPEP(fraction, 1.0);
+                        }
+                    }
+
+                    identification.updatePeptideMatchParameter(peptideKey, psParameter);
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+    }
+
+    /**
+     * Runnable computing the protein scores and filling the protein map.
+     *
+     * @author Marc Vaudel
+     */
+    private class ProteinMapFillerRunnable implements Runnable {
+
+        /**
+         * An iterator for the protein matches.
+         */
+        private ProteinMatchesIterator proteinMatchesIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+
+        /**
+         * Constructor.
+         *
+         * @param proteinMatchesIterator a protein matches iterator
+         * @param identification the identification containing the matches
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public ProteinMapFillerRunnable(ProteinMatchesIterator proteinMatchesIterator, Identification identification,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.proteinMatchesIterator = proteinMatchesIterator;
+            this.identification = identification;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+
+                int nFractions = identification.getSpectrumFiles().size();
+                PSParameter psParameter = new PSParameter();
+                ProteinMatch proteinMatch;
+
+                while ((proteinMatch = proteinMatchesIterator.next()) != null && !waitingHandler.isRunCanceled()) {
+
+                    String proteinKey = proteinMatch.getKey();
+
+                    waitingHandler.increaseSecondaryProgressCounter();
+
+                    HashMap<String, Double> fractionScores = new HashMap<String, Double>(nFractions);
+                    double probaScore = 1;
+
+                    // get the global and fraction level scores
+                    for (String peptideKey : proteinMatch.getPeptideMatchesKeys()) {
+
+                        psParameter = (PSParameter) identification.getPeptideMatchParameter(peptideKey, psParameter);
+                        probaScore = probaScore * psParameter.getPeptideProbability();
+
+                        if (nFractions > 1) {
+                            for (String fraction : psParameter.getFractions()) {
+
+                                Double fractionScore = fractionScores.get(fraction);
+                                boolean change = false;
+                                if (fractionScore == null) {
+                                    fractionScore = 1.0;
+                                    change = true;
+                                }
+                                Double peptideScore = psParameter.getFractionPEP(fraction);
+                                if (peptideScore != 1.0) {
+                                    fractionScore *= peptideScore;
+                                    change = true;
+                                }
+                                if (change) {
+                                    fractionScores.put(fraction, fractionScore);
+                                }
+                            }
+                        }
+                    }
+                    if (nFractions == 1) {
+                        String spectrumFile = identification.getSpectrumFiles().get(0);
+                        fractionScores.put(spectrumFile, probaScore);
+                    }
+
+                    PSParameter proteinParameter = new PSParameter();
+
+                    // set the fraction scores
+                    for (String fractionName : fractionScores.keySet()) {
+                        proteinParameter.setFractionScore(fractionName, fractionScores.get(fractionName));
+                    }
+
+                    // Set the global score
+                    proteinParameter.setProteinProbabilityScore(probaScore);
+
+                    identification.addProteinMatchParameter(proteinKey, proteinParameter);
+                    proteinMap.addPoint(proteinParameter.getProteinProbabilityScore(), accessionDictionary.isDecoy(proteinKey));
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+    }
+
+    /**
+     * Runnable attaching the protein posterior error probabilities to the
+     * protein matches.
+     *
+     * @author Marc Vaudel
+     */
+    private class ProteinProbabilitiesRunnable implements Runnable {
+
+        /**
+         * An iterator for the protein matches.
+         */
+        private ProteinMatchesIterator proteinMatchesIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The fraction settings.
+         */
+        private FractionSettings fractionSettings;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * The molecular weights of the confident proteins of this thread
+         * indexed by fraction.
+         */
+        private HashMap<String, ArrayList<Double>> fractionMW = new HashMap<String, ArrayList<Double>>();
+
+        /**
+         * Constructor.
+         *
+         * @param proteinMatchesIterator a protein matches iterator
+         * @param identification the identification containing the matches
+         * @param fractionSettings the fraction settings
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public ProteinProbabilitiesRunnable(ProteinMatchesIterator proteinMatchesIterator, Identification identification, FractionSettings fractionSettings,
+                WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.proteinMatchesIterator = proteinMatchesIterator;
+            this.identification = identification;
+            this.fractionSettings = fractionSettings;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+
+                PSParameter psParameter = new PSParameter();
+                ProteinMatch proteinMatch;
+
+                while ((proteinMatch = proteinMatchesIterator.next()) != null && !waitingHandler.isRunCanceled()) {
+
+                    String proteinKey = proteinMatch.getKey();
+                    Double proteinMW = sequenceFactory.computeMolecularWeight(proteinMatch.getMainMatch());
+
+                    psParameter = (PSParameter) identification.getProteinMatchParameter(proteinKey, psParameter);
+                    if (sequenceFactory.concatenatedTargetDecoy()) {
+                        double proteinProbability = proteinMap.getProbability(psParameter.getProteinProbabilityScore());
+                        psParameter.setProteinProbability(proteinProbability);
+                    } else {
+                        psParameter.setProteinProbability(1.0);
+                    }
+
+                    for (String fraction : psParameter.getFractions()) {
+                        if (sequenceFactory.concatenatedTargetDecoy()) {
+                            psParameter.setFractionPEP(fraction, proteinMap.getProbability(psParameter.getFractionScore(fraction)));
+                        } else {
+                            psParameter.setFractionPEP(fraction, 1.0);
+                        }
+
+                        // set the fraction molecular weights
+                        if (!accessionDictionary.isDecoy(proteinKey) && psParameter.getFractionConfidence(fraction) > fractionSettings.getProteinConfidenceMwPlots()) {
+                            ArrayList<Double> mw = fractionMW.get(fraction);
+                            if (mw == null) {
+                                mw = new ArrayList<Double>(1);
+                                fractionMW.put(fraction, mw);
+                            }
+                            mw.add(proteinMW);
+                        }
+                    }
+
+                    identification.updateProteinMatchParameter(proteinKey, psParameter);
+                    waitingHandler.increaseSecondaryProgressCounter();
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+
+        /**
+         * Returns the molecular weights of the confident proteins of this
+         * thread indexed by fraction.
+         *
+         * @return the molecular weights of the confident proteins of this
+         * thread indexed by fraction
+         */
+        public HashMap<String, ArrayList<Double>> getFractionMW() {
+            return fractionMW;
+        }
+    }
+
+    /**
+     * Runnable updating the validation level of the matches given by an
+     * iterator. Only one of the PSM, peptide and protein iterators should be
+     * provided.
+     *
+     * @author Marc Vaudel
+     */
+    private class ValidationLevelUpdaterRunnable implements Runnable {
+
+        /**
+         * An iterator for the PSMs.
+         */
+        private PsmIterator psmIterator;
+        /**
+         * An iterator for the peptide matches.
+         */
+        private PeptideMatchesIterator peptideMatchesIterator;
+        /**
+         * An iterator for the protein matches.
+         */
+        private ProteinMatchesIterator proteinMatchesIterator;
+        /**
+         * The identification.
+         */
+        private Identification identification;
+        /**
+         * The gene maps.
+         */
+        private GeneMaps geneMaps;
+        /**
+         * The identification features generator used to estimate, store and
+         * retrieve identification features.
+         */
+        private IdentificationFeaturesGenerator identificationFeaturesGenerator;
+        /**
+         * The identification parameters.
+         */
+        private IdentificationParameters identificationParameters;
+        /**
+         * The waiting handler.
+         */
+        private WaitingHandler waitingHandler;
+        /**
+         * Handler for the exceptions.
+         */
+        private ExceptionHandler exceptionHandler;
+        /**
+         * The peptide spectrum annotator.
+         */
+        private PeptideSpectrumAnnotator peptideSpectrumAnnotator = new CachingPeptideSpectrumAnnotator();
+        /**
+         * The number of matches whose validation changed.
+         */
+        private int nChanged = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param psmIterator a PSM iterator, can be null
+         * @param peptideMatchesIterator a peptide matches iterator, can be
+         * null
+         * @param proteinMatchesIterator a protein matches iterator, can be
+         * null
+         * @param identification the identification containing the matches
+         * @param identificationFeaturesGenerator the identification features
+         * generator used to estimate, store and retrieve identification
+         * features
+         * @param geneMaps the gene maps
+         * @param identificationParameters the identification parameters
+         * @param waitingHandler a waiting handler to display progress and allow
+         * canceling the process
+         * @param exceptionHandler handler for exceptions
+         */
+        public ValidationLevelUpdaterRunnable(PsmIterator psmIterator, PeptideMatchesIterator peptideMatchesIterator, ProteinMatchesIterator proteinMatchesIterator,
+                Identification identification, IdentificationFeaturesGenerator identificationFeaturesGenerator, GeneMaps geneMaps,
+                IdentificationParameters identificationParameters, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+            this.psmIterator = psmIterator;
+            this.peptideMatchesIterator = peptideMatchesIterator;
+            this.proteinMatchesIterator = proteinMatchesIterator;
+            this.identification = identification;
+            this.identificationFeaturesGenerator = identificationFeaturesGenerator;
+            this.geneMaps = geneMaps;
+            this.identificationParameters = identificationParameters;
+            this.waitingHandler = waitingHandler;
+            this.exceptionHandler = exceptionHandler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (psmIterator != null) {
+                    SpectrumMatch spectrumMatch;
+                    while ((spectrumMatch = psmIterator.next()) != null && !waitingHandler.isRunCanceled()) {
+                        if (updateSpectrumMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, identificationParameters, peptideSpectrumAnnotator, psmMap, spectrumMatch.getKey(), true)) {
+                            nChanged++;
+                        }
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                } else if (peptideMatchesIterator != null) {
+                    PeptideMatch peptideMatch;
+                    while ((peptideMatch = peptideMatchesIterator.next()) != null && !waitingHandler.isRunCanceled()) {
+                        if (updatePeptideMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, identificationParameters, peptideMap, peptideMatch.getKey())) {
+                            nChanged++;
+                        }
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                } else if (proteinMatchesIterator != null) {
+                    ProteinMatch proteinMatch;
+                    while ((proteinMatch = proteinMatchesIterator.next()) != null && !waitingHandler.isRunCanceled()) {
+                        if (updateProteinMatchValidationLevel(identification, identificationFeaturesGenerator, geneMaps, identificationParameters, proteinMap, proteinMatch.getKey())) {
+                            nChanged++;
+                        }
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                exceptionHandler.catchException(e);
+                waitingHandler.setRunCanceled();
+            }
+        }
+
+        /**
+         * Returns the number of matches whose validation changed.
+         *
+         * @return the number of matches whose validation changed
+         */
+        public int getnChanged() {
+            return nChanged;
+        }
+    }
 }
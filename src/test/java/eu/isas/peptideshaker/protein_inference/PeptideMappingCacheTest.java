@@ -0,0 +1,156 @@
+package eu.isas.peptideshaker.protein_inference;
+
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.preferences.SequenceMatchingPreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Test the saving and loading of the peptide mapping cache.
+ *
+ * @author Marc Vaudel
+ */
+public class PeptideMappingCacheTest extends TestCase {
+
+    /**
+     * The temporary folder used by the test.
+     */
+    private File testFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        testFolder = File.createTempFile("peptide_mapping_test", "");
+        testFolder.delete();
+        testFolder.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(testFolder);
+    }
+
+    /**
+     * Tests that the mappings saved are found when loading the cache for the
+     * same FASTA file, also when only its modification date changed, and not
+     * for a modified FASTA file.
+     *
+     * @throws Exception
+     */
+    public void testRoundTrip() throws Exception {
+
+        File cacheFolder = new File(testFolder, PeptideMappingCache.CACHE_FOLDER);
+        File fastaFile = new File(testFolder, "test.fasta");
+        writeFile(fastaFile, ">P1\nPEPTIDEK\n>P2\nPEPTIDEKR\n");
+        SequenceMatchingPreferences sequenceMatchingPreferences = new SequenceMatchingPreferences();
+        WaitingHandler waitingHandler = new WaitingHandlerCLIImpl();
+
+        PeptideMappingCache cache = PeptideMappingCache.load(cacheFolder, fastaFile, sequenceMatchingPreferences, waitingHandler);
+        Assert.assertEquals(0, cache.getnLoaded());
+
+        ArrayList<String> accessions = new ArrayList<String>();
+        accessions.add("P1");
+        accessions.add("P2");
+        cache.addMapping(getPeptide("PEPTIDEK"), accessions);
+        cache.save();
+
+        cache = PeptideMappingCache.load(cacheFolder, fastaFile, sequenceMatchingPreferences, waitingHandler);
+        Assert.assertEquals(1, cache.getnLoaded());
+
+        Peptide peptide = getPeptide("PEPTIDEK");
+        Assert.assertTrue(cache.setParentProteins(peptide));
+        Assert.assertEquals(accessions, peptide.getParentProteinsNoRemapping());
+        Assert.assertFalse(cache.setParentProteins(getPeptide("PEPTIDER")));
+        Assert.assertEquals(1, cache.getnHits());
+
+        // the cache of a FASTA file with the same content is reused
+        fastaFile.setLastModified(fastaFile.lastModified() - 100000);
+        cache = PeptideMappingCache.load(cacheFolder, fastaFile, sequenceMatchingPreferences, waitingHandler);
+        Assert.assertEquals(1, cache.getnLoaded());
+        cache.save();
+        cache = PeptideMappingCache.load(cacheFolder, fastaFile, sequenceMatchingPreferences, waitingHandler);
+        Assert.assertEquals(1, cache.getnLoaded());
+
+        // the cache of a modified FASTA file is not reused
+        writeFile(fastaFile, ">P1\nPEPTIDEK\n");
+        cache = PeptideMappingCache.load(cacheFolder, fastaFile, sequenceMatchingPreferences, waitingHandler);
+        Assert.assertEquals(0, cache.getnLoaded());
+    }
+
+    /**
+     * Tests that only the most recently used cache files are kept.
+     *
+     * @throws Exception
+     */
+    public void testCleanUp() throws Exception {
+
+        long time = System.currentTimeMillis() - 100000;
+        for (int i = 0; i < 12; i++) {
+            File cacheFile = new File(testFolder, i + PeptideMappingCache.EXTENSION);
+            writeFile(cacheFile, "");
+            cacheFile.setLastModified(time + 1000 * i);
+        }
+        File otherFile = new File(testFolder, "other.txt");
+        writeFile(otherFile, "");
+        otherFile.setLastModified(time);
+
+        PeptideMappingCache.cleanUp(testFolder, 10);
+
+        Assert.assertFalse(new File(testFolder, 0 + PeptideMappingCache.EXTENSION).exists());
+        Assert.assertFalse(new File(testFolder, 1 + PeptideMappingCache.EXTENSION).exists());
+        for (int i = 2; i < 12; i++) {
+            Assert.assertTrue(new File(testFolder, i + PeptideMappingCache.EXTENSION).exists());
+        }
+        Assert.assertTrue(otherFile.exists());
+    }
+
+    /**
+     * Returns an unmodified peptide of the given sequence.
+     *
+     * @param sequence the sequence of the peptide
+     *
+     * @return the peptide
+     */
+    private static Peptide getPeptide(String sequence) {
+        return new Peptide(sequence, new ArrayList<ModificationMatch>());
+    }
+
+    /**
+     * Writes the given content to a file.
+     *
+     * @param file the file
+     * @param content the content
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private static void writeFile(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Deletes a file or folder and its content.
+     *
+     * @param file the file or folder to delete
+     */
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
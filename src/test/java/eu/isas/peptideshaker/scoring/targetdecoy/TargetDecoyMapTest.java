@@ -0,0 +1,161 @@
+package eu.isas.peptideshaker.scoring.targetdecoy;
+
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Random;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Test the estimations of the target/decoy map. The reference values were
+ * obtained with the map backed by a hash map of points.
+ *
+ * @author Marc Vaudel
+ */
+public class TargetDecoyMapTest extends TestCase {
+
+    /**
+     * The tolerance used to compare probabilities.
+     */
+    private static final double TOLERANCE = 1e-12;
+
+    /**
+     * Tests the metrics and posterior error probabilities estimated on a
+     * simulated dataset.
+     */
+    public void testEstimates() {
+
+        TargetDecoyMap targetDecoyMap = getTestMap();
+
+        Assert.assertEquals(500, targetDecoyMap.getMapSize());
+        Assert.assertEquals(230, targetDecoyMap.getnMax());
+        Assert.assertEquals(440, targetDecoyMap.getnTargetOnly().intValue());
+        Assert.assertEquals(230, targetDecoyMap.getWindowSize());
+        Assert.assertEquals(100.0 / 230, targetDecoyMap.getResolution(), TOLERANCE);
+
+        // scores below the first decoy
+        Assert.assertEquals(0.0, targetDecoyMap.getProbability(-1), TOLERANCE);
+        Assert.assertEquals(0.0, targetDecoyMap.getProbability(0), TOLERANCE);
+        Assert.assertEquals(0.0, targetDecoyMap.getProbability(0.0015), TOLERANCE);
+
+        // scores in the map
+        Assert.assertEquals(0.0076045627376425855, targetDecoyMap.getProbability(0.01), TOLERANCE);
+        Assert.assertEquals(0.05394190871369295, targetDecoyMap.getProbability(0.1), TOLERANCE);
+        Assert.assertEquals(0.2863247863247863, targetDecoyMap.getProbability(0.5), TOLERANCE);
+        Assert.assertEquals(0.8050847457627118, targetDecoyMap.getProbability(1.0), TOLERANCE);
+        Assert.assertEquals(0.7758620689655172, targetDecoyMap.getProbability(1.5), TOLERANCE);
+
+        // scores between two points of the map
+        Assert.assertEquals(0.007386510759502297, targetDecoyMap.getProbability(0.0105), TOLERANCE);
+        Assert.assertEquals(0.5118118247743081, targetDecoyMap.getProbability(0.7777), TOLERANCE);
+        Assert.assertEquals(0.7904734073641145, targetDecoyMap.getProbability(1.2), TOLERANCE);
+
+        // scores above the last point of the map
+        Assert.assertEquals(0.7758620689655172, targetDecoyMap.getProbability(2), TOLERANCE);
+    }
+
+    /**
+     * Tests that the scores are sorted and updated when points are added and
+     * removed.
+     */
+    public void testScoresUpdate() {
+
+        TargetDecoyMap targetDecoyMap = new TargetDecoyMap();
+        targetDecoyMap.put(0.5, false);
+        targetDecoyMap.put(0.1, false);
+        targetDecoyMap.put(0.3, true);
+
+        ArrayList<Double> expected = new ArrayList<Double>();
+        expected.add(0.1);
+        expected.add(0.3);
+        expected.add(0.5);
+        Assert.assertEquals(expected, targetDecoyMap.getScores());
+
+        targetDecoyMap.put(0.2, false);
+        expected.add(1, 0.2);
+        Assert.assertEquals(expected, targetDecoyMap.getScores());
+        Assert.assertEquals(1, targetDecoyMap.getNTarget(0.2));
+
+        targetDecoyMap.remove(0.3, true);
+        targetDecoyMap.cleanUp();
+        expected.remove(0.3);
+        Assert.assertEquals(expected, targetDecoyMap.getScores());
+        Assert.assertEquals(3, targetDecoyMap.getMapSize());
+    }
+
+    /**
+     * Tests that the points and estimates are retrieved after serialization.
+     *
+     * @throws Exception
+     */
+    public void testSerialization() throws Exception {
+
+        TargetDecoyMap targetDecoyMap = getTestMap();
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
+        objectOutputStream.writeObject(targetDecoyMap);
+        objectOutputStream.close();
+        ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        TargetDecoyMap readMap = (TargetDecoyMap) objectInputStream.readObject();
+        objectInputStream.close();
+
+        Assert.assertEquals(targetDecoyMap.getScores(), readMap.getScores());
+        Assert.assertEquals(targetDecoyMap.getnMax(), readMap.getnMax());
+        for (double score : targetDecoyMap.getScores()) {
+            Assert.assertEquals(targetDecoyMap.getNTarget(score), readMap.getNTarget(score));
+            Assert.assertEquals(targetDecoyMap.getNDecoy(score), readMap.getNDecoy(score));
+            Assert.assertEquals(targetDecoyMap.getProbability(score), readMap.getProbability(score), TOLERANCE);
+        }
+    }
+
+    /**
+     * Tests that the sorted scores are still written in the legacy scores list
+     * read by older versions of PeptideShaker.
+     *
+     * @throws Exception
+     */
+    public void testLegacyScores() throws Exception {
+
+        TargetDecoyMap targetDecoyMap = getTestMap();
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
+        objectOutputStream.writeObject(targetDecoyMap);
+        objectOutputStream.close();
+
+        Field scoresField = TargetDecoyMap.class.getDeclaredField("scores");
+        scoresField.setAccessible(true);
+        Assert.assertNull(scoresField.get(targetDecoyMap));
+
+        ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        TargetDecoyMap readMap = (TargetDecoyMap) objectInputStream.readObject();
+        objectInputStream.close();
+
+        Assert.assertEquals(targetDecoyMap.getScores(), scoresField.get(readMap));
+    }
+
+    /**
+     * Returns a map filled with simulated hits where the share of decoys
+     * increases with the score, and where the probabilities were estimated.
+     *
+     * @return a target/decoy map
+     */
+    private static TargetDecoyMap getTestMap() {
+        TargetDecoyMap targetDecoyMap = new TargetDecoyMap();
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            double score = Math.round(Math.pow(random.nextDouble(), 2) * 500) / 500.0;
+            targetDecoyMap.put(score, random.nextDouble() < score / 2);
+        }
+        targetDecoyMap.put(1.0, true);
+        targetDecoyMap.put(1.5, false);
+        targetDecoyMap.estimateProbabilities(new WaitingHandlerCLIImpl());
+        return targetDecoyMap;
+    }
+}
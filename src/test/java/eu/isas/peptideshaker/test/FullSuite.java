@@ -1,6 +1,12 @@
 package eu.isas.peptideshaker.test;
 
 import eu.isas.peptideshaker.pride.PrideWebServiceTest;
+import eu.isas.peptideshaker.protein_inference.PeptideMappingCacheTest;
+import eu.isas.peptideshaker.scoring.targetdecoy.TargetDecoyMapTest;
+import eu.isas.peptideshaker.utils.CachingPeptideSpectrumAnnotatorTest;
+import eu.isas.peptideshaker.utils.IdentificationFeaturesCacheTest;
+import eu.isas.peptideshaker.utils.ProcessingCheckpointTest;
+import eu.isas.peptideshaker.utils.ProteinSortingDataTest;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -19,6 +25,12 @@ public class FullSuite extends TestCase {
     public static Test suite() {
         TestSuite ts = new TestSuite("Test suite for the PeptideShaker project.");
         ts.addTest(new TestSuite(PrideWebServiceTest.class));
+        ts.addTest(new TestSuite(PeptideMappingCacheTest.class));
+        ts.addTest(new TestSuite(IdentificationFeaturesCacheTest.class));
+        ts.addTest(new TestSuite(ProteinSortingDataTest.class));
+        ts.addTest(new TestSuite(TargetDecoyMapTest.class));
+        ts.addTest(new TestSuite(ProcessingCheckpointTest.class));
+        ts.addTest(new TestSuite(CachingPeptideSpectrumAnnotatorTest.class));
         return ts;
     }
 }
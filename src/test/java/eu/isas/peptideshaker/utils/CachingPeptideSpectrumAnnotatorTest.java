@@ -0,0 +1,86 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.Advocate;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
+import com.compomics.util.experiment.massspectrometry.Charge;
+import java.util.ArrayList;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Test the keys of the annotation settings used by the caching peptide
+ * spectrum annotator.
+ *
+ * @author Marc Vaudel
+ */
+public class CachingPeptideSpectrumAnnotatorTest extends TestCase {
+
+    /**
+     * Tests that settings differing only by the unit of the fragment ion
+     * tolerance do not share a cache entry, and that settings with the same
+     * values do.
+     */
+    public void testToleranceUnit() {
+
+        CachingPeptideSpectrumAnnotator annotator = new CachingPeptideSpectrumAnnotator();
+        AnnotationSettings annotationSettings = new AnnotationSettings();
+
+        SpecificAnnotationSettings daltonSettings = getSpecificAnnotationSettings(false);
+        SpecificAnnotationSettings ppmSettings = getSpecificAnnotationSettings(true);
+        SpecificAnnotationSettings otherDaltonSettings = getSpecificAnnotationSettings(false);
+
+        String daltonKey = annotator.getSettingsKey(annotationSettings, daltonSettings);
+        String ppmKey = annotator.getSettingsKey(annotationSettings, ppmSettings);
+        String otherDaltonKey = annotator.getSettingsKey(annotationSettings, otherDaltonSettings);
+
+        Assert.assertFalse(daltonKey.equals(ppmKey));
+        Assert.assertEquals(daltonKey, otherDaltonKey);
+    }
+
+    /**
+     * Tests that settings modified between two calls do not share a cache
+     * entry with their previous values.
+     */
+    public void testSettingsModification() {
+
+        CachingPeptideSpectrumAnnotator annotator = new CachingPeptideSpectrumAnnotator();
+        AnnotationSettings annotationSettings = new AnnotationSettings();
+        annotationSettings.setIntensityLimit(0.5);
+        SpecificAnnotationSettings specificAnnotationSettings = getSpecificAnnotationSettings(false);
+
+        String key = annotator.getSettingsKey(annotationSettings, specificAnnotationSettings);
+
+        specificAnnotationSettings.setFragmentIonAccuracy(0.5);
+        String accuracyKey = annotator.getSettingsKey(annotationSettings, specificAnnotationSettings);
+        Assert.assertFalse(key.equals(accuracyKey));
+
+        annotationSettings.setIntensityLimit(0.75);
+        String intensityKey = annotator.getSettingsKey(annotationSettings, specificAnnotationSettings);
+        Assert.assertFalse(accuracyKey.equals(intensityKey));
+
+        specificAnnotationSettings.setFragmentIonAccuracy(10.0);
+        annotationSettings.setIntensityLimit(0.5);
+        Assert.assertEquals(key, annotator.getSettingsKey(annotationSettings, specificAnnotationSettings));
+    }
+
+    /**
+     * Returns specific annotation settings for a doubly charged peptide with a
+     * fragment ion tolerance of 10.
+     *
+     * @param ppm boolean indicating whether the tolerance is in ppm
+     *
+     * @return specific annotation settings
+     */
+    private static SpecificAnnotationSettings getSpecificAnnotationSettings(boolean ppm) {
+        Peptide peptide = new Peptide("PEPTIDEK", new ArrayList<ModificationMatch>());
+        PeptideAssumption peptideAssumption = new PeptideAssumption(peptide, 1, Advocate.peptideShaker.getIndex(), new Charge(Charge.PLUS, 2), 0.0);
+        SpecificAnnotationSettings specificAnnotationSettings = new SpecificAnnotationSettings("spectrum_key", peptideAssumption);
+        specificAnnotationSettings.setFragmentIonAccuracy(10.0);
+        specificAnnotationSettings.setFragmentIonPpm(ppm);
+        return specificAnnotationSettings;
+    }
+}
@@ -0,0 +1,102 @@
+package eu.isas.peptideshaker.utils;
+
+import eu.isas.peptideshaker.utils.IdentificationFeaturesCache.ObjectType;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Test the eviction of the objects of the identification features cache.
+ *
+ * @author Marc Vaudel
+ */
+public class IdentificationFeaturesCacheTest extends TestCase {
+
+    /**
+     * Tests that the small objects of all types are bounded together and
+     * evicted in insertion order.
+     */
+    public void testSmallObjectsBound() {
+
+        IdentificationFeaturesCache cache = new IdentificationFeaturesCache();
+        int cacheSize = 1000000;
+        for (int i = 0; i < cacheSize; i++) {
+            cache.addObject(ObjectType.number_of_spectra, "protein_" + i, i);
+        }
+        Assert.assertEquals(cacheSize, cache.getnObjects(ObjectType.number_of_spectra));
+        Assert.assertEquals(0, cache.getnEvictions());
+
+        for (int i = 0; i < 10; i++) {
+            cache.addObject(ObjectType.spectrum_counting, "protein_" + i, 1.0 * i);
+        }
+        Assert.assertEquals(cacheSize - 10, cache.getnObjects(ObjectType.number_of_spectra));
+        Assert.assertEquals(10, cache.getnObjects(ObjectType.spectrum_counting));
+        Assert.assertEquals(10, cache.getnEvictions());
+        Assert.assertNull(cache.getObject(ObjectType.number_of_spectra, "protein_9"));
+        Assert.assertEquals(10, cache.getObject(ObjectType.number_of_spectra, "protein_10"));
+        Assert.assertEquals(9.0, cache.getObject(ObjectType.spectrum_counting, "protein_9"));
+    }
+
+    /**
+     * Tests that the small objects of a type which was removed do not count
+     * towards the bound anymore.
+     */
+    public void testSmallObjectsRemoval() {
+
+        IdentificationFeaturesCache cache = new IdentificationFeaturesCache();
+        int cacheSize = 1000000;
+        for (int i = 0; i < cacheSize; i++) {
+            cache.addObject(ObjectType.number_of_spectra, "protein_" + i, i);
+        }
+        cache.removeObjects(ObjectType.number_of_spectra);
+        Assert.assertEquals(0, cache.getnObjects(ObjectType.number_of_spectra));
+
+        for (int i = 0; i < 10; i++) {
+            cache.addObject(ObjectType.spectrum_counting, "protein_" + i, 1.0 * i);
+            cache.addObject(ObjectType.number_of_spectra, "protein_" + i, i);
+        }
+        Assert.assertEquals(0, cache.getnEvictions());
+        Assert.assertEquals(10, cache.getnObjects(ObjectType.spectrum_counting));
+        Assert.assertEquals(10, cache.getnObjects(ObjectType.number_of_spectra));
+        Assert.assertEquals(0, cache.getObject(ObjectType.number_of_spectra, "protein_0"));
+    }
+
+    /**
+     * Tests that the big objects of all types are evicted together in access
+     * order when the memory allocated is exceeded.
+     */
+    public void testBigObjectsBudget() {
+
+        IdentificationFeaturesCache cache = new IdentificationFeaturesCache(1);
+        long budget = cache.getBigObjectsCacheMemory();
+        Assert.assertEquals(1048576L, budget);
+        Assert.assertEquals(IdentificationFeaturesCache.DEFAULT_BIG_OBJECTS_CACHE_MEMORY * 1048576L, new IdentificationFeaturesCache().getBigObjectsCacheMemory());
+
+        // three arrays of 300 kB fit in the budget
+        cache.addObject(ObjectType.AA_coverage, "protein_1", new double[37500]);
+        cache.addObject(ObjectType.coverable_AA_p, "protein_1", new double[37500]);
+        cache.addObject(ObjectType.AA_coverage, "protein_2", new double[37500]);
+        Assert.assertEquals(0, cache.getnEvictions());
+        Assert.assertTrue(cache.getBigObjectsMemoryUsed() <= budget);
+
+        // access the first object so that the least recently used is of another type
+        Assert.assertNotNull(cache.getObject(ObjectType.AA_coverage, "protein_1"));
+        cache.addObject(ObjectType.tryptic_protein, "protein_1", new double[37500]);
+        Assert.assertEquals(1, cache.getnEvictions());
+        Assert.assertTrue(cache.getBigObjectsMemoryUsed() <= budget);
+        Assert.assertNull(cache.getObject(ObjectType.coverable_AA_p, "protein_1"));
+        Assert.assertEquals(0, cache.getnObjects(ObjectType.coverable_AA_p));
+        Assert.assertNotNull(cache.getObject(ObjectType.AA_coverage, "protein_1"));
+        Assert.assertNotNull(cache.getObject(ObjectType.AA_coverage, "protein_2"));
+        Assert.assertNotNull(cache.getObject(ObjectType.tryptic_protein, "protein_1"));
+
+        // an object larger than the budget is kept alone
+        cache.addObject(ObjectType.coverable_AA_p, "protein_2", new double[200000]);
+        Assert.assertEquals(4, cache.getnEvictions());
+        Assert.assertEquals(1, cache.getnObjects(ObjectType.coverable_AA_p));
+        Assert.assertEquals(0, cache.getnObjects(ObjectType.AA_coverage));
+        Assert.assertEquals(0, cache.getnObjects(ObjectType.tryptic_protein));
+
+        cache.removeObjects(ObjectType.coverable_AA_p);
+        Assert.assertEquals(0, cache.getBigObjectsMemoryUsed());
+    }
+}
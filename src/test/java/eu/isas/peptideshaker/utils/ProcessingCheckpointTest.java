@@ -0,0 +1,236 @@
+package eu.isas.peptideshaker.utils;
+
+import com.compomics.util.Util;
+import com.compomics.util.db.ObjectsCache;
+import com.compomics.util.experiment.MsExperiment;
+import com.compomics.util.experiment.identification.Identification;
+import com.compomics.util.experiment.identification.identifications.Ms2Identification;
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.gui.waiting.waitinghandlers.WaitingHandlerCLIImpl;
+import com.compomics.util.preferences.IdentificationParameters;
+import eu.isas.peptideshaker.utils.ProcessingCheckpoint.Stage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Test the detection of the checkpoints which can be used to resume a
+ * processing.
+ *
+ * @author Marc Vaudel
+ */
+public class ProcessingCheckpointTest extends TestCase {
+
+    /**
+     * The temporary folder used by the test.
+     */
+    private File testFolder;
+    /**
+     * The identification files.
+     */
+    private ArrayList<File> idFiles;
+    /**
+     * The spectrum files.
+     */
+    private ArrayList<File> spectrumFiles;
+
+    @Override
+    protected void setUp() throws Exception {
+        testFolder = File.createTempFile("processing_checkpoint_test", "");
+        testFolder.delete();
+        testFolder.mkdirs();
+        idFiles = new ArrayList<File>();
+        idFiles.add(writeFile("search_1.t.xml", "1"));
+        idFiles.add(writeFile("search_2.t.xml", "2"));
+        spectrumFiles = new ArrayList<File>();
+        spectrumFiles.add(writeFile("spectra.mgf", "BEGIN IONS\nEND IONS\n"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteDir(testFolder);
+    }
+
+    /**
+     * Tests that a checkpoint is compatible with a run on the same files in
+     * any order and with the same parameters.
+     *
+     * @throws Exception
+     */
+    public void testSameInput() throws Exception {
+
+        ProcessingCheckpoint checkpoint = new ProcessingCheckpoint(idFiles, spectrumFiles, getIdentificationParameters());
+
+        ArrayList<File> otherIdFiles = new ArrayList<File>();
+        otherIdFiles.add(idFiles.get(1));
+        otherIdFiles.add(idFiles.get(0));
+        ProcessingCheckpoint otherCheckpoint = new ProcessingCheckpoint(otherIdFiles, spectrumFiles, getIdentificationParameters());
+
+        Assert.assertTrue(checkpoint.isCompatible(otherCheckpoint));
+        Assert.assertTrue(otherCheckpoint.isCompatible(checkpoint));
+    }
+
+    /**
+     * Tests that a checkpoint is not compatible with a run on different or
+     * modified files.
+     *
+     * @throws Exception
+     */
+    public void testDifferentFiles() throws Exception {
+
+        ProcessingCheckpoint checkpoint = new ProcessingCheckpoint(idFiles, spectrumFiles, getIdentificationParameters());
+
+        ArrayList<File> otherIdFiles = new ArrayList<File>();
+        otherIdFiles.add(idFiles.get(0));
+        Assert.assertFalse(checkpoint.isCompatible(new ProcessingCheckpoint(otherIdFiles, spectrumFiles, getIdentificationParameters())));
+
+        writeFile("search_2.t.xml", "22");
+        Assert.assertFalse(checkpoint.isCompatible(new ProcessingCheckpoint(idFiles, spectrumFiles, getIdentificationParameters())));
+    }
+
+    /**
+     * Tests that a checkpoint is not compatible with a run using different
+     * parameters, and that the parameters are copied when creating the
+     * checkpoint.
+     *
+     * @throws Exception
+     */
+    public void testDifferentParameters() throws Exception {
+
+        IdentificationParameters identificationParameters = getIdentificationParameters();
+        ProcessingCheckpoint checkpoint = new ProcessingCheckpoint(idFiles, spectrumFiles, identificationParameters);
+
+        identificationParameters.getSearchParameters().setPrecursorAccuracy(20.0);
+        ProcessingCheckpoint otherCheckpoint = new ProcessingCheckpoint(idFiles, spectrumFiles, identificationParameters);
+
+        Assert.assertFalse(checkpoint.isCompatible(otherCheckpoint));
+        Assert.assertTrue(otherCheckpoint.isCompatible(new ProcessingCheckpoint(idFiles, spectrumFiles, identificationParameters)));
+    }
+
+    /**
+     * Tests that a checkpoint saved after the import can be loaded for the
+     * same input, and that the database saved in the checkpoint replaces the
+     * database of the matches folder.
+     *
+     * @throws Exception
+     */
+    public void testSaveAndRestore() throws Exception {
+
+        File matchesFolder = new File(testFolder, "matches");
+        matchesFolder.mkdirs();
+        Assert.assertNull(ProcessingCheckpoint.load(matchesFolder));
+
+        ObjectsCache objectsCache = new ObjectsCache();
+        Identification identification = new Ms2Identification("checkpoint_test");
+        identification.establishConnection(matchesFolder.getAbsolutePath(), true, objectsCache);
+
+        ProcessingCheckpoint checkpoint = new ProcessingCheckpoint(idFiles, spectrumFiles, getIdentificationParameters());
+        try {
+            checkpoint.save(matchesFolder, Stage.IMPORT, new MsExperiment("checkpoint_test"), identification, objectsCache, new WaitingHandlerCLIImpl());
+            Assert.assertTrue(identification.isConnectionActive());
+        } finally {
+            identification.close();
+        }
+
+        ProcessingCheckpoint savedCheckpoint = ProcessingCheckpoint.load(matchesFolder);
+        Assert.assertNotNull(savedCheckpoint);
+        Assert.assertTrue(savedCheckpoint.isCompatible(new ProcessingCheckpoint(idFiles, spectrumFiles, getIdentificationParameters())));
+        Assert.assertEquals(Stage.IMPORT, savedCheckpoint.getStage());
+        Assert.assertEquals("checkpoint_test", savedCheckpoint.getExperiment().getReference());
+
+        File databaseCopy = new File(new File(matchesFolder, ProcessingCheckpoint.CHECKPOINT_FOLDER_NAME), "db");
+        HashMap<String, Long> savedFiles = getFileSizes(databaseCopy);
+        Assert.assertFalse(savedFiles.isEmpty());
+
+        // files written after the checkpoint must be discarded
+        writeFile("matches" + File.separator + "stale.txt", "stale");
+
+        savedCheckpoint.restoreDatabase(matchesFolder);
+
+        Assert.assertEquals(savedFiles, getFileSizes(matchesFolder));
+        Assert.assertFalse(new File(matchesFolder, "stale.txt").exists());
+
+        identification.restoreConnection(matchesFolder.getAbsolutePath(), false, objectsCache);
+        Assert.assertTrue(identification.isConnectionActive());
+        identification.close();
+    }
+
+    /**
+     * Returns the size of the files contained in the given folder, excluding
+     * the checkpoint, indexed by path relative to the folder.
+     *
+     * @param folder the folder
+     *
+     * @return the size of the files indexed by relative path
+     */
+    private static HashMap<String, Long> getFileSizes(File folder) {
+        HashMap<String, Long> result = new HashMap<String, Long>();
+        addFileSizes(folder, "", result);
+        return result;
+    }
+
+    /**
+     * Adds the size of the files contained in the given folder, excluding the
+     * checkpoint, to the given map.
+     *
+     * @param folder the folder
+     * @param prefix the relative path of the folder
+     * @param result the map of file sizes indexed by relative path
+     */
+    private static void addFileSizes(File folder, String prefix, HashMap<String, Long> result) {
+        for (File file : folder.listFiles()) {
+            if (file.isDirectory()) {
+                if (!ProcessingCheckpoint.isCheckpointFile(file)) {
+                    addFileSizes(file, prefix + file.getName() + File.separator, result);
+                }
+            } else {
+                result.put(prefix + file.getName(), file.length());
+            }
+        }
+    }
+
+    /**
+     * Returns identification parameters using the test FASTA file.
+     *
+     * @return identification parameters
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the FASTA file
+     */
+    private IdentificationParameters getIdentificationParameters() throws IOException {
+        File fastaFile = new File(testFolder, "test.fasta");
+        if (!fastaFile.exists()) {
+            writeFile(fastaFile.getName(), ">P1\nPEPTIDEK\n");
+        }
+        SearchParameters searchParameters = new SearchParameters();
+        searchParameters.setPrecursorAccuracy(10.0);
+        searchParameters.setFastaFile(fastaFile);
+        return new IdentificationParameters(searchParameters);
+    }
+
+    /**
+     * Writes the given content to a file of the test folder.
+     *
+     * @param fileName the name of the file
+     * @param content the content
+     *
+     * @return the file
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    private File writeFile(String fileName, String content) throws IOException {
+        File file = new File(testFolder, fileName);
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
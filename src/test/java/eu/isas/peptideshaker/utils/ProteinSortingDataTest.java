@@ -0,0 +1,67 @@
+package eu.isas.peptideshaker.utils;
+
+import eu.isas.peptideshaker.utils.IdentificationFeaturesGenerator.ProteinSortingData;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * Test the sorting of the proteins.
+ *
+ * @author Marc Vaudel
+ */
+public class ProteinSortingDataTest extends TestCase {
+
+    /**
+     * Tests that the proteins are sorted by increasing score, then decreasing
+     * number of peptides, then decreasing number of spectra, then key.
+     */
+    public void testSortedKeys() {
+
+        ProteinSortingData sortingData = new ProteinSortingData(6);
+        sortingData.add("P6", 0.5, 2, 10);
+        sortingData.add("P5", 0.5, 2, 10);
+        sortingData.add("P4", 0.5, 2, 20);
+        sortingData.add("P3", 0.5, 3, 1);
+        sortingData.add("P2", 1.0, 10, 100);
+        sortingData.add("P1", 0.1, 1, 1);
+
+        ArrayList<String> expected = new ArrayList<String>();
+        expected.add("P1");
+        expected.add("P3");
+        expected.add("P4");
+        expected.add("P5");
+        expected.add("P6");
+        expected.add("P2");
+        Assert.assertEquals(expected, sortingData.getSortedKeys());
+    }
+
+    /**
+     * Tests that only the proteins added are returned when fewer proteins than
+     * slots were added and that large inputs are sorted.
+     */
+    public void testLargeInput() {
+
+        int nProteins = 10000;
+        Random random = new Random(42);
+        ArrayList<String> keys = new ArrayList<String>(nProteins);
+        for (int i = 0; i < nProteins; i++) {
+            keys.add("P" + i);
+        }
+        Collections.shuffle(keys, random);
+
+        ProteinSortingData sortingData = new ProteinSortingData(nProteins + 10);
+        for (String key : keys) {
+            int index = Integer.parseInt(key.substring(1));
+            sortingData.add(key, (index / 100) / 100.0, 1000 - index % 100 / 10, 1000 - index % 10);
+        }
+
+        ArrayList<String> sortedKeys = sortingData.getSortedKeys();
+        Assert.assertEquals(nProteins, sortedKeys.size());
+        for (int i = 0; i < nProteins; i++) {
+            Assert.assertEquals("P" + i, sortedKeys.get(i));
+        }
+    }
+}